@@ -29,21 +29,39 @@ public class Assignment1 extends Frame implements GLEventListener, ActionListene
     private Point lastpoint;            // used with mouse routines
     private int width, height;
 
-    private Checkbox checkObjects, checkLight0, checkLight1, checkTexture;
+    private Checkbox checkObjects, checkLight0, checkLight1, checkTexture, checkDepthPrePass, checkInstancing;
     private Button startAnim, pauseAnim, resetScene, animateFrame, increaseSize, decreaseSize, cameraMode;
     private boolean continuousAnimation = CONTINUOUS_ANIMATION;
 
     private Camera camera, camera2;
     private Scene scene;
     private GLCanvas canvas;
+    private FrameTimer frameTimer;      // only created when frame times are to be reported
+    private int numDeskLights = -1;     // extra lights for clustered lighting, or -1 for the OpenGL lights alone
+    private static final int FRAME_TIME_REPORT_INTERVAL = 150;
 
     /**
      * The main method
      *
-     * @param args command line arguments supplied when the program is run
+     * @param args command line arguments supplied when the program is run.
+     * -frametimes prints the average frame time for each rendering mode used,
+     * the state changes issued and saved by the render queue, and the number of objects
+     * drawn, culled and hidden, with the occlusion queries issued, in the last frame.
+     * -size WIDTHxHEIGHT sets the size of the window, e.g. to compare frame times at high resolutions
+     * -lights N lights the scene with clustered lighting, adding N point lights spread over the room
      */
     public static void main(String[] args) {
         Assignment1 gl = new Assignment1();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equalsIgnoreCase("-frametimes")) {
+                gl.frameTimer = new FrameTimer();
+            } else if (args[i].equalsIgnoreCase("-size") && i + 1 < args.length) {
+                String[] size = args[++i].toLowerCase().split("x");
+                gl.setSize(Integer.parseInt(size[0]), Integer.parseInt(size[1]));
+            } else if (args[i].equalsIgnoreCase("-lights") && i + 1 < args.length) {
+                gl.numDeskLights = Integer.parseInt(args[++i]);
+            }
+        }
         gl.setVisible(true);
     }
 
@@ -75,11 +93,15 @@ public class Assignment1 extends Frame implements GLEventListener, ActionListene
         menuBar.add(fileMenu);
 
         Panel p = new Panel(new GridLayout(2, 1));
-        Panel p1 = new Panel(new GridLayout(5, 1));
+        Panel p1 = new Panel(new GridLayout(6, 1));
         checkObjects = addCheckbox(p1, "Objects On", this);
         checkLight0 = addCheckbox(p1, "Light 0 on", this);
         checkLight1 = addCheckbox(p1, "Light 1 on", this);
         checkTexture = addCheckbox(p1, "Textures on", this);
+        checkDepthPrePass = addCheckbox(p1, "Depth pre-pass", this);
+        checkDepthPrePass.setState(false);
+        checkInstancing = addCheckbox(p1, "Instanced obstacles", this);
+        checkInstancing.setState(false);
         p.add(p1);
         p1 = new Panel(new GridLayout(4, 2));
         Button increaseSize = new Button("Increase Size");
@@ -179,6 +201,12 @@ public class Assignment1 extends Frame implements GLEventListener, ActionListene
         } else if (source == checkTexture) {
             scene.setTextureMode();
             canvas.repaint();
+        } else if (source == checkDepthPrePass) {
+            scene.setDepthPrePass(checkDepthPrePass.getState());
+            canvas.repaint();
+        } else if (source == checkInstancing) {
+            scene.setInstancedObstacles(checkInstancing.getState());
+            canvas.repaint();
         }
     }
 
@@ -193,6 +221,10 @@ public class Assignment1 extends Frame implements GLEventListener, ActionListene
         checkLight0.setState(true);
         checkLight1.setState(true);
         checkTexture.setState(true);
+        checkDepthPrePass.setState(false);
+        scene.setDepthPrePass(false);
+        checkInstancing.setState(false);
+        scene.setInstancedObstacles(false);
         scene.getLight().setSwitchedOn(true);
         setContinuousAnimation(CONTINUOUS_ANIMATION);
         scene.reset();
@@ -220,8 +252,8 @@ public class Assignment1 extends Frame implements GLEventListener, ActionListene
         // Front and back facing polygons should be filled.
         gl.glEnable(GL2.GL_LIGHTING);   // Could be part of lights instead but done here as a default
         // to indicate lighting will be used.
-        gl.glEnable(GL2.GL_LIGHT0);     // Default is to enable light 0
-        gl.glEnable(GL2.GL_LIGHT1);
+        GLStateCache.get(gl).setLightEnabled(gl, GL2.GL_LIGHT0, true); // Default is to enable light 0, through the
+        GLStateCache.get(gl).setLightEnabled(gl, GL2.GL_LIGHT1, true); // cache, so the shaders know which are on
 
         gl.glEnable(GL2.GL_NORMALIZE);  // If enabled, normal vectors specified with glNormal 
         // are scaled to unit length after transformation.
@@ -240,7 +272,7 @@ public class Assignment1 extends Frame implements GLEventListener, ActionListene
         // here, 30 degrees up from ground plane
         camera = new Camera(theta, phi, radius);
         camera2 = new Camera(theta, phi, radius);
-        scene = new Scene(gl, camera);
+        scene = new Scene(gl, camera, numDeskLights);
     }
 
     /* Called to indicate the drawing surface has been moved and/or resized  */
@@ -277,6 +309,7 @@ public class Assignment1 extends Frame implements GLEventListener, ActionListene
 
         gl.glFrustum(left, right, bottom, top, NEAR_CLIP, FAR_CLIP);
         gl.glMatrixMode(GL2.GL_MODELVIEW);
+        scene.setProjection(MatrixStack.frustum(left, right, bottom, top, NEAR_CLIP, FAR_CLIP));
     }
 
     /* draw */
@@ -290,16 +323,42 @@ public class Assignment1 extends Frame implements GLEventListener, ActionListene
         if (continuousAnimation) {
             scene.update();
         }
+        if (frameTimer != null) {
+            frameTimer.start(gl, "textures " + (scene.getTexturesOn() ? "on" : "off")
+                    + ", depth pre-pass " + (scene.getDepthPrePass() ? "on" : "off")
+                    + ", instanced obstacles " + (scene.getInstancedObstacles() ? "on" : "off") + ", " + width + "x" + height);
+        }
         scene.render(gl);
+        if (frameTimer != null) {
+            frameTimer.stop(gl);
+            if (frameTimer.getNumFrames() % FRAME_TIME_REPORT_INTERVAL == 0) {
+                System.out.println("Average frame times - " + frameTimer);
+                System.out.println("Render queue - " + scene.getRenderQueue());
+                System.out.println("Frustum culling - " + scene.getObjectsDrawn() + " objects drawn, "
+                        + scene.getObjectsCulled() + " culled");
+                System.out.println("Occlusion culling - " + scene.getObjectsOccluded() + " objects hidden, "
+                        + scene.getOcclusionCuller().getQueriesIssued() + " queries issued");
+                System.out.println("Software occlusion - " + scene.getSoftwareOcclusionCuller());
+                System.out.println("Light and material state - " + GLStateCache.get(gl));
+                if (scene.getClusteredLights() != null) {
+                    System.out.println("Clustered lighting - " + scene.getClusteredLights());
+                }
+                if (scene.getLightInfluence() != null) {
+                    System.out.println("Light influence - " + scene.getLightInfluence());
+                }
+            }
+        }
     }
 
     /**
-     * METHOD DEFINED BY GLEventListener. Not required. Called when closing the
-     * openGL context.
+     * METHOD DEFINED BY GLEventListener. Called when closing the openGL context.
+     * Releases the display lists and vertex buffers held by the scene.
      *
      * @param drawable Automatically supplied by the system.
      */
     public void dispose(GLAutoDrawable drawable) {
+        GL2 gl = drawable.getGL().getGL2();
+        scene.dispose(gl);
     }
 
     /**
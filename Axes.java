@@ -1,7 +1,7 @@
 /**
  * A class for a set of Axes. 
- * Currently uses the GLUT objects, but could be changed in future to use 
- * objects constructed using the Mesh class.
+ * Uses sphere and cone objects constructed using the ProceduralMeshFactory,
+ * one pair per axis so that each axis has its own Material.
  *
  * @author    Dr Steve Maddock
  * @version   1.0 (26/07/2013)
@@ -14,6 +14,7 @@ public class Axes {
 
   private boolean switchedOn;
   private double xLength, yLength, zLength;
+  private Render[] spheres, cones;  // x, y and z axis
 
   /**
    * Constructor.
@@ -49,70 +50,87 @@ public class Axes {
    * @param glut A reference to the GLUT object
    */    
   public void display(GL2 gl, GLUT glut) {
-    // All axes will be set to same specular, shininess and emission settings.
-    // Each axis will have will be set to different ambient and diffuse values.
-    float[] matXAmbientDiffuse = {0.7f, 0.0f, 0.0f, 1.0f};
-    float[] matYAmbientDiffuse = {0.0f, 0.7f, 0.0f, 1.0f};
-    float[] matZAmbientDiffuse = {0.0f, 0.0f, 0.7f, 1.0f};
-    float[] matSpecular = {1.0f, 1.0f, 1.0f, 1.0f};
-    float[] matShininess = {32.0f};
-    float[] matEmission = {0.0f, 0.0f, 0.0f, 1.0f};
+    if (spheres==null) createRenderObjects();
 
     double cylinderRadius = 0.05;
     double coneRadius = 0.05;
     double coneHeight = 0.2;
-    
-    int sphereslices = 20;
-    int spherestacks = 20;
-    int coneslices = 10;
-    int conestacks = 10;
 
-    // use glMaterialfv. There is no glMaterialdv
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matXAmbientDiffuse, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, matSpecular, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SHININESS, matShininess, 0);
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_EMISSION, matEmission, 0);
+    // The sphere mesh has a diameter of 1. The cone mesh has a base diameter of 1 and a height of 1,
+    // with the point along the z axis and the base on the xy plane.
 
     // x axis is half red
     gl.glPushMatrix();
       gl.glTranslated(xLength/2.0, 0.0, 0.0);
-      gl.glScaled(xLength/2.0, cylinderRadius, cylinderRadius);
-      glut.glutSolidSphere(1.0, sphereslices, spherestacks);
+      gl.glScaled(xLength, cylinderRadius*2, cylinderRadius*2);
+      spheres[0].renderImmediateMode(gl, false, 1);
     gl.glPopMatrix();
     gl.glPushMatrix();
       gl.glTranslated(xLength, 0.0f, 0.0f);
       gl.glRotated(90.0f, 0.0f, 1.0f, 0.0f);
-      // auxSolidCone(...) is defined with the point along the z axis
-      // and the base on the xy plane.
-      glut.glutSolidCone(coneRadius, coneHeight, coneslices, conestacks);
+      gl.glScaled(coneRadius*2, coneRadius*2, coneHeight);
+      cones[0].renderImmediateMode(gl, false, 1);
     gl.glPopMatrix();
 
     // y axis is half green
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matYAmbientDiffuse, 0);
     gl.glPushMatrix();
       gl.glTranslated(0.0f, yLength/2.0f, 0.0f);
-      gl.glScaled(cylinderRadius, yLength/2.0f, cylinderRadius);
-      glut.glutSolidSphere(1.0f, sphereslices, spherestacks);
+      gl.glScaled(cylinderRadius*2, yLength, cylinderRadius*2);
+      spheres[1].renderImmediateMode(gl, false, 1);
     gl.glPopMatrix();
     gl.glPushMatrix();
       gl.glTranslated(0.0f, yLength, 0.0f);
       gl.glRotated(-90.0f, 1.0f, 0.0f, 0.0f);
-      glut.glutSolidCone(coneRadius, coneHeight, coneslices, conestacks);
+      gl.glScaled(coneRadius*2, coneRadius*2, coneHeight);
+      cones[1].renderImmediateMode(gl, false, 1);
     gl.glPopMatrix();
 
     // z axis is half blue
-    gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT_AND_DIFFUSE, matZAmbientDiffuse, 0);
     gl.glPushMatrix();
       gl.glTranslated(0.0f, 0.0f, zLength/2.0f);
-      gl.glScaled(cylinderRadius, cylinderRadius, yLength/2.0f);
-      glut.glutSolidSphere(1.0f, sphereslices, spherestacks);
+      gl.glScaled(cylinderRadius*2, cylinderRadius*2, yLength);
+      spheres[2].renderImmediateMode(gl, false, 1);
     gl.glPopMatrix();
     gl.glPushMatrix();
       gl.glTranslated(0.0f, 0.0f, zLength);
-      glut.glutSolidCone(coneRadius, coneHeight, coneslices, conestacks);
+      gl.glScaled(coneRadius*2, coneRadius*2, coneHeight);
+      cones[2].renderImmediateMode(gl, false, 1);
     gl.glPopMatrix();
   }
 
+  /**
+   * Creates a sphere and a cone for each axis.
+   * All axes have the same specular, shininess and emission settings.
+   * Each axis has different ambient and diffuse values.
+   */
+  private void createRenderObjects() {
+    float[][] matAmbientDiffuse = {{0.7f, 0.0f, 0.0f, 1.0f},
+                                   {0.0f, 0.7f, 0.0f, 1.0f},
+                                   {0.0f, 0.0f, 0.7f, 1.0f}};
+    float[] matSpecular = {1.0f, 1.0f, 1.0f, 1.0f};
+    float matShininess = 32.0f;
+    float[] matEmission = {0.0f, 0.0f, 0.0f, 1.0f};
+
+    Mesh sphere = ProceduralMeshFactory.createSphere(20, 20);
+    Mesh cone = ProceduralMeshFactory.createCone(10, 10, false);
+    spheres = new Render[3];
+    cones = new Render[3];
+    for (int i=0; i<3; i++) {
+      Material m = new Material();
+      m.setAmbient(matAmbientDiffuse[i]);
+      m.setDiffuse(matAmbientDiffuse[i]);
+      m.setSpecular(matSpecular);
+      m.setEmission(matEmission);
+      m.setShininess(matShininess);
+      Mesh s = (Mesh)sphere.clone();
+      s.setMaterial(m);
+      spheres[i] = new Render(s);
+      Mesh c = (Mesh)cone.clone();
+      c.setMaterial((Material)m.clone());
+      cones[i] = new Render(c);
+    }
+  }
+
   /**
    * Standard use of toString method
    * 
@@ -0,0 +1,630 @@
+/**
+ * Benchmarks for the Mesh processing code, run from the command line with
+ * java Benchmark
+ * Each benchmark checks that the result matches a straightforward reference
+ * implementation before reporting times.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+import javax.media.opengl.*;
+
+public class Benchmark {
+
+  private static final int WARMUP_RUNS = 5;
+  private static final int TIMED_RUNS = 10;
+
+  /**
+   * Times Mesh.calcSmoothNormals on one thread and on the common fork-join pool, for
+   * cylinders from Mesh.MAX_NUM_VERTICES vertices upwards, and checks both against the
+   * serial reference.
+   */
+  public static void smoothNormals() {
+    System.out.println("calcSmoothNormals, "+ForkJoinPool.commonPool().getParallelism()+" worker threads");
+    System.out.println(String.format("%10s %10s %12s %12s %12s %8s %6s",
+                       "vertices", "triangles", "reference", "1 thread", "pool", "speed-up", "match"));
+    ForkJoinPool serial = new ForkJoinPool(1);
+    int[][] sizes = {{300, 100}, {600, 200}, {1200, 400}, {2400, 800}};  // slices, stacks
+    for (int[] size : sizes) {
+      Mesh mesh = ProceduralMeshFactory.createCylinder(size[0], size[1], true);
+      MeshData data = mesh.getData();
+
+      float[] refNormals = new float[data.getNumVertices()*3];
+      float[] refTriangleNormals = new float[data.getNumTriangles()*3];
+      double reference = time(() -> referenceSmoothNormals(data, refNormals, refTriangleNormals));
+      double oneThread = time(() -> mesh.calcSmoothNormals(serial));
+      double pool = time(() -> mesh.calcSmoothNormals());
+      boolean match = Arrays.equals(refNormals, data.getNormals())
+                      && Arrays.equals(refTriangleNormals, data.getTriangleNormals());
+
+      System.out.println(String.format("%10d %10d %9.3f ms %9.3f ms %9.3f ms %7.2fx %6s",
+                         data.getNumVertices(), data.getNumTriangles(), reference, oneThread, pool,
+                         reference/pool, match));
+    }
+    serial.shutdown();
+  }
+
+  /**
+   * Reports the number of vertices removed by Mesh.weldVertices for the procedural meshes,
+   * and for the same meshes as unindexed triangle soups, i.e. with three vertices of
+   * their own per triangle, as imported geometry often is.
+   */
+  public static void weldVertices() {
+    System.out.println("weldVertices, tolerance 1e-5");
+    System.out.println(String.format("%-24s %10s %10s %10s %8s",
+                       "mesh", "vertices", "welded", "triangles", "saving"));
+    String[] names = {"plane", "hard cube", "cylinder", "sphere", "icosphere", "cone"};
+    Mesh[] meshes = {ProceduralMeshFactory.createPlane(), ProceduralMeshFactory.createHardCube(),
+                     ProceduralMeshFactory.createCylinder(), ProceduralMeshFactory.createSphere(),
+                     ProceduralMeshFactory.createIcosphere(3), ProceduralMeshFactory.createCone()};
+    for (int i=0; i<meshes.length; i++) {
+      reportWeld(names[i], meshes[i]);
+      reportWeld(names[i]+" (soup)", triangleSoup(meshes[i]));
+    }
+  }
+
+  private static void reportWeld(String name, Mesh mesh) {
+    int before = mesh.getNumVertices();
+    long start = System.nanoTime();
+    int removed = mesh.weldVertices(1e-5);
+    double ms = (System.nanoTime()-start)/1.0e6;
+    System.out.println(String.format("%-24s %10d %10d %10d %7.1f%%  (%.2f ms)",
+                       name, before, before-removed, mesh.getNumTriangles(), 100.0*removed/before, ms));
+  }
+
+  // A copy of a Mesh in which every triangle has its own three vertices
+  private static Mesh triangleSoup(Mesh mesh) {
+    MeshData data = mesh.getData();
+    int numTriangles = data.getNumTriangles();
+    float[] p = new float[numTriangles*9], n = new float[numTriangles*9], t = new float[numTriangles*6];
+    int[] indices = new int[numTriangles*3];
+    for (int i=0; i<numTriangles*3; i++) {
+      int v = data.getIndices()[i];
+      System.arraycopy(data.getPositions(), v*3, p, i*3, 3);
+      System.arraycopy(data.getNormals(), v*3, n, i*3, 3);
+      System.arraycopy(data.getTextureCoords(), v*2, t, i*2, 2);
+      indices[i] = i;
+    }
+    Mesh soup = new Mesh();
+    soup.setVertexData(p, n, t);
+    soup.setTriangleData(indices);
+    return soup;
+  }
+
+  /**
+   * Reports the average cache miss ratio (ACMR) of the procedural meshes before and after
+   * Mesh.optimizeVertexCache, and checks that the same set of triangles is drawn afterwards.
+   */
+  public static void vertexCache() {
+    System.out.println("optimizeVertexCache, FIFO cache of "+MeshOptimiser.VERTEX_CACHE_SIZE+" vertices");
+    System.out.println(String.format("%-24s %10s %10s %8s %8s %10s %6s",
+                       "mesh", "vertices", "triangles", "before", "after", "time", "same"));
+    String[] names = {"plane 100x100", "cylinder 300x100", "sphere 200x100", "icosphere 5", "cone 100x100",
+                      "plane (degenerate)"};
+    Mesh[] meshes = {ProceduralMeshFactory.createPlane(1, 1, 100, 100, 1, 1),
+                     ProceduralMeshFactory.createCylinder(300, 100, true),
+                     ProceduralMeshFactory.createSphere(200, 100),
+                     ProceduralMeshFactory.createIcosphere(5),
+                     ProceduralMeshFactory.createCone(100, 100, false),
+                     withDegenerates(ProceduralMeshFactory.createPlane(1, 1, 30, 30, 1, 1))};
+    for (int i=0; i<meshes.length; i++) {
+      Mesh mesh = meshes[i];
+      List<String> triangles = triangleList(mesh);
+      long start = System.nanoTime();
+      double[] acmr = mesh.optimizeVertexCache();
+      double ms = (System.nanoTime()-start)/1.0e6;
+      System.out.println(String.format("%-24s %10d %10d %8.3f %8.3f %7.1f ms %6s",
+                         names[i], mesh.getNumVertices(), mesh.getNumTriangles(), acmr[0], acmr[1], ms,
+                         triangles.equals(triangleList(mesh))));
+    }
+  }
+
+  // A copy of a Mesh with a degenerate triangle after every fifth triangle, repeating one or all of
+  // its vertices, as stitched strips and welded meshes often have
+  private static Mesh withDegenerates(Mesh mesh) {
+    MeshData data = mesh.getData();
+    int numTriangles = data.getNumTriangles();
+    int[] indices = new int[(numTriangles+numTriangles/5)*3];
+    int k = 0;
+    for (int t=0; t<numTriangles; t++) {
+      int a = data.getVertexIndex(t, 0), b = data.getVertexIndex(t, 1);
+      indices[k++] = a;
+      indices[k++] = b;
+      indices[k++] = data.getVertexIndex(t, 2);
+      if (t%5 == 4) {
+        indices[k++] = a;
+        indices[k++] = a;
+        indices[k++] = (t%10 == 4) ? b : a;
+      }
+    }
+    Mesh res = new Mesh();
+    res.setVertexData(data.getPositions().clone(), data.getNormals().clone(), data.getTextureCoords().clone());
+    res.setTriangleData(indices);
+    return res;
+  }
+
+  /**
+   * Reports the triangle counts of the chains of levels of detail made by MeshSimplifier,
+   * each level aiming for a quarter of the triangles of the one before, and the largest change
+   * in the bounding box of any level, as a percentage of the size of the original mesh.
+   * It is 0 where the outline of the mesh is kept, e.g. for the plane and the cone.
+   */
+  public static void simplify() {
+    System.out.println("MeshSimplifier.createLODs, a quarter of the triangles per level");
+    System.out.println(String.format("%-16s %-28s %10s %8s", "mesh", "triangles per level", "time", "bounds"));
+    String[] names = {"sphere 100x100", "cone 100x100", "icosphere 4", "plane 50x50", "hard cube"};
+    Mesh[] meshes = {ProceduralMeshFactory.createSphere(100, 100),
+                     ProceduralMeshFactory.createCone(100, 100, false),
+                     ProceduralMeshFactory.createIcosphere(4),
+                     ProceduralMeshFactory.createPlane(1, 1, 50, 50, 1, 1),
+                     ProceduralMeshFactory.createHardCube()};
+    for (int i=0; i<meshes.length; i++) {
+      long start = System.nanoTime();
+      Mesh[] lods = MeshSimplifier.createLODs(meshes[i], 4, 0.25);
+      double ms = (System.nanoTime()-start)/1.0e6;
+      String counts = "";
+      BoundingBox box = meshes[i].getBoundingBox();
+      double size = Math.max(box.getRangeX(), Math.max(box.getRangeY(), box.getRangeZ()));
+      double change = 0;
+      for (Mesh lod : lods) {
+        counts += lod.getNumTriangles()+" ";
+        BoundingBox b = lod.getBoundingBox();
+        for (int j=0; j<3; j++) {
+          change = Math.max(change, Math.abs(b.getMinimumBounds()[j]-box.getMinimumBounds()[j]));
+          change = Math.max(change, Math.abs(b.getMaximumBounds()[j]-box.getMaximumBounds()[j]));
+        }
+      }
+      System.out.println(String.format("%-16s %-28s %7.1f ms %7.2f%%", names[i], counts, ms, 100*change/size));
+    }
+  }
+
+  /**
+   * Reports the index buffer size of the procedural meshes as triangle lists and as strips
+   * joined with primitive restart indices, and checks the strips draw the same triangles
+   * with the same winding.
+   */
+  public static void strips() {
+    System.out.println("Stripifier, 4 byte indices");
+    System.out.println(String.format("%-20s %10s %8s %10s %10s %8s %6s",
+                       "mesh", "triangles", "strips", "list", "strips", "saving", "same"));
+    String[] names = {"plane 10x10", "plane 100x100", "hard cube", "cylinder 30x1", "cylinder 300x100"};
+    Mesh[] meshes = {ProceduralMeshFactory.createPlane(5, 5, 10, 10, 1, 1),
+                     ProceduralMeshFactory.createPlane(1, 1, 100, 100, 1, 1),
+                     ProceduralMeshFactory.createHardCube(),
+                     ProceduralMeshFactory.createCylinder(),
+                     ProceduralMeshFactory.createCylinder(300, 100, true)};
+    for (int i=0; i<meshes.length; i++) {
+      int[] list = meshes[i].getTriangleList();
+      int[] strips = Stripifier.stripify(meshes[i]);
+      int numStrips = 1;
+      for (int index : strips)
+        if (index==Stripifier.RESTART_INDEX) numStrips++;
+      boolean same = orientedTriangles(list).equals(orientedTriangles(Stripifier.unstripify(strips)));
+      System.out.println(String.format("%-20s %10d %8d %8d B %8d B %7.1f%% %6s",
+                         names[i], list.length/3, numStrips, list.length*4, strips.length*4,
+                         100.0*(list.length-strips.length)/list.length, same));
+    }
+  }
+
+  // Each triangle as a string of its vertex indices, rotated to start from the smallest,
+  // so that the set does not depend on the order of the triangles but does on their winding
+  private static List<String> orientedTriangles(int[] indices) {
+    List<String> res = new ArrayList<String>();
+    for (int t=0; t<indices.length/3; t++) {
+      int a = indices[t*3], b = indices[t*3+1], c = indices[t*3+2];
+      if (b<a && b<c) res.add(b+","+c+","+a);
+      else if (c<a && c<b) res.add(c+","+a+","+b);
+      else res.add(a+","+b+","+c);
+    }
+    Collections.sort(res);
+    return res;
+  }
+
+  /**
+   * Reports the heap used by clones of a sphere, each with its own Material and colour,
+   * as copy-on-write clones and as deep copies, i.e. after each clone has changed one vertex.
+   */
+  public static void cloneMemory() {
+    int numClones = 200;
+    Mesh sphere = ProceduralMeshFactory.createSphere(100, 100);
+    System.out.println("Mesh.clone, "+numClones+" tinted clones of a sphere with "+sphere.getNumVertices()+" vertices");
+    Mesh[] clones = new Mesh[numClones];
+    long start = usedMemory();
+    for (int i=0; i<numClones; i++) {
+      clones[i] = (Mesh)sphere.clone();
+      clones[i].setColour((float)i/numClones, 0.5f, 0.5f, 1.0f);
+      clones[i].getMaterial().setDiffuse((float)i/numClones, 0.5f, 0.5f, 1.0f);
+    }
+    long shared = usedMemory()-start;
+    for (Mesh clone : clones) {
+      clone.getData().setNormal(0, 0, 0, 1);
+      clone.getData().setTriangleNormal(0, 0, 0, 1);
+    }
+    long copied = usedMemory()-start;
+    System.out.println(String.format("copy-on-write %8d KB, after each clone writes %8d KB", shared/1024, copied/1024));
+  }
+
+  /**
+   * Reports the meshlets built for some large procedural meshes, and the fraction of their
+   * triangles skipped by meshlet culling when seen whole from six directions, and close up.
+   * Checks that no triangle facing the eye is in a meshlet culled as back-facing.
+   */
+  public static void meshlets() {
+    System.out.println("Meshlet.build, up to "+Meshlet.DEFAULT_MAX_TRIANGLES+" triangles and "
+                       +Meshlet.DEFAULT_MAX_VERTICES+" vertices per meshlet");
+    System.out.println(String.format("%-18s %10s %9s %8s %8s %6s %10s %9s %9s %6s",
+                       "mesh", "triangles", "meshlets", "tris", "verts", "cones", "build", "whole", "close", "safe"));
+    String[] names = {"sphere 200x100", "icosphere 5", "cylinder 300x100"};
+    Mesh[] meshes = {ProceduralMeshFactory.createSphere(200, 100), ProceduralMeshFactory.createIcosphere(5),
+                     ProceduralMeshFactory.createCylinder(300, 100, true)};
+    double[] perspective = MatrixStack.perspective(60, 1, 0.1, 100);
+    double[] closeUp = MatrixStack.perspective(20, 1, 0.1, 100);
+    for (int i=0; i<meshes.length; i++) {
+      Mesh mesh = meshes[i];
+      double ms = time(() -> Meshlet.build((Mesh)mesh.clone()));
+      Meshlet[] meshlets = Meshlet.build(mesh);
+      int numTriangles = mesh.getNumTriangles(), numVertices = 0, numCones = 0;
+      for (Meshlet m : meshlets) {
+        numVertices += m.getNumVertices();
+        if (m.hasNormalCone()) numCones++;
+      }
+
+      // Eyes on each axis, far enough to see the whole mesh, then close to the surface
+      double[] whole = new double[2], close = new double[2];
+      boolean safe = true;
+      for (int axis=0; axis<6; axis++) {
+        double[] dir = new double[3];
+        dir[axis/2] = (axis%2==0) ? 1 : -1;
+        safe &= cullMeshlets(mesh, meshlets, perspective, dir, 2.5, whole);
+        safe &= cullMeshlets(mesh, meshlets, closeUp, dir, 1.0, close);
+      }
+      System.out.println(String.format("%-18s %10d %9d %8.1f %8.1f %5.0f%% %7.1f ms %8.1f%% %8.1f%% %6s",
+                         names[i], numTriangles, meshlets.length, (double)numTriangles/meshlets.length,
+                         (double)numVertices/meshlets.length, 100.0*numCones/meshlets.length, ms,
+                         100*whole[1]/whole[0], 100*close[1]/close[0], safe));
+    }
+  }
+
+  // Culls the meshlets for an eye at a distance along a direction, looking at the origin, and
+  // adds the triangles in all meshlets and in those culled to counts[0] and counts[1].
+  // Returns false if a culled back-facing meshlet has a triangle facing the eye.
+  private static boolean cullMeshlets(Mesh mesh, Meshlet[] meshlets, double[] projection,
+                                      double[] dir, double distance, double[] counts) {
+    double[] eye = {dir[0]*distance, dir[1]*distance, dir[2]*distance};
+    double[] up = (dir[2]==0) ? new double[]{0, 0, 1} : new double[]{0, 1, 0};
+    MatrixStack view = new MatrixStack();
+    view.lookAt(eye, new double[3], up);
+    Frustum frustum = new Frustum(projection, view.getMatrix());
+    MeshData data = mesh.getData();
+    boolean safe = true;
+    for (Meshlet m : meshlets) {
+      counts[0] += m.getNumTriangles();
+      if (m.isOutside(frustum))
+        counts[1] += m.getNumTriangles();
+      else if (m.isBackFacing(eye[0], eye[1], eye[2])) {
+        counts[1] += m.getNumTriangles();
+        for (int t=m.getFirstTriangle(); t<m.getFirstTriangle()+m.getNumTriangles(); t++) {
+          double[][] v = new double[3][3];
+          for (int j=0; j<3; j++)
+            for (int k=0; k<3; k++)
+              v[j][k] = data.getPosition(data.getVertexIndex(t, j), k);
+          double ux = v[1][0]-v[0][0], uy = v[1][1]-v[0][1], uz = v[1][2]-v[0][2];
+          double wx = v[2][0]-v[0][0], wy = v[2][1]-v[0][1], wz = v[2][2]-v[0][2];
+          double nx = uy*wz-uz*wy, ny = uz*wx-ux*wz, nz = ux*wy-uy*wx;
+          if (nx*(eye[0]-v[0][0])+ny*(eye[1]-v[0][1])+nz*(eye[2]-v[0][2]) > 1e-12) safe = false;
+        }
+      }
+    }
+    return safe;
+  }
+
+  /**
+   * Times SoftwareOcclusionCuller on a room of 10x10 planes with a row of bars across it, looking from
+   * several eyes at boxes scattered over the room, and checks that every box found hidden is hidden,
+   * by casting rays from the eye to points over its faces.
+   */
+  public static void softwareOcclusion() {
+    System.out.println("SoftwareOcclusionCuller, "+SoftwareOcclusionCuller.DEPTH_WIDTH+"x"
+                       +SoftwareOcclusionCuller.DEPTH_HEIGHT+" depth buffer");
+    System.out.println(String.format("%-12s %10s %10s %12s %12s %8s %8s",
+                       "eye", "triangles", "drawn", "rasterise", "test", "hidden", "errors"));
+    SoftwareOcclusionCuller culler = new SoftwareOcclusionCuller();
+    ArrayList<double[]> occluders = new ArrayList<double[]>();  // world-space triangles, for the rays
+    Mesh plane = ProceduralMeshFactory.createPlane(1, 1, 10, 10, 1, 1), cube = ProceduralMeshFactory.createHardCube();
+    double[][] walls = {{0, 0, 0, 0, 0, 1}, {0, 10, 0, 180, 0, 1}, {0, 5, -20, 90, 1, 0}, {0, 5, 20, -90, 1, 0},
+                        {-20, 5, 0, -90, 0, 1}, {20, 5, 0, 90, 0, 1}};  // x, y, z, angle, axis x or z
+    for (double[] w : walls) {
+      MatrixStack m = new MatrixStack();
+      m.translate(w[0], w[1], w[2]);
+      m.rotate(w[3], w[4], 0, w[5]);
+      m.scale(40, 1, 40);
+      addOccluder(culler, occluders, plane, m.getMatrix());
+    }
+    for (int i=-2; i<=2; i++) {  // bars across the middle of the room
+      MatrixStack m = new MatrixStack();
+      m.translate(i*6, 3, 0);
+      m.scale(4, 6, 1);
+      addOccluder(culler, occluders, cube, m.getMatrix());
+    }
+    Random random = new Random(1);
+    BoundingBox[] boxes = new BoundingBox[200];
+    for (int i=0; i<boxes.length; i++) {
+      double x = random.nextDouble()*36-18, y = random.nextDouble()*8+0.5, z = random.nextDouble()*36-18;
+      boxes[i] = new BoundingBox();
+      boxes[i].setBounds(new double[]{x-0.5, y-0.5, z-0.5}, new double[]{x+0.5, y+0.5, z+0.5});
+    }
+
+    double[] projection = MatrixStack.perspective(60, 2, 0.1, 100);
+    double[][] eyes = {{0, 3, 15}, {10, 5, 18}, {-15, 2, 4}, {0, 9, 2}};
+    for (double[] eye : eyes) {
+      MatrixStack view = new MatrixStack();
+      view.lookAt(eye, new double[]{0, 3, -10}, new double[]{0, 1, 0});
+      double[] v = view.getMatrix();
+      double[] clip = MatrixStack.multiply(projection, v);
+      double rasterise = time(() -> {
+        culler.beginFrame(projection, v);
+        culler.getRasteriseTime();
+      });
+      culler.beginFrame(projection, v);
+      int drawn = culler.getTrianglesDrawn();
+      boolean[] visible = new boolean[boxes.length];
+      double test = time(() -> {
+        for (int i=0; i<boxes.length; i++)
+          visible[i] = culler.isVisible(boxes[i]);
+      });
+      int hidden = 0, errors = 0;
+      for (int i=0; i<boxes.length; i++) {
+        if (visible[i]) continue;
+        hidden++;
+        if (seesBox(eye, clip, boxes[i], occluders)) errors++;
+      }
+      System.out.println(String.format("%-12s %10d %10d %9.3f ms %9.3f us %7.0f%% %8d",
+                         (int)eye[0]+","+(int)eye[1]+","+(int)eye[2], culler.getNumOccluderTriangles(), drawn,
+                         rasterise, test*1000/boxes.length, 100.0*hidden/boxes.length, errors));
+    }
+  }
+
+  /**
+   * Times ClusteredLights.bin on one thread and on the common fork-join pool, for 2 to 1000 point lights
+   * scattered over a room, and checks that no cluster misses a light that reaches points spread through it.
+   */
+  public static void clusteredLights() {
+    System.out.println("ClusteredLights, "+ClusteredLights.TILES_X+"x"+ClusteredLights.TILES_Y+"x"
+                       +ClusteredLights.SLICES+" clusters");
+    System.out.println(String.format("%-8s %12s %12s %11s %8s %8s",
+                       "lights", "1 thread", "pool", "per cluster", "max", "errors"));
+    double[] projection = MatrixStack.perspective(60, 16.0/9, 0.1, 100);
+    MatrixStack view = new MatrixStack();
+    view.lookAt(new double[]{0, 5, 25}, new double[]{0, 2, 0}, new double[]{0, 1, 0});
+    double[] v = view.getMatrix();
+    ForkJoinPool serial = new ForkJoinPool(1);
+    int[] counts = {2, 10, 50, 100, 250, 500, 1000};
+    for (int count : counts) {
+      ClusteredLights clustered = new ClusteredLights(null);
+      Random random = new Random(1);
+      double[][] places = new double[count][];
+      for (int i=0; i<count; i++) {
+        Light light = new Light(GL2.GL_LIGHT2, new float[]{0, 0, 0, 1});
+        light.setRange(6);
+        MatrixStack m = new MatrixStack();
+        m.translate(random.nextDouble()*40-20, random.nextDouble()*10, random.nextDouble()*40-20);
+        places[i] = m.getMatrix();
+        clustered.add(light, places[i]);
+      }
+      double one = time(() -> clustered.bin(projection, v, serial));
+      double pool = time(() -> clustered.bin(projection, v));
+      int max = 0;
+      for (int s=0; s<ClusteredLights.SLICES; s++)
+        for (int ty=0; ty<ClusteredLights.TILES_Y; ty++)
+          for (int tx=0; tx<ClusteredLights.TILES_X; tx++)
+            max = Math.max(max, clustered.getClusterCount(tx, ty, s));
+      int errors = referenceClusterErrors(clustered, projection, v, places, 6);
+      System.out.println(String.format("%-8d %9.3f ms %9.3f ms %11.2f %8d %8d", count, one, pool,
+                         clustered.getAverageLightsPerCluster(), max, errors));
+    }
+    serial.shutdown();
+  }
+
+  // Counts the lights missing from clusters they reach, found by testing points spread through each
+  // cluster, unprojected to view space, against every light's sphere.
+  private static int referenceClusterErrors(ClusteredLights clustered, double[] projection, double[] view,
+                                            double[][] places, double range) {
+    double near = projection[14]/(projection[10]-1), far = projection[14]/(projection[10]+1);
+    double[][] centres = new double[places.length][];
+    for (int i=0; i<places.length; i++)
+      centres[i] = MatrixStack.transformPoint(MatrixStack.multiply(view, places[i]), 0, 0, 0);
+    int samples = 5, errors = 0;
+    for (int s=0; s<ClusteredLights.SLICES; s++)
+      for (int ty=0; ty<ClusteredLights.TILES_Y; ty++)
+        for (int tx=0; tx<ClusteredLights.TILES_X; tx++) {
+          int[] binned = clustered.getClusterLights(tx, ty, s);
+          Set<Integer> found = new HashSet<Integer>();
+          for (int i : binned) found.add(i);
+          for (int i=0; i<places.length; i++) {
+            if (found.contains(i)) continue;
+            boolean reaches = false;
+            for (int k=0; k<samples*samples*samples && !reaches; k++) {
+              double d = near*Math.pow(far/near, (s+(double)(k/(samples*samples))/(samples-1))/ClusteredLights.SLICES);
+              double x = -1+2.0*(tx+(double)(k%samples)/(samples-1))/ClusteredLights.TILES_X;
+              double y = -1+2.0*(ty+(double)(k/samples%samples)/(samples-1))/ClusteredLights.TILES_Y;
+              double px = d*(x+projection[8])/projection[0]-centres[i][0];
+              double py = d*(y+projection[9])/projection[5]-centres[i][1];
+              double pz = -d-centres[i][2];
+              reaches = px*px+py*py+pz*pz <= range*range;
+            }
+            if (reaches) errors++;
+          }
+        }
+    return errors;
+  }
+
+  private static void addOccluder(SoftwareOcclusionCuller culler, List<double[]> triangles, Mesh mesh, double[] m) {
+    culler.addOccluder(mesh, m);
+    MeshData data = mesh.getData();
+    for (int t=0; t<data.getNumTriangles(); t++) {
+      double[] tri = new double[9];
+      for (int j=0; j<3; j++) {
+        int v = data.getVertexIndex(t, j);
+        double[] p = MatrixStack.transformPoint(m, data.getPosition(v, 0), data.getPosition(v, 1), data.getPosition(v, 2));
+        System.arraycopy(p, 0, tri, j*3, 3);
+      }
+      triangles.add(tri);
+    }
+  }
+
+  // Tests whether any of a grid of points over the faces of a box, inside the view, can be seen from the eye
+  private static boolean seesBox(double[] eye, double[] clip, BoundingBox box, List<double[]> triangles) {
+    double[] min = box.getMinimumBounds(), max = box.getMaximumBounds();
+    for (int i=0; i<=4; i++)
+      for (int j=0; j<=4; j++)
+        for (int k=0; k<=4; k++) {
+          if (i%4 != 0 && j%4 != 0 && k%4 != 0) continue;  // not on a face
+          double[] p = {min[0]+(max[0]-min[0])*i/4, min[1]+(max[1]-min[1])*j/4, min[2]+(max[2]-min[2])*k/4};
+          double[] c = MatrixStack.transformPoint(clip, p[0], p[1], p[2]);
+          if (Math.abs(c[0]) > c[3] || Math.abs(c[1]) > c[3] || Math.abs(c[2]) > c[3]) continue;
+          boolean blocked = false;
+          for (double[] tri : triangles)
+            if (rayHits(eye, p, tri)) {
+              blocked = true;
+              break;
+            }
+          if (!blocked) return true;
+        }
+    return false;
+  }
+
+  // Tests whether the segment from a to b crosses a triangle before b (Moller-Trumbore)
+  private static boolean rayHits(double[] a, double[] b, double[] tri) {
+    double dx = b[0]-a[0], dy = b[1]-a[1], dz = b[2]-a[2];
+    double e1x = tri[3]-tri[0], e1y = tri[4]-tri[1], e1z = tri[5]-tri[2];
+    double e2x = tri[6]-tri[0], e2y = tri[7]-tri[1], e2z = tri[8]-tri[2];
+    double px = dy*e2z-dz*e2y, py = dz*e2x-dx*e2z, pz = dx*e2y-dy*e2x;
+    double det = e1x*px+e1y*py+e1z*pz;
+    if (Math.abs(det) < 1e-12) return false;
+    double tx = a[0]-tri[0], ty = a[1]-tri[1], tz = a[2]-tri[2];
+    double u = (tx*px+ty*py+tz*pz)/det;
+    if (u < 0 || u > 1) return false;
+    double qx = ty*e1z-tz*e1y, qy = tz*e1x-tx*e1z, qz = tx*e1y-ty*e1x;
+    double v = (dx*qx+dy*qy+dz*qz)/det;
+    if (v < 0 || u+v > 1) return false;
+    double t = (e2x*qx+e2y*qy+e2z*qz)/det;
+    return t > 0 && t < 1-1e-9;
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i=0; i<3; i++)
+      System.gc();
+    return runtime.totalMemory()-runtime.freeMemory();
+  }
+
+  // Each triangle as a string of its vertex positions and texture coordinates, starting from the
+  // smallest, sorted so that the list does not depend on the order of the triangles or vertices,
+  // but counts a triangle drawn twice
+  private static List<String> triangleList(Mesh mesh) {
+    MeshData data = mesh.getData();
+    List<String> res = new ArrayList<String>();
+    for (int t=0; t<data.getNumTriangles(); t++) {
+      String[] v = new String[3];
+      for (int j=0; j<3; j++) {
+        int i = data.getVertexIndex(t, j);
+        v[j] = data.getPosition(i, 0)+","+data.getPosition(i, 1)+","+data.getPosition(i, 2)+","
+               +data.getTextureCoord(i, 0)+","+data.getTextureCoord(i, 1)+";";
+      }
+      int s = (v[0].compareTo(v[1])<=0 && v[0].compareTo(v[2])<=0) ? 0 : (v[1].compareTo(v[2])<=0 ? 1 : 2);
+      res.add(v[s]+v[(s+1)%3]+v[(s+2)%3]);
+    }
+    Collections.sort(res);
+    return res;
+  }
+
+  /**
+   * The serial calculation used by Mesh.calcSmoothNormals before it was parallelised:
+   * one pass over the triangles accumulating each triangle normal into its vertices,
+   * then one pass normalising the vertex normals.
+   */
+  private static void referenceSmoothNormals(MeshData data, float[] normals, float[] triangleNormals) {
+    float[] p = data.getPositions();
+    int[] tris = data.getIndices();
+    int numVertices = data.getNumVertices();
+    int numTriangles = data.getNumTriangles();
+    double[] sum = new double[numVertices*3];
+    double[] avec = new double[3];
+    double[] bvec = new double[3];
+
+    for (int i=0; i<numTriangles; i++) {
+      int i0 = tris[i*3]*3, i1 = tris[i*3+1]*3, i2 = tris[i*3+2]*3;
+      for (int j=0; j<3; j++) {
+        double d = p[i0+j];
+        avec[j] = d - p[i1+j];
+        bvec[j] = d - p[i2+j];
+      }
+      double nx = avec[1]*bvec[2]-avec[2]*bvec[1];
+      double ny = avec[2]*bvec[0]-avec[0]*bvec[2];
+      double nz = avec[0]*bvec[1]-avec[1]*bvec[0];
+      double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+      if (mag!=0.0) {
+        nx /= mag;
+        ny /= mag;
+        nz /= mag;
+        triangleNormals[i*3] = (float)nx;
+        triangleNormals[i*3+1] = (float)ny;
+        triangleNormals[i*3+2] = (float)nz;
+      }
+      else triangleNormals[i*3] = triangleNormals[i*3+1] = triangleNormals[i*3+2] = 0;
+      for (int j=0; j<3; j++) {
+        int v = tris[i*3+j]*3;
+        sum[v] += nx;
+        sum[v+1] += ny;
+        sum[v+2] += nz;
+      }
+    }
+    for (int i=0; i<numVertices; i++) {
+      double nx = sum[i*3], ny = sum[i*3+1], nz = sum[i*3+2];
+      double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+      if (mag!=0.0) {
+        normals[i*3] = (float)(nx/mag);
+        normals[i*3+1] = (float)(ny/mag);
+        normals[i*3+2] = (float)(nz/mag);
+      }
+      else normals[i*3] = normals[i*3+1] = normals[i*3+2] = 0;
+    }
+  }
+
+  /**
+   * Runs a task WARMUP_RUNS times untimed, then TIMED_RUNS times timed.
+   *
+   * @return the average time of the timed runs in milliseconds
+   */
+  private static double time(Runnable task) {
+    for (int i=0; i<WARMUP_RUNS; i++)
+      task.run();
+    long start = System.nanoTime();
+    for (int i=0; i<TIMED_RUNS; i++)
+      task.run();
+    return (System.nanoTime()-start)/1.0e6/TIMED_RUNS;
+  }
+
+  /**
+   * Test harness
+   */
+  public static void main(String[] args) {
+    smoothNormals();
+    System.out.println();
+    weldVertices();
+    System.out.println();
+    vertexCache();
+    System.out.println();
+    simplify();
+    System.out.println();
+    strips();
+    System.out.println();
+    cloneMemory();
+    System.out.println();
+    meshlets();
+    System.out.println();
+    softwareOcclusion();
+    System.out.println();
+    clusteredLights();
+  }
+}
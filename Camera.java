@@ -138,6 +138,17 @@ public class Camera {
 	          0.0f, 0.0f, 0.0f, 
 		  getUpVecX(), getUpVecY(), getUpVecZ());
   }
+
+  /**
+   * Gets the viewing matrix set by view, calculated without OpenGL, e.g. for frustum culling
+   * 
+   * @return The matrix, in OpenGL's column-major order
+   */   
+  public double[] getViewMatrix() {
+    MatrixStack m = new MatrixStack();
+    m.lookAt(eye, new double[]{0, 0, 0}, upvec);
+    return m.getMatrix();
+  }
   
    /**
    * Sets the camera to follow the lamp. The lamp is set to be just behind the lamp (10 degree angular offset), and looking in it's direction of travel
@@ -156,6 +167,21 @@ public class Camera {
 
   }
 
+  /**
+   * Gets the viewing matrix set by followLamp, calculated without OpenGL, e.g. for frustum culling
+   * 
+   * @param angle The current angular position of the lamp
+   * @param height The current height the lamp is jumping
+   * @return The matrix, in OpenGL's column-major order
+   */  
+  public double[] getLampViewMatrix(double angle, double height) {
+    MatrixStack m = new MatrixStack();
+    m.lookAt(new double[]{-20*cos(Math.toRadians(-angle+10)), 2+height, -20*sin(Math.toRadians(-angle+10))},
+             new double[]{-20*cos(Math.toRadians(-angle)), 2+height, -20*sin(Math.toRadians(-angle))},
+             new double[]{0, 1, 0});
+    return m.getMatrix();
+  }
+
   /**
    * Standard use of toString method
    * 
@@ -0,0 +1,535 @@
+/**
+ * Any number of lights for per-pixel lighting, beyond the eight OpenGL light sources, using clustered
+ * forward shading. The view volume is divided into a grid of clusters: TILES_X by TILES_Y tiles across
+ * the screen, and SLICES slices in depth, spaced exponentially between the near and far planes so that
+ * clusters are about as deep as they are wide. Each frame, bin finds the lights whose range reaches
+ * each cluster, on the CPU, and upload copies the lights and the lists of lights per cluster to float
+ * textures. A fragment shader using LIGHTING_FUNCTION, e.g. a PhongShader made with this object, then
+ * finds its pixel's cluster and evaluates only the lights listed for it.
+ *
+ * The lights are submitted each frame with a transform from their own coordinates to world space, e.g.
+ * the lamp's head joint, and are transformed into view space by bin. Lights with no range, and
+ * directional lights, reach every cluster. Binning is shared over the common fork-join pool, each
+ * task taking a block of slices, so no two tasks write to the same cluster. Each light's range
+ * is first turned into the tiles and slices it may reach. The clusters among them are then tested
+ * against its sphere. The lights reaching each cluster are first counted, the counts summed into
+ * each cluster's offset in the joined list, and the lists then written in place, so a cluster may
+ * hold any number of lights. Spotlights are binned by their range alone, and their cone is applied
+ * when shading.
+ *
+ * Float textures (GL_ARB_texture_float) are needed; isSupported tells whether the context has them.
+ * The textures must be released with dispose(gl).
+ */
+
+import java.nio.*;
+import java.util.*;
+import java.util.concurrent.*;
+import javax.media.opengl.*;
+import com.jogamp.common.nio.Buffers;
+
+public class ClusteredLights {
+
+  public static final int TILES_X = 16;
+  public static final int TILES_Y = 9;
+  public static final int SLICES = 24;
+  public static final int NUM_CLUSTERS = TILES_X*TILES_Y*SLICES;
+  public static final int TEXELS_PER_LIGHT = 5;  // position and range, ambient, diffuse and cut-off, specular, direction
+  private static final int INDEX_TEXTURE_WIDTH = 1024;
+  private static final int SLICES_PER_TASK = 2;
+  public static final int LIGHT_TEXTURE_UNIT = 1, CLUSTER_TEXTURE_UNIT = 2, INDEX_TEXTURE_UNIT = 3;
+
+  /**
+   * A GLSL function giving the lit colour of a point from the lights in its cluster, with the same
+   * signature as PhongShader.LIGHTING_FUNCTION, so either can be compiled into a fragment shader.
+   * The source must be passed through source() before compiling.
+   */
+  static final String LIGHTING_FUNCTION =
+      "uniform sampler2D lightData;\n"
+    + "uniform sampler2D clusters;\n"
+    + "uniform sampler2D lightIndices;\n"
+    + "uniform float lightRows;\n"
+    + "uniform float indexRows;\n"
+    + "uniform vec4 viewport;\n"
+    + "uniform float nearPlane;\n"
+    + "uniform float sliceScale;\n"
+    + "vec4 lighting(vec3 position, vec3 n, vec4 emission, vec4 ambient, vec4 diffuse, vec4 specular, float shininess) {\n"
+    + "  vec3 v = normalize(-position);\n"
+    + "  vec4 colour = emission+ambient*gl_LightModel.ambient;\n"
+    + "  vec2 tile = clamp(floor((gl_FragCoord.xy-viewport.xy)/viewport.zw*vec2(TILES_X.0, TILES_Y.0)),\n"
+    + "                    vec2(0.0), vec2(TILES_X.0-1.0, TILES_Y.0-1.0));\n"
+    + "  float slice = clamp(floor(log(max(-position.z/nearPlane, 1.0))*sliceScale), 0.0, SLICES.0-1.0);\n"
+    + "  vec4 cluster = texture2D(clusters, vec2((tile.y*TILES_X.0+tile.x+0.5)/(TILES_X.0*TILES_Y.0), (slice+0.5)/SLICES.0));\n"
+    + "  int count = int(cluster.y);\n"
+    + "  for (int k=0; k<count; k++) {\n"
+    + "    float index = cluster.x+float(k);\n"
+    + "    float i = texture2D(lightIndices, vec2((mod(index, INDEX_TEXTURE_WIDTH.0)+0.5)/INDEX_TEXTURE_WIDTH.0,\n"
+    + "                                           (floor(index/INDEX_TEXTURE_WIDTH.0)+0.5)/indexRows)).r;\n"
+    + "    float row = (i+0.5)/lightRows;\n"
+    + "    vec4 p = texture2D(lightData, vec2(0.1, row));\n"   // view-space position, or direction, and range
+    + "    vec4 la = texture2D(lightData, vec2(0.3, row));\n"  // ambient, and w of the position
+    + "    vec4 ld = texture2D(lightData, vec2(0.5, row));\n"  // diffuse, and cosine of the spotlight cut-off
+    + "    vec4 ls = texture2D(lightData, vec2(0.7, row));\n"  // specular
+    + "    vec4 sd = texture2D(lightData, vec2(0.9, row));\n"  // spotlight direction, and cosine of the inner cone
+    + "    vec3 l = (la.w == 0.0) ? p.xyz : p.xyz-position;\n"
+    + "    float d = length(l);\n"
+    + "    l = normalize(l);\n"
+    + "    float attenuation = 1.0;\n"
+    + "    if (p.w > 0.0) {\n"
+    + "      float f = clamp(1.0-d*d/(p.w*p.w), 0.0, 1.0);\n"  // fades to nothing at the range
+    + "      attenuation = f*f;\n"
+    + "    }\n"
+    + "    if (ld.w >= -1.0)\n"
+    + "      attenuation *= smoothstep(ld.w, sd.w, dot(-l, sd.xyz));\n"
+    + "    float nDotL = max(dot(n, l), 0.0);\n"
+    + "    vec4 c = vec4(la.rgb, 1.0)*ambient+nDotL*vec4(ld.rgb, 1.0)*diffuse;\n"
+    + "    if (nDotL > 0.0)\n"
+    + "      c += pow(max(dot(n, normalize(l+v)), 0.0), shininess)*vec4(ls.rgb, 1.0)*specular;\n"
+    + "    colour += attenuation*c;\n"
+    + "  }\n"
+    + "  return clamp(vec4(colour.rgb, diffuse.a), 0.0, 1.0);\n"
+    + "}\n";
+
+  private final List<Light> lights = new ArrayList<Light>();
+  private final List<double[]> transforms = new ArrayList<double[]>();
+
+  // View-space spheres around the lights for the current frame, with an infinite radius for lights
+  // that reach everywhere, and the data for the light texture
+  private float[] sx = new float[0], sy = new float[0], sz = new float[0], radius = new float[0];
+  private float[] lightData = new float[0];
+  private int numLights;
+
+  // View-space boxes around the clusters, for the projection they were calculated for
+  private final double[] clusterProjection = new double[16];
+  private final float[] minX = new float[NUM_CLUSTERS], maxX = new float[NUM_CLUSTERS];
+  private final float[] minY = new float[NUM_CLUSTERS], maxY = new float[NUM_CLUSTERS];
+  private final float[] sliceNear = new float[SLICES+1];  // distance in front of the eye of each slice boundary
+  private double near, far;
+
+  private final int[] clusterCounts = new int[NUM_CLUSTERS];
+  private final int[] clusterOffsets = new int[NUM_CLUSTERS];  // start of each cluster's list in indexData
+  private final float[] clusterData = new float[NUM_CLUSTERS*4];  // offset and count of each cluster's list
+  private float[] indexData = new float[INDEX_TEXTURE_WIDTH];  // the lists of all the clusters, joined
+  private int numIndices;
+  private long binTime;
+
+  private final boolean supported;
+  private final int[] textures = new int[3];
+  private int lightRows, indexRows;  // heights of the light and index textures as allocated
+  private FloatBuffer lightBuffer, indexBuffer;  // direct copies of the data uploaded, grown with the textures
+  private final FloatBuffer clusterBuffer = Buffers.newDirectFloatBuffer(NUM_CLUSTERS*4);
+  private int viewportWidth = 1, viewportHeight = 1;
+
+  /**
+   * Constructor, with no lights.
+   *
+   * @param  gl  the OpenGL context, or null to bin lights without uploading them, e.g. for benchmarking
+   */
+  public ClusteredLights(GL2 gl) {
+    supported = gl != null && gl.isExtensionAvailable("GL_ARB_texture_float");
+    Arrays.fill(clusterProjection, Double.NaN);
+  }
+
+  /**
+   * Tests whether the lights can be uploaded for shading
+   *
+   * @return  true if the context has float textures
+   */
+  public boolean isSupported() {
+    return supported;
+  }
+
+  /**
+   * Removes all the lights, e.g. at the start of a frame.
+   */
+  public void clear() {
+    lights.clear();
+    transforms.clear();
+  }
+
+  /**
+   * Adds a light for the next bin. Lights that are switched off are ignored.
+   *
+   * @param  light      the light
+   * @param  transform  the transform from the light's coordinates to world space, in column-major order,
+   *                    or null if its position and direction are in world space
+   */
+  public void add(Light light, double[] transform) {
+    if (!light.getSwitchedOn()) return;
+    lights.add(light);
+    transforms.add(transform);
+  }
+
+  /**
+   * Gets the number of lights added
+   *
+   * @return  the number of lights
+   */
+  public int getNumLights() {
+    return lights.size();
+  }
+
+  /**
+   * Finds the lights reaching each cluster, on the common fork-join pool.
+   *
+   * @param  projection  the projection matrix, as glFrustum, in column-major order
+   * @param  view        the viewing transformation, in column-major order
+   */
+  public void bin(double[] projection, double[] view) {
+    bin(projection, view, ForkJoinPool.commonPool());
+  }
+
+  /**
+   * As bin(projection, view), using the given pool.
+   *
+   * @param  projection  the projection matrix, as glFrustum, in column-major order
+   * @param  view        the viewing transformation, in column-major order
+   * @param  pool        the pool to run on. A pool with a parallelism of 1 bins serially.
+   */
+  public void bin(double[] projection, double[] view, ForkJoinPool pool) {
+    long start = System.nanoTime();
+    if (!Arrays.equals(projection, clusterProjection)) calcClusterBounds(projection);
+    prepareLights(view);
+    pool.invoke(new BinTask(0, SLICES, false));
+
+    // Places the lists one after another, in cluster order, then writes them
+    numIndices = 0;
+    for (int c=0; c<NUM_CLUSTERS; c++) {
+      clusterOffsets[c] = numIndices;
+      clusterData[c*4] = numIndices;
+      clusterData[c*4+1] = clusterCounts[c];
+      numIndices += clusterCounts[c];
+    }
+    int rows = Math.max(1, (numIndices+INDEX_TEXTURE_WIDTH-1)/INDEX_TEXTURE_WIDTH);
+    if (indexData.length < rows*INDEX_TEXTURE_WIDTH)
+      indexData = new float[Math.max(rows*INDEX_TEXTURE_WIDTH, indexData.length*2)];
+    pool.invoke(new BinTask(0, SLICES, true));
+    binTime = System.nanoTime()-start;
+  }
+
+  // Calculates the boxes around the clusters, which depend only on the projection
+  private void calcClusterBounds(double[] projection) {
+    System.arraycopy(projection, 0, clusterProjection, 0, 16);
+    near = projection[14]/(projection[10]-1);
+    far = projection[14]/(projection[10]+1);
+    for (int s=0; s<=SLICES; s++) sliceNear[s] = (float)(near*Math.pow(far/near, (double)s/SLICES));
+    for (int s=0; s<SLICES; s++)
+      for (int ty=0; ty<TILES_Y; ty++)
+        for (int tx=0; tx<TILES_X; tx++) {
+          int c = (s*TILES_Y+ty)*TILES_X+tx;
+          // A point at distance d in front of the eye with normalised device x is at x = d*(x+P8)/P0
+          double x0 = -1+2.0*tx/TILES_X+projection[8], x1 = -1+2.0*(tx+1)/TILES_X+projection[8];
+          double y0 = -1+2.0*ty/TILES_Y+projection[9], y1 = -1+2.0*(ty+1)/TILES_Y+projection[9];
+          double d0 = sliceNear[s], d1 = sliceNear[s+1];
+          minX[c] = (float)(Math.min(d0*x0, d1*x0)/projection[0]);
+          maxX[c] = (float)(Math.max(d0*x1, d1*x1)/projection[0]);
+          minY[c] = (float)(Math.min(d0*y0, d1*y0)/projection[5]);
+          maxY[c] = (float)(Math.max(d0*y1, d1*y1)/projection[5]);
+        }
+  }
+
+  // Transforms the lights into view space, filling in the spheres and the light texture data
+  private void prepareLights(double[] view) {
+    numLights = lights.size();
+    if (sx.length < numLights) {
+      int n = Math.max(numLights, sx.length*2);
+      sx = new float[n];
+      sy = new float[n];
+      sz = new float[n];
+      radius = new float[n];
+      lightData = new float[n*TEXELS_PER_LIGHT*4];
+    }
+    for (int i=0; i<numLights; i++) {
+      Light light = lights.get(i);
+      double[] m = (transforms.get(i) == null) ? view : MatrixStack.multiply(view, transforms.get(i));
+      float[] p = light.getPosition();
+      boolean directional = p[3] == 0;
+      double[] q = MatrixStack.transformPoint(m, p[0], p[1], p[2]);
+      if (directional) {
+        q[0] -= m[12];
+        q[1] -= m[13];
+        q[2] -= m[14];
+      }
+      float range = directional ? 0 : light.getRange();
+      sx[i] = (float)q[0];
+      sy[i] = (float)q[1];
+      sz[i] = (float)q[2];
+      radius[i] = (range > 0) ? range*(float)scale(m) : Float.POSITIVE_INFINITY;
+
+      float[] ambient = light.getAmbient(), diffuse = light.getDiffuse(), specular = light.getSpecular();
+      int j = i*TEXELS_PER_LIGHT*4;
+      lightData[j] = sx[i];
+      lightData[j+1] = sy[i];
+      lightData[j+2] = sz[i];
+      lightData[j+3] = (range > 0) ? radius[i] : 0;
+      for (int k=0; k<3; k++) {
+        lightData[j+4+k] = ambient[k];
+        lightData[j+8+k] = diffuse[k];
+        lightData[j+12+k] = specular[k];
+      }
+      lightData[j+7] = directional ? 0 : 1;
+      lightData[j+11] = -2;  // not a spotlight
+      lightData[j+15] = 0;
+      if (light.isSpotlight() && !directional) {
+        float[] dir = light.getDirection();
+        double dx = m[0]*dir[0]+m[4]*dir[1]+m[8]*dir[2], dy = m[1]*dir[0]+m[5]*dir[1]+m[9]*dir[2];
+        double dz = m[2]*dir[0]+m[6]*dir[1]+m[10]*dir[2];
+        double mag = Math.sqrt(dx*dx+dy*dy+dz*dz);
+        if (mag == 0) mag = 1;
+        lightData[j+16] = (float)(dx/mag);
+        lightData[j+17] = (float)(dy/mag);
+        lightData[j+18] = (float)(dz/mag);
+        lightData[j+11] = (float)Math.cos(Math.toRadians(light.getAngle()));
+        lightData[j+19] = (float)Math.cos(Math.toRadians(light.getAngle()*(1-PhongShader.SOFT_EDGE)));
+      }
+    }
+  }
+
+  // The largest factor a transform scales lengths by
+  private static double scale(double[] m) {
+    double x = m[0]*m[0]+m[1]*m[1]+m[2]*m[2], y = m[4]*m[4]+m[5]*m[5]+m[6]*m[6], z = m[8]*m[8]+m[9]*m[9]+m[10]*m[10];
+    return Math.sqrt(Math.max(x, Math.max(y, z)));
+  }
+
+  private class BinTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final int start, end;  // slices
+    private final boolean write;   // false to count the lights of each cluster, true to list them
+
+    BinTask(int start, int end, boolean write) {
+      this.start = start;
+      this.end = end;
+      this.write = write;
+    }
+
+    protected void compute() {
+      if (end-start > SLICES_PER_TASK) {
+        int mid = (start+end) >>> 1;
+        invokeAll(new BinTask(start, mid, write), new BinTask(mid, end, write));
+        return;
+      }
+      for (int s=start; s<end; s++) binSlice(s, write);
+    }
+  }
+
+  // Finds the lights reaching each cluster of a slice, either counting them, or writing them to
+  // indexData from each cluster's offset, when the counts end up as they were
+  private void binSlice(int s, boolean write) {
+    int first = s*TILES_X*TILES_Y;
+    Arrays.fill(clusterCounts, first, first+TILES_X*TILES_Y, 0);
+    double d0 = sliceNear[s], d1 = sliceNear[s+1];
+    double p0 = clusterProjection[0], p5 = clusterProjection[5], p8 = clusterProjection[8], p9 = clusterProjection[9];
+    for (int i=0; i<numLights; i++) {
+      float r = radius[i];
+      int tx0 = 0, tx1 = TILES_X-1, ty0 = 0, ty1 = TILES_Y-1;
+      if (r != Float.POSITIVE_INFINITY) {
+        double d = -sz[i];
+        if (d+r < d0 || d-r > d1) continue;
+        // The tiles the sphere may cover, from the normalised device coordinates of its extremes
+        // over the depths of the slice it overlaps
+        double dn = Math.max(d0, d-r), df = Math.min(d1, d+r);
+        tx0 = tile(Math.min(ndc(sx[i]-r, dn, df, p0, p8, false), ndc(sx[i]+r, dn, df, p0, p8, false)), TILES_X);
+        tx1 = tile(Math.max(ndc(sx[i]-r, dn, df, p0, p8, true), ndc(sx[i]+r, dn, df, p0, p8, true)), TILES_X);
+        ty0 = tile(Math.min(ndc(sy[i]-r, dn, df, p5, p9, false), ndc(sy[i]+r, dn, df, p5, p9, false)), TILES_Y);
+        ty1 = tile(Math.max(ndc(sy[i]-r, dn, df, p5, p9, true), ndc(sy[i]+r, dn, df, p5, p9, true)), TILES_Y);
+      }
+      for (int ty=ty0; ty<=ty1; ty++)
+        for (int tx=tx0; tx<=tx1; tx++) {
+          int c = first+ty*TILES_X+tx;
+          if (r != Float.POSITIVE_INFINITY && !sphereTouchesCluster(i, c, d0, d1)) continue;
+          if (write) indexData[clusterOffsets[c]+clusterCounts[c]] = i;
+          clusterCounts[c]++;
+        }
+    }
+  }
+
+  // The smallest or largest normalised device coordinate of a view-space coordinate at distances from dn to df
+  private static double ndc(double x, double dn, double df, double scale, double offset, boolean largest) {
+    double a = x*scale/dn-offset, b = x*scale/df-offset;
+    return largest ? Math.max(a, b) : Math.min(a, b);
+  }
+
+  // The tile a normalised device coordinate is in, clamped to the screen
+  private static int tile(double ndc, int tiles) {
+    return (int)Math.max(0, Math.min(tiles-1, Math.floor((ndc+1)*0.5*tiles)));
+  }
+
+  // Tests whether a light's sphere touches the box around a cluster
+  private boolean sphereTouchesCluster(int i, int c, double d0, double d1) {
+    double x = sx[i], y = sy[i], d = -sz[i], r = radius[i];
+    double ex = Math.max(0, Math.max(minX[c]-x, x-maxX[c]));
+    double ey = Math.max(0, Math.max(minY[c]-y, y-maxY[c]));
+    double ez = Math.max(0, Math.max(d0-d, d-d1));
+    return ex*ex+ey*ey+ez*ez <= r*r;
+  }
+
+  /**
+   * Gets the number of lights reaching a cluster in the last bin
+   *
+   * @param  tx     the tile across the screen, from the left
+   * @param  ty     the tile up the screen, from the bottom
+   * @param  slice  the slice, from the near plane
+   * @return  the number of lights listed for the cluster
+   */
+  public int getClusterCount(int tx, int ty, int slice) {
+    return clusterCounts[(slice*TILES_Y+ty)*TILES_X+tx];
+  }
+
+  /**
+   * Gets the lights reaching a cluster in the last bin
+   *
+   * @param  tx     the tile across the screen, from the left
+   * @param  ty     the tile up the screen, from the bottom
+   * @param  slice  the slice, from the near plane
+   * @return  the indices of the lights listed for the cluster, in the order they were added
+   */
+  public int[] getClusterLights(int tx, int ty, int slice) {
+    int c = (slice*TILES_Y+ty)*TILES_X+tx;
+    int[] list = new int[clusterCounts[c]];
+    for (int k=0; k<list.length; k++) list[k] = (int)indexData[clusterOffsets[c]+k];
+    return list;
+  }
+
+  /**
+   * Gets the average number of lights per cluster in the last bin
+   *
+   * @return  the number of light indices listed, divided by the number of clusters
+   */
+  public double getAverageLightsPerCluster() {
+    return (double)numIndices/NUM_CLUSTERS;
+  }
+
+  /**
+   * Gets the time the last bin took
+   *
+   * @return  the time in milliseconds
+   */
+  public double getBinTime() {
+    return binTime/1.0e6;
+  }
+
+  /**
+   * Uploads the lights and the lists of lights in each cluster from the last bin to the textures.
+   * Does nothing unless isSupported.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void upload(GL2 gl) {
+    if (!supported) return;
+    if (textures[0] == 0) {
+      gl.glGenTextures(3, textures, 0);
+      for (int t : textures) {
+        gl.glBindTexture(GL2.GL_TEXTURE_2D, t);
+        gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MIN_FILTER, GL2.GL_NEAREST);
+        gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_MAG_FILTER, GL2.GL_NEAREST);
+        gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_S, GL2.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL2.GL_TEXTURE_2D, GL2.GL_TEXTURE_WRAP_T, GL2.GL_CLAMP_TO_EDGE);
+      }
+      gl.glBindTexture(GL2.GL_TEXTURE_2D, textures[1]);
+      gl.glTexImage2D(GL2.GL_TEXTURE_2D, 0, GL2.GL_RGBA32F, TILES_X*TILES_Y, SLICES, 0, GL2.GL_RGBA, GL2.GL_FLOAT, null);
+    }
+
+    int rows = Math.max(1, numLights);
+    gl.glBindTexture(GL2.GL_TEXTURE_2D, textures[0]);
+    if (rows > lightRows) {
+      lightRows = Math.max(rows, lightRows*2);
+      gl.glTexImage2D(GL2.GL_TEXTURE_2D, 0, GL2.GL_RGBA32F, TEXELS_PER_LIGHT, lightRows, 0, GL2.GL_RGBA, GL2.GL_FLOAT, null);
+      if (lightBuffer == null || lightBuffer.capacity() < lightRows*TEXELS_PER_LIGHT*4)
+        lightBuffer = Buffers.newDirectFloatBuffer(lightRows*TEXELS_PER_LIGHT*4);
+    }
+    if (numLights > 0)
+      gl.glTexSubImage2D(GL2.GL_TEXTURE_2D, 0, 0, 0, TEXELS_PER_LIGHT, numLights, GL2.GL_RGBA, GL2.GL_FLOAT,
+                         fill(lightBuffer, lightData, numLights*TEXELS_PER_LIGHT*4));
+
+    gl.glBindTexture(GL2.GL_TEXTURE_2D, textures[1]);
+    gl.glTexSubImage2D(GL2.GL_TEXTURE_2D, 0, 0, 0, TILES_X*TILES_Y, SLICES, GL2.GL_RGBA, GL2.GL_FLOAT,
+                       fill(clusterBuffer, clusterData, clusterData.length));
+
+    rows = Math.max(1, (numIndices+INDEX_TEXTURE_WIDTH-1)/INDEX_TEXTURE_WIDTH);
+    gl.glBindTexture(GL2.GL_TEXTURE_2D, textures[2]);
+    if (rows > indexRows) {
+      indexRows = Math.max(rows, indexRows*2);
+      gl.glTexImage2D(GL2.GL_TEXTURE_2D, 0, GL2.GL_LUMINANCE32F, INDEX_TEXTURE_WIDTH, indexRows, 0, GL2.GL_LUMINANCE, GL2.GL_FLOAT, null);
+      if (indexBuffer == null || indexBuffer.capacity() < indexRows*INDEX_TEXTURE_WIDTH)
+        indexBuffer = Buffers.newDirectFloatBuffer(indexRows*INDEX_TEXTURE_WIDTH);
+    }
+    gl.glTexSubImage2D(GL2.GL_TEXTURE_2D, 0, 0, 0, INDEX_TEXTURE_WIDTH, rows, GL2.GL_LUMINANCE, GL2.GL_FLOAT,
+                       fill(indexBuffer, indexData, rows*INDEX_TEXTURE_WIDTH));
+    gl.glBindTexture(GL2.GL_TEXTURE_2D, 0);
+  }
+
+  // Copies the start of an array into a direct buffer, ready to be read from its start
+  private static FloatBuffer fill(FloatBuffer buffer, float[] data, int length) {
+    buffer.clear();
+    buffer.put(data, 0, length);
+    buffer.flip();
+    return buffer;
+  }
+
+  /**
+   * Sets the size of the viewport the lights are shaded in, so that pixels can find their tiles.
+   * It should be called whenever the viewport changes, e.g. when the window is resized.
+   *
+   * @param  width   the width of the viewport, which starts at the left of the window
+   * @param  height  the height of the viewport, which starts at the bottom of the window
+   */
+  public void setViewport(int width, int height) {
+    viewportWidth = Math.max(1, width);
+    viewportHeight = Math.max(1, height);
+  }
+
+  /**
+   * Binds the textures and sets the uniforms of a current shader using LIGHTING_FUNCTION, for the viewport
+   * given to setViewport. Texture unit 0 is active afterwards.
+   *
+   * @param  gl      the OpenGL context.
+   * @param  shader  the shader
+   */
+  public void bind(GL2 gl, ShaderProgram shader) {
+    int[] units = {LIGHT_TEXTURE_UNIT, CLUSTER_TEXTURE_UNIT, INDEX_TEXTURE_UNIT};
+    String[] names = {"lightData", "clusters", "lightIndices"};
+    for (int i=0; i<3; i++) {
+      gl.glActiveTexture(GL2.GL_TEXTURE0+units[i]);
+      gl.glBindTexture(GL2.GL_TEXTURE_2D, textures[i]);
+      gl.glUniform1i(shader.getUniformLocation(gl, names[i]), units[i]);
+    }
+    gl.glActiveTexture(GL2.GL_TEXTURE0);
+    gl.glUniform4f(shader.getUniformLocation(gl, "viewport"), 0, 0, viewportWidth, viewportHeight);
+    gl.glUniform1f(shader.getUniformLocation(gl, "lightRows"), lightRows);
+    gl.glUniform1f(shader.getUniformLocation(gl, "indexRows"), indexRows);
+    gl.glUniform1f(shader.getUniformLocation(gl, "nearPlane"), (float)near);
+    gl.glUniform1f(shader.getUniformLocation(gl, "sliceScale"), (float)(SLICES/Math.log(far/near)));
+  }
+
+  /**
+   * Fills in the constants of shader source using LIGHTING_FUNCTION
+   *
+   * @param  source  the source
+   * @return  the source with the grid dimensions and limits replaced by their values
+   */
+  static String source(String source) {
+    return source.replace("TILES_X", ""+TILES_X).replace("TILES_Y", ""+TILES_Y).replace("SLICES", ""+SLICES)
+                 .replace("INDEX_TEXTURE_WIDTH", ""+INDEX_TEXTURE_WIDTH);
+  }
+
+  /**
+   * Deletes the textures. They are made again if the lights are uploaded afterwards.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    if (textures[0] != 0) gl.glDeleteTextures(3, textures, 0);
+    Arrays.fill(textures, 0);
+    lightRows = indexRows = 0;
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the lights, average lights per cluster and bin time of the last bin
+   */
+  public String toString() {
+    return numLights+" lights, "+String.format("%.2f", getAverageLightsPerCluster())+" per cluster, "
+           +"binned in "+String.format("%.3f", getBinTime())+" ms";
+  }
+
+}
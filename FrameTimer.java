@@ -0,0 +1,91 @@
+/**
+ * Measures the time taken to render frames, keeping a separate running average for each
+ * labelled configuration (e.g. "textures on" and "textures off"), so that the cost of
+ * different rendering modes can be compared while the program runs.
+ * glFinish is called before a frame is timed, so the times include the work done by the
+ * graphics card and not just the time taken to issue the OpenGL commands.
+ */
+
+import java.util.*;
+import javax.media.opengl.*;
+
+public class FrameTimer {
+
+  private final Map<String, long[]> totals = new LinkedHashMap<String, long[]>();  // label -> {frames, nanoseconds}
+  private String label;
+  private long startTime;
+
+  /**
+   * Starts timing a frame.
+   *
+   * @param gl OpenGL context
+   * @param label name of the configuration the frame is rendered with
+   */
+  public void start(GL2 gl, String label) {
+    gl.glFinish();  // don't charge this frame for work queued by the previous one
+    this.label = label;
+    startTime = System.nanoTime();
+  }
+
+  /**
+   * Stops timing the current frame and adds it to the average for its label.
+   *
+   * @param gl OpenGL context
+   */
+  public void stop(GL2 gl) {
+    gl.glFinish();
+    long elapsed = System.nanoTime()-startTime;
+    long[] total = totals.get(label);
+    if (total == null) {
+      total = new long[2];
+      totals.put(label, total);
+    }
+    total[0]++;
+    total[1] += elapsed;
+  }
+
+  /**
+   * Gets the total number of frames timed, over all labels.
+   *
+   * @return the number of frames timed
+   */
+  public long getNumFrames() {
+    long n = 0;
+    for (long[] total : totals.values()) n += total[0];
+    return n;
+  }
+
+  /**
+   * Gets the average frame time for a label.
+   *
+   * @param label name of the configuration
+   * @return average frame time in milliseconds, or 0 if no frames have been timed with the label
+   */
+  public double getAverageMillis(String label) {
+    long[] total = totals.get(label);
+    if (total == null || total[0] == 0) return 0;
+    return total[1]/1.0e6/total[0];
+  }
+
+  /**
+   * Discards all the timings.
+   */
+  public void reset() {
+    totals.clear();
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the average frame time and number of frames for each label
+   */
+  public String toString() {
+    String s = "";
+    for (Map.Entry<String, long[]> e : totals.entrySet()) {
+      if (s.length() > 0) s += "; ";
+      s += e.getKey()+": "+String.format("%.3f", getAverageMillis(e.getKey()))+" ms ("+e.getValue()[0]+" frames)";
+    }
+    return s;
+  }
+
+}
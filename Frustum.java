@@ -0,0 +1,100 @@
+/**
+ * A view frustum, as six planes, used to test whether bounding volumes can be seen.
+ * The planes are extracted from a combined projection and modelview matrix (Gribb and
+ * Hartmann), so they are in the coordinate system the matrix transforms from, e.g. the
+ * object coordinates of a Mesh if the modelview matrix includes its modelling transform.
+ * Each plane is held as a,b,c,d with (a,b,c) pointing into the frustum and of unit length,
+ * so a*x+b*y+c*z+d is the signed distance of (x,y,z) from the plane.
+ */
+
+public class Frustum {
+
+  private final double[][] planes = new double[6][4];  // left, right, bottom, top, near, far
+
+  /**
+   * Constructor.
+   *
+   * @param  clip  the combined projection * modelview matrix, in OpenGL's column-major order
+   */
+  public Frustum(double[] clip) {
+    set(clip);
+  }
+
+  /**
+   * Constructor. Combines a projection and a modelview matrix.
+   *
+   * @param  projection  the projection matrix, in OpenGL's column-major order
+   * @param  modelview   the modelview matrix, in OpenGL's column-major order
+   */
+  public Frustum(double[] projection, double[] modelview) {
+    set(MatrixStack.multiply(projection, modelview));
+  }
+
+  /**
+   * Sets the planes from a combined projection * modelview matrix.
+   *
+   * @param  clip  the matrix, in OpenGL's column-major order
+   */
+  public void set(double[] clip) {
+    for (int i=0; i<3; i++) {
+      for (int j=0; j<4; j++) {
+        double w = clip[j*4+3];       // row 3
+        double r = clip[j*4+i];       // row i
+        planes[i*2][j] = w+r;
+        planes[i*2+1][j] = w-r;
+      }
+    }
+    for (double[] p : planes) {
+      double mag = Math.sqrt(p[0]*p[0]+p[1]*p[1]+p[2]*p[2]);
+      if (mag!=0)
+        for (int j=0; j<4; j++) p[j] /= mag;
+    }
+  }
+
+  /**
+   * Tests a sphere against the frustum.
+   *
+   * @param  x  x coordinate of the centre
+   * @param  y  y coordinate of the centre
+   * @param  z  z coordinate of the centre
+   * @param  radius  radius of the sphere
+   * @return  false if the sphere is entirely outside the frustum, otherwise true
+   */
+  public boolean intersectsSphere(double x, double y, double z, double radius) {
+    for (double[] p : planes)
+      if (p[0]*x+p[1]*y+p[2]*z+p[3] < -radius) return false;
+    return true;
+  }
+
+  /**
+   * Tests a bounding box against the frustum. The test is conservative: a box near a
+   * corner of the frustum may be reported as intersecting when it is just outside.
+   *
+   * @param  box  the bounding box
+   * @return  false if the box is entirely outside the frustum, otherwise true
+   */
+  public boolean intersectsBox(BoundingBox box) {
+    double[] min = box.getMinimumBounds(), max = box.getMaximumBounds();
+    for (double[] p : planes) {
+      // the corner furthest along the plane's normal
+      double x = (p[0]>=0) ? max[0] : min[0];
+      double y = (p[1]>=0) ? max[1] : min[1];
+      double z = (p[2]>=0) ? max[2] : min[2];
+      if (p[0]*x+p[1]*y+p[2]*z+p[3] < 0) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the six planes as a,b,c,d
+   */
+  public String toString() {
+    String s = "";
+    for (double[] p : planes)
+      s += "["+p[0]+", "+p[1]+", "+p[2]+", "+p[3]+"]";
+    return s;
+  }
+
+}
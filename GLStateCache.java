@@ -0,0 +1,240 @@
+/**
+ * Remembers the Material and Light parameters last sent to an OpenGL context, so that sending the same
+ * values again is skipped. Each context has its own cache, found with get(gl). Materials and Lights
+ * carry version counters that their setters increase, so if the object last sent is sent again with
+ * the same version, nothing is compared or sent. Otherwise each parameter is compared with the value
+ * last sent, and only those that differ are sent.
+ *
+ * A light's position and spotlight direction are always sent, as OpenGL transforms them by the
+ * modelview matrix current when they are sent, which changes whenever the camera or the lamp moves.
+ *
+ * The cache also keeps a mask of the light sources enabled, so that shaders lighting with the OpenGL
+ * lights can find them without glIsEnabled. Light sources must be enabled and disabled through it,
+ * e.g. by Light.enable, disable and use. A new context has none enabled.
+ *
+ * The cache only knows about parameters sent through it. Code that changes the material another way,
+ * e.g. by calling a display list holding glMaterial calls, must call invalidateMaterial afterwards.
+ * While a display list is compiled, the commands are recorded rather than carried out, so
+ * invalidateMaterial must also be called before and after compiling it.
+ */
+
+import java.util.*;
+import javax.media.opengl.*;
+
+public class GLStateCache {
+
+  private static final String KEY = GLStateCache.class.getName();
+  private static final int MAX_LIGHTS = 8;
+  private static final int[] MATERIAL_PARAMETERS = {GL2.GL_AMBIENT, GL2.GL_DIFFUSE, GL2.GL_SPECULAR, GL2.GL_EMISSION};
+  private static final int[] LIGHT_PARAMETERS = {GL2.GL_AMBIENT, GL2.GL_DIFFUSE, GL2.GL_SPECULAR};
+
+  private Material material;  // the Material last sent, or null if the material is unknown
+  private int materialVersion;
+  private final float[][] materialValues = new float[MATERIAL_PARAMETERS.length][];  // null if unknown
+  private float shininess = Float.NaN;  // NaN if unknown
+
+  private final Light[] lights = new Light[MAX_LIGHTS];  // the Light last sent for each light source
+  private final int[] lightVersions = new int[MAX_LIGHTS];
+  private final float[][][] lightValues = new float[MAX_LIGHTS][LIGHT_PARAMETERS.length][];
+  private final float[] cutoffs = new float[MAX_LIGHTS];
+  private int enabledLights;  // mask with bit i set if GL_LIGHT0+i is enabled
+
+  private int issued, skipped;  // counts of parameters since the counts were last reset
+
+  /**
+   * Constructor, for a cache that knows nothing of the context's state. Use get(gl) for the
+   * cache of a context.
+   */
+  public GLStateCache() {
+    invalidate();
+  }
+
+  /**
+   * Gets the cache of the context of a GL, making it the first time.
+   *
+   * @param  gl  the OpenGL context.
+   * @return  the cache of the context
+   */
+  public static GLStateCache get(GL2 gl) {
+    GLContext context = gl.getContext();
+    GLStateCache cache = (GLStateCache)context.getAttachedObject(KEY);
+    if (cache == null) {
+      cache = new GLStateCache();
+      context.attachObject(KEY, cache);
+    }
+    return cache;
+  }
+
+  /**
+   * Sends a Material for both front and back faces, skipping the parameters that are already set.
+   *
+   * @param  gl        the OpenGL context.
+   * @param  material  the Material
+   */
+  public void setMaterial(GL2 gl, Material material) {
+    if (material == this.material && material.getVersion() == materialVersion) {
+      skipped += MATERIAL_PARAMETERS.length+1;
+      return;
+    }
+    float[][] values = {material.getAmbient(), material.getDiffuse(), material.getSpecular(), material.getEmission()};
+    for (int i=0; i<MATERIAL_PARAMETERS.length; i++) {
+      if (Arrays.equals(values[i], materialValues[i]))
+        skipped++;
+      else {
+        gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, MATERIAL_PARAMETERS[i], values[i], 0);
+        materialValues[i] = values[i];
+        issued++;
+      }
+    }
+    if (material.getShininess() == shininess)
+      skipped++;
+    else {
+      shininess = material.getShininess();
+      gl.glMaterialf(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, shininess);
+      issued++;
+    }
+    this.material = material;
+    materialVersion = material.getVersion();
+  }
+
+  /**
+   * Sends the parameters of a Light to its light source, skipping the colours and spotlight cut-off
+   * if they are already set. The position, and the direction of a spotlight, are always sent.
+   *
+   * @param  gl     the OpenGL context.
+   * @param  light  the Light
+   */
+  public void setLight(GL2 gl, Light light) {
+    int index = light.getIndex();
+    int i = index-GL2.GL_LIGHT0;
+    gl.glLightfv(index, GL2.GL_POSITION, light.getPosition(), 0);
+    issued++;
+    if (light.isSpotlight()) {
+      gl.glLightfv(index, GL2.GL_SPOT_DIRECTION, light.getDirection(), 0);
+      issued++;
+    }
+    int parameters = LIGHT_PARAMETERS.length+(light.isSpotlight() ? 1 : 0);
+    if (i < 0 || i >= MAX_LIGHTS) {  // not cached
+      sendLight(gl, light);
+      issued += parameters;
+      return;
+    }
+    if (light == lights[i] && light.getVersion() == lightVersions[i]) {
+      skipped += parameters;
+      return;
+    }
+    float[][] values = {light.getAmbient(), light.getDiffuse(), light.getSpecular()};
+    for (int p=0; p<LIGHT_PARAMETERS.length; p++) {
+      if (Arrays.equals(values[p], lightValues[i][p]))
+        skipped++;
+      else {
+        gl.glLightfv(index, LIGHT_PARAMETERS[p], values[p], 0);
+        lightValues[i][p] = values[p];
+        issued++;
+      }
+    }
+    if (light.isSpotlight()) {
+      if (light.getAngle() == cutoffs[i])
+        skipped++;
+      else {
+        cutoffs[i] = light.getAngle();
+        gl.glLightf(index, GL2.GL_SPOT_CUTOFF, cutoffs[i]);
+        issued++;
+      }
+    }
+    lights[i] = light;
+    lightVersions[i] = light.getVersion();
+  }
+
+  /**
+   * Enables or disables a light source, remembering which are enabled.
+   *
+   * @param  gl     the OpenGL context.
+   * @param  index  the light source, e.g. GL_LIGHT1
+   * @param  on     true to enable it
+   */
+  public void setLightEnabled(GL2 gl, int index, boolean on) {
+    int i = index-GL2.GL_LIGHT0;
+    if (on) {
+      gl.glEnable(index);
+      if (i >= 0 && i < MAX_LIGHTS) enabledLights |= 1<<i;
+    }
+    else {
+      gl.glDisable(index);
+      if (i >= 0 && i < MAX_LIGHTS) enabledLights &= ~(1<<i);
+    }
+  }
+
+  /**
+   * Gets the light sources enabled through the cache
+   *
+   * @return  a mask with bit i set if GL_LIGHT0+i is enabled
+   */
+  public int getEnabledLights() {
+    return enabledLights;
+  }
+
+  private static void sendLight(GL2 gl, Light light) {
+    int index = light.getIndex();
+    gl.glLightfv(index, GL2.GL_AMBIENT, light.getAmbient(), 0);
+    gl.glLightfv(index, GL2.GL_DIFFUSE, light.getDiffuse(), 0);
+    gl.glLightfv(index, GL2.GL_SPECULAR, light.getSpecular(), 0);
+    if (light.isSpotlight()) gl.glLightf(index, GL2.GL_SPOT_CUTOFF, light.getAngle());
+  }
+
+  /**
+   * Forgets the material, so the next Material is sent in full.
+   */
+  public void invalidateMaterial() {
+    material = null;
+    Arrays.fill(materialValues, null);
+    shininess = Float.NaN;
+  }
+
+  /**
+   * Forgets everything, so the next Material and Lights are sent in full, e.g. after the state
+   * has been changed without the cache.
+   */
+  public void invalidate() {
+    invalidateMaterial();
+    Arrays.fill(lights, null);
+    for (float[][] values : lightValues)
+      Arrays.fill(values, null);
+    Arrays.fill(cutoffs, Float.NaN);
+  }
+
+  /**
+   * Gets the number of parameters sent since the counts were last reset
+   *
+   * @return  the number of glMaterial and glLight calls made
+   */
+  public int getIssued() {
+    return issued;
+  }
+
+  /**
+   * Gets the number of parameters skipped since the counts were last reset, as they were already set
+   *
+   * @return  the number of glMaterial and glLight calls saved
+   */
+  public int getSkipped() {
+    return skipped;
+  }
+
+  /**
+   * Resets the counts to 0, e.g. at the start of a frame.
+   */
+  public void resetCounts() {
+    issued = skipped = 0;
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the numbers of parameters skipped and sent
+   */
+  public String toString() {
+    return skipped+" uploads skipped, "+issued+" issued";
+  }
+
+}
@@ -0,0 +1,228 @@
+/**
+ * Draws many copies of a Render, each with its own modelling transform, with as few draw calls as possible.
+ * Where glDrawElementsInstanced and the GL_ARB_draw_instanced extension are available, the transforms
+ * are sent as uniform arrays and a vertex shader picks each copy's transform with gl_InstanceIDARB,
+ * so a batch of up to getBatchSize() copies is drawn with one call. (The per-instance vertex attributes
+ * of GL_ARB_instanced_arrays would avoid the batch limit, but glVertexAttribDivisor is not exposed
+ * for GL2 contexts.) The fragment shader lights each pixel with the current Material as the PhongShader
+ * does, sharing its lighting function, and modulates the result by the texture, so instanced copies look
+ * the same as copies drawn one at a time with a PhongShader current. Made with ClusteredLights, the pixels
+ * are lit by the lights of their clusters, as by a PhongShader made with them.
+ * An instanced draw leaves no program current, so a caller drawing with a PhongShader resumes it afterwards.
+ * Otherwise, the fallback binds the buffers and sets the material once, then draws each copy with
+ * glMultMatrixd and glDrawElements.
+ * The shader must be released with dispose(gl) when it is no longer needed.
+ */
+
+import javax.media.opengl.*;
+import com.jogamp.opengl.util.texture.*;
+
+public class InstancedRenderer {
+
+  public static final int MAX_BATCH_SIZE = 64;
+  private static final int RESERVED_UNIFORM_VECTORS = 160;  // for the built-in lighting and matrix uniforms
+  private static final int VECTORS_PER_INSTANCE = 7;        // a mat4 transform and a mat3 normal matrix
+
+  private static final String VERTEX_SHADER =
+      "#version 120\n"
+    + "#extension GL_ARB_draw_instanced : require\n"
+    + "uniform mat4 transforms[BATCH_SIZE];\n"
+    + "uniform mat3 normalMatrices[BATCH_SIZE];\n"
+    + "varying vec3 position;\n"
+    + "varying vec3 normal;\n"
+    + "void main() {\n"
+    + "  vec4 v = gl_ModelViewMatrix*(transforms[gl_InstanceIDARB]*gl_Vertex);\n"
+    + "  position = v.xyz;\n"
+    + "  normal = gl_NormalMatrix*(normalMatrices[gl_InstanceIDARB]*gl_Normal);\n"
+    + "  gl_TexCoord[0] = gl_TextureMatrix[0]*gl_MultiTexCoord0;\n"
+    + "  gl_Position = gl_ProjectionMatrix*v;\n"
+    + "}\n";
+
+  private static final String FRAGMENT_SHADER =
+      "#version 120\n"
+    + "LIGHTING_FUNCTION"
+    + "uniform bool textured;\n"
+    + "uniform sampler2D textureMap;\n"
+    + "varying vec3 position;\n"
+    + "varying vec3 normal;\n"
+    + "void main() {\n"
+    + "  vec4 colour = lighting(position, normalize(normal), gl_FrontMaterial.emission, gl_FrontMaterial.ambient,\n"
+    + "                         gl_FrontMaterial.diffuse, gl_FrontMaterial.specular, gl_FrontMaterial.shininess);\n"
+    + "  gl_FragColor = textured ? colour*texture2D(textureMap, gl_TexCoord[0].st) : colour;\n"
+    + "}\n";
+
+  private final ClusteredLights clustered;
+  private ShaderProgram shader;
+  private int[] lightOn;  // locations of the lightOn uniforms, or null with clustered lights
+  private int batchSize;
+  private final float[] transforms = new float[MAX_BATCH_SIZE*16];
+  private final float[] normalMatrices = new float[MAX_BATCH_SIZE*9];
+  private int drawCalls;
+
+  /**
+   * Constructor. Compiles the instancing shader if the context supports instancing.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public InstancedRenderer(GL2 gl) {
+    this(gl, null);
+  }
+
+  /**
+   * Constructor. Compiles the instancing shader if the context supports instancing, to light with the
+   * lights of a ClusteredLights if one is given.
+   *
+   * @param  gl         the OpenGL context.
+   * @param  clustered  the lights, which must be supported, binned and uploaded before drawing, or null
+   *                    to use the OpenGL light sources
+   */
+  public InstancedRenderer(GL2 gl, ClusteredLights clustered) {
+    this.clustered = clustered;
+    if (!gl.isFunctionAvailable("glDrawElementsInstanced") || !gl.isExtensionAvailable("GL_ARB_draw_instanced"))
+      return;
+    int[] components = new int[1];
+    gl.glGetIntegerv(GL2.GL_MAX_VERTEX_UNIFORM_COMPONENTS, components, 0);
+    batchSize = Math.min(MAX_BATCH_SIZE, (components[0]/4-RESERVED_UNIFORM_VECTORS)/VECTORS_PER_INSTANCE);
+    if (batchSize < 2) {
+      batchSize = 0;
+      return;
+    }
+    String lighting = (clustered == null) ? PhongShader.LIGHTING_FUNCTION
+                                          : ClusteredLights.source(ClusteredLights.LIGHTING_FUNCTION);
+    shader = new ShaderProgram(gl, VERTEX_SHADER.replace("BATCH_SIZE", ""+batchSize),
+                               PhongShader.source(FRAGMENT_SHADER.replace("LIGHTING_FUNCTION", lighting)));
+    if (!shader.isValid()) {
+      shader = null;
+      batchSize = 0;
+    }
+    else if (clustered == null) lightOn = PhongShader.getLightOnLocations(gl, shader);
+  }
+
+  /**
+   * Tests whether copies are drawn with instancing, rather than by the fallback
+   *
+   * @return  true if instancing is used
+   */
+  public boolean isInstancing() {
+    return shader != null;
+  }
+
+  /**
+   * Gets the number of copies drawn by each instanced draw call
+   *
+   * @return  the largest number of copies in a batch, or 0 if instancing is not used
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Draws copies of a Render from its vertex buffers, setting its texture and Material.
+   * The Render's vertex buffers must have been initialised.
+   *
+   * @param  gl            the OpenGL context.
+   * @param  render        the Render to draw
+   * @param  transforms    the modelling transform of each copy, in column-major order,
+   *                       relative to the current modelview matrix
+   * @param  isTexturesOn  false to draw the copies untextured
+   */
+  public void render(GL2 gl, Render render, double[][] transforms, boolean isTexturesOn) {
+    Texture tex = render.getTexture();
+    boolean texit = isTexturesOn && render.getBuffersTextured() && tex != null;
+    if (texit) {
+      tex.enable(gl);
+      tex.bind(gl);
+      gl.glMatrixMode(GL2.GL_TEXTURE);
+      gl.glPushMatrix();
+      gl.glScaled(render.getBuffersRepeat(), render.getBuffersRepeat(), 1);
+      gl.glMatrixMode(GL2.GL_MODELVIEW);
+    }
+    Render.setMaterial(gl, render.getMesh().getMaterial());
+    MeshBuffers buffers = render.getBuffers();
+    buffers.bind(gl, texit);
+    drawInstances(gl, buffers, transforms, 0, transforms.length, texit);
+    buffers.unbind(gl, texit);
+    if (texit) {
+      gl.glMatrixMode(GL2.GL_TEXTURE);
+      gl.glPopMatrix();
+      gl.glMatrixMode(GL2.GL_MODELVIEW);
+      tex.disable(gl);
+    }
+  }
+
+  /**
+   * Draws copies of bound vertex buffers, lit by the lights enabled. The texture, texture matrix and
+   * Material must already be set, as for drawing a single copy. If the copies are instanced, no program
+   * is current afterwards.
+   *
+   * @param  gl          the OpenGL context.
+   * @param  buffers     the bound buffers, holding a triangle list
+   * @param  transforms  the modelling transform of each copy, in column-major order,
+   *                     relative to the current modelview matrix
+   * @param  first       the index of the first transform to use
+   * @param  count       the number of copies to draw
+   * @param  texit       true if a texture is bound and enabled
+   */
+  public void drawInstances(GL2 gl, MeshBuffers buffers, double[][] transforms, int first, int count, boolean texit) {
+    if (shader == null || buffers.isStrips()) {
+      for (int i=first; i<first+count; i++) {
+        gl.glPushMatrix();
+        gl.glMultMatrixd(transforms[i], 0);
+        buffers.draw(gl);
+        gl.glPopMatrix();
+        drawCalls++;
+      }
+      return;
+    }
+
+    shader.use(gl);
+    if (clustered != null)
+      clustered.bind(gl, shader);
+    else
+      PhongShader.setLights(gl, lightOn);
+    gl.glUniform1i(shader.getUniformLocation(gl, "textured"), texit ? 1 : 0);
+    gl.glUniform1i(shader.getUniformLocation(gl, "textureMap"), 0);
+    for (int start=first; start<first+count; start+=batchSize) {
+      int n = Math.min(batchSize, first+count-start);
+      for (int i=0; i<n; i++) {
+        double[] m = transforms[start+i];
+        for (int j=0; j<16; j++) this.transforms[i*16+j] = (float)m[j];
+        double[] nm = MatrixStack.normalMatrix(m);
+        for (int j=0; j<9; j++) normalMatrices[i*9+j] = (float)nm[j];
+      }
+      gl.glUniformMatrix4fv(shader.getUniformLocation(gl, "transforms"), n, false, this.transforms, 0);
+      gl.glUniformMatrix3fv(shader.getUniformLocation(gl, "normalMatrices"), n, false, normalMatrices, 0);
+      gl.glDrawElementsInstanced(GL2.GL_TRIANGLES, buffers.getNumIndices(), GL2.GL_UNSIGNED_INT, 0L, n);
+      drawCalls++;
+    }
+    shader.stop(gl);
+  }
+
+  /**
+   * Gets the number of draw calls made since the count was last reset
+   *
+   * @return  the number of draw calls
+   */
+  public int getDrawCalls() {
+    return drawCalls;
+  }
+
+  /**
+   * Resets the count of draw calls to 0, e.g. at the start of a frame.
+   */
+  public void resetDrawCalls() {
+    drawCalls = 0;
+  }
+
+  /**
+   * Deletes the shader. The object falls back to drawing one copy at a time afterwards.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    if (shader != null) shader.dispose(gl);
+    shader = null;
+    batchSize = 0;
+  }
+
+}
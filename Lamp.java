@@ -13,9 +13,47 @@ public class Lamp {
     private final GL2 gl;
     private final GLUT glut;
     private Light light1;
+    private final MeshCache meshCache; //Shared with the scene, so identical meshes are only built once
 
     private Mesh meshCylinder, meshCube;
+    private Mesh[] meshSpheres, meshCones;
     private Render cylinder, cube;
+    private Render[] spheres, cones; //Middle joint and lamp head, at each level of detail
+
+    //Levels of detail for the sphere and cone, from 100 slices and stacks down to 12
+    private static final int NUM_DETAIL_LEVELS = 4;
+    private static final double FULL_DETAIL_PIXELS = 600; //Size on screen at and above which the most detailed level is drawn
+    private int fixedDetailLevel = -1; //Level set with setDetailLevel, or -1 to choose it each frame from the size on screen
+    private int detailLevel; //Level drawn in the last frame
+    private double[] viewProjection, viewMatrix; //Camera the level is chosen for, or null to draw the most detailed level
+    private int viewWidth, viewHeight; //Size of the viewport in pixels
+    private final BoundingBox bounds = new BoundingBox();
+
+    //Display lists for the parts of the lamp between each pair of joints, compiled for one lamp size.
+    //There is one set of lists for each level of detail.
+    private static final int BASE_LIST = 0, LOWER_ARMS_LIST = 1, UPPER_ARMS_LIST = 2, HEAD_LIST = 3;
+    private static final int NUM_DISPLAY_LISTS = 4;
+    public static final int NUM_JOINTS = NUM_DISPLAY_LISTS; //Each part moves with one joint: the base, lower arms, upper arms and head
+    private int displayLists = 0;
+    private double compiledSize;
+
+    //Boxes around the parts in each display list, in the list's own coordinates, and around everything
+    //the lamp can reach from its base in any pose, for frustum culling. Set when the lists are compiled.
+    private final BoundingBox[] partBounds = new BoundingBox[NUM_DISPLAY_LISTS];
+    private final BoundingBox reachBounds = new BoundingBox();
+    private final MatrixStack partTransform = new MatrixStack(); //World transform of the part being drawn
+    private Frustum cullFrustum; //Frustum the parts are tested against in this frame, or null
+    private int partsDrawn, partsCulled, partsOccluded; //Counts for the last frame
+    private boolean occluded; //Set when the lamp is hidden behind other objects, so no parts are drawn
+    private SoftwareOcclusionCuller partOcclusion; //Tests the parts inside the frustum for occlusion, or null
+
+    //With a skinning shader, the parts are merged into one mesh for each level of detail, drawn with one call,
+    //with the joints placed by matrices calculated here rather than by OpenGL transformations
+    private SkinningShader skinning; //Null to draw the display lists
+    private SkinnedMesh[] skinnedMeshes; //Built with the display lists, for the same lamp size
+    private final float[] jointMatrices = new float[NUM_DISPLAY_LISTS * 16];
+    private final boolean[] jointsVisible = new boolean[NUM_DISPLAY_LISTS];
+    private double[] lightTransform; //World transform of the light when last placed, or null
 
     //Red plastic colour for parts of the lamp
     private static final float[] redAmbient = {1.0f, 0.2f, 0.2f, 1.0f}; //
@@ -34,12 +72,14 @@ public class Lamp {
      *
      * @param gl OpenGL context
      * @param glut GLUT code library for building basic shapes
+     * @param meshCache Cache the lamp's meshes are acquired from
      *
      */
-    public Lamp(GL2 gl, GLUT glut) {
+    public Lamp(GL2 gl, GLUT glut, MeshCache meshCache) {
 
         this.gl = gl;
         this.glut = glut;
+        this.meshCache = meshCache;
 
         createLight(gl);                  // Create light that sits in the lamp
         createRenderObjects(gl);          // Create/load objects
@@ -81,7 +121,7 @@ public class Lamp {
      *
      */
     private void createRenderObjects(GL2 gl) {
-        meshCylinder = ProceduralMeshFactory.createCylinder(); //Generic cylinder mesh object 
+        meshCylinder = meshCache.acquireCylinder(30, 1, true); //Generic cylinder mesh object 
         Material mat = meshCylinder.getMaterial();  //Retrieves material properties of object
         mat.setAmbient(redAmbient); // Sets colour properties defined in constructor
         mat.setDiffuse(redDiffuse);
@@ -91,14 +131,90 @@ public class Lamp {
 
         //Same process as cylinder for cube object (to create the light switch on the back of the lamp)
         
-        meshCube = ProceduralMeshFactory.createHardCube();
+        meshCube = meshCache.acquireHardCube(1, 1, 1);
         mat = meshCube.getMaterial();
         mat.setAmbient(goldAmbient);
         mat.setDiffuse(goldDiffuse);
         mat.setSpecular(goldSpecular);
         mat.setShininess(goldShininess[0]);
         cube = new Render(meshCube);
+
+        //Gold sphere for the middle joint and open cone for the lamp head, at each level of detail
+        meshSpheres = meshCache.acquireSphereLODs(100, 100, NUM_DETAIL_LEVELS);
+        meshCones = meshCache.acquireConeLODs(100, 100, false, NUM_DETAIL_LEVELS);
+        spheres = new Render[NUM_DETAIL_LEVELS];
+        cones = new Render[NUM_DETAIL_LEVELS];
+        for (int i = 0; i < NUM_DETAIL_LEVELS; i++) {
+            meshSpheres[i].setMaterial((Material) meshCube.getMaterial().clone());
+            spheres[i] = new Render(meshSpheres[i]);
+            meshCones[i].setMaterial((Material) meshCube.getMaterial().clone());
+            cones[i] = new Render(meshCones[i]);
+        }
+    }
+
+    /**
+     * Sets the camera the level of detail is chosen for each frame, so the size of the lamp on
+     * screen is calculated on the CPU rather than from matrices read back from OpenGL.
+     *
+     * @param projection The projection matrix, in OpenGL's column-major order, or null to draw the most detailed level
+     * @param view The viewing transformation, in column-major order
+     * @param width Width of the viewport in pixels
+     * @param height Height of the viewport in pixels
+     *
+     */
+    public void setView(double[] projection, double[] view, int width, int height) {
+        viewProjection = projection;
+        viewMatrix = view;
+        viewWidth = width;
+        viewHeight = height;
     }
+
+    /**
+     * Fixes the level of detail used for the sphere and cone of the lamp. By default the level
+     * is chosen each frame from the size of the lamp on screen.
+     *
+     * @param level 0 is the most detailed (100 slices and stacks); each level halves the slices and stacks.
+     * -1 chooses the level each frame.
+     *
+     */
+    public void setDetailLevel(int level) {
+        fixedDetailLevel = Math.max(-1, Math.min(NUM_DETAIL_LEVELS - 1, level));
+    }
+
+    /**
+     * Gets the level of detail drawn in the last frame.
+     *
+     * @return 0 for the most detailed level, up to one less than the number of levels
+     *
+     */
+    public int getDetailLevel() {
+        return detailLevel;
+    }
+    /**
+     * Releases the graphics card resources held by the lamp's Render objects, and gives
+     * the lamp's meshes back to the mesh cache.
+     *
+     * @param gl OpenGL context
+     *
+     */
+    public void dispose(GL2 gl) {
+        if (displayLists != 0) {
+            gl.glDeleteLists(displayLists, NUM_DISPLAY_LISTS * NUM_DETAIL_LEVELS);
+            displayLists = 0;
+        }
+        disposeSkinnedMeshes(gl);
+        cylinder.dispose(gl);
+        cube.dispose(gl);
+        for (int i = 0; i < NUM_DETAIL_LEVELS; i++) {
+            spheres[i].dispose(gl);
+            cones[i].dispose(gl);
+            meshCache.release(meshSpheres[i]);
+            meshCache.release(meshCones[i]);
+        }
+        meshCache.release(meshCylinder);
+        meshCache.release(meshCube);
+    }
+
     /**
      * Enable light. Resizes and enables light for lamp
      *
@@ -116,30 +232,146 @@ public class Lamp {
         gl.glPopMatrix();
     }
     /**
-     * setGLUTColours. Sets colour of objects drawn by GLUT to match the colour of gold Mesh/Render objects
+     * Compiles the parts of the lamp into display lists, for every level of detail.
+     * The lists are built for one lamp size.
+     *
+     * @param size The overall size of the lamp
+     *
+     */
+    private void compileDisplayLists(double size) {
+        if (displayLists == 0) {
+            displayLists = gl.glGenLists(NUM_DISPLAY_LISTS * NUM_DETAIL_LEVELS);
+        }
+        compiledSize = size;
+        calcPartBounds(size);
+        for (int level = 0; level < NUM_DETAIL_LEVELS; level++) {
+            compileDisplayLists(size, level, displayLists + level * NUM_DISPLAY_LISTS);
+        }
+        disposeSkinnedMeshes(gl);
+        if (skinning != null) {
+            skinnedMeshes = new SkinnedMesh[NUM_DETAIL_LEVELS];
+            for (int level = 0; level < NUM_DETAIL_LEVELS; level++) {
+                skinnedMeshes[level] = buildSkinnedMesh(size, level);
+            }
+        }
+    }
+
+    /**
+     * Releases the skinned meshes, if they have been built.
      *
      * @param gl OpenGL context
      *
      */
-    private void setGLUTColours() {
-        gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_AMBIENT, goldAmbient, 0);
-        gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_DIFFUSE, goldDiffuse, 0);
-        gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, goldSpecular, 0);
-        gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SHININESS, goldShininess, 0);
+    private void disposeSkinnedMeshes(GL2 gl) {
+        if (skinnedMeshes != null) {
+            for (SkinnedMesh mesh : skinnedMeshes) {
+                mesh.dispose(gl);
+            }
+            skinnedMeshes = null;
+        }
     }
 
-        /**
-     * Draws lamp. Builds lamp by transforming various primitives into a hierarchical model
+    /**
+     * Sets the shader the lamp is drawn with as one skinned mesh. The lamp is drawn from its
+     * display lists, with the fixed-function pipeline, until a valid shader is set. Drawn with the
+     * shader, the lamp leaves no program current, so a caller lighting with a PhongShader resumes it.
+     *
+     * @param skinning A valid shader for meshes with NUM_JOINTS joints, or null to draw the display lists
+     *
+     */
+    public void setSkinningShader(SkinningShader skinning) {
+        this.skinning = skinning;
+        compiledSize = -1; //Builds the skinned meshes, or releases them, at the next draw
+    }
+
+    /**
+     * Calculates boxes around the parts of the lamp in each display list, in the list's own
+     * coordinates, from the dimensions used by compileDisplayLists. The head box is a cube
+     * around the cone and switch, with a small margin.
      *
      * @param size The overall size of the lamp
-     * @param lowerRot The rotation of the lower arms. 0 degrees stands them vertically from the base.
-     * @param upperRot The rotation of the upper arms. 0 degrees stands them vertically from the lower arms.
-     * @param coneVertRot The vertical orientation of the lamp head
-     * @param coneHorRot The horizontal orientation of the lamp head
-     * @param baseRot The orientation of the lamp base. 0 degrees is flat to the ground
      *
      */
-    public void draw(double size, double lowerRot, double upperRot, double coneVertRot, double coneHorRot, double baseRot) {
+    private void calcPartBounds(double size) {
+        double baseWidth = 1.0 * size;
+        double baseHeight = baseWidth * 0.1;
+        double lowerArmLength = 1.5 * size;
+        double lowerArmRadius = 0.05 * size;
+        double upperArmLength = 1.0 * size;
+        double jointRadius = baseWidth * 0.2;
+        double coneSize = 0.7 * baseWidth;
+        double armSpacing = 0.05 * size;
+        double armsHalfWidth = armSpacing * baseWidth + 0.5 * lowerArmRadius; //Half the width of a pair of arms
+        double headReach = 1.1 * coneSize;
+
+        for (int i = 0; i < NUM_DISPLAY_LISTS; i++) {
+            partBounds[i] = new BoundingBox();
+        }
+        partBounds[BASE_LIST].setBounds(new double[]{-0.5 * baseWidth, 0, -0.5 * baseWidth},
+                new double[]{0.5 * baseWidth, Math.max(baseHeight, jointRadius), 0.5 * baseWidth});
+        partBounds[LOWER_ARMS_LIST].setBounds(new double[]{-armsHalfWidth, baseHeight, -0.5 * lowerArmRadius},
+                new double[]{armsHalfWidth, baseHeight + lowerArmLength, 0.5 * lowerArmRadius});
+        double upperHalfWidth = Math.max(jointRadius, armsHalfWidth);
+        partBounds[UPPER_ARMS_LIST].setBounds(new double[]{-upperHalfWidth, -jointRadius, -upperHalfWidth},
+                new double[]{upperHalfWidth, Math.max(upperArmLength, jointRadius), upperHalfWidth});
+        partBounds[HEAD_LIST].setBounds(new double[]{-headReach, -headReach, -headReach},
+                new double[]{headReach, headReach, headReach});
+
+        double reach = baseHeight + lowerArmLength + upperArmLength + Math.sqrt(3) * headReach; //Corner of the head box
+        reachBounds.setBounds(new double[]{-reach, -reach, -reach}, new double[]{reach, reach, reach});
+    }
+
+    /**
+     * Compiles the parts of the lamp into display lists. Each list holds the parts that
+     * move together between two of the lamp's joints, so that only the joint rotations
+     * need to be applied each frame.
+     *
+     * @param size The overall size of the lamp
+     * @param level The level of detail of the sphere and cone
+     * @param lists The first of the NUM_DISPLAY_LISTS display lists to compile
+     *
+     */
+    private void compileDisplayLists(double size, int level, int lists) {
+        GLStateCache cache = GLStateCache.get(gl);
+        for (int part = 0; part < NUM_DISPLAY_LISTS; part++) {
+            cache.invalidateMaterial(); // So the first material of each list is recorded, not skipped
+            gl.glNewList(lists + part, GL2.GL_COMPILE);
+            addParts(size, level, part, null);
+            gl.glEndList();
+        }
+        cache.invalidateMaterial(); // The materials were recorded, not sent
+    }
+
+    /**
+     * Merges the parts of the lamp into one mesh for the skinning shader, with each part
+     * moving with the joint whose display list would hold it.
+     *
+     * @param size The overall size of the lamp
+     * @param level The level of detail of the sphere and cone
+     * @return the uploaded mesh
+     *
+     */
+    private SkinnedMesh buildSkinnedMesh(double size, int level) {
+        SkinnedMesh mesh = new SkinnedMesh(NUM_DISPLAY_LISTS);
+        for (int part = 0; part < NUM_DISPLAY_LISTS; part++) {
+            addParts(size, level, part, mesh);
+        }
+        mesh.upload(gl);
+        return mesh;
+    }
+
+    /**
+     * Adds the primitives making up one part of the lamp, each transformed into the
+     * coordinates of the joint it moves with. They are drawn into the display list being
+     * compiled, or added to a skinned mesh.
+     *
+     * @param size The overall size of the lamp
+     * @param level The level of detail of the sphere and cone
+     * @param part The part, e.g. BASE_LIST
+     * @param skinned The mesh to add them to, or null to draw them
+     *
+     */
+    private void addParts(double size, int level, int part, SkinnedMesh skinned) {
 
         //Lamp paramaters initialisation to define shape of each primitive
         double baseWidth = 1.0 * size;
@@ -147,120 +379,503 @@ public class Lamp {
         double baseLength = baseWidth;
         double lowerArmLength = 1.5 * size;
         double lowerArmRadius = 0.05 * size;
-        double lowerArmRotation = lowerRot;
         double upperArmLength = 1.0 * size;
         double upperArmRadius = lowerArmRadius;
-        double upperArmRotation = upperRot;
         double jointRadius = baseWidth * 0.2;
         double coneSize = 0.7 * baseWidth;
         double armSpacing = 0.05 * size; //Spacing for arm structure, as the lamp use two arms for lower and upper sections. 
-        int stacks = 100;//GLUT object paramaters to determine complexity of mesh
-        int slices = 100;
 
-        setGLUTColours(); //Sets colour of GLUT objects to match gold Mesh/Render objects
+        MatrixStack m = new MatrixStack();
+        switch (part) {
+            case BASE_LIST: //Base and bottom joint
+                m.scale(baseWidth, baseHeight, baseLength);
+                m.rotate(90, -1, 0, 0);
+                addPart(cylinder, m, part, false, skinned);
 
-        gl.glPushMatrix();
+                m.loadIdentity();
+                m.scale(baseWidth * 0.4, jointRadius, baseWidth * 0.4);
+                m.rotate(90, -1, 0, 0);
+                addPart(cylinder, m, part, false, skinned);
+                break;
 
-        //Draw base
-        gl.glPushMatrix();
-        gl.glRotated(baseRot, 1, 0, 0);
+            case LOWER_ARMS_LIST: //Lower strength arm and lower arms
+                m.translate(armSpacing * baseWidth, lowerArmLength * 0.5 + baseHeight, 0);
+                m.rotate(90, 0, 0, 1);
+                m.scale(lowerArmRadius, armSpacing * baseWidth * 2, lowerArmRadius);
+                m.rotate(90, -1, 0, 0);
+                addPart(cylinder, m, part, false, skinned);
 
-        gl.glPushMatrix();
-        gl.glScaled(baseWidth, baseHeight, baseLength);
-        gl.glRotated(90, -1, 0, 0);
-        cylinder.renderImmediateMode(gl, false, 1);
-        gl.glPopMatrix();
+                m.loadIdentity();
+                m.translate(baseWidth * -armSpacing, baseHeight, 0);
+                m.scale(lowerArmRadius, lowerArmLength, lowerArmRadius);
+                m.rotate(90, -1, 0, 0);
+                addPart(cylinder, m, part, false, skinned);
 
-        // Draw bottom joint
-        gl.glPushMatrix();
-        gl.glScaled(baseWidth * 0.4, jointRadius, baseWidth * 0.4);
-        gl.glRotated(90, -1, 0, 0);
-        cylinder.renderImmediateMode(gl, false, 1);
-        gl.glPopMatrix();
-        gl.glPopMatrix();
+                m.loadIdentity();
+                m.translate(baseWidth * armSpacing, baseHeight, 0);
+                m.scale(lowerArmRadius, lowerArmLength, lowerArmRadius);
+                m.rotate(90, -1, 0, 0);
+                addPart(cylinder, m, part, false, skinned);
+                break;
+
+            case UPPER_ARMS_LIST: //Middle joint and upper arms
+                m.scale(jointRadius * 2, jointRadius * 2, jointRadius * 2); //Sphere mesh has a diameter of 1
+                addPart(spheres[level], m, part, false, skinned);
+
+                m.loadIdentity();
+                m.translate(baseWidth * armSpacing, 0, 0);
+                m.scale(upperArmRadius, upperArmLength, upperArmRadius);
+                m.rotate(90, -1, 0, 0);
+                addPart(cylinder, m, part, false, skinned);
 
-        gl.glRotated(lowerArmRotation, 1, 0, 0); //Rotates lower arms
+                m.loadIdentity();
+                m.translate(baseWidth * -armSpacing, 0, 0);
+                m.scale(upperArmRadius, upperArmLength, upperArmRadius);
+                m.rotate(90, -1, 0, 0);
+                addPart(cylinder, m, part, false, skinned);
+                break;
 
-        //Draw lower strength arm
+            case HEAD_LIST: //Cone structure and light switch
+                m.rotate(270, 1, 0, 0);
+                m.translate(0, -coneSize, 0);
+                m.pushMatrix();
+                m.translate(0, coneSize - 0.9 * 0.8 * coneSize, 0);
+                m.scale(coneSize * 0.6, coneSize * 0.8, coneSize * 0.6);
+                m.rotate(90, -1, 0, 0);
+                addPart(cylinder, m, part, false, skinned);
+                m.popMatrix();
+
+                m.pushMatrix();
+                m.translate(0, coneSize, 0);
+                m.rotate(30, 0, 0, 1);
+                m.translate(-0.05 * coneSize, 0, 0);
+                m.scale(0.4 * coneSize, 0.2 * coneSize, 0.1 * coneSize);
+                addPart(cube, m, part, false, skinned); //Light switch
+                m.popMatrix();
+
+                m.rotate(90, -1, 0, 0); //Cone upright
+                m.scale(coneSize * 2, coneSize * 2, coneSize); //Cone mesh has a base diameter of 1 and a height of 1
+                addPart(cones[level], m, part, true, skinned); //Inside of cone is visible
+                break;
+        }
+    }
+
+    /**
+     * Draws a primitive of the lamp into the display list being compiled, or adds it to a skinned mesh.
+     *
+     * @param render The primitive
+     * @param transform Its transform into the coordinates of its joint
+     * @param part The part it belongs to, and so the joint it moves with
+     * @param doubleSided True if its inside is visible, so face culling is disabled while drawing it
+     * @param skinned The mesh to add it to, or null to draw it
+     *
+     */
+    private void addPart(Render render, MatrixStack transform, int part, boolean doubleSided, SkinnedMesh skinned) {
+        if (skinned != null) {
+            skinned.addPart(render.getMesh(), transform.getMatrix(), part, doubleSided);
+            return;
+        }
         gl.glPushMatrix();
-        gl.glTranslated(armSpacing * baseWidth, lowerArmLength * 0.5 + baseHeight, 0);
-        gl.glRotated(90, 0, 0, 1);
-        gl.glScaled(lowerArmRadius, armSpacing * baseWidth * 2, lowerArmRadius);
-        gl.glRotated(90, -1, 0, 0);
-        cylinder.renderImmediateMode(gl, false, 1);
+        gl.glMultMatrixd(transform.getMatrix(), 0);
+        if (doubleSided) {
+            gl.glDisable(GL2.GL_CULL_FACE);
+        }
+        render.renderImmediateMode(gl, false, 1);
+        if (doubleSided) {
+            gl.glEnable(GL2.GL_CULL_FACE);
+        }
         gl.glPopMatrix();
+    }
+
+    /**
+     * Draws lamp. Builds lamp by transforming various primitives into a hierarchical model.
+     * The parts are drawn from display lists compiled for the current size (and recompiled
+     * only if the size changes), so only the joint rotations are applied each frame.
+     * The most detailed level is drawn, unless one is fixed with setDetailLevel, as without the
+     * lamp's world transform its size on screen is not known.
+     * The current modelview matrix should be at the lamp's base.
+     *
+     * @param size The overall size of the lamp
+     * @param lowerRot The rotation of the lower arms. 0 degrees stands them vertically from the base.
+     * @param upperRot The rotation of the upper arms. 0 degrees stands them vertically from the lower arms.
+     * @param coneVertRot The vertical orientation of the lamp head
+     * @param coneHorRot The horizontal orientation of the lamp head
+     * @param baseRot The orientation of the lamp base. 0 degrees is flat to the ground
+     *
+     */
+    public void draw(double size, double lowerRot, double upperRot, double coneVertRot, double coneHorRot, double baseRot) {
+        draw(size, lowerRot, upperRot, coneVertRot, coneHorRot, baseRot, null, null);
+    }
+
+    /**
+     * Draws lamp, skipping the parts that are outside a view frustum. The lamp as a whole is
+     * tested first, then the parts between each pair of joints, using boxes around them
+     * transformed into world space alongside the joint rotations.
+     * The light is always placed, as it lights the room even when the lamp is off-screen.
+     * The level of detail is chosen from the size on screen of a box around the lamp, seen
+     * by the camera set with setView.
+     *
+     * @param size The overall size of the lamp
+     * @param lowerRot The rotation of the lower arms. 0 degrees stands them vertically from the base.
+     * @param upperRot The rotation of the upper arms. 0 degrees stands them vertically from the lower arms.
+     * @param coneVertRot The vertical orientation of the lamp head
+     * @param coneHorRot The horizontal orientation of the lamp head
+     * @param baseRot The orientation of the lamp base. 0 degrees is flat to the ground
+     * @param world The transform from the lamp's base to world space, matching the current modelview matrix
+     * without the viewing transformation, or null if frustum is null
+     * @param frustum The view frustum in world space, or null to draw every part
+     *
+     */
+    public void draw(double size, double lowerRot, double upperRot, double coneVertRot, double coneHorRot, double baseRot,
+            double[] world, Frustum frustum) {
+
+        if (displayLists == 0 || size != compiledSize) {
+            compileDisplayLists(size);
+        }
+
+        //Box around the lamp in its rest position, for choosing the level of detail
+        bounds.setBounds(new double[]{-size, 0, -size}, new double[]{size, 3 * size, size});
+        if (fixedDetailLevel >= 0) {
+            detailLevel = fixedDetailLevel;
+        } else if (world != null && viewProjection != null && viewWidth > 0 && viewHeight > 0) {
+            detailLevel = Render.selectLevel(MatrixStack.multiply(viewMatrix, world), viewProjection, viewWidth, viewHeight,
+                    bounds, NUM_DETAIL_LEVELS, FULL_DETAIL_PIXELS);
+        } else {
+            detailLevel = 0; //Size on screen unknown
+        }
+        int lists = displayLists + detailLevel * NUM_DISPLAY_LISTS;
+
+        //The parts are culled together if the lamp is hidden, or the box it can reach in any pose is off-screen
+        cullFrustum = frustum;
+        partsDrawn = partsCulled = partsOccluded = 0;
+        if (occluded) {
+            cullFrustum = null;
+            partsOccluded = NUM_DISPLAY_LISTS;
+            lists = 0;
+        } else if (frustum != null) {
+            partTransform.loadMatrix(world);
+            if (!frustum.intersectsBox(MatrixStack.transformBox(world, reachBounds))) {
+                cullFrustum = null;
+                partsCulled = NUM_DISPLAY_LISTS;
+                lists = 0;
+            }
+        }
+
+        if (world != null) {
+            double[] head = calcJointTransforms(size, lowerRot, upperRot, coneVertRot, coneHorRot, baseRot, world)[HEAD_LIST];
+            lightTransform = MatrixStack.multiply(head, lightOffset(size));
+        }
+
+        if (skinning != null) {
+            drawSkinned(size, lowerRot, upperRot, coneVertRot, coneHorRot, baseRot, world, lists != 0);
+            return;
+        }
+
+        double lowerArmLength = 1.5 * size;
+        double upperArmLength = 1.0 * size;
 
-        //Draw lower arms
         gl.glPushMatrix();
-        gl.glTranslated(baseWidth * -armSpacing, baseHeight, 0);
-        gl.glScaled(lowerArmRadius, lowerArmLength, lowerArmRadius);
-        gl.glRotated(90, -1, 0, 0);
-        cylinder.renderImmediateMode(gl, false, 1);
-        gl.glPopMatrix();
+        partTransform.pushMatrix();
+
+        //Draw base and bottom joint
         gl.glPushMatrix();
-        gl.glTranslated(baseWidth * armSpacing, baseHeight, 0);
-        gl.glScaled(lowerArmRadius, lowerArmLength, lowerArmRadius);
-        gl.glRotated(90, -1, 0, 0);
-        cylinder.renderImmediateMode(gl, false, 1);
+        partTransform.pushMatrix();
+        gl.glRotated(baseRot, 1, 0, 0);
+        partTransform.rotate(baseRot, 1, 0, 0);
+        callList(lists, BASE_LIST);
         gl.glPopMatrix();
-        
+        partTransform.popMatrix();
+
+        gl.glRotated(lowerRot, 1, 0, 0); //Rotates lower arms
+        partTransform.rotate(lowerRot, 1, 0, 0);
+
+        //Draw lower strength arm and lower arms
+        callList(lists, LOWER_ARMS_LIST);
+
         //Raises up to height of lower arms
         gl.glTranslated(0, lowerArmLength, 0);
-        gl.glRotated(upperArmRotation, 1, 0, 0);
+        gl.glRotated(upperRot, 1, 0, 0);
+        partTransform.translate(0, lowerArmLength, 0);
+        partTransform.rotate(upperRot, 1, 0, 0);
 
-        //Draw middle joint
-        gl.glPushMatrix();
-        setGLUTColours();
-        glut.glutSolidSphere(jointRadius, slices, stacks);
-        gl.glPopMatrix();
+        //Draw middle joint and upper arms
+        callList(lists, UPPER_ARMS_LIST);
 
-        //Draw upper arms
-        gl.glPushMatrix();
-        gl.glTranslated(baseWidth * armSpacing, 0, 0);
-        gl.glScaled(upperArmRadius, upperArmLength, upperArmRadius);
-        gl.glRotated(90, -1, 0, 0);
-        cylinder.renderImmediateMode(gl, false, 1);
-        gl.glPopMatrix();
-        gl.glPushMatrix();
-        gl.glTranslated(baseWidth * -armSpacing, 0, 0);
-        gl.glScaled(upperArmRadius, upperArmLength, upperArmRadius);
-        gl.glRotated(90, -1, 0, 0);
-        cylinder.renderImmediateMode(gl, false, 1);
-        gl.glPopMatrix();
-        
         //Raises up to height of upper arms
         gl.glTranslated(0, upperArmLength, 0);
+        partTransform.translate(0, upperArmLength, 0);
 
         //Draw cone structure
         gl.glPushMatrix();
         gl.glRotated(coneHorRot, 0, 1, 0);
         gl.glRotated(coneVertRot, 1, 0, 0);
-        gl.glRotated(270, 1, 0, 0);
-        gl.glTranslated(0, -coneSize, 0);
-        gl.glPushMatrix();
-        gl.glPushMatrix();
-        gl.glTranslated(0, coneSize - 0.9 * 0.8 * coneSize, 0);
-        gl.glScaled(coneSize * 0.6, coneSize * 0.8, coneSize * 0.6);
-        gl.glRotated(90, -1, 0, 0);
-        cylinder.renderImmediateMode(gl, false, 1);
-        gl.glPopMatrix();
-        gl.glPushMatrix();
-        gl.glTranslated(0, coneSize, 0);
-        gl.glRotated(30, 0, 0, 1);
-        gl.glTranslated(-0.05 * coneSize, 0, 0);
-        gl.glScaled(0.4 * coneSize, 0.2 * coneSize, 0.1 * coneSize);
-        cube.renderImmediateMode(gl, false, 1); //Light switch
+        partTransform.rotate(coneHorRot, 0, 1, 0);
+        partTransform.rotate(coneVertRot, 1, 0, 0);
+        callList(lists, HEAD_LIST);
+        placeLight(size);
         gl.glPopMatrix();
         gl.glPopMatrix();
-        gl.glRotated(90, -1, 0, 0);//Cone upright
-        gl.glDisable(GL2.GL_CULL_FACE);//Disables face culling so inside of cone is visible
-        setGLUTColours();
-        glut.glutSolidCone(coneSize, coneSize, slices, stacks);
-        gl.glEnable(GL2.GL_CULL_FACE);
-        gl.glScaled(size, size, size);
+        partTransform.popMatrix();
+    }
+
+    /**
+     * Places the light inside the cone. The current modelview matrix should be at the head joint.
+     *
+     * @param size The overall size of the lamp
+     *
+     */
+    private void placeLight(double size) {
+        gl.glPushMatrix();
+        gl.glMultMatrixd(lightOffset(size), 0);
         doLight1(gl);
         gl.glPopMatrix();
+    }
+
+    /**
+     * Calculates the transform from the head joint to the light inside the cone, before doLight1
+     * resizes it.
+     *
+     * @param size The overall size of the lamp
+     * @return the transform, in column-major order
+     *
+     */
+    private static double[] lightOffset(double size) {
+        MatrixStack m = new MatrixStack();
+        m.rotate(270, 1, 0, 0);
+        m.translate(0, -0.7 * size, 0);
+        m.rotate(90, -1, 0, 0);
+        m.scale(size, size, size);
+        return m.getMatrix();
+    }
+
+    /**
+     * Retrieves the transform from the light's coordinates to world space, where the light was placed
+     * in the last frame drawn with a world transform, e.g. for adding it to ClusteredLights.
+     *
+     * @return the transform, in column-major order, or null if the lamp has not been drawn with one
+     *
+     */
+    public double[] getLightTransform() {
+        if (lightTransform == null) {
+            return null;
+        }
+        double[] res = lightTransform.clone();
+        for (int i = 0; i < 12; i++) {
+            res[i] *= 2.5; //As doLight1 resizes the light
+        }
+        return res;
+    }
+
+    /**
+     * Draws lamp as one skinned mesh, with the joint matrices calculated from the rotations, then
+     * places the light. Parts outside the frustum or hidden are left out of the draw call.
+     *
+     * @param size The overall size of the lamp
+     * @param lowerRot The rotation of the lower arms
+     * @param upperRot The rotation of the upper arms
+     * @param coneVertRot The vertical orientation of the lamp head
+     * @param coneHorRot The horizontal orientation of the lamp head
+     * @param baseRot The orientation of the lamp base
+     * @param world The transform from the lamp's base to world space, or null if no frustum is tested
+     * @param visible False if the whole lamp has been culled, so only the light is placed
+     *
+     */
+    private void drawSkinned(double size, double lowerRot, double upperRot, double coneVertRot, double coneHorRot, double baseRot,
+            double[] world, boolean visible) {
+        double[][] joints = calcJointTransforms(size, lowerRot, upperRot, coneVertRot, coneHorRot, baseRot, MatrixStack.identity());
+        if (visible) {
+            for (int part = 0; part < NUM_JOINTS; part++) {
+                jointsVisible[part] = isPartVisible((cullFrustum != null) ? MatrixStack.multiply(world, joints[part]) : null, part);
+                if (jointsVisible[part]) {
+                    partsDrawn++;
+                }
+                for (int i = 0; i < 16; i++) {
+                    jointMatrices[part * 16 + i] = (float) joints[part][i];
+                }
+            }
+            if (partsDrawn > 0) {
+                skinning.draw(gl, skinnedMeshes[detailLevel], jointMatrices, jointsVisible);
+            }
+        }
+        gl.glPushMatrix();
+        gl.glMultMatrixd(joints[HEAD_LIST], 0);
+        placeLight(size);
         gl.glPopMatrix();
     }
 
+    /**
+     * Calculates the matrix of each joint of the lamp, as the hierarchy of rotations in draw applies them.
+     *
+     * @param size The overall size of the lamp
+     * @param lowerRot The rotation of the lower arms
+     * @param upperRot The rotation of the upper arms
+     * @param coneVertRot The vertical orientation of the lamp head
+     * @param coneHorRot The horizontal orientation of the lamp head
+     * @param baseRot The orientation of the lamp base
+     * @param base The transform of the lamp's base
+     * @return the transforms of the base, lower arms, upper arms and head, in column-major order
+     *
+     */
+    private static double[][] calcJointTransforms(double size, double lowerRot, double upperRot, double coneVertRot, double coneHorRot,
+            double baseRot, double[] base) {
+        double[][] joints = new double[NUM_JOINTS][];
+        MatrixStack m = new MatrixStack();
+        m.loadMatrix(base);
+        m.pushMatrix();
+        m.rotate(baseRot, 1, 0, 0);
+        joints[BASE_LIST] = m.getMatrix();
+        m.popMatrix();
+        m.rotate(lowerRot, 1, 0, 0);
+        joints[LOWER_ARMS_LIST] = m.getMatrix();
+        m.translate(0, 1.5 * size, 0);
+        m.rotate(upperRot, 1, 0, 0);
+        joints[UPPER_ARMS_LIST] = m.getMatrix();
+        m.translate(0, 1.0 * size, 0);
+        m.rotate(coneHorRot, 0, 1, 0);
+        m.rotate(coneVertRot, 1, 0, 0);
+        joints[HEAD_LIST] = m.getMatrix();
+        return joints;
+    }
+
+    /**
+     * Calculates the joint matrices of a lamp in a given pose, for drawing with a SkinningShader.
+     *
+     * @param size The overall size of the lamp
+     * @param lowerRot The rotation of the lower arms
+     * @param upperRot The rotation of the upper arms
+     * @param coneVertRot The vertical orientation of the lamp head
+     * @param coneHorRot The horizontal orientation of the lamp head
+     * @param baseRot The orientation of the lamp base
+     * @param base The transform of the lamp's base, relative to the modelview matrix it is drawn with
+     * @param res Array the NUM_JOINTS matrices are stored in, in column-major order
+     * @param offset Index in res of the first matrix
+     *
+     */
+    public static void calcJointMatrices(double size, double lowerRot, double upperRot, double coneVertRot, double coneHorRot,
+            double baseRot, double[] base, float[] res, int offset) {
+        double[][] joints = calcJointTransforms(size, lowerRot, upperRot, coneVertRot, coneHorRot, baseRot, base);
+        for (int part = 0; part < NUM_JOINTS; part++) {
+            for (int i = 0; i < 16; i++) {
+                res[offset + part * 16 + i] = (float) joints[part][i];
+            }
+        }
+    }
+
+    /**
+     * Draws a crowd of lamps with the skinning shader, each with its own base transform and pose,
+     * as one instanced draw call per batch. The lamps' lights are not placed. Nothing is drawn unless
+     * a skinning shader has been set and the lamp has been drawn at this size. No program is current afterwards.
+     *
+     * @param size The overall size of the lamps
+     * @param jointMatrices The NUM_JOINTS matrices of each lamp, one lamp after another, as filled in by calcJointMatrices
+     * @param count The number of lamps
+     * @return true if the lamps were drawn
+     *
+     */
+    public boolean drawCrowd(double size, float[] jointMatrices, int count) {
+        if (skinning == null || skinnedMeshes == null || size != compiledSize) {
+            return false;
+        }
+        skinning.drawInstances(gl, skinnedMeshes[detailLevel], jointMatrices, count);
+        return true;
+    }
+
+    /**
+     * Calls the display list for a part of the lamp, unless it is outside the view frustum or hidden.
+     *
+     * @param lists The first display list of the level of detail being drawn, or 0 if the
+     * whole lamp has been culled
+     * @param part The part, e.g. BASE_LIST
+     *
+     */
+    private void callList(int lists, int part) {
+        if (lists == 0 || !isPartVisible(partTransform.getMatrix(), part)) {
+            return;
+        }
+        gl.glCallList(lists + part);
+        GLStateCache.get(gl).invalidateMaterial(); // The list sets the materials of its parts
+        partsDrawn++;
+    }
+
+    /**
+     * Tests a part of the lamp against the view frustum, then for occlusion, counting it if it is skipped.
+     *
+     * @param transform The world transform of the part, or null if no frustum is being tested
+     * @param part The part, e.g. BASE_LIST
+     * @return false if the part is outside the frustum or hidden
+     *
+     */
+    private boolean isPartVisible(double[] transform, int part) {
+        if (cullFrustum == null) {
+            return true;
+        }
+        BoundingBox box = MatrixStack.transformBox(transform, partBounds[part]);
+        if (!cullFrustum.intersectsBox(box)) {
+            partsCulled++;
+            return false;
+        }
+        if (partOcclusion != null && !partOcclusion.isVisible(box)) {
+            partsOccluded++;
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Retrieves the number of parts of the lamp drawn in the last frame. There are four parts,
+     * one between each pair of joints.
+     *
+     * @return the number of parts drawn
+     */
+    public int getPartsDrawn() {
+        return partsDrawn;
+    }
+
+    /**
+     * Sets whether the lamp is hidden behind other objects, e.g. as found by an OcclusionCuller.
+     * While it is, draw skips every part, but still places the light.
+     *
+     * @param occluded true if the lamp is hidden
+     */
+    public void setOccluded(boolean occluded) {
+        this.occluded = occluded;
+    }
+
+    /**
+     * Sets the software occlusion culler the parts of the lamp are tested with, when they are
+     * tested against a view frustum. Its frame must have begun before the lamp is drawn.
+     *
+     * @param partOcclusion the culler, or null to draw every part inside the frustum
+     */
+    public void setPartOcclusion(SoftwareOcclusionCuller partOcclusion) {
+        this.partOcclusion = partOcclusion;
+    }
+
+    /**
+     * Retrieves a box around everything the lamp can reach from its base in any pose.
+     *
+     * @return the box, in the coordinates of the lamp's base, for the size last drawn
+     */
+    public BoundingBox getReachBounds() {
+        return reachBounds;
+    }
+
+    /**
+     * Retrieves the number of parts of the lamp skipped in the last frame as they were hidden.
+     *
+     * @return the number of parts occluded
+     */
+    public int getPartsOccluded() {
+        return partsOccluded;
+    }
+
+    /**
+     * Retrieves the number of parts of the lamp skipped in the last frame as they were outside the view frustum.
+     *
+     * @return the number of parts culled
+     */
+    public int getPartsCulled() {
+        return partsCulled;
+    }
+
 }
@@ -32,6 +32,8 @@ public class Light implements Cloneable {
   private boolean spotlight = false;
   private float[] direction;
   private float angle;
+  private float range = 0;  // 0 if the light reaches everywhere
+  private int version;  // increased whenever a value sent to OpenGL is changed, for GLStateCache
   
   /**
    * Constructor.
@@ -87,10 +89,12 @@ public class Light implements Cloneable {
     spotlight = true;
     this.direction = direction.clone();
     this.angle = angle;
+    version++;
   }
   
   public void makeDirectional() {
     position[3]=0f;
+    version++;
   }
   
   public float[] getPosition() {
@@ -108,6 +112,40 @@ public class Light implements Cloneable {
   public float[] getSpecular() {
     return specular.clone();
   }
+
+  public boolean isSpotlight() {
+    return spotlight;
+  }
+
+  public float[] getDirection() {
+    return (direction == null) ? null : direction.clone();
+  }
+
+  public float getAngle() {
+    return angle;
+  }
+
+  /**
+   * Sets the distance the light reaches, beyond which objects are treated as unlit by it.
+   * The fixed-function lighting ignores it, but lighting that handles many lights, e.g. ClusteredLights,
+   * fades the light out to nothing at this distance, and only evaluates it where it reaches.
+   * @param range The distance, in the light's own coordinates, or 0 if it reaches everywhere
+   */
+  public void setRange(float range) {
+    this.range = Math.max(0, range);
+  }
+
+  public float getRange() {
+    return range;
+  }
+
+  public int getIndex() {
+    return index;
+  }
+
+  public int getVersion() {
+    return version;
+  }
   
   public void setSwitchedOn(boolean on) {
     switchedOn = on;
@@ -118,16 +156,17 @@ public class Light implements Cloneable {
   } 
 
   public void enable(GL2 gl) {
-    gl.glEnable(index); 
+    GLStateCache.get(gl).setLightEnabled(gl, index, true);
   }
   
   public void disable(GL2 gl) {
-    gl.glDisable(index); 
+    GLStateCache.get(gl).setLightEnabled(gl, index, false);
   }
 
   /**
    * If the light is switched on, then call all the relavant OpenGL command to enable
-   * and set the parameters for this light.
+   * and set the parameters for this light. The parameters are sent through the context's
+   * GLStateCache, so only the position and direction are sent if nothing else has changed.
    * @param gl OpenGL context
    * @param glut GLUT object
    * @param show whether or not to show the light postion visually with a geometric object.
@@ -135,22 +174,16 @@ public class Light implements Cloneable {
    */
   public void use(GL2 gl, GLUT glut, boolean show) {
     if (switchedOn) {
-      gl.glEnable(index); 
-      // There is no glLightdv, so use glLightfv
-      gl.glLightfv(index, GL2.GL_POSITION, position, 0);
-      gl.glLightfv(index, GL2.GL_AMBIENT, ambient, 0);
-      gl.glLightfv(index, GL2.GL_DIFFUSE, diffuse, 0);
-      gl.glLightfv(index, GL2.GL_SPECULAR, specular, 0);
-      if (spotlight) {
-        gl.glLightf(index, GL2.GL_SPOT_CUTOFF, angle);
-        gl.glLightfv(index, GL2.GL_SPOT_DIRECTION, direction, 0);
-      }
+      GLStateCache cache = GLStateCache.get(gl);
+      cache.setLightEnabled(gl, index, true);
+      // There is no glLightdv, so glLightfv is used
+      cache.setLight(gl, this);
       if (show) { 
         if (position[3] == 1) displayPosition(gl, glut);
         else displayDirection(gl);
       }
     }
-    else gl.glDisable(index);
+    else disable(gl);
   }
 
   private void displayPosition(GL2 gl, GLUT glut) {
@@ -164,6 +197,7 @@ public class Light implements Cloneable {
     gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SPECULAR, matSpecular, 0);
     gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_SHININESS, matShininess, 0);
     gl.glMaterialfv(GL2.GL_FRONT, GL2.GL_EMISSION, matEmission, 0);
+    GLStateCache.get(gl).invalidateMaterial();
     gl.glPushMatrix();
       gl.glTranslated(position[0], position[1], position[2]);
       glut.glutSolidSphere(0.1, 10,10);
@@ -0,0 +1,237 @@
+/**
+ * Finds which lights can affect each object, so that the lights that cannot are switched off while it
+ * is drawn, rather than every light being evaluated for every vertex or pixel. The lights are added
+ * each frame with their transforms to world space, and getLights tests each one against an object's
+ * world-space bounding box. A light with a range misses a box farther away than it. A spotlight misses
+ * a box whose bounding sphere lies wholly outside its cone. Lights with neither, and directional lights,
+ * affect everything. The tests are conservative, so a light may be kept for an object it does not
+ * quite reach, but never switched off for one it does.
+ *
+ * The lights affecting an object are returned as a mask, with a bit for each light in the order added,
+ * and apply enables and disables the OpenGL lights to match, only changing those that differ from the
+ * last mask applied. If a PhongShader is set, its lightOn uniforms are changed with them. endFrame
+ * enables all the lights again. Lights switched off are never added, so are never enabled.
+ */
+
+import java.util.*;
+import javax.media.opengl.*;
+
+public class LightInfluence {
+
+  public static final int MAX_LIGHTS = 32;  // bits in a mask
+
+  private final List<Light> lights = new ArrayList<Light>();
+  private final List<double[]> transforms = new ArrayList<double[]>();
+
+  // World-space light volumes for the current frame
+  private double[] px = new double[0], py = new double[0], pz = new double[0], range = new double[0];
+  private double[] dx = new double[0], dy = new double[0], dz = new double[0];
+  private double[] cosCutoff = new double[0], sinCutoff = new double[0];
+  private boolean[] everywhere = new boolean[0], spotlight = new boolean[0];
+  private int numLights;
+
+  private int applied;  // mask of the lights enabled by the last apply, or all lights
+  private PhongShader lighting;
+  private int objectsTested, lightsAssigned;  // counts for the current frame
+
+  /**
+   * Sets the per-pixel lighting shader whose lightOn uniforms follow the lights applied.
+   *
+   * @param  lighting  the shader, or null if only the OpenGL lights are switched
+   */
+  public void setLightingShader(PhongShader lighting) {
+    this.lighting = lighting;
+  }
+
+  /**
+   * Removes all the lights, e.g. at the start of a frame.
+   */
+  public void clear() {
+    lights.clear();
+    transforms.clear();
+  }
+
+  /**
+   * Adds a light for the next frame. Lights that are switched off are ignored, as are lights beyond
+   * the first MAX_LIGHTS.
+   *
+   * @param  light      the light
+   * @param  transform  the transform from the light's coordinates to world space, in column-major order,
+   *                    or null if its position and direction are in world space
+   */
+  public void add(Light light, double[] transform) {
+    if (!light.getSwitchedOn() || lights.size() == MAX_LIGHTS) return;
+    lights.add(light);
+    transforms.add(transform);
+  }
+
+  /**
+   * Starts a frame, finding where the lights added are and resetting the counts. All the lights
+   * added should be enabled, e.g. by Light.use.
+   */
+  public void beginFrame() {
+    numLights = lights.size();
+    if (px.length < numLights) {
+      int n = Math.max(numLights, 2*px.length);
+      px = new double[n];
+      py = new double[n];
+      pz = new double[n];
+      range = new double[n];
+      dx = new double[n];
+      dy = new double[n];
+      dz = new double[n];
+      cosCutoff = new double[n];
+      sinCutoff = new double[n];
+      everywhere = new boolean[n];
+      spotlight = new boolean[n];
+    }
+    for (int i=0; i<numLights; i++) {
+      Light light = lights.get(i);
+      double[] m = (transforms.get(i) == null) ? MatrixStack.identity() : transforms.get(i);
+      float[] p = light.getPosition();
+      double[] q = MatrixStack.transformPoint(m, p[0], p[1], p[2]);
+      px[i] = q[0];
+      py[i] = q[1];
+      pz[i] = q[2];
+      double scale = Math.sqrt(Math.max(m[0]*m[0]+m[1]*m[1]+m[2]*m[2],
+                                        Math.max(m[4]*m[4]+m[5]*m[5]+m[6]*m[6], m[8]*m[8]+m[9]*m[9]+m[10]*m[10])));
+      range[i] = light.getRange()*scale;
+      spotlight[i] = light.isSpotlight() && light.getAngle() < 90;
+      if (spotlight[i]) {
+        float[] d = light.getDirection();
+        double x = m[0]*d[0]+m[4]*d[1]+m[8]*d[2], y = m[1]*d[0]+m[5]*d[1]+m[9]*d[2], z = m[2]*d[0]+m[6]*d[1]+m[10]*d[2];
+        double mag = Math.sqrt(x*x+y*y+z*z);
+        if (mag == 0) mag = 1;
+        dx[i] = x/mag;
+        dy[i] = y/mag;
+        dz[i] = z/mag;
+        cosCutoff[i] = Math.cos(Math.toRadians(light.getAngle()));
+        sinCutoff[i] = Math.sin(Math.toRadians(light.getAngle()));
+      }
+      everywhere[i] = p[3] == 0 || (range[i] == 0 && !spotlight[i]);
+    }
+    applied = (numLights == 32) ? -1 : (1<<numLights)-1;
+    objectsTested = lightsAssigned = 0;
+  }
+
+  /**
+   * Finds the lights that may affect an object, and counts them.
+   *
+   * @param  box  the bounding box of the object, in world space
+   * @return  a mask with bit i set if the ith light added may affect the object
+   */
+  public int getLights(BoundingBox box) {
+    double[] min = box.getMinimumBounds(), max = box.getMaximumBounds();
+    double cx = (min[0]+max[0])*0.5, cy = (min[1]+max[1])*0.5, cz = (min[2]+max[2])*0.5;
+    double hx = (max[0]-min[0])*0.5, hy = (max[1]-min[1])*0.5, hz = (max[2]-min[2])*0.5;
+    double radius = Math.sqrt(hx*hx+hy*hy+hz*hz);
+    int mask = 0;
+    for (int i=0; i<numLights; i++) {
+      if (!everywhere[i]) {
+        double vx = cx-px[i], vy = cy-py[i], vz = cz-pz[i];
+        if (range[i] > 0) {
+          // Distance from the light to the nearest point of the box
+          double ex = Math.max(0, Math.abs(vx)-hx), ey = Math.max(0, Math.abs(vy)-hy), ez = Math.max(0, Math.abs(vz)-hz);
+          if (ex*ex+ey*ey+ez*ez > range[i]*range[i]) continue;
+        }
+        if (spotlight[i] && outsideCone(i, vx, vy, vz, radius)) continue;
+      }
+      mask |= 1<<i;
+    }
+    objectsTested++;
+    lightsAssigned += Integer.bitCount(mask);
+    return mask;
+  }
+
+  // Tests whether a sphere, centred at v from the light, is wholly outside the light's cone
+  private boolean outsideCone(int i, double vx, double vy, double vz, double radius) {
+    double along = vx*dx[i]+vy*dy[i]+vz*dz[i];
+    double across = Math.sqrt(Math.max(0, vx*vx+vy*vy+vz*vz-along*along));
+    // Beyond a right angle past the cone's edge, the nearest point of the cone is its apex
+    if (along*cosCutoff[i]+across*sinCutoff[i] < 0)
+      return vx*vx+vy*vy+vz*vz > radius*radius;
+    return across*cosCutoff[i]-along*sinCutoff[i] > radius;
+  }
+
+  /**
+   * Enables the OpenGL lights in a mask and disables the others, changing only those that differ
+   * from the last mask applied.
+   *
+   * @param  gl    the OpenGL context.
+   * @param  mask  the lights, as returned by getLights
+   */
+  public void apply(GL2 gl, int mask) {
+    int changed = mask ^ applied;
+    for (int i=0; i<numLights && changed != 0; i++, changed >>>= 1) {
+      if ((changed & 1) == 0) continue;
+      Light light = lights.get(i);
+      boolean on = (mask & (1<<i)) != 0;
+      if (on)
+        light.enable(gl);
+      else
+        light.disable(gl);
+      if (lighting != null) lighting.setLightOn(gl, light.getIndex(), on);
+    }
+    applied = mask;
+  }
+
+  /**
+   * Enables all the lights added again, e.g. at the end of a frame.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void endFrame(GL2 gl) {
+    apply(gl, (numLights == 32) ? -1 : (1<<numLights)-1);
+  }
+
+  /**
+   * Gets the average number of lights that may affect each object tested since the frame began
+   *
+   * @return  the lights per object, or 0 if no objects have been tested
+   */
+  public double getAverageLightsPerObject() {
+    return (objectsTested == 0) ? 0 : (double)lightsAssigned/objectsTested;
+  }
+
+  /**
+   * Gets the number of objects tested since the frame began
+   *
+   * @return  the number of calls of getLights
+   */
+  public int getObjectsTested() {
+    return objectsTested;
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the average lights per object, out of the lights added, and the objects tested
+   */
+  public String toString() {
+    return String.format("%.2f", getAverageLightsPerObject())+" of "+numLights+" lights per object, "
+           +objectsTested+" objects";
+  }
+
+  /**
+   * Test harness
+   */
+  public static void main(String[] args) {
+    Light spot = new Light(GL2.GL_LIGHT1, new float[]{0, 0, 0, 1});
+    spot.makeSpotlight(new float[]{0, -1, 0}, 45);
+    Light point = new Light(GL2.GL_LIGHT2, new float[]{10, 0, 0, 1});
+    point.setRange(2);
+    LightInfluence influence = new LightInfluence();
+    influence.add(spot, null);
+    influence.add(point, null);
+    influence.beginFrame();
+    double[][] boxes = {{-1, -5, -1, 1, -4, 1}, {4, -1, -1, 5, 1, 1}, {9, 1, -1, 11, 2, 1}, {-1, 2, -1, 1, 3, 1}, {-1, -1, -1, 1, 1, 1}};
+    for (double[] b : boxes) {
+      BoundingBox box = new BoundingBox();
+      box.setBounds(new double[]{b[0], b[1], b[2]}, new double[]{b[3], b[4], b[5]});
+      System.out.println(Arrays.toString(b)+" lights "+Integer.toBinaryString(influence.getLights(box)));
+    }
+    // Expect 1 (below the spotlight), 0 (beside it), 10 (by the point light), 0 (above the spotlight), 1 (around it)
+    System.out.println(influence);
+  }
+
+}
@@ -19,6 +19,7 @@ public class Material implements Cloneable {
   private float[] specular;
   private float[] emission;
   private float shininess;
+  private int version;  // increased whenever a value is set, e.g. for GLStateCache
   
   /**
    * Constructor. Sets attributes to default initial values.
@@ -44,6 +45,7 @@ public class Material implements Cloneable {
     ambient[1] = green;
     ambient[2] = blue;
     ambient[3] = alpha;
+    version++;
   }  
   
   /**
@@ -55,6 +57,7 @@ public class Material implements Cloneable {
   public void setAmbient(float[] rgba) {
     for (int i=0; i<4; i++)
       ambient[i] = rgba[i];
+    version++;
   }
   
   /**
@@ -80,6 +83,7 @@ public class Material implements Cloneable {
     diffuse[1] = green;
     diffuse[2] = blue;
     diffuse[3] = alpha;
+    version++;
   }
   
   /**
@@ -91,6 +95,7 @@ public class Material implements Cloneable {
   public void setDiffuse(float[] rgba) {
     for (int i=0; i<4; i++)
       diffuse[i] = rgba[i];
+    version++;
   }
 
   /**
@@ -116,6 +121,7 @@ public class Material implements Cloneable {
     specular[1] = green;
     specular[2] = blue;
     specular[3] = alpha;
+    version++;
   }
 
   /**
@@ -127,6 +133,7 @@ public class Material implements Cloneable {
   public void setSpecular(float[] rgba) {
     for (int i=0; i<4; i++)
       specular[i] = rgba[i];
+    version++;
   }
     
   /**
@@ -152,6 +159,7 @@ public class Material implements Cloneable {
     emission[1] = green;
     emission[2] = blue;
     emission[3] = alpha;
+    version++;
   }
   
   /**
@@ -163,6 +171,7 @@ public class Material implements Cloneable {
   public void setEmission(float[] rgba) {
     for (int i=0; i<4; i++)
       emission[i] = rgba[i];
+    version++;
   }
 
   /**
@@ -182,6 +191,7 @@ public class Material implements Cloneable {
    */   
   public void setShininess(float shininess) {
     this.shininess = shininess;
+    version++;
   }
   
   /**
@@ -193,6 +203,16 @@ public class Material implements Cloneable {
     return shininess;
   }
 
+  /**
+   * Gets the version, which is increased whenever a value is set, so that a Material can be
+   * known to be unchanged without comparing its values.
+   * 
+   * @return  the version
+   */   
+  public int getVersion() {
+    return version;
+  }
+
   /**
    * Returns a clone of the Material
    * 
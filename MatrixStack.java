@@ -0,0 +1,313 @@
+/**
+ * A stack of 4x4 matrices kept on the CPU, with the same operations as the OpenGL matrix stack
+ * (glPushMatrix, glTranslated, glRotated, glScaled, gluLookAt etc.), so that transforms can be
+ * built up hierarchically and then stored, e.g. with the items of a RenderQueue, without
+ * reading them back from OpenGL. Matrices are held as double[16] in OpenGL's column-major order,
+ * so they can be passed straight to glMultMatrixd or glLoadMatrixd. As in OpenGL, each operation
+ * multiplies the top of the stack on the right.
+ */
+
+import java.util.*;
+
+public class MatrixStack {
+
+  private final ArrayDeque<double[]> stack = new ArrayDeque<double[]>();
+  private double[] top = identity();
+
+  /**
+   * Constructor. The stack holds a single identity matrix.
+   */
+  public MatrixStack() {
+  }
+
+  /**
+   * Pushes a copy of the top matrix onto the stack.
+   */
+  public void pushMatrix() {
+    stack.push(top.clone());
+  }
+
+  /**
+   * Pops the top matrix off the stack.
+   *
+   * @throws IllegalStateException if there is no matching pushMatrix
+   */
+  public void popMatrix() {
+    if (stack.isEmpty()) throw new IllegalStateException("MatrixStack underflow");
+    top = stack.pop();
+  }
+
+  /**
+   * Replaces the top matrix with the identity.
+   */
+  public void loadIdentity() {
+    top = identity();
+  }
+
+  /**
+   * Replaces the top matrix.
+   *
+   * @param  m  the matrix, in column-major order
+   */
+  public void loadMatrix(double[] m) {
+    top = m.clone();
+  }
+
+  /**
+   * Multiplies the top matrix by another on the right.
+   *
+   * @param  m  the matrix, in column-major order
+   */
+  public void multMatrix(double[] m) {
+    top = multiply(top, m);
+  }
+
+  /**
+   * Multiplies the top matrix by a translation, as glTranslated.
+   *
+   * @param  x  x translation
+   * @param  y  y translation
+   * @param  z  z translation
+   */
+  public void translate(double x, double y, double z) {
+    for (int i=0; i<4; i++)
+      top[12+i] += top[i]*x+top[4+i]*y+top[8+i]*z;
+  }
+
+  /**
+   * Multiplies the top matrix by a scale, as glScaled.
+   *
+   * @param  x  x scale
+   * @param  y  y scale
+   * @param  z  z scale
+   */
+  public void scale(double x, double y, double z) {
+    for (int i=0; i<4; i++) {
+      top[i] *= x;
+      top[4+i] *= y;
+      top[8+i] *= z;
+    }
+  }
+
+  /**
+   * Multiplies the top matrix by a rotation about an axis through the origin, as glRotated.
+   *
+   * @param  angle  the angle in degrees, anticlockwise looking down the axis towards the origin
+   * @param  x      x component of the axis
+   * @param  y      y component of the axis
+   * @param  z      z component of the axis
+   */
+  public void rotate(double angle, double x, double y, double z) {
+    double mag = Math.sqrt(x*x+y*y+z*z);
+    if (mag==0) return;
+    x /= mag;
+    y /= mag;
+    z /= mag;
+    double c = Math.cos(Math.toRadians(angle)), s = Math.sin(Math.toRadians(angle)), t = 1-c;
+    multMatrix(new double[]{
+      t*x*x+c,   t*x*y+s*z, t*x*z-s*y, 0,
+      t*x*y-s*z, t*y*y+c,   t*y*z+s*x, 0,
+      t*x*z+s*y, t*y*z-s*x, t*z*z+c,   0,
+      0,         0,         0,         1});
+  }
+
+  /**
+   * Multiplies the top matrix by a viewing transformation, as gluLookAt.
+   *
+   * @param  eye     x,y,z of the eye
+   * @param  centre  x,y,z of the point looked at
+   * @param  up      x,y,z of the up direction
+   */
+  public void lookAt(double[] eye, double[] centre, double[] up) {
+    double[] f = {centre[0]-eye[0], centre[1]-eye[1], centre[2]-eye[2]};
+    normalise(f);
+    double[] s = cross(f, up);
+    normalise(s);
+    double[] u = cross(s, f);
+    multMatrix(new double[]{s[0], u[0], -f[0], 0,  s[1], u[1], -f[1], 0,  s[2], u[2], -f[2], 0,  0, 0, 0, 1});
+    translate(-eye[0], -eye[1], -eye[2]);
+  }
+
+  /**
+   * Gets a copy of the top matrix
+   *
+   * @return  the matrix, in column-major order
+   */
+  public double[] getMatrix() {
+    return top.clone();
+  }
+
+  /**
+   * Creates an identity matrix
+   *
+   * @return  the matrix, in column-major order
+   */
+  public static double[] identity() {
+    return new double[]{1, 0, 0, 0,  0, 1, 0, 0,  0, 0, 1, 0,  0, 0, 0, 1};
+  }
+
+  /**
+   * Creates a perspective projection matrix, as gluPerspective.
+   *
+   * @param  fovy    the field of view in the y direction, in degrees
+   * @param  aspect  the ratio of width to height
+   * @param  near    the distance to the near clipping plane
+   * @param  far     the distance to the far clipping plane
+   * @return  the matrix, in column-major order
+   */
+  public static double[] perspective(double fovy, double aspect, double near, double far) {
+    double f = 1/Math.tan(Math.toRadians(fovy)/2);
+    double[] m = new double[16];
+    m[0] = f/aspect;
+    m[5] = f;
+    m[10] = (far+near)/(near-far);
+    m[11] = -1;
+    m[14] = 2*far*near/(near-far);
+    return m;
+  }
+
+  /**
+   * Creates a perspective projection matrix, as glFrustum.
+   *
+   * @param  left    x of the left edge of the near clipping plane
+   * @param  right   x of the right edge of the near clipping plane
+   * @param  bottom  y of the bottom edge of the near clipping plane
+   * @param  top     y of the top edge of the near clipping plane
+   * @param  near    the distance to the near clipping plane
+   * @param  far     the distance to the far clipping plane
+   * @return  the matrix, in column-major order
+   */
+  public static double[] frustum(double left, double right, double bottom, double top, double near, double far) {
+    double[] m = new double[16];
+    m[0] = 2*near/(right-left);
+    m[5] = 2*near/(top-bottom);
+    m[8] = (right+left)/(right-left);
+    m[9] = (top+bottom)/(top-bottom);
+    m[10] = -(far+near)/(far-near);
+    m[11] = -1;
+    m[14] = -2*far*near/(far-near);
+    return m;
+  }
+
+  /**
+   * Multiplies two 4x4 matrices.
+   *
+   * @param  a  the left matrix, in column-major order
+   * @param  b  the right matrix, in column-major order
+   * @return  a * b
+   */
+  public static double[] multiply(double[] a, double[] b) {
+    double[] res = new double[16];
+    for (int col=0; col<4; col++)
+      for (int row=0; row<4; row++) {
+        double sum = 0;
+        for (int k=0; k<4; k++)
+          sum += a[k*4+row]*b[col*4+k];
+        res[col*4+row] = sum;
+      }
+    return res;
+  }
+
+  /**
+   * Transforms a point by a matrix, without the perspective division.
+   *
+   * @param  m  the matrix, in column-major order
+   * @param  x  x coordinate of the point
+   * @param  y  y coordinate of the point
+   * @param  z  z coordinate of the point
+   * @return  x,y,z,w of the transformed point
+   */
+  public static double[] transformPoint(double[] m, double x, double y, double z) {
+    return new double[]{m[0]*x+m[4]*y+m[8]*z+m[12], m[1]*x+m[5]*y+m[9]*z+m[13],
+                        m[2]*x+m[6]*y+m[10]*z+m[14], m[3]*x+m[7]*y+m[11]*z+m[15]};
+  }
+
+  /**
+   * Transforms a bounding box by a matrix, without the perspective division.
+   *
+   * @param  m    the matrix, in column-major order
+   * @param  box  the bounding box
+   * @return  the smallest axis-aligned bounding box around the transformed box
+   */
+  public static BoundingBox transformBox(double[] m, BoundingBox box) {
+    double[] min = box.getMinimumBounds(), max = box.getMaximumBounds();
+    double[] centre = transformPoint(m, (min[0]+max[0])*0.5, (min[1]+max[1])*0.5, (min[2]+max[2])*0.5);
+    double[] resMin = new double[3], resMax = new double[3];
+    for (int i=0; i<3; i++) {
+      // half the extent along each axis is the sum of the absolute contributions of each half range
+      double extent = Math.abs(m[i])*(max[0]-min[0])*0.5+Math.abs(m[4+i])*(max[1]-min[1])*0.5
+                      +Math.abs(m[8+i])*(max[2]-min[2])*0.5;
+      resMin[i] = centre[i]-extent;
+      resMax[i] = centre[i]+extent;
+    }
+    BoundingBox res = new BoundingBox();
+    res.setBounds(resMin, resMax);
+    return res;
+  }
+
+  /**
+   * Calculates the matrix that transforms normals for a modelling transform, as gl_NormalMatrix does
+   * for the modelview matrix, i.e. the inverse transpose of its upper 3x3.
+   *
+   * @param  m  the matrix, in column-major order
+   * @return  the 3x3 normal matrix, in column-major order. Normals it transforms must be renormalised
+   *          if the matrix scales.
+   */
+  public static double[] normalMatrix(double[] m) {
+    double a = m[0], b = m[4], c = m[8];
+    double d = m[1], e = m[5], f = m[9];
+    double g = m[2], h = m[6], k = m[10];
+    double det = a*(e*k-f*h)-b*(d*k-f*g)+c*(d*h-e*g);
+    if (det == 0) det = 1;
+    // The cofactor matrix divided by the determinant, column by column
+    return new double[]{(e*k-f*h)/det, (c*h-b*k)/det, (b*f-c*e)/det,
+                        (f*g-d*k)/det, (a*k-c*g)/det, (c*d-a*f)/det,
+                        (d*h-e*g)/det, (b*g-a*h)/det, (a*e-b*d)/det};
+  }
+
+  /**
+   * Calculates the determinant of the upper 3x3 of a matrix, which is negative if the matrix mirrors,
+   * i.e. reverses the winding of triangles.
+   *
+   * @param  m  the matrix, in column-major order
+   * @return  the determinant
+   */
+  public static double determinant3(double[] m) {
+    return m[0]*(m[5]*m[10]-m[9]*m[6])-m[4]*(m[1]*m[10]-m[9]*m[2])+m[8]*(m[1]*m[6]-m[5]*m[2]);
+  }
+
+  private static double[] cross(double[] a, double[] b) {
+    return new double[]{a[1]*b[2]-a[2]*b[1], a[2]*b[0]-a[0]*b[2], a[0]*b[1]-a[1]*b[0]};
+  }
+
+  private static void normalise(double[] v) {
+    double mag = Math.sqrt(v[0]*v[0]+v[1]*v[1]+v[2]*v[2]);
+    if (mag==0) return;
+    for (int i=0; i<3; i++) v[i] /= mag;
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the top matrix, row by row
+   */
+  public String toString() {
+    String s = "";
+    for (int row=0; row<4; row++)
+      s += "["+top[row]+", "+top[4+row]+", "+top[8+row]+", "+top[12+row]+"]";
+    return s;
+  }
+
+  /**
+   * Test harness
+   */
+  public static void main(String[] args) {
+    MatrixStack m = new MatrixStack();
+    m.translate(1, 2, 3);
+    m.rotate(90, 0, 1, 0);
+    m.scale(2, 2, 2);
+    System.out.println(m);
+    System.out.println(Arrays.toString(transformPoint(m.getMatrix(), 1, 0, 0)));  // expect 1,2,1
+  }
+
+}
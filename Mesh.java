@@ -1,107 +1,139 @@
 /**
  * The Mesh class is used to represent the basic structure that is common to all 3D objects
- * Arrays are used for the vertices and triangles.
+ * The vertex and triangle data is stored in flat arrays in a MeshData object.
+ * The Vertex and Triangle objects returned by the Mesh are lightweight views onto that data.
  *
  * @author    Dr Steve Maddock
  * @version   3.0 (29/07/2013)
  */
+
+import java.util.concurrent.*;
  
 public class Mesh implements Cloneable {
   public static final int MAX_NUM_VERTICES = 30000;
   public static final int MAX_NUM_TRIANGLES = 10000;
 
-  private Vertex[] vertices;
-  private Triangle[] triangles;
+  private MeshData data;         // flat storage for the vertex and triangle data
+  private Vertex[] vertices;     // views onto data, created when first needed
+  private Triangle[] triangles;  // views onto data, created when first needed
   private Material material = new Material();
   private BoundingBox boundingbox = new BoundingBox();
   private float[] colour = new float[]{1.0f, 1.0f, 1.0f, 1.0f};
+  private double[] faceNormals = new double[0];  // triangle normals summed by calcSmoothNormals, kept for reuse
 
   /**
    * Constructor. Sets attributes to default initial values.
    */  
   public Mesh() {
+    data = null;
     vertices = null;
     triangles = null;
   }
 
+  /**
+   * Get a reference to the flat storage used for the vertex and triangle data.
+   * 
+   * @return  a reference to the MeshData for the Mesh, or null if no data has been set
+   */
+  public MeshData getData() {
+    return data;
+  }
+
   /**
    * Gets the number of vertices in the Mesh
    * 
    * @return  the number of vertices in the Mesh
    */ 
   public int getNumVertices() {
-    if (vertices != null) return vertices.length;
+    if (data != null) return data.getNumVertices();
 	else return 0;
   }
 
   /**
-   * Set the vertex data structure. The reference is copied. A clone is not made. 
+   * Set the vertex data structure. The values held by each Vertex are copied into the
+   * Mesh's flat storage. The Vertex objects are not kept, so changing them after this call
+   * does not change the Mesh; use getVertices() for views onto the Mesh's own vertices.
    * (Consider calling relevant method to set triangles too.)
    * 
    * @param  vertices         the new vertex data structure, passed as an array.
    */   
   public void setVertices(Vertex[] vertices) {
-    this.vertices = vertices;
+    int n = vertices.length;
+    MeshData store = new MeshData(n, 0);
+    for (int i=0; i<n; i++)
+      store.copyVertex(i, vertices[i].getData(), vertices[i].getIndex());
+    if (data == null) data = new MeshData(0, 0);
+    data.setVertexArrays(store.getPositions(), store.getNormals(), store.getTextureCoords());
+    this.vertices = null;
+    calcBoundingBox();
+  }
+
+  /**
+   * Set the vertex data from flat arrays. The references are kept. Copies are not made.
+   * Each array is organised as for getVertexList(), getNormalList() and getTextureCoordsList().
+   * (Consider calling relevant method to set triangles too.)
+   * 
+   * @param  positions  x,y,z position of each vertex
+   * @param  normals    x,y,z normal of each vertex; otherwise, null
+   * @param  texCoords  u,v texture coordinates of each vertex; otherwise, null
+   */   
+  public void setVertexData(float[] positions, float[] normals, float[] texCoords) {
+    int n = positions.length/3;
+    if (data == null) data = new MeshData(0, 0);
+    data.setVertexArrays(positions, 
+                         (normals==null) ? new float[n*3] : normals, 
+                         (texCoords==null) ? new float[n*2] : texCoords);
+    vertices = null;
     calcBoundingBox();
   }
 
   /**
    * Get the vertex data structure as a reference.
+   * The Vertex objects are views onto the Mesh's flat storage, and are created the first
+   * time they are asked for if the Mesh was built from flat arrays.
    * 
    * @return  a reference to the vertex data structure
    */   
   public Vertex[] getVertices() {
+    if (vertices == null && data != null) {
+      vertices = new Vertex[data.getNumVertices()];
+      for (int i=0; i<vertices.length; i++)
+        vertices[i] = new Vertex(data, i);
+    }
     return vertices;
   }
 
   /**
-   * Gets the vertex (x,y,z) data as an array of doubles. This is a copy of the data stored
-   * in the vertex data structure.
+   * Gets the vertex (x,y,z) data as an array of floats. This is a reference to the data stored
+   * in the Mesh, not a copy, so it should not be altered.
    * The data is organised as a 1D array: Vertex 0's x,y,z, vertex 1's x,y,z, etc.
    * 
-   * @return  an array of doubles representing the vertex x,y,z data
+   * @return  an array of floats representing the vertex x,y,z data
    */   
-  public double[] getVertexList() {
-    double[] tempverts = new double[vertices.length*3];
-    for (int v=0; v<vertices.length; v++) {
-      tempverts[v*3] = vertices[v].getPositionX();
-      tempverts[v*3+1] = vertices[v].getPositionY();
-      tempverts[v*3+2] = vertices[v].getPositionZ();
-    }
-    return tempverts;
+  public float[] getVertexList() {
+    return data.getPositions();
   }
 
   /**
-   * Gets the vertex normals (x,y,z) data as an array of doubles. This is a copy of the data stored
-   * in the vertex data structure.
+   * Gets the vertex normals (x,y,z) data as an array of floats. This is a reference to the data stored
+   * in the Mesh, not a copy, so it should not be altered.
    * The data is organised as a 1D array: Vertex 0's normal x,y,z, Vertex 1's normal x,y,z, etc.
    * 
-   * @return  an array of doubles representing the vertex normals x,y,z data
+   * @return  an array of floats representing the vertex normals x,y,z data
    */   
-  public double[] getNormalList() {
-    double[] temp = new double[vertices.length*3];
-    for (int v=0; v<vertices.length; v++) {
-      temp[v*3] = vertices[v].getNormalX();
-      temp[v*3+1] = vertices[v].getNormalY();
-      temp[v*3+2] = vertices[v].getNormalZ();
-    }
-    return temp;
+  public float[] getNormalList() {
+    return data.getNormals();
   }
   
    /**
-   * Gets the vertex texture coords (u,v) data as an array of doubles. This is a copy of the data stored
-   * in the vertex data structure.
+   * Gets the vertex texture coords (u,v) data as an array of floats. This is a reference to the data stored
+   * in the Mesh, not a copy, so it should not be altered.
    * The data is organised as a 1D array: Vertex 0's texture coords u,v, Vertex 1's texture coords u,v, etc.
    * 
-   * @return  an array of doubles representing the vertex texture coords x,y,z data
+   * @return  an array of floats representing the vertex texture coords u,v data
    */   
-  public double[] getTextureCoordsList() {
-    double[] temp = new double[vertices.length*2];
-    for (int v=0; v<vertices.length; v++) {
-      temp[v*2] = vertices[v].getTextureCoordU();
-      temp[v*2+1] = vertices[v].getTextureCoordV();
-    }
-    return temp;
+  public float[] getTextureCoordsList() {
+    return data.getTextureCoords();
   }
 
   /**
@@ -112,9 +144,8 @@ public class Mesh implements Cloneable {
    * @return  a reference to the Vertex at the given index value. null is returned if the vertex index does not exist.
    */ 
   public Vertex getVertex(int index) {
-    // Return a clone of the vertex and not the original one so that external classes cannot alter the data
-    if (index < vertices.length)
-      return vertices[index];
+    if (index < getNumVertices())
+      return getVertices()[index];
     else
       return null;
   }
@@ -128,8 +159,11 @@ public class Mesh implements Cloneable {
    */ 
   public Vertex getVertexClone(int index) {
     // Return a clone of the vertex and not the original one so that external classes cannot alter the data
-    if (index < vertices.length)
-      return (Vertex) vertices[index].clone();
+    if (index < getNumVertices()) {
+      Vertex res = new Vertex();
+      res.getData().copyVertex(0, data, index);
+      return res;
+    }
     else
       return null;
   }
@@ -140,43 +174,79 @@ public class Mesh implements Cloneable {
    * @return  the number of triangles in the Mesh
    */   
   public int getNumTriangles() {
-    if (triangles != null) return triangles.length;
+    if (data != null) return data.getNumTriangles();
     else return 0;
   }
 
   /**
-   * Set the triangle data structure. The reference is copied. A clone is not made. 
+   * Set the triangle data structure. The values held by each Triangle are copied into the
+   * Mesh's flat storage. The Triangle objects are not kept; use getTriangles() for views
+   * onto the Mesh's own triangles.
    * (Consider calling relevant method to set vertices too.)
    * 
    * @param  triangles         the new triangle data structure, passed as an array.
    */   
   public void setTriangles(Triangle[] triangles) {
-    this.triangles = triangles;
+    int n = triangles.length;
+    MeshData store = new MeshData(0, n);
+    for (int i=0; i<n; i++)
+      store.copyTriangle(i, triangles[i].getData(), triangles[i].getIndex());
+    if (data == null) data = new MeshData(0, 0);
+    data.setTriangleArrays(store.getIndices(), store.getTriangleNormals());
+    this.triangles = null;
+  }
+
+  /**
+   * Set the triangle data from a flat array of vertex indices. The reference is kept. A copy is not made.
+   * The array is organised as for getTriangleList(). Triangle normals are initialised to zero.
+   * (Consider calling relevant method to set vertices too.)
+   * 
+   * @param  indices  v0,v1,v2 vertex indices of each triangle
+   */   
+  public void setTriangleData(int[] indices) {
+    setTriangleData(indices, new float[indices.length]);
+  }
+
+  /**
+   * Set the triangle data from flat arrays of vertex indices and triangle normals. The references are kept.
+   * Copies are not made. The arrays are organised as for getTriangleList().
+   * (Consider calling relevant method to set vertices too.)
+   * 
+   * @param  indices          v0,v1,v2 vertex indices of each triangle
+   * @param  triangleNormals  x,y,z normal of each triangle
+   */   
+  public void setTriangleData(int[] indices, float[] triangleNormals) {
+    if (data == null) data = new MeshData(0, 0);
+    data.setTriangleArrays(indices, triangleNormals);
+    triangles = null;
   }
    
   /**
    * Get a reference to the triangle data structure.
+   * The Triangle objects are views onto the Mesh's flat storage, and are created the first
+   * time they are asked for if the Mesh was built from flat arrays.
    * 
    * @return  a reference to the triangle data structure
    */   
   public Triangle[] getTriangles() {
+    if (triangles == null && data != null) {
+      triangles = new Triangle[data.getNumTriangles()];
+      for (int i=0; i<triangles.length; i++)
+        triangles[i] = new Triangle(data, i);
+    }
     return triangles;
   }
 
   /**
    * Gets the triangle data as an array of vertex indices stored as ints. 
-   * This is a copy of the data stored in the triangle data structure.
+   * This is a reference to the data stored in the Mesh, not a copy, so it should not be altered.
    * The data is organised as a 1D array: triangle 0's vertex indexes v0,v1,v2,
    * triangle 1's vertex indexes v0,v1,v2, etc.
    * 
    * @return  an array of ints representing the triangle vertex index data
    */   
   public int[] getTriangleList() {
-    int[] temptris = new int[triangles.length*3];
-    for (int t=0; t<triangles.length; t++)
-      for (int i=0; i<3; i++)
-        temptris[t*3+i]=triangles[t].getVertexIndex(i);
-    return temptris;
+    return data.getIndices();
   }
   
   /**
@@ -187,8 +257,8 @@ public class Mesh implements Cloneable {
    * @return  a reference to the Triangle at the given index value.  null is returned if the triangle index does not exist.
    */   
   public Triangle getTriangle(int index) {
-    if (index<triangles.length)
-      return triangles[index];
+    if (index<getNumTriangles())
+      return getTriangles()[index];
     else
       return null;
   }
@@ -201,8 +271,11 @@ public class Mesh implements Cloneable {
    * @return  a copy of the Triangle at the given index value.  null is returned if the triangle index does not exist.
    */   
   public Triangle getTriangleClone(int index) {
-    if (index<triangles.length)
-      return (Triangle) triangles[index].clone();
+    if (index<getNumTriangles()) {
+      Triangle res = new Triangle();
+      res.getData().copyTriangle(0, data, index);
+      return res;
+    }
     else
       return null;
   }
@@ -285,77 +358,192 @@ public class Mesh implements Cloneable {
     int i;
     double min[] = new double[3];
     double max[] = new double[3];
+    float[] p = data.getPositions();
+    int n = data.getNumVertices();
     
-    if (vertices.length>0) {
+    if (n>0) {
       for (i=0; i<3; i++)
-        max[i] = min[i] = vertices[0].getPosition()[i];
+        max[i] = min[i] = p[i];
          
-      for (i=1; i<vertices.length; i++)
+      for (i=1; i<n; i++)
         for (int j=0; j<3; j++)
-          if (vertices[i].getPosition()[j]<min[j])
-            min[j] = vertices[i].getPosition()[j];
-          else if (vertices[i].getPosition()[j]>max[j])
-            max[j] = vertices[i].getPosition()[j];
+          if (p[i*3+j]<min[j])
+            min[j] = p[i*3+j];
+          else if (p[i*3+j]>max[j])
+            max[j] = p[i*3+j];
       boundingbox.setBounds(min, max);
     }
   }
 
+  /**
+   * Calculates the triangle normals, and then the normal of each vertex as the normalised
+   * sum of the normals of the triangles that use it.
+   * The work is shared over the common fork-join pool. Triangle normals are calculated in
+   * parallel chunks. Each vertex then gathers the normals of its own triangles, using the
+   * vertex-to-triangle adjacency kept by the MeshData, which lists them in triangle order, so no
+   * two workers write to the same vertex and the sums are added in the same order as a serial
+   * loop over the triangles would add them. The result is therefore the same as a serial
+   * calculation. The adjacency is only found again if the triangles change, and the triangle
+   * normals are summed in an array kept for the next call. Meshes of no more than one chunk
+   * are done on the calling thread.
+   */
   public void calcSmoothNormals() {
-    int i, j;
-    double mag;
-    double nx, ny, nz;
-    double avec[] = new double[3];
-    double bvec[] = new double[3];
-    
-    // Reset the vertex normals back to {0, 0, 0}
-    for (i=0; i<vertices.length; i++)
-      vertices[i].setNormal(0, 0, 0);
-    
-    for (i=0; i<triangles.length; i++) {
-      for (j=0; j<3; j++) {
-	      double d = vertices[triangles[i].getVertexIndex(0)].getPosition()[j]; 
-        avec[j] = d - vertices[triangles[i].getVertexIndex(1)].getPosition()[j];
-        bvec[j] = d - vertices[triangles[i].getVertexIndex(2)].getPosition()[j];
+    calcSmoothNormals(ForkJoinPool.commonPool());
+  }
+
+  /**
+   * As calcSmoothNormals(), using the given pool.
+   * 
+   * @param  pool  the pool to run on. A pool with a parallelism of 1 gives a serial calculation.
+   */
+  public void calcSmoothNormals(ForkJoinPool pool) {
+    int numVertices = data.getNumVertices();
+    int numTriangles = data.getNumTriangles();
+    if (faceNormals.length < numTriangles*3) faceNormals = new double[numTriangles*3];
+
+    // Vertex to triangle adjacency in compressed rows: the triangles that use vertex v
+    // are adjacent[first[v]] to adjacent[first[v+1]-1], in increasing order.
+    int[] first = data.getVertexTriangleStarts();
+    int[] adjacent = data.getVertexTriangles();
+
+    // copy shared arrays now, rather than from the worker threads
+    data.makeVerticesWritable();
+    data.makeTrianglesWritable();
+    FaceNormalsTask faceTask = new FaceNormalsTask(data, faceNormals, 0, numTriangles);
+    VertexNormalsTask vertexTask = new VertexNormalsTask(data, faceNormals, first, adjacent, 0, numVertices);
+    if (numTriangles <= NORMALS_CHUNK && numVertices <= NORMALS_CHUNK) {
+      faceTask.invoke();  // a single chunk each, so not worth handing to the pool
+      vertexTask.invoke();
+    }
+    else {
+      pool.invoke(faceTask);
+      pool.invoke(vertexTask);
+    }
+  }
+
+  private static final int NORMALS_CHUNK = 4096;  // triangles or vertices handled by one task
+
+  private static class FaceNormalsTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final MeshData data;
+    private final double[] faceNormals;
+    private final int start, end;
+
+    FaceNormalsTask(MeshData data, double[] faceNormals, int start, int end) {
+      this.data = data;
+      this.faceNormals = faceNormals;
+      this.start = start;
+      this.end = end;
+    }
+
+    protected void compute() {
+      if (end-start > NORMALS_CHUNK) {
+        int mid = (start+end) >>> 1;
+        invokeAll(new FaceNormalsTask(data, faceNormals, start, mid),
+                  new FaceNormalsTask(data, faceNormals, mid, end));
+        return;
+      }
+      float[] p = data.getPositions();
+      int[] tris = data.getIndices();
+      for (int i=start; i<end; i++) {
+        int i0 = tris[i*3]*3, i1 = tris[i*3+1]*3, i2 = tris[i*3+2]*3;
+        double ax = (double)p[i0] - p[i1], ay = (double)p[i0+1] - p[i1+1], az = (double)p[i0+2] - p[i1+2];
+        double bx = (double)p[i0] - p[i2], by = (double)p[i0+1] - p[i2+1], bz = (double)p[i0+2] - p[i2+2];
+        // Cross product of a and b to determine the triangle normal
+        double nx = ay*bz-az*by;
+        double ny = az*bx-ax*bz;
+        double nz = ax*by-ay*bx;
+        double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+        if (mag!=0.0) {
+          nx /= mag;
+          ny /= mag;
+          nz /= mag;
+          data.setTriangleNormal(i, nx, ny, nz);
+        }
+        else data.setTriangleNormal(i, 0, 0, 0);
+        faceNormals[i*3] = nx;
+        faceNormals[i*3+1] = ny;
+        faceNormals[i*3+2] = nz;
+      }
+    }
+  }
+
+  private static class VertexNormalsTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final MeshData data;
+    private final double[] faceNormals;
+    private final int[] first, adjacent;
+    private final int start, end;
+
+    VertexNormalsTask(MeshData data, double[] faceNormals, int[] first, int[] adjacent, int start, int end) {
+      this.data = data;
+      this.faceNormals = faceNormals;
+      this.first = first;
+      this.adjacent = adjacent;
+      this.start = start;
+      this.end = end;
+    }
+
+    protected void compute() {
+      if (end-start > NORMALS_CHUNK) {
+        int mid = (start+end) >>> 1;
+        invokeAll(new VertexNormalsTask(data, faceNormals, first, adjacent, start, mid),
+                  new VertexNormalsTask(data, faceNormals, first, adjacent, mid, end));
+        return;
       }
-      // Cross product of avec and bvec to determine the triangle normal
-      nx = avec[1]*bvec[2]-avec[2]*bvec[1];
-      ny = avec[2]*bvec[0]-avec[0]*bvec[2];
-      nz = avec[0]*bvec[1]-avec[1]*bvec[0];
-      mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
-      if (mag!=0.0f) {
-        nx /= mag;
-        ny /= mag;
-        nz /= mag;
-        triangles[i].setTriangleNormal(nx, ny, nz);
+      for (int v=start; v<end; v++) {
+        double nx = 0, ny = 0, nz = 0;
+        for (int k=first[v]; k<first[v+1]; k++) {
+          int t = adjacent[k]*3;
+          nx += faceNormals[t];
+          ny += faceNormals[t+1];
+          nz += faceNormals[t+2];
+        }
+        double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+        if (mag!=0.0)  // should test within epsilon
+          data.setNormal(v, nx/mag, ny/mag, nz/mag);
+        else
+          data.setNormal(v, 0, 0, 0);
       }
-      else triangles[i].setTriangleNormal(0,0,0);
-      for (j=0; j<3; j++)
-        vertices[triangles[i].getVertexIndex(j)].addNormal(nx, ny, nz);
-    }    
-    // normalise the normals
-    for (i=0; i<vertices.length; ++i)
-      vertices[i].normaliseNormal();
+    }
+  }
+
+  /**
+   * Merges duplicate vertices and removes the triangles that become degenerate.
+   * See MeshOptimiser.weldVertices. Any Render of the Mesh must be reset afterwards.
+   * 
+   * @param  tolerance  the largest difference in any vertex component for two vertices to be merged
+   * @return  the number of vertices removed
+   */
+  public int weldVertices(double tolerance) {
+    int removed = MeshOptimiser.weldVertices(this, tolerance);
+    calcBoundingBox();
+    return removed;
   }
 
   /**
-   * A clone of the Mesh.
+   * Reorders the triangles for post-transform vertex cache reuse, and then the vertices
+   * in order of first use. See MeshOptimiser.optimizeVertexCache. Any Render of the Mesh
+   * must be reset afterwards.
+   * 
+   * @return  the average cache miss ratio (ACMR) before and after
+   */
+  public double[] optimizeVertexCache() {
+    return MeshOptimiser.optimizeVertexCache(this);
+  }
+
+  /**
+   * A clone of the Mesh. The Material, colour and bounding box are copied. The vertex and
+   * triangle data is copied on write: it is shared with this Mesh until either Mesh changes it,
+   * so a clone made only to change its Material or colour costs no extra geometry.
    * 
    * @return  A clone of the Mesh.
    */ 
   public Object clone() {
     Mesh res = new Mesh();
     
-    if (vertices != null) {
-      res.vertices = new Vertex[vertices.length];
-      for (int i=0; i<vertices.length; i++)
-        res.vertices[i] = (Vertex) vertices[i].clone();
-    }
-    
-    if (triangles != null) {
-      res.triangles = new Triangle[triangles.length];
-      for (int i=0; i<triangles.length; i++)
-        res.triangles[i] = (Triangle) triangles[i].clone();
-    }
+    if (data != null)
+      res.data = (MeshData) data.clone();
     
     if (material != null)
       res.material = (Material) material.clone();          
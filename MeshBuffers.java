@@ -0,0 +1,211 @@
+/**
+ * Vertex buffer objects holding the geometry of a Mesh on the graphics card.
+ * The vertex data is uploaded once as a single interleaved array of floats,
+ * with each vertex stored as x,y,z, nx,ny,nz, u,v, together with an index buffer
+ * of the triangle vertex indices. Drawing is then a single glDrawElements call,
+ * rather than one call per vertex attribute as in immediate mode.
+ * The index buffer may instead hold triangle strips made by the Stripifier, joined with
+ * primitive restart indices. Where primitive restart is not supported (before OpenGL 3.1),
+ * each strip is drawn with its own glDrawElements call.
+ * A range of a triangle list may be drawn on its own, e.g. the triangles of one Meshlet.
+ * The buffers must be released with dispose(gl) when they are no longer needed.
+ */
+
+import javax.media.opengl.*;
+import com.jogamp.common.nio.Buffers;
+
+public class MeshBuffers {
+
+  public static final int FLOATS_PER_VERTEX = 8;  // x,y,z, nx,ny,nz, u,v
+  public static final int STRIDE = FLOATS_PER_VERTEX*Buffers.SIZEOF_FLOAT;
+  private static final long NORMAL_OFFSET = 3*Buffers.SIZEOF_FLOAT;
+  private static final long TEXCOORD_OFFSET = 6*Buffers.SIZEOF_FLOAT;
+
+  private int vertexBuffer;
+  private int indexBuffer;
+  private int numIndices;
+  private boolean strips;
+  private boolean primitiveRestart;
+  private int[] stripStarts, stripLengths;  // for drawing the strips one at a time without primitive restart
+
+  /**
+   * Constructor. Uploads the vertex and triangle data of the Mesh to the graphics card.
+   *
+   * @param  gl    the OpenGL context.
+   * @param  mesh  the Mesh to upload
+   */
+  public MeshBuffers(GL2 gl, Mesh mesh) {
+    this(gl, mesh, false);
+  }
+
+  /**
+   * Constructor. Uploads the vertex data of the Mesh to the graphics card, together with
+   * either its triangle list or the triangle strips made from it.
+   *
+   * @param  gl      the OpenGL context.
+   * @param  mesh    the Mesh to upload
+   * @param  strips  true to upload triangle strips, false to upload the triangle list
+   */
+  public MeshBuffers(GL2 gl, Mesh mesh, boolean strips) {
+    int[] ids = new int[2];
+    gl.glGenBuffers(2, ids, 0);
+    vertexBuffer = ids[0];
+    indexBuffer = ids[1];
+
+    float[] interleaved = interleave(mesh);
+    int[] indices = strips ? Stripifier.stripify(mesh) : mesh.getTriangleList();
+    numIndices = indices.length;
+    this.strips = strips;
+    if (strips) findStrips(indices);
+    primitiveRestart = gl.isFunctionAvailable("glPrimitiveRestartIndex");
+
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBuffer);
+    gl.glBufferData(GL2.GL_ARRAY_BUFFER, (long)interleaved.length*Buffers.SIZEOF_FLOAT,
+                    Buffers.newDirectFloatBuffer(interleaved), GL2.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+    gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, (long)indices.length*Buffers.SIZEOF_INT,
+                    Buffers.newDirectIntBuffer(indices), GL2.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * Builds the interleaved vertex array for a Mesh: vertex 0's x,y,z,nx,ny,nz,u,v, vertex 1's ..., etc.
+   *
+   * @param  mesh  the Mesh to read
+   * @return  the interleaved vertex data
+   */
+  public static float[] interleave(Mesh mesh) {
+    float[] p = mesh.getVertexList();
+    float[] n = mesh.getNormalList();
+    float[] t = mesh.getTextureCoordsList();
+    int numVertices = mesh.getNumVertices();
+    float[] res = new float[numVertices*FLOATS_PER_VERTEX];
+    for (int v=0, i=0; v<numVertices; v++) {
+      res[i++] = p[v*3];
+      res[i++] = p[v*3+1];
+      res[i++] = p[v*3+2];
+      res[i++] = n[v*3];
+      res[i++] = n[v*3+1];
+      res[i++] = n[v*3+2];
+      res[i++] = t[v*2];
+      res[i++] = t[v*2+1];
+    }
+    return res;
+  }
+
+  // Records where each strip starts and how long it is
+  private void findStrips(int[] indices) {
+    int count = 1;
+    for (int i : indices)
+      if (i==Stripifier.RESTART_INDEX) count++;
+    stripStarts = new int[count];
+    stripLengths = new int[count];
+    int s = 0, start = 0;
+    for (int i=0; i<=indices.length; i++)
+      if (i==indices.length || indices[i]==Stripifier.RESTART_INDEX) {
+        stripStarts[s] = start;
+        stripLengths[s++] = i-start;
+        start = i+1;
+      }
+  }
+
+  /**
+   * Gets the number of indices in the index buffer
+   *
+   * @return  the number of indices, i.e. three times the number of triangles for a triangle
+   *          list, or the length of the strips and the restart indices between them
+   */
+  public int getNumIndices() {
+    return numIndices;
+  }
+
+  /**
+   * Binds the buffers and sets up the vertex array pointers ready for drawing.
+   *
+   * @param  gl     the OpenGL context.
+   * @param  texit  true if texture coordinates are to be sent
+   */
+  public void bind(GL2 gl, boolean texit) {
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBuffer);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+    gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glVertexPointer(3, GL2.GL_FLOAT, STRIDE, 0);
+    gl.glNormalPointer(GL2.GL_FLOAT, STRIDE, NORMAL_OFFSET);
+    if (texit) {
+      gl.glEnableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+      gl.glTexCoordPointer(2, GL2.GL_FLOAT, STRIDE, TEXCOORD_OFFSET);
+    }
+  }
+
+  /**
+   * Draws all the triangles. The buffers must already be bound.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void draw(GL2 gl) {
+    if (!strips)
+      gl.glDrawElements(GL2.GL_TRIANGLES, numIndices, GL2.GL_UNSIGNED_INT, 0);
+    else if (primitiveRestart) {
+      gl.glEnable(GL2.GL_PRIMITIVE_RESTART);
+      gl.glPrimitiveRestartIndex(Stripifier.RESTART_INDEX);
+      gl.glDrawElements(GL2.GL_TRIANGLE_STRIP, numIndices, GL2.GL_UNSIGNED_INT, 0);
+      gl.glDisable(GL2.GL_PRIMITIVE_RESTART);
+    }
+    else {
+      for (int i=0; i<stripStarts.length; i++)
+        gl.glDrawElements(GL2.GL_TRIANGLE_STRIP, stripLengths[i], GL2.GL_UNSIGNED_INT,
+                          (long)stripStarts[i]*Buffers.SIZEOF_INT);
+    }
+  }
+
+  /**
+   * Draws a contiguous range of the triangles. The buffers must already be bound, and hold
+   * a triangle list rather than strips.
+   *
+   * @param  gl             the OpenGL context.
+   * @param  firstTriangle  the index of the first triangle to draw
+   * @param  count          the number of triangles to draw
+   */
+  public void drawTriangles(GL2 gl, int firstTriangle, int count) {
+    gl.glDrawElements(GL2.GL_TRIANGLES, count*3, GL2.GL_UNSIGNED_INT,
+                      (long)firstTriangle*3*Buffers.SIZEOF_INT);
+  }
+
+  /**
+   * Tests whether the index buffer holds triangle strips
+   *
+   * @return  true for strips, false for a triangle list
+   */
+  public boolean isStrips() {
+    return strips;
+  }
+
+  /**
+   * Disables the vertex arrays and unbinds the buffers.
+   *
+   * @param  gl     the OpenGL context.
+   * @param  texit  true if texture coordinates were sent
+   */
+  public void unbind(GL2 gl, boolean texit) {
+    if (texit) gl.glDisableClientState(GL2.GL_TEXTURE_COORD_ARRAY);
+    gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * Deletes the buffers from the graphics card. The object must not be used afterwards.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    gl.glDeleteBuffers(2, new int[]{vertexBuffer, indexBuffer}, 0);
+    vertexBuffer = indexBuffer = 0;
+    numIndices = 0;
+  }
+
+}
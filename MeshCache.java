@@ -0,0 +1,243 @@
+/**
+ * A bounded cache in front of ProceduralMeshFactory.
+ * Meshes are keyed by the shape and the parameters used to build them (dimensions,
+ * tessellation and texture tiling), so identical requests share the vertex and triangle
+ * data of one Mesh, and one set of vertex buffer objects on the graphics card, rather than
+ * each building and uploading its own copy.
+ * Each acquire returns a clone of the cached Mesh, with its own Material, whose vertex and
+ * triangle data is copied on write (see Mesh.clone). The caller may change the Material, and
+ * may even change the data, e.g. with calcSmoothNormals, which gives that Mesh its own copy
+ * without affecting the cached Mesh or any other Mesh acquired from it. A changed Mesh no
+ * longer shares the cached vertex buffers.
+ * Each acquired Mesh must be given back with release when it is no longer needed. Entries
+ * that are no longer referenced are kept until the cache holds more than its capacity, and
+ * are then evicted, least recently used first.
+ * Vertex buffers of evicted entries are deleted the next time the cache is given an
+ * OpenGL context, i.e. on the next call to getBuffers or dispose.
+ */
+
+import java.util.*;
+import javax.media.opengl.*;
+
+public class MeshCache {
+
+  public static final int DEFAULT_CAPACITY = 32;
+
+  private static class Entry {
+    String key;
+    Mesh mesh;
+    MeshBuffers buffers;
+    int refCount;
+  }
+
+  private final int capacity;
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);  // access order, for LRU eviction
+  private final IdentityHashMap<Mesh, Entry> acquired = new IdentityHashMap<Mesh, Entry>();  // the entry each acquired Mesh was cloned from
+  private final List<MeshBuffers> pendingDeletes = new ArrayList<MeshBuffers>();
+  private int hits, misses, evictions;
+
+  /**
+   * Constructor. Uses DEFAULT_CAPACITY.
+   */
+  public MeshCache() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param  capacity  the number of entries above which unreferenced entries are evicted
+   */
+  public MeshCache(int capacity) {
+    this.capacity = capacity;
+  }
+
+  /**
+   * As ProceduralMeshFactory.createPlane(width, depth, m, n, tilingM, tilingN).
+   */
+  public Mesh acquirePlane(double width, double depth, int m, int n, double tilingM, double tilingN) {
+    String key = "plane("+width+","+depth+","+m+","+n+","+tilingM+","+tilingN+")";
+    Entry e = lookup(key);
+    if (e==null) e = insert(key, ProceduralMeshFactory.createPlane(width, depth, m, n, tilingM, tilingN));
+    return share(e);
+  }
+
+  /**
+   * As ProceduralMeshFactory.createHardCube(width, height, depth).
+   */
+  public Mesh acquireHardCube(double width, double height, double depth) {
+    String key = "hardcube("+width+","+height+","+depth+")";
+    Entry e = lookup(key);
+    if (e==null) e = insert(key, ProceduralMeshFactory.createHardCube(width, height, depth));
+    return share(e);
+  }
+
+  /**
+   * As ProceduralMeshFactory.createCylinder(slices, stacks, caps).
+   */
+  public Mesh acquireCylinder(int slices, int stacks, boolean caps) {
+    String key = "cylinder("+slices+","+stacks+","+caps+")";
+    Entry e = lookup(key);
+    if (e==null) e = insert(key, ProceduralMeshFactory.createCylinder(slices, stacks, caps));
+    return share(e);
+  }
+
+  /**
+   * As ProceduralMeshFactory.createSphere(slices, stacks).
+   */
+  public Mesh acquireSphere(int slices, int stacks) {
+    String key = "sphere("+slices+","+stacks+")";
+    Entry e = lookup(key);
+    if (e==null) e = insert(key, ProceduralMeshFactory.createSphere(slices, stacks));
+    return share(e);
+  }
+
+  /**
+   * As ProceduralMeshFactory.createFrustum(topScale, slices, stacks, caps).
+   * A cone is a frustum with a topScale of 0.
+   */
+  public Mesh acquireFrustum(double topScale, int slices, int stacks, boolean caps) {
+    String key = "frustum("+topScale+","+slices+","+stacks+","+caps+")";
+    Entry e = lookup(key);
+    if (e==null) e = insert(key, ProceduralMeshFactory.createFrustum(topScale, slices, stacks, caps));
+    return share(e);
+  }
+
+  /**
+   * As ProceduralMeshFactory.createSphereLODs(slices, stacks, levels). Each level is a separate entry.
+   */
+  public Mesh[] acquireSphereLODs(int slices, int stacks, int levels) {
+    Mesh[] lods = new Mesh[levels];
+    for (int i=0; i<levels; i++) {
+      lods[i] = acquireSphere(slices, stacks);
+      slices = Math.max(3, slices/2);
+      stacks = Math.max(2, stacks/2);
+    }
+    return lods;
+  }
+
+  /**
+   * As ProceduralMeshFactory.createConeLODs(slices, stacks, cap, levels). Each level is a separate entry.
+   */
+  public Mesh[] acquireConeLODs(int slices, int stacks, boolean cap, int levels) {
+    Mesh[] lods = new Mesh[levels];
+    for (int i=0; i<levels; i++) {
+      lods[i] = acquireFrustum(0, slices, stacks, cap);
+      slices = Math.max(3, slices/2);
+      stacks = Math.max(1, stacks/2);
+    }
+    return lods;
+  }
+
+  /**
+   * Gives back a Mesh returned by one of the acquire methods.
+   * Meshes that did not come from this cache are ignored.
+   *
+   * @param  mesh  the Mesh that is no longer needed
+   */
+  public void release(Mesh mesh) {
+    Entry e = acquired.remove(mesh);
+    if (e!=null && e.refCount>0) {
+      e.refCount--;
+      evict();
+    }
+  }
+
+  /**
+   * Gets the vertex buffer objects for a Mesh returned by one of the acquire methods.
+   * The buffers are uploaded the first time they are asked for, and are then shared by all
+   * Meshes with the same key. They belong to the cache and must not be disposed by the caller.
+   *
+   * @param  gl    the OpenGL context.
+   * @param  mesh  a Mesh returned by one of the acquire methods
+   * @return  the shared buffers, or null if the Mesh did not come from this cache, or its data
+   *          has been changed since it was acquired
+   */
+  public MeshBuffers getBuffers(GL2 gl, Mesh mesh) {
+    deletePending(gl);
+    Entry e = acquired.get(mesh);
+    if (e==null || !sameData(mesh, e.mesh)) return null;
+    if (e.buffers==null) e.buffers = new MeshBuffers(gl, e.mesh);
+    return e.buffers;
+  }
+
+  /**
+   * Deletes the vertex buffers of all entries and empties the cache.
+   * Meshes already acquired can still be drawn in immediate mode or with display lists.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    for (Entry e : entries.values())
+      if (e.buffers!=null) pendingDeletes.add(e.buffers);
+    entries.clear();
+    acquired.clear();
+    deletePending(gl);
+  }
+
+  public int size() { return entries.size(); }
+
+  public int getHits() { return hits; }
+
+  public int getMisses() { return misses; }
+
+  public int getEvictions() { return evictions; }
+
+  private Entry lookup(String key) {
+    Entry e = entries.get(key);
+    if (e!=null) hits++;
+    else misses++;
+    return e;
+  }
+
+  private Entry insert(String key, Mesh mesh) {
+    Entry e = new Entry();
+    e.key = key;
+    e.mesh = mesh;
+    entries.put(key, e);
+    return e;
+  }
+
+  private Mesh share(Entry e) {
+    e.refCount++;
+    evict();
+    Mesh mesh = (Mesh)e.mesh.clone();
+    acquired.put(mesh, e);
+    return mesh;
+  }
+
+  // Tests whether a Mesh still shares all its arrays with the cached Mesh it was cloned from
+  private static boolean sameData(Mesh mesh, Mesh cached) {
+    return mesh.getVertexList()==cached.getVertexList() && mesh.getNormalList()==cached.getNormalList()
+        && mesh.getTextureCoordsList()==cached.getTextureCoordsList() && mesh.getTriangleList()==cached.getTriangleList();
+  }
+
+  // Removes unreferenced entries, least recently used first, until the cache is within its capacity
+  private void evict() {
+    Iterator<Entry> it = entries.values().iterator();
+    while (entries.size()>capacity && it.hasNext()) {
+      Entry e = it.next();
+      if (e.refCount==0) {
+        it.remove();
+        if (e.buffers!=null) pendingDeletes.add(e.buffers);
+        evictions++;
+      }
+    }
+  }
+
+  private void deletePending(GL2 gl) {
+    for (MeshBuffers b : pendingDeletes)
+      b.dispose(gl);
+    pendingDeletes.clear();
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the number of entries, hits, misses and evictions
+   */
+  public String toString() {
+    return "MeshCache: "+entries.size()+"/"+capacity+" entries, "+hits+" hits, "+misses+" misses, "+evictions+" evictions";
+  }
+
+}
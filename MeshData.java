@@ -0,0 +1,389 @@
+/**
+ * Flat (structure-of-arrays) storage for the geometry of a Mesh.
+ * Vertex positions, normals and texture coordinates, triangle vertex indices and
+ * triangle normals are each held in a single primitive array, rather than in one small
+ * object per vertex and per triangle.
+ * Vertex and Triangle objects that belong to a Mesh are lightweight views onto this
+ * storage: they hold a reference to the MeshData and an index, so reading or writing
+ * through them reads or writes the arrays here.
+ * The arrays are organised in the same way as the lists used by the Render class:
+ * vertex 0's x,y,z, vertex 1's x,y,z, etc.
+ *
+ * clone() is copy-on-write: the clone shares the arrays of the original, and the vertex
+ * arrays, or the triangle arrays, are only copied when one of the MeshData objects sharing
+ * them is about to change them through one of its set, add or copy methods. The arrays
+ * returned by the get methods are therefore read-only. Code that writes to them directly
+ * must first call makeVerticesWritable or makeTrianglesWritable, and then get them again.
+ *
+ * The triangles using each vertex are found when first asked for, and kept until the vertex
+ * indices or the number of vertices change through the methods here. Code that writes vertex
+ * indices directly must call invalidateAdjacency afterwards.
+ */
+
+public class MeshData implements Cloneable {
+
+  private static final float[] NO_FLOATS = new float[0];
+  private static final int[] NO_INTS = new int[0];
+
+  private int numVertices;
+  private int numTriangles;
+  private float[] positions;        // x,y,z per vertex
+  private float[] normals;          // x,y,z per vertex
+  private float[] texCoords;        // u,v per vertex
+  private int[] indices;            // v0,v1,v2 per triangle
+  private float[] triangleNormals;  // x,y,z per triangle
+  private int[] vertexShares = {1};    // number of MeshData objects sharing the vertex arrays, itself shared by them
+  private int[] triangleShares = {1};  // number of MeshData objects sharing the triangle arrays, itself shared by them
+  private int[] adjacencyStarts, adjacency;  // the triangles using each vertex, or null until asked for
+
+  /**
+   * Constructor. All values are initialised to 0.
+   *
+   * @param  numVertices   the number of vertices to allocate storage for
+   * @param  numTriangles  the number of triangles to allocate storage for
+   */
+  public MeshData(int numVertices, int numTriangles) {
+    setNumVertices(numVertices);
+    setNumTriangles(numTriangles);
+  }
+
+  /**
+   * Constructor. The references to the arrays are kept. Copies are not made.
+   * normals and texCoords may be null, in which case they are initialised to zero values.
+   *
+   * @param  positions  x,y,z position of each vertex
+   * @param  normals    x,y,z normal of each vertex; otherwise, null
+   * @param  texCoords  u,v texture coordinates of each vertex; otherwise, null
+   * @param  indices    v0,v1,v2 vertex indices of each triangle
+   */
+  public MeshData(float[] positions, float[] normals, float[] texCoords, int[] indices) {
+    numVertices = positions.length/3;
+    numTriangles = indices.length/3;
+    this.positions = positions;
+    this.normals = (normals==null) ? new float[numVertices*3] : normals;
+    this.texCoords = (texCoords==null) ? new float[numVertices*2] : texCoords;
+    this.indices = indices;
+    triangleNormals = new float[numTriangles*3];
+  }
+
+  /**
+   * Reallocates the vertex storage. Existing vertex data is discarded.
+   *
+   * @param  numVertices  the number of vertices to allocate storage for
+   */
+  public void setNumVertices(int numVertices) {
+    releaseVertices();
+    invalidateAdjacency();
+    this.numVertices = numVertices;
+    positions = (numVertices==0) ? NO_FLOATS : new float[numVertices*3];
+    normals = (numVertices==0) ? NO_FLOATS : new float[numVertices*3];
+    texCoords = (numVertices==0) ? NO_FLOATS : new float[numVertices*2];
+  }
+
+  /**
+   * Reallocates the triangle storage. Existing triangle data is discarded.
+   *
+   * @param  numTriangles  the number of triangles to allocate storage for
+   */
+  public void setNumTriangles(int numTriangles) {
+    releaseTriangles();
+    invalidateAdjacency();
+    this.numTriangles = numTriangles;
+    indices = (numTriangles==0) ? NO_INTS : new int[numTriangles*3];
+    triangleNormals = (numTriangles==0) ? NO_FLOATS : new float[numTriangles*3];
+  }
+
+  public int getNumVertices() { return numVertices; }
+
+  public int getNumTriangles() { return numTriangles; }
+
+  /**
+   * Gets the vertex positions as a reference, organised as vertex 0's x,y,z, vertex 1's x,y,z, etc.
+   *
+   * @return  a reference to the vertex position array
+   */
+  public float[] getPositions() { return positions; }
+
+  /**
+   * Gets the vertex normals as a reference, organised as vertex 0's x,y,z, vertex 1's x,y,z, etc.
+   *
+   * @return  a reference to the vertex normal array
+   */
+  public float[] getNormals() { return normals; }
+
+  /**
+   * Gets the vertex texture coordinates as a reference, organised as vertex 0's u,v, vertex 1's u,v, etc.
+   *
+   * @return  a reference to the texture coordinate array
+   */
+  public float[] getTextureCoords() { return texCoords; }
+
+  /**
+   * Gets the triangle vertex indices as a reference, organised as triangle 0's v0,v1,v2,
+   * triangle 1's v0,v1,v2, etc.
+   *
+   * @return  a reference to the index array
+   */
+  public int[] getIndices() { return indices; }
+
+  /**
+   * Gets the triangle normals as a reference, organised as triangle 0's x,y,z, triangle 1's x,y,z, etc.
+   *
+   * @return  a reference to the triangle normal array
+   */
+  public float[] getTriangleNormals() { return triangleNormals; }
+
+  /**
+   * Replaces the vertex storage with the given arrays. The references are kept. Copies are not made.
+   *
+   * @param  positions  x,y,z position of each vertex
+   * @param  normals    x,y,z normal of each vertex
+   * @param  texCoords  u,v texture coordinates of each vertex
+   */
+  public void setVertexArrays(float[] positions, float[] normals, float[] texCoords) {
+    releaseVertices();
+    if (positions.length/3 != numVertices) invalidateAdjacency();
+    numVertices = positions.length/3;
+    this.positions = positions;
+    this.normals = normals;
+    this.texCoords = texCoords;
+  }
+
+  /**
+   * Replaces the triangle storage with the given arrays. The references are kept. Copies are not made.
+   *
+   * @param  indices          v0,v1,v2 vertex indices of each triangle
+   * @param  triangleNormals  x,y,z normal of each triangle
+   */
+  public void setTriangleArrays(int[] indices, float[] triangleNormals) {
+    releaseTriangles();
+    invalidateAdjacency();
+    numTriangles = indices.length/3;
+    this.indices = indices;
+    this.triangleNormals = triangleNormals;
+  }
+
+  /* Adjacency ************************************************************** */
+
+  /**
+   * Gets where each vertex's row starts in getVertexTriangles(). The triangles using vertex v are
+   * getVertexTriangles()[starts[v]] to getVertexTriangles()[starts[v+1]-1]. The array is read-only.
+   *
+   * @return  a reference to the row starts, one for each vertex and one for the end
+   */
+  public int[] getVertexTriangleStarts() {
+    if (adjacency == null) calcAdjacency();
+    return adjacencyStarts;
+  }
+
+  /**
+   * Gets the triangles using each vertex, in compressed rows: those of vertex 0 in increasing
+   * order, then those of vertex 1, etc. A triangle using a vertex twice is listed twice in its
+   * row. The array is read-only.
+   *
+   * @return  a reference to the adjacent triangles, three for each triangle
+   */
+  public int[] getVertexTriangles() {
+    if (adjacency == null) calcAdjacency();
+    return adjacency;
+  }
+
+  /**
+   * Forgets the triangles using each vertex, after vertex indices have been written directly,
+   * so that they are found again when next asked for.
+   */
+  public void invalidateAdjacency() {
+    adjacencyStarts = adjacency = null;
+  }
+
+  private void calcAdjacency() {
+    int[] first = new int[numVertices+1];
+    int[] adjacent = new int[numTriangles*3];
+    for (int i=0; i<numTriangles*3; i++)
+      first[indices[i]+1]++;
+    for (int v=0; v<numVertices; v++)
+      first[v+1] += first[v];
+    for (int t=0, i=0; t<numTriangles; t++)
+      for (int j=0; j<3; j++, i++)
+        adjacent[first[indices[i]]++] = t;  // leaves first[v] at the start of row v+1
+    for (int v=numVertices; v>0; v--)
+      first[v] = first[v-1];
+    first[0] = 0;
+    adjacencyStarts = first;
+    adjacency = adjacent;
+  }
+
+  /* Copy-on-write ********************************************************** */
+
+  /**
+   * Copies the vertex arrays if they are shared with another MeshData, so that they can be
+   * changed without changing the other MeshData.
+   */
+  public void makeVerticesWritable() {
+    if (vertexShares[0]==1) return;
+    releaseVertices();
+    positions = positions.clone();
+    normals = normals.clone();
+    texCoords = texCoords.clone();
+  }
+
+  /**
+   * Copies the triangle arrays if they are shared with another MeshData, so that they can be
+   * changed without changing the other MeshData.
+   */
+  public void makeTrianglesWritable() {
+    if (triangleShares[0]==1) return;
+    releaseTriangles();
+    indices = indices.clone();
+    triangleNormals = triangleNormals.clone();
+  }
+
+  /**
+   * Gets whether the vertex arrays are shared with another MeshData.
+   *
+   * @return  true if the vertex arrays are shared
+   */
+  public boolean isSharingVertices() { return vertexShares[0]>1; }
+
+  /**
+   * Gets whether the triangle arrays are shared with another MeshData.
+   *
+   * @return  true if the triangle arrays are shared
+   */
+  public boolean isSharingTriangles() { return triangleShares[0]>1; }
+
+  // Stops sharing the vertex arrays, before they are replaced
+  private void releaseVertices() {
+    synchronized (vertexShares) {
+      vertexShares[0]--;
+    }
+    vertexShares = new int[]{1};
+  }
+
+  // Stops sharing the triangle arrays, before they are replaced
+  private void releaseTriangles() {
+    synchronized (triangleShares) {
+      triangleShares[0]--;
+    }
+    triangleShares = new int[]{1};
+  }
+
+  /* Vertex access ********************************************************** */
+
+  public double getPosition(int v, int i) { return positions[v*3+i]; }
+
+  public void setPosition(int v, double x, double y, double z) {
+    makeVerticesWritable();
+    positions[v*3] = (float)x;
+    positions[v*3+1] = (float)y;
+    positions[v*3+2] = (float)z;
+  }
+
+  public double getNormal(int v, int i) { return normals[v*3+i]; }
+
+  public void setNormal(int v, double nx, double ny, double nz) {
+    makeVerticesWritable();
+    normals[v*3] = (float)nx;
+    normals[v*3+1] = (float)ny;
+    normals[v*3+2] = (float)nz;
+  }
+
+  public void addNormal(int v, double nx, double ny, double nz) {
+    makeVerticesWritable();
+    normals[v*3] += nx;
+    normals[v*3+1] += ny;
+    normals[v*3+2] += nz;
+  }
+
+  public void normaliseNormal(int v) {
+    double nx = normals[v*3], ny = normals[v*3+1], nz = normals[v*3+2];
+    double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+    if (mag!=0.0)  // should test within epsilon
+      setNormal(v, nx/mag, ny/mag, nz/mag);
+  }
+
+  public double getTextureCoord(int v, int i) { return texCoords[v*2+i]; }
+
+  public void setTextureCoord(int v, double u, double t) {
+    makeVerticesWritable();
+    texCoords[v*2] = (float)u;
+    texCoords[v*2+1] = (float)t;
+  }
+
+  /**
+   * Copies position, normal and texture coordinates of one vertex to another.
+   *
+   * @param  v    index of the vertex to write in this MeshData
+   * @param  src  the MeshData to copy from
+   * @param  sv   index of the vertex to read in src
+   */
+  public void copyVertex(int v, MeshData src, int sv) {
+    makeVerticesWritable();
+    System.arraycopy(src.positions, sv*3, positions, v*3, 3);
+    System.arraycopy(src.normals, sv*3, normals, v*3, 3);
+    System.arraycopy(src.texCoords, sv*2, texCoords, v*2, 2);
+  }
+
+  /* Triangle access ******************************************************** */
+
+  public int getVertexIndex(int t, int i) { return indices[t*3+i]; }
+
+  public void setVertexIndices(int t, int i1, int i2, int i3) {
+    makeTrianglesWritable();
+    invalidateAdjacency();
+    indices[t*3] = i1;
+    indices[t*3+1] = i2;
+    indices[t*3+2] = i3;
+  }
+
+  public double getTriangleNormal(int t, int i) { return triangleNormals[t*3+i]; }
+
+  public void setTriangleNormal(int t, double nx, double ny, double nz) {
+    makeTrianglesWritable();
+    triangleNormals[t*3] = (float)nx;
+    triangleNormals[t*3+1] = (float)ny;
+    triangleNormals[t*3+2] = (float)nz;
+  }
+
+  /**
+   * Copies the vertex indices and normal of one triangle to another.
+   *
+   * @param  t    index of the triangle to write in this MeshData
+   * @param  src  the MeshData to copy from
+   * @param  st   index of the triangle to read in src
+   */
+  public void copyTriangle(int t, MeshData src, int st) {
+    makeTrianglesWritable();
+    invalidateAdjacency();
+    System.arraycopy(src.indices, st*3, indices, t*3, 3);
+    System.arraycopy(src.triangleNormals, st*3, triangleNormals, t*3, 3);
+  }
+
+  /**
+   * A copy-on-write copy of the MeshData. The arrays are shared until either MeshData changes them.
+   *
+   * @return  a clone of the MeshData
+   */
+  public Object clone() {
+    MeshData res = new MeshData(0, 0);
+    res.numVertices = numVertices;
+    res.numTriangles = numTriangles;
+    res.positions = positions;
+    res.normals = normals;
+    res.texCoords = texCoords;
+    res.indices = indices;
+    res.triangleNormals = triangleNormals;
+    res.adjacencyStarts = adjacencyStarts;  // never written, so shared for as long as both keep it
+    res.adjacency = adjacency;
+    synchronized (vertexShares) {
+      vertexShares[0]++;
+    }
+    synchronized (triangleShares) {
+      triangleShares[0]++;
+    }
+    res.vertexShares = vertexShares;
+    res.triangleShares = triangleShares;
+    return res;
+  }
+
+}
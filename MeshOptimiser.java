@@ -0,0 +1,300 @@
+/**
+ * Optimisation passes over the flat vertex and triangle data of a Mesh.
+ * The passes change the Mesh's arrays, so any Render created from the Mesh must be reset
+ * afterwards. A Mesh acquired from a MeshCache gets its own copy of the data, and so no
+ * longer shares the cache's vertex buffers.
+ */
+
+import java.util.*;
+
+public class MeshOptimiser {
+
+  public static final int VERTEX_CACHE_SIZE = 32;  // entries in the cache modelled when ordering triangles
+
+  // Weights used to score vertices, as suggested by Forsyth
+  private static final double CACHE_DECAY_POWER = 1.5;
+  private static final double LAST_TRIANGLE_SCORE = 0.75;
+  private static final double VALENCE_BOOST_SCALE = 2.0;
+  private static final double VALENCE_BOOST_POWER = 0.5;
+
+  /**
+   * Merges vertices whose positions, normals and texture coordinates are all within a tolerance
+   * of each other, and remaps the triangles onto the merged vertices. The first vertex of each
+   * group of duplicates is kept. Triangles that become degenerate, i.e. use the same vertex
+   * more than once, are removed. The order of the remaining vertices and triangles is unchanged.
+   *
+   * Vertices are hashed on a grid of their positions, with cells the size of the tolerance,
+   * so each vertex is only compared with the vertices in the neighbouring cells.
+   *
+   * @param  mesh       the Mesh to weld
+   * @param  tolerance  the largest difference in any component for two vertices to be merged.
+   *                    0 merges exact duplicates only.
+   * @return  the number of vertices removed
+   */
+  public static int weldVertices(Mesh mesh, double tolerance) {
+    MeshData data = mesh.getData();
+    int numVertices = data.getNumVertices();
+    float[] p = data.getPositions();
+    float[] n = data.getNormals();
+    float[] t = data.getTextureCoords();
+    double cellSize = Math.max(tolerance, 1e-6);
+
+    int[] remap = new int[numVertices];         // old vertex index -> new vertex index
+    int[] kept = new int[numVertices];          // new vertex index -> old vertex index
+    int[] next = new int[numVertices];          // next kept vertex in the same cell, or -1
+    HashMap<Long, Integer> cells = new HashMap<Long, Integer>();  // cell -> first kept vertex in the cell
+    int numKept = 0;
+
+    for (int v=0; v<numVertices; v++) {
+      long cx = (long)Math.floor(p[v*3]/cellSize);
+      long cy = (long)Math.floor(p[v*3+1]/cellSize);
+      long cz = (long)Math.floor(p[v*3+2]/cellSize);
+      int match = -1;
+      for (long dx=-1; dx<=1 && match<0; dx++)
+        for (long dy=-1; dy<=1 && match<0; dy++)
+          for (long dz=-1; dz<=1 && match<0; dz++) {
+            Integer head = cells.get(cellKey(cx+dx, cy+dy, cz+dz));
+            for (int k=(head==null)?-1:head; k>=0 && match<0; k=next[k])
+              if (isDuplicate(p, n, t, kept[k], v, tolerance))
+                match = k;
+          }
+      if (match>=0)
+        remap[v] = match;
+      else {
+        Long key = cellKey(cx, cy, cz);
+        Integer head = cells.get(key);
+        next[numKept] = (head==null) ? -1 : head;
+        cells.put(key, numKept);
+        kept[numKept] = v;
+        remap[v] = numKept++;
+      }
+    }
+
+    // Compact the vertex arrays
+    float[] np = new float[numKept*3];
+    float[] nn = new float[numKept*3];
+    float[] nt = new float[numKept*2];
+    for (int i=0; i<numKept; i++) {
+      System.arraycopy(p, kept[i]*3, np, i*3, 3);
+      System.arraycopy(n, kept[i]*3, nn, i*3, 3);
+      System.arraycopy(t, kept[i]*2, nt, i*2, 2);
+    }
+
+    // Remap the triangles, dropping those that have become degenerate
+    int[] tris = data.getIndices();
+    float[] triNormals = data.getTriangleNormals();
+    int numTriangles = data.getNumTriangles();
+    int[] ni = new int[numTriangles*3];
+    float[] ntn = new float[numTriangles*3];
+    int numTrianglesKept = 0;
+    for (int i=0; i<numTriangles; i++) {
+      int a = remap[tris[i*3]], b = remap[tris[i*3+1]], c = remap[tris[i*3+2]];
+      if (a==b || b==c || a==c) continue;
+      ni[numTrianglesKept*3] = a;
+      ni[numTrianglesKept*3+1] = b;
+      ni[numTrianglesKept*3+2] = c;
+      System.arraycopy(triNormals, i*3, ntn, numTrianglesKept*3, 3);
+      numTrianglesKept++;
+    }
+
+    mesh.setVertexData(np, nn, nt);
+    mesh.setTriangleData(Arrays.copyOf(ni, numTrianglesKept*3));
+    System.arraycopy(ntn, 0, mesh.getData().getTriangleNormals(), 0, numTrianglesKept*3);
+    return numVertices-numKept;
+  }
+
+  /**
+   * Reorders the triangles of a Mesh so that triangles sharing vertices are drawn close
+   * together, using Tom Forsyth's linear-speed vertex cache optimisation. Each vertex is scored
+   * on its position in a modelled LRU cache of VERTEX_CACHE_SIZE entries and on the number of
+   * its triangles still to be drawn, and the triangle with the highest total score among those
+   * using cached vertices is drawn next.
+   * The vertices are then renumbered in the order they are first used by the new triangle
+   * order, so vertex fetches also run through memory in order. Unused vertices go at the end.
+   *
+   * @param  mesh  the Mesh to reorder
+   * @return  the average cache miss ratio (ACMR) before and after, modelled with a FIFO cache
+   *          of VERTEX_CACHE_SIZE entries
+   */
+  public static double[] optimizeVertexCache(Mesh mesh) {
+    MeshData data = mesh.getData();
+    int numVertices = data.getNumVertices();
+    int numTriangles = data.getNumTriangles();
+    int[] tris = data.getIndices();
+    double before = calcACMR(tris, numVertices, VERTEX_CACHE_SIZE);
+
+    // Vertex to triangle adjacency in compressed rows, as in MeshData.getVertexTriangles. This copy is
+    // reordered as triangles are drawn, so the MeshData's own is not used
+    int[] first = new int[numVertices+1];
+    int[] adjacent = new int[numTriangles*3];
+    for (int i=0; i<numTriangles*3; i++)
+      first[tris[i]+1]++;
+    for (int v=0; v<numVertices; v++)
+      first[v+1] += first[v];
+    for (int t=0, i=0; t<numTriangles; t++)
+      for (int j=0; j<3; j++, i++)
+        adjacent[first[tris[i]]++] = t;
+    for (int v=numVertices; v>0; v--)
+      first[v] = first[v-1];
+    first[0] = 0;
+
+    // The triangles still to be drawn that use vertex v are kept at the start of its row,
+    // adjacent[first[v]] to adjacent[first[v]+valence[v]-1]
+    int[] valence = new int[numVertices];
+    int[] cachePosition = new int[numVertices];  // position in the modelled cache, or -1
+    double[] vertexScore = new double[numVertices];
+    for (int v=0; v<numVertices; v++) {
+      valence[v] = first[v+1]-first[v];
+      cachePosition[v] = -1;
+      vertexScore[v] = vertexScore(-1, valence[v]);
+    }
+    boolean[] drawn = new boolean[numTriangles];
+
+    int[] cache = new int[VERTEX_CACHE_SIZE+3];  // the three vertices of a new triangle push out up to three
+    int cacheCount = 0;
+    int[] newCache = new int[VERTEX_CACHE_SIZE+3];
+    int[] order = new int[numTriangles];
+    int nextUndrawn = 0;  // used to restart when no cached vertex has a triangle left
+    int best = -1;
+
+    for (int drawnCount=0; drawnCount<numTriangles; drawnCount++) {
+      if (best<0) {
+        while (drawn[nextUndrawn]) nextUndrawn++;
+        best = nextUndrawn;
+      }
+      order[drawnCount] = best;
+      drawn[best] = true;
+
+      // Move the triangle's vertices to the front of the cache. The triangle is removed from a
+      // vertex's row once per corner, as a degenerate triangle appears in the row of a repeated
+      // vertex once for each time it is repeated, but the vertex enters the cache once
+      int newCount = 0;
+      for (int j=0; j<3; j++) {
+        int v = tris[best*3+j];
+        int last = first[v]+valence[v]-1;
+        for (int k=first[v]; k<=last; k++)
+          if (adjacent[k]==best) {
+            adjacent[k] = adjacent[last];
+            adjacent[last] = best;
+            valence[v]--;
+            break;
+          }
+        if (newCount==0 || (v!=newCache[0] && (newCount==1 || v!=newCache[1])))
+          newCache[newCount++] = v;
+      }
+      int added = newCount;
+      for (int i=0; i<cacheCount; i++) {
+        int v = cache[i];
+        boolean isNew = false;
+        for (int j=0; j<added; j++)
+          if (v==newCache[j]) isNew = true;
+        if (!isNew)
+          newCache[newCount++] = v;
+      }
+      int[] swap = cache; cache = newCache; newCache = swap;
+      cacheCount = newCount;
+
+      // Rescore the cached vertices, and those just pushed out, and their undrawn triangles
+      for (int i=0; i<cacheCount; i++) {
+        int v = cache[i];
+        cachePosition[v] = (i<VERTEX_CACHE_SIZE) ? i : -1;
+        vertexScore[v] = vertexScore(cachePosition[v], valence[v]);
+      }
+      best = -1;
+      double bestScore = -1;
+      for (int i=0; i<cacheCount; i++) {
+        int v = cache[i];
+        for (int k=first[v]; k<first[v]+valence[v]; k++) {
+          int t = adjacent[k];
+          if (drawn[t]) continue;
+          double score = vertexScore[tris[t*3]]+vertexScore[tris[t*3+1]]+vertexScore[tris[t*3+2]];
+          if (score>bestScore) {
+            bestScore = score;
+            best = t;
+          }
+        }
+      }
+      if (cacheCount>VERTEX_CACHE_SIZE) cacheCount = VERTEX_CACHE_SIZE;
+    }
+
+    // Renumber the vertices in order of first use
+    int[] remap = new int[numVertices];
+    Arrays.fill(remap, -1);
+    int[] newIndices = new int[numTriangles*3];
+    float[] triNormals = data.getTriangleNormals();
+    float[] newTriNormals = new float[numTriangles*3];
+    int numUsed = 0;
+    for (int i=0; i<numTriangles; i++) {
+      int t = order[i];
+      for (int j=0; j<3; j++) {
+        int v = tris[t*3+j];
+        if (remap[v]<0) remap[v] = numUsed++;
+        newIndices[i*3+j] = remap[v];
+      }
+      System.arraycopy(triNormals, t*3, newTriNormals, i*3, 3);
+    }
+    for (int v=0; v<numVertices; v++)
+      if (remap[v]<0) remap[v] = numUsed++;
+
+    float[] p = data.getPositions(), n = data.getNormals(), tc = data.getTextureCoords();
+    float[] np = new float[numVertices*3], nn = new float[numVertices*3], nt = new float[numVertices*2];
+    for (int v=0; v<numVertices; v++) {
+      System.arraycopy(p, v*3, np, remap[v]*3, 3);
+      System.arraycopy(n, v*3, nn, remap[v]*3, 3);
+      System.arraycopy(tc, v*2, nt, remap[v]*2, 2);
+    }
+
+    mesh.setVertexData(np, nn, nt);
+    mesh.setTriangleData(newIndices);
+    System.arraycopy(newTriNormals, 0, mesh.getData().getTriangleNormals(), 0, numTriangles*3);
+    return new double[]{before, calcACMR(newIndices, numVertices, VERTEX_CACHE_SIZE)};
+  }
+
+  /**
+   * Calculates the average cache miss ratio (ACMR) of a list of triangles, i.e. the average
+   * number of vertices that must be transformed per triangle, with a FIFO post-transform
+   * vertex cache. It is 3 for no reuse and tends to 0.5 for a very large regular grid.
+   *
+   * @param  indices      v0,v1,v2 vertex indices of each triangle
+   * @param  numVertices  the number of vertices the indices refer to
+   * @param  cacheSize    the number of entries in the cache
+   * @return  the number of cache misses per triangle
+   */
+  public static double calcACMR(int[] indices, int numVertices, int cacheSize) {
+    if (indices.length==0) return 0;
+    int[] insertedAt = new int[numVertices];  // miss count when the vertex last entered the cache
+    Arrays.fill(insertedAt, Integer.MIN_VALUE/2);
+    int misses = 0;
+    for (int v : indices) {
+      if (misses-insertedAt[v] < cacheSize) continue;  // still one of the last cacheSize vertices to enter
+      insertedAt[v] = misses++;
+    }
+    return (double)misses/(indices.length/3);
+  }
+
+  // Forsyth's vertex score, from the vertex's position in the cache and the number of triangles left that use it
+  private static double vertexScore(int cachePosition, int valence) {
+    if (valence==0) return -1;
+    double score = 0;
+    if (cachePosition>=3)
+      score = Math.pow(1.0-(double)(cachePosition-3)/(VERTEX_CACHE_SIZE-3), CACHE_DECAY_POWER);
+    else if (cachePosition>=0)
+      score = LAST_TRIANGLE_SCORE;
+    return score+VALENCE_BOOST_SCALE*Math.pow(valence, -VALENCE_BOOST_POWER);
+  }
+
+  private static Long cellKey(long x, long y, long z) {
+    return ((x & 0x1fffff) << 42) | ((y & 0x1fffff) << 21) | (z & 0x1fffff);
+  }
+
+  private static boolean isDuplicate(float[] p, float[] n, float[] t, int a, int b, double tolerance) {
+    for (int i=0; i<3; i++) {
+      if (Math.abs(p[a*3+i]-p[b*3+i])>tolerance) return false;
+      if (Math.abs(n[a*3+i]-n[b*3+i])>tolerance) return false;
+    }
+    for (int i=0; i<2; i++)
+      if (Math.abs(t[a*2+i]-t[b*2+i])>tolerance) return false;
+    return true;
+  }
+
+}
@@ -0,0 +1,379 @@
+/**
+ * Simplifies a Mesh to a target number of triangles using quadric error metrics
+ * (Garland and Heckbert). Each vertex has a quadric, the sum of the squared distances to the
+ * planes of its triangles, and the edge whose collapse adds least error is collapsed first.
+ * Collapses are half-edge collapses: one end of the edge moves onto the other, so every
+ * remaining vertex keeps its original position, normal and texture coordinates.
+ *
+ * Vertices that share their position with another vertex, i.e. lie on a texture seam or a
+ * hard edge such as those of createHardCube, are never moved, so seams and hard edges are
+ * kept. Edges on the boundary of an open mesh add a heavily weighted plane at right angles to
+ * their triangle, so the outline of the mesh is kept.
+ * Collapses that would move the surface further than a maximum error are not made, so a
+ * target may not be reached if it could only be reached by badly distorting the Mesh.
+ */
+
+import java.util.*;
+
+public class MeshSimplifier {
+
+  public static final double DEFAULT_MAX_ERROR = 0.05;   // as a fraction of the largest dimension of the mesh
+
+  private static final double BOUNDARY_WEIGHT = 1000.0;  // weight of the planes that keep boundary edges in place
+  private static final double MIN_NORMAL_DOT = 0.2;      // collapses turning a triangle further than this are rejected
+
+  private static class Collapse implements Comparable<Collapse> {
+    final double cost;
+    final int from, to;       // the vertex that is removed, and the vertex it moves onto
+    final int fromStamp, toStamp;
+
+    Collapse(double cost, int from, int to, int fromStamp, int toStamp) {
+      this.cost = cost;
+      this.from = from;
+      this.to = to;
+      this.fromStamp = fromStamp;
+      this.toStamp = toStamp;
+    }
+
+    public int compareTo(Collapse c) {
+      return Double.compare(cost, c.cost);
+    }
+  }
+
+  private final float[] p;
+  private final int[] tris;
+  private final boolean[] locked;
+  private final boolean[] removed;     // triangles
+  private final double[][] quadrics;   // 10 coefficients of the symmetric 4x4 matrix, and the area of the triangles, per vertex
+  private final int[][] vertexTriangles;
+  private final int[] numVertexTriangles;
+  private final int[] stamp;           // changed when a vertex is removed or its quadric changes
+  private final PriorityQueue<Collapse> queue = new PriorityQueue<Collapse>();
+  private int numTriangles;
+  private double maxErrorSquared;
+
+  private MeshSimplifier(MeshData data) {
+    int numVertices = data.getNumVertices();
+    p = data.getPositions();
+    tris = data.getIndices().clone();
+    numTriangles = data.getNumTriangles();
+    removed = new boolean[numTriangles];
+    quadrics = new double[numVertices][11];
+    stamp = new int[numVertices];
+
+    numVertexTriangles = new int[numVertices];
+    for (int i=0; i<numTriangles*3; i++)
+      numVertexTriangles[tris[i]]++;
+    vertexTriangles = new int[numVertices][];
+    for (int v=0; v<numVertices; v++)
+      vertexTriangles[v] = new int[Math.max(4, numVertexTriangles[v])];
+    Arrays.fill(numVertexTriangles, 0);
+    for (int t=0; t<numTriangles; t++)
+      for (int j=0; j<3; j++) {
+        int v = tris[t*3+j];
+        vertexTriangles[v][numVertexTriangles[v]++] = t;
+      }
+
+    // Lock vertices that share their position with another vertex
+    locked = new boolean[numVertices];
+    HashMap<String, Integer> positions = new HashMap<String, Integer>();
+    for (int v=0; v<numVertices; v++) {
+      String key = p[v*3]+","+p[v*3+1]+","+p[v*3+2];
+      Integer other = positions.put(key, v);
+      if (other!=null)
+        locked[v] = locked[other] = true;
+    }
+
+    // Triangle plane quadrics, weighted by area
+    for (int t=0; t<numTriangles; t++) {
+      double[] plane = trianglePlane(tris[t*3], tris[t*3+1], tris[t*3+2]);
+      if (plane==null) continue;
+      for (int j=0; j<3; j++) {
+        addPlane(quadrics[tris[t*3+j]], plane, plane[4]);
+        quadrics[tris[t*3+j]][10] += plane[4];
+      }
+    }
+
+    // Boundary edge quadrics: an edge used by one triangle only
+    HashMap<Long, Integer> edges = new HashMap<Long, Integer>();
+    for (int t=0; t<numTriangles; t++)
+      for (int j=0; j<3; j++) {
+        long key = edgeKey(tris[t*3+j], tris[t*3+(j+1)%3]);
+        Integer count = edges.get(key);
+        edges.put(key, (count==null) ? 1 : count+1);
+      }
+    for (int t=0; t<numTriangles; t++) {
+      double[] plane = trianglePlane(tris[t*3], tris[t*3+1], tris[t*3+2]);
+      if (plane==null) continue;
+      for (int j=0; j<3; j++) {
+        int a = tris[t*3+j], b = tris[t*3+(j+1)%3];
+        if (edges.get(edgeKey(a, b))!=1) continue;
+        double[] boundary = boundaryPlane(a, b, plane);
+        if (boundary==null) continue;
+        addPlane(quadrics[a], boundary, BOUNDARY_WEIGHT*boundary[4]);
+        addPlane(quadrics[b], boundary, BOUNDARY_WEIGHT*boundary[4]);
+      }
+    }
+
+    for (int t=0; t<numTriangles; t++)
+      for (int j=0; j<3; j++)
+        pushCollapses(tris[t*3+j], tris[t*3+(j+1)%3]);
+  }
+
+  /**
+   * Creates a simplified copy of a Mesh, with a maximum error of DEFAULT_MAX_ERROR.
+   *
+   * @param  mesh             the Mesh to simplify
+   * @param  targetTriangles  the number of triangles to reduce the Mesh to
+   * @return  the simplified Mesh
+   */
+  public static Mesh simplify(Mesh mesh, int targetTriangles) {
+    return simplify(mesh, targetTriangles, DEFAULT_MAX_ERROR);
+  }
+
+  /**
+   * Creates a simplified copy of a Mesh. The original Mesh is not changed.
+   * The simplified Mesh has the same Material, and its vertices keep their original normals
+   * and texture coordinates. Unused vertices are removed.
+   *
+   * @param  mesh             the Mesh to simplify
+   * @param  targetTriangles  the number of triangles to reduce the Mesh to. Fewer collapses
+   *                          are made if seams, hard edges, folded triangles or the maximum
+   *                          error prevent them.
+   * @param  maxError         the largest root mean square distance a vertex may be moved from
+   *                          the planes of its original triangles, as a fraction of the
+   *                          largest dimension of the Mesh
+   * @return  the simplified Mesh
+   */
+  public static Mesh simplify(Mesh mesh, int targetTriangles, double maxError) {
+    BoundingBox box = mesh.getBoundingBox();
+    double size = Math.max(box.getRangeX(), Math.max(box.getRangeY(), box.getRangeZ()));
+    MeshSimplifier s = new MeshSimplifier(mesh.getData());
+    s.maxErrorSquared = (maxError*size)*(maxError*size);
+    s.collapseTo(targetTriangles);
+    return s.createMesh(mesh);
+  }
+
+  /**
+   * Creates a chain of levels of detail by simplifying a Mesh to smaller and smaller
+   * numbers of triangles. Each level is simplified from the Mesh itself, so the error
+   * of each level is measured against the original surface.
+   *
+   * @param  mesh    the most detailed level
+   * @param  levels  number of levels of detail, including the Mesh itself
+   * @param  ratio   the number of triangles in each level, as a fraction of the level before
+   * @return  the levels of detail, most detailed (the Mesh itself) first
+   */
+  public static Mesh[] createLODs(Mesh mesh, int levels, double ratio) {
+    Mesh[] lods = new Mesh[levels];
+    lods[0] = mesh;
+    double target = mesh.getNumTriangles();
+    for (int i=1; i<levels; i++) {
+      target *= ratio;
+      lods[i] = simplify(mesh, (int)target);
+    }
+    return lods;
+  }
+
+  private void collapseTo(int targetTriangles) {
+    while (numTriangles>targetTriangles && !queue.isEmpty()) {
+      Collapse c = queue.poll();
+      if (c.fromStamp!=stamp[c.from] || c.toStamp!=stamp[c.to]) continue;  // out of date
+      double area = quadrics[c.from][10]+quadrics[c.to][10];
+      if (area>0 && c.cost/area>maxErrorSquared) continue;
+      if (!isValid(c.from, c.to)) continue;
+      collapse(c.from, c.to);
+    }
+  }
+
+  // Moves vertex u onto vertex v, removing the triangles that use both
+  private void collapse(int u, int v) {
+    for (int k=0; k<numVertexTriangles[u]; k++) {
+      int t = vertexTriangles[u][k];
+      if (removed[t]) continue;
+      if (tris[t*3]==v || tris[t*3+1]==v || tris[t*3+2]==v) {
+        removed[t] = true;
+        numTriangles--;
+      }
+      else {
+        for (int j=0; j<3; j++)
+          if (tris[t*3+j]==u) tris[t*3+j] = v;
+        addVertexTriangle(v, t);
+      }
+    }
+    numVertexTriangles[u] = 0;
+    for (int i=0; i<11; i++)
+      quadrics[v][i] += quadrics[u][i];
+    stamp[u]++;
+    stamp[v]++;
+
+    // Compact v's triangle list, and queue new collapses for the edges around v
+    int n = 0;
+    for (int k=0; k<numVertexTriangles[v]; k++) {
+      int t = vertexTriangles[v][k];
+      if (!removed[t]) vertexTriangles[v][n++] = t;
+    }
+    numVertexTriangles[v] = n;
+    for (int k=0; k<n; k++) {
+      int t = vertexTriangles[v][k];
+      for (int j=0; j<3; j++) {
+        int w = tris[t*3+j];
+        if (w!=v) pushCollapses(v, w);
+      }
+    }
+  }
+
+  // A collapse is valid if it keeps the surface manifold, i.e. the only vertices joined to both
+  // u and v are those of the triangles using edge (u,v), and if no remaining triangle around u
+  // becomes degenerate or folds over
+  private boolean isValid(int u, int v) {
+    int shared = 0;
+    for (int k=0; k<numVertexTriangles[u]; k++) {
+      int t = vertexTriangles[u][k];
+      if (!removed[t] && (tris[t*3]==v || tris[t*3+1]==v || tris[t*3+2]==v)) shared++;
+    }
+    if (shared==0) return false;  // no longer an edge
+    int common = 0;
+    HashSet<Integer> neighbours = new HashSet<Integer>();
+    for (int k=0; k<numVertexTriangles[u]; k++) {
+      int t = vertexTriangles[u][k];
+      if (removed[t]) continue;
+      for (int j=0; j<3; j++)
+        if (tris[t*3+j]!=u && tris[t*3+j]!=v) neighbours.add(tris[t*3+j]);
+    }
+    HashSet<Integer> counted = new HashSet<Integer>();
+    for (int k=0; k<numVertexTriangles[v]; k++) {
+      int t = vertexTriangles[v][k];
+      if (removed[t]) continue;
+      for (int j=0; j<3; j++) {
+        int w = tris[t*3+j];
+        if (neighbours.contains(w) && counted.add(w)) common++;
+      }
+    }
+    if (common!=shared) return false;
+
+    for (int k=0; k<numVertexTriangles[u]; k++) {
+      int t = vertexTriangles[u][k];
+      if (removed[t]) continue;
+      int a = tris[t*3], b = tris[t*3+1], c = tris[t*3+2];
+      if (a==v || b==v || c==v) continue;
+      double[] before = normal(a, b, c);
+      double[] after = normal(a==u?v:a, b==u?v:b, c==u?v:c);
+      double lb = Math.sqrt(before[0]*before[0]+before[1]*before[1]+before[2]*before[2]);
+      double la = Math.sqrt(after[0]*after[0]+after[1]*after[1]+after[2]*after[2]);
+      if (la==0 || lb==0) return false;
+      double dot = (before[0]*after[0]+before[1]*after[1]+before[2]*after[2])/(la*lb);
+      if (dot<MIN_NORMAL_DOT) return false;
+    }
+    return true;
+  }
+
+  // Queues the cheaper of the two half-edge collapses of edge (a,b) that moves an unlocked vertex
+  private void pushCollapses(int a, int b) {
+    if (!locked[a]) queue.add(new Collapse(cost(a, b), a, b, stamp[a], stamp[b]));
+    if (!locked[b]) queue.add(new Collapse(cost(b, a), b, a, stamp[b], stamp[a]));
+  }
+
+  // The error of moving u onto v: v's position measured against the sum of both quadrics
+  private double cost(int u, int v) {
+    return error(quadrics[u], p, v)+error(quadrics[v], p, v);
+  }
+
+  // v^T Q v for the position of vertex v
+  private static double error(double[] q, float[] p, int v) {
+    double x = p[v*3], y = p[v*3+1], z = p[v*3+2];
+    return q[0]*x*x + 2*q[1]*x*y + 2*q[2]*x*z + 2*q[3]*x
+         + q[4]*y*y + 2*q[5]*y*z + 2*q[6]*y
+         + q[7]*z*z + 2*q[8]*z
+         + q[9];
+  }
+
+  private void addVertexTriangle(int v, int t) {
+    if (numVertexTriangles[v]==vertexTriangles[v].length)
+      vertexTriangles[v] = Arrays.copyOf(vertexTriangles[v], vertexTriangles[v].length*2);
+    vertexTriangles[v][numVertexTriangles[v]++] = t;
+  }
+
+  private double[] normal(int a, int b, int c) {
+    double ax = p[b*3]-p[a*3], ay = p[b*3+1]-p[a*3+1], az = p[b*3+2]-p[a*3+2];
+    double bx = p[c*3]-p[a*3], by = p[c*3+1]-p[a*3+1], bz = p[c*3+2]-p[a*3+2];
+    return new double[]{ay*bz-az*by, az*bx-ax*bz, ax*by-ay*bx};
+  }
+
+  // The plane of a triangle as {a,b,c,d, area}, where ax+by+cz+d=0 and (a,b,c) is unit length
+  private double[] trianglePlane(int a, int b, int c) {
+    double[] n = normal(a, b, c);
+    double mag = Math.sqrt(n[0]*n[0]+n[1]*n[1]+n[2]*n[2]);
+    if (mag==0) return null;
+    n[0] /= mag; n[1] /= mag; n[2] /= mag;
+    double d = -(n[0]*p[a*3]+n[1]*p[a*3+1]+n[2]*p[a*3+2]);
+    return new double[]{n[0], n[1], n[2], d, mag*0.5};
+  }
+
+  // The plane through edge (a,b) at right angles to the plane of its triangle, as {a,b,c,d, length squared}
+  private double[] boundaryPlane(int a, int b, double[] trianglePlane) {
+    double ex = p[b*3]-p[a*3], ey = p[b*3+1]-p[a*3+1], ez = p[b*3+2]-p[a*3+2];
+    double nx = ey*trianglePlane[2]-ez*trianglePlane[1];
+    double ny = ez*trianglePlane[0]-ex*trianglePlane[2];
+    double nz = ex*trianglePlane[1]-ey*trianglePlane[0];
+    double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+    if (mag==0) return null;
+    nx /= mag; ny /= mag; nz /= mag;
+    double d = -(nx*p[a*3]+ny*p[a*3+1]+nz*p[a*3+2]);
+    return new double[]{nx, ny, nz, d, ex*ex+ey*ey+ez*ez};
+  }
+
+  // Adds weight * (plane plane^T) to a quadric held as its upper triangle
+  private static void addPlane(double[] q, double[] plane, double weight) {
+    double a = plane[0], b = plane[1], c = plane[2], d = plane[3];
+    q[0] += weight*a*a; q[1] += weight*a*b; q[2] += weight*a*c; q[3] += weight*a*d;
+    q[4] += weight*b*b; q[5] += weight*b*c; q[6] += weight*b*d;
+    q[7] += weight*c*c; q[8] += weight*c*d;
+    q[9] += weight*d*d;
+  }
+
+  private static long edgeKey(int a, int b) {
+    return (a<b) ? ((long)a<<32)|b : ((long)b<<32)|a;
+  }
+
+  // Builds the simplified Mesh from the remaining triangles and the vertices they use
+  private Mesh createMesh(Mesh original) {
+    MeshData data = original.getData();
+    int numVertices = data.getNumVertices();
+    int[] remap = new int[numVertices];
+    Arrays.fill(remap, -1);
+    int[] indices = new int[numTriangles*3];
+    int numUsed = 0;
+    for (int t=0, i=0; t<removed.length; t++) {
+      if (removed[t]) continue;
+      for (int j=0; j<3; j++) {
+        int v = tris[t*3+j];
+        if (remap[v]<0) remap[v] = numUsed++;
+        indices[i++] = remap[v];
+      }
+    }
+    float[] np = new float[numUsed*3], nn = new float[numUsed*3], nt = new float[numUsed*2];
+    for (int v=0; v<numVertices; v++) {
+      if (remap[v]<0) continue;
+      System.arraycopy(p, v*3, np, remap[v]*3, 3);
+      System.arraycopy(data.getNormals(), v*3, nn, remap[v]*3, 3);
+      System.arraycopy(data.getTextureCoords(), v*2, nt, remap[v]*2, 2);
+    }
+
+    Mesh res = new Mesh();
+    res.setVertexData(np, nn, nt);
+    res.setTriangleData(indices);
+    res.setMaterial(original.getMaterialClone());
+    MeshData rd = res.getData();
+    for (int t=0; t<rd.getNumTriangles(); t++) {
+      int a = rd.getVertexIndex(t, 0), b = rd.getVertexIndex(t, 1), c = rd.getVertexIndex(t, 2);
+      double ax = np[b*3]-np[a*3], ay = np[b*3+1]-np[a*3+1], az = np[b*3+2]-np[a*3+2];
+      double bx = np[c*3]-np[a*3], by = np[c*3+1]-np[a*3+1], bz = np[c*3+2]-np[a*3+2];
+      double nx = ay*bz-az*by, ny = az*bx-ax*bz, nz = ax*by-ay*bx;
+      double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+      if (mag!=0) rd.setTriangleNormal(t, nx/mag, ny/mag, nz/mag);
+    }
+    return res;
+  }
+
+}
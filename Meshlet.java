@@ -0,0 +1,291 @@
+/**
+ * A cluster of neighbouring triangles of a Mesh, with its own bounds and normal cone, so that
+ * a Render can skip the whole cluster when it is outside the view frustum or faces away from
+ * the eye. build splits a Mesh into meshlets of up to a given number of triangles and reorders
+ * the Mesh's triangles so that each meshlet is a contiguous range of the triangle list, which
+ * can then be drawn with a single glDrawElements call.
+ *
+ * Meshlets are grown greedily over triangles that share a vertex, preferring the triangle that
+ * adds fewest new vertices to the meshlet and then the one whose normal is closest to the
+ * meshlet's average normal, so meshlets are compact and as flat as possible, giving tight cones.
+ *
+ * The normal cone holds every triangle normal of the meshlet within a half-angle of its axis.
+ * The back-facing test is the conservative one used by meshoptimizer: the meshlet faces away
+ * from an eye at e if dot(c-e, axis) >= sin(half-angle)*|c-e| + radius, for bounding sphere
+ * centre c and radius. Meshlets whose normals spread over more than a hemisphere are never culled.
+ */
+
+import java.util.*;
+
+public class Meshlet {
+
+  public static final int DEFAULT_MAX_TRIANGLES = 124;
+  public static final int DEFAULT_MAX_VERTICES = 64;
+
+  private static final double NO_CONE = 2;  // a cutoff no cluster can pass, i.e. never back-facing
+
+  private int firstTriangle;
+  private int numTriangles;
+  private int numVertices;
+  private BoundingBox bounds;
+  private double[] centre;
+  private double radius;
+  private double[] coneAxis;
+  private double coneCutoff;
+
+  private Meshlet(int firstTriangle) {
+    this.firstTriangle = firstTriangle;
+  }
+
+  /**
+   * Gets the index of the meshlet's first triangle in the Mesh's triangle list
+   *
+   * @return  the first triangle
+   */
+  public int getFirstTriangle() { return firstTriangle; }
+
+  /**
+   * Gets the number of triangles in the meshlet
+   *
+   * @return  the number of triangles
+   */
+  public int getNumTriangles() { return numTriangles; }
+
+  /**
+   * Gets the number of different vertices used by the meshlet's triangles
+   *
+   * @return  the number of vertices
+   */
+  public int getNumVertices() { return numVertices; }
+
+  /**
+   * Gets the bounding box of the meshlet
+   *
+   * @return  the bounding box, in the Mesh's coordinates
+   */
+  public BoundingBox getBoundingBox() { return bounds; }
+
+  /**
+   * Gets the centre of the bounding sphere of the meshlet
+   *
+   * @return  x,y,z of the centre, in the Mesh's coordinates
+   */
+  public double[] getCentre() { return centre; }
+
+  /**
+   * Gets the radius of the bounding sphere of the meshlet
+   *
+   * @return  the radius
+   */
+  public double getRadius() { return radius; }
+
+  /**
+   * Tests whether the meshlet has a normal cone, i.e. whether it can ever be back-facing
+   *
+   * @return  true if all the meshlet's triangle normals lie within less than 90 degrees of the cone's axis
+   */
+  public boolean hasNormalCone() { return coneCutoff<NO_CONE; }
+
+  /**
+   * Tests whether the meshlet is outside a view frustum
+   *
+   * @param  frustum  the frustum, in the Mesh's coordinates
+   * @return  true if the meshlet's bounding sphere is entirely outside the frustum
+   */
+  public boolean isOutside(Frustum frustum) {
+    return !frustum.intersectsSphere(centre[0], centre[1], centre[2], radius);
+  }
+
+  /**
+   * Tests whether every triangle of the meshlet faces away from an eye position
+   *
+   * @param  ex  x coordinate of the eye, in the Mesh's coordinates
+   * @param  ey  y coordinate of the eye
+   * @param  ez  z coordinate of the eye
+   * @return  true if the meshlet is certainly back-facing, false if any of it may be seen
+   */
+  public boolean isBackFacing(double ex, double ey, double ez) {
+    double dx = centre[0]-ex, dy = centre[1]-ey, dz = centre[2]-ez;
+    double dist = Math.sqrt(dx*dx+dy*dy+dz*dz);
+    return dx*coneAxis[0]+dy*coneAxis[1]+dz*coneAxis[2] >= coneCutoff*dist+radius;
+  }
+
+  /**
+   * Splits a Mesh into meshlets of up to DEFAULT_MAX_TRIANGLES triangles and DEFAULT_MAX_VERTICES vertices.
+   *
+   * @param  mesh  the Mesh to split
+   * @return  the meshlets
+   */
+  public static Meshlet[] build(Mesh mesh) {
+    return build(mesh, DEFAULT_MAX_TRIANGLES, DEFAULT_MAX_VERTICES);
+  }
+
+  /**
+   * Splits a Mesh into meshlets and reorders the Mesh's triangles so that each meshlet's triangles
+   * are contiguous, in the order of the meshlets. The vertices are unchanged. As for the passes in
+   * MeshOptimiser, any Render of the Mesh must be reset afterwards, and the Mesh should not be
+   * one acquired from a MeshCache.
+   *
+   * @param  mesh          the Mesh to split
+   * @param  maxTriangles  the largest number of triangles in a meshlet
+   * @param  maxVertices   the largest number of vertices in a meshlet, at least 3
+   * @return  the meshlets
+   */
+  public static Meshlet[] build(Mesh mesh, int maxTriangles, int maxVertices) {
+    MeshData data = mesh.getData();
+    int numTriangles = data.getNumTriangles();
+    int numVertices = data.getNumVertices();
+    int[] tris = data.getIndices();
+    float[] p = data.getPositions();
+
+    // Unit normal of each triangle, from its positions, as the Mesh's triangle normals may not be set
+    double[] normals = new double[numTriangles*3];
+    for (int t=0; t<numTriangles; t++) {
+      int a = tris[t*3]*3, b = tris[t*3+1]*3, c = tris[t*3+2]*3;
+      double ux = p[b]-p[a], uy = p[b+1]-p[a+1], uz = p[b+2]-p[a+2];
+      double vx = p[c]-p[a], vy = p[c+1]-p[a+1], vz = p[c+2]-p[a+2];
+      double nx = uy*vz-uz*vy, ny = uz*vx-ux*vz, nz = ux*vy-uy*vx;
+      double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+      if (mag>0) {
+        normals[t*3] = nx/mag;
+        normals[t*3+1] = ny/mag;
+        normals[t*3+2] = nz/mag;
+      }
+    }
+
+    // Triangles using each vertex, as offsets into one array
+    int[] first = new int[numVertices+1];
+    for (int i=0; i<numTriangles*3; i++) first[tris[i]+1]++;
+    for (int v=0; v<numVertices; v++) first[v+1] += first[v];
+    int[] adjacent = new int[numTriangles*3];
+    int[] fill = Arrays.copyOf(first, numVertices);
+    for (int t=0; t<numTriangles; t++)
+      for (int j=0; j<3; j++) adjacent[fill[tris[t*3+j]]++] = t;
+
+    boolean[] assigned = new boolean[numTriangles];
+    int[] vertexStamp = new int[numVertices];     // meshlet number+1 of the last meshlet to use each vertex
+    int[] candidateStamp = new int[numTriangles]; // meshlet number+1 of the last meshlet to consider each triangle
+    int[] candidates = new int[numTriangles];
+    int[] order = new int[numTriangles];
+    int numOrdered = 0;
+    ArrayList<Meshlet> meshlets = new ArrayList<Meshlet>();
+
+    for (int seed=0; seed<numTriangles; seed++) {
+      if (assigned[seed]) continue;
+      Meshlet m = new Meshlet(numOrdered);
+      int stamp = meshlets.size()+1;
+      double[] normalSum = new double[3];
+      int numCandidates = 0;
+      int next = seed;
+      while (next>=0) {
+        // Add the triangle, and its unassigned neighbours as candidates
+        assigned[next] = true;
+        order[numOrdered++] = next;
+        m.numTriangles++;
+        for (int j=0; j<3; j++) {
+          normalSum[j] += normals[next*3+j];
+          int v = tris[next*3+j];
+          if (vertexStamp[v]!=stamp) {
+            vertexStamp[v] = stamp;
+            m.numVertices++;
+          }
+          for (int k=first[v]; k<first[v+1]; k++) {
+            int t = adjacent[k];
+            if (!assigned[t] && candidateStamp[t]!=stamp) {
+              candidateStamp[t] = stamp;
+              candidates[numCandidates++] = t;
+            }
+          }
+        }
+        if (m.numTriangles>=maxTriangles) break;
+
+        // Choose the candidate adding fewest vertices, then closest to the average normal
+        next = -1;
+        int bestNew = 4;
+        double bestDot = -Double.MAX_VALUE;
+        for (int i=0; i<numCandidates; i++) {
+          int t = candidates[i];
+          if (assigned[t]) {
+            candidates[i--] = candidates[--numCandidates];
+            continue;
+          }
+          int newVertices = 0;
+          for (int j=0; j<3; j++)
+            if (vertexStamp[tris[t*3+j]]!=stamp) newVertices++;
+          if (m.numVertices+newVertices>maxVertices) continue;
+          double dot = normals[t*3]*normalSum[0]+normals[t*3+1]*normalSum[1]+normals[t*3+2]*normalSum[2];
+          if (newVertices<bestNew || (newVertices==bestNew && dot>bestDot)) {
+            bestNew = newVertices;
+            bestDot = dot;
+            next = t;
+          }
+        }
+      }
+      m.calcBounds(tris, p, normals, order, normalSum);
+      meshlets.add(m);
+    }
+
+    // Reorder the triangles, and their normals, meshlet by meshlet
+    int[] newIndices = new int[numTriangles*3];
+    float[] triNormals = data.getTriangleNormals();
+    float[] newTriNormals = new float[numTriangles*3];
+    for (int i=0; i<numTriangles; i++) {
+      System.arraycopy(tris, order[i]*3, newIndices, i*3, 3);
+      System.arraycopy(triNormals, order[i]*3, newTriNormals, i*3, 3);
+    }
+    mesh.setTriangleData(newIndices);
+    System.arraycopy(newTriNormals, 0, mesh.getData().getTriangleNormals(), 0, numTriangles*3);
+    return meshlets.toArray(new Meshlet[meshlets.size()]);
+  }
+
+  // Calculates the bounding box, bounding sphere and normal cone of the meshlet's triangles,
+  // which are order[firstTriangle] to order[firstTriangle+numTriangles-1]
+  private void calcBounds(int[] tris, float[] p, double[] normals, int[] order, double[] normalSum) {
+    double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+    double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+    for (int i=firstTriangle; i<firstTriangle+numTriangles; i++)
+      for (int j=0; j<3; j++) {
+        int v = tris[order[i]*3+j]*3;
+        for (int k=0; k<3; k++) {
+          min[k] = Math.min(min[k], p[v+k]);
+          max[k] = Math.max(max[k], p[v+k]);
+        }
+      }
+    bounds = new BoundingBox();
+    bounds.setBounds(min, max);
+    centre = new double[]{bounds.getCentreX(), bounds.getCentreY(), bounds.getCentreZ()};
+    double r2 = 0;
+    for (int i=firstTriangle; i<firstTriangle+numTriangles; i++)
+      for (int j=0; j<3; j++) {
+        int v = tris[order[i]*3+j]*3;
+        double dx = p[v]-centre[0], dy = p[v+1]-centre[1], dz = p[v+2]-centre[2];
+        r2 = Math.max(r2, dx*dx+dy*dy+dz*dz);
+      }
+    radius = Math.sqrt(r2);
+
+    coneAxis = new double[3];
+    coneCutoff = NO_CONE;
+    double mag = Math.sqrt(normalSum[0]*normalSum[0]+normalSum[1]*normalSum[1]+normalSum[2]*normalSum[2]);
+    if (mag==0) return;
+    for (int k=0; k<3; k++) coneAxis[k] = normalSum[k]/mag;
+    double minDot = 1;
+    for (int i=firstTriangle; i<firstTriangle+numTriangles; i++) {
+      int t = order[i]*3;
+      if (normals[t]==0 && normals[t+1]==0 && normals[t+2]==0) continue;  // degenerate
+      minDot = Math.min(minDot, normals[t]*coneAxis[0]+normals[t+1]*coneAxis[1]+normals[t+2]*coneAxis[2]);
+    }
+    if (minDot>0) coneCutoff = Math.sqrt(1-minDot*minDot);
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the triangle range, bounding sphere and cone cutoff of the meshlet
+   */
+  public String toString() {
+    return "triangles "+firstTriangle+"+"+numTriangles+", vertices "+numVertices
+           +", centre ["+centre[0]+", "+centre[1]+", "+centre[2]+"], radius "+radius
+           +(hasNormalCone() ? ", cone cutoff "+coneCutoff : ", no cone");
+  }
+
+}
@@ -0,0 +1,284 @@
+/**
+ * Skips objects hidden behind others, by testing their world-space bounding boxes with hardware
+ * occlusion queries (GL_SAMPLES_PASSED). The occluders, e.g. the walls and obstacles, must be drawn
+ * first, so that the depth buffer holds them when the boxes are tested. The boxes are drawn with
+ * colour and depth writes off, so they do not change the image.
+ *
+ * Query results are never waited for, as that would stall the CPU until the GPU caught up. Instead,
+ * an object keeps the visibility found by its last query until a newer result is available, usually
+ * in the next frame, relying on objects rarely changing from visible to hidden between frames.
+ * Objects found hidden are skipped and tested again every frame, so they reappear about a frame
+ * after they come into view. Objects found visible are drawn, and only tested again every
+ * retest interval frames. An object whose box is within the near clipping distance of the eye is
+ * always visible, as the faces of its box may be clipped away.
+ *
+ * If the context has no occlusion queries, every object is visible.
+ * The queries must be released with dispose(gl).
+ */
+
+import java.util.*;
+import javax.media.opengl.*;
+
+public class OcclusionCuller {
+
+  public static final int DEFAULT_RETEST_INTERVAL = 8;
+
+  private final boolean supported;
+  private final int retestInterval;
+  private final IdentityHashMap<Object, Entry> entries = new IdentityHashMap<Object, Entry>();
+  private final int[] result = new int[1];
+  private int frame;
+  private double[] eye = new double[3];
+  private double nearDistance;              // distance from the eye to the farthest corner of the near clipping plane
+  private int queriesIssued, objectsHidden;  // counts for the current frame
+
+  private static class Entry {
+    int query;           // 0 until the object is first tested
+    boolean visible = true;
+    boolean pending;     // a query has been issued and its result not yet read
+    int lastTested;      // the frame the last query was issued in
+  }
+
+  /**
+   * Constructor, with the default retest interval.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public OcclusionCuller(GL2 gl) {
+    this(gl, DEFAULT_RETEST_INTERVAL);
+  }
+
+  /**
+   * Constructor.
+   *
+   * @param  gl              the OpenGL context.
+   * @param  retestInterval  the number of frames between tests of an object found visible
+   */
+  public OcclusionCuller(GL2 gl, int retestInterval) {
+    this.retestInterval = Math.max(1, retestInterval);
+    boolean queries = gl.isFunctionAvailable("glBeginQuery") && gl.isFunctionAvailable("glGetQueryObjectuiv");
+    if (queries) {
+      int[] bits = new int[1];
+      gl.glGetQueryiv(GL2.GL_SAMPLES_PASSED, GL2.GL_QUERY_COUNTER_BITS, bits, 0);
+      queries = bits[0] > 0;
+    }
+    supported = queries;
+  }
+
+  /**
+   * Tests whether occlusion queries are used
+   *
+   * @return  true if the context supports occlusion queries
+   */
+  public boolean isSupported() {
+    return supported;
+  }
+
+  /**
+   * Starts a new frame, resetting the counts.
+   *
+   * @param  projection  the projection matrix, as glFrustum, in column-major order
+   * @param  view        the viewing transformation, in column-major order
+   */
+  public void beginFrame(double[] projection, double[] view) {
+    frame++;
+    queriesIssued = objectsHidden = 0;
+    eye = Render.eyePosition(view);
+    // The near distance, and the half-width and half-height of the near plane divided by it
+    double near = projection[14]/(projection[10]-1);
+    double x = (1+Math.abs(projection[8]))/projection[0], y = (1+Math.abs(projection[9]))/projection[5];
+    nearDistance = near*Math.sqrt(1+x*x+y*y);
+  }
+
+  /**
+   * Tests whether an object may be visible, from the latest query result available, and issues a new
+   * query on its box if it is due to be tested. The modelview matrix must hold the viewing
+   * transformation, and the occluders must already have been drawn.
+   *
+   * @param  gl   the OpenGL context.
+   * @param  key  identifies the object from frame to frame, e.g. its Render
+   * @param  box  the bounding box of the object, in world space
+   * @return  false if the object was hidden when last tested
+   */
+  public boolean isVisible(GL2 gl, Object key, BoundingBox box) {
+    if (!supported) return true;
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry();
+      entry.lastTested = frame-retestInterval;
+      entries.put(key, entry);
+    }
+
+    if (entry.pending) {
+      gl.glGetQueryObjectuiv(entry.query, GL2.GL_QUERY_RESULT_AVAILABLE, result, 0);
+      if (result[0] != GL.GL_FALSE) {
+        gl.glGetQueryObjectuiv(entry.query, GL2.GL_QUERY_RESULT, result, 0);
+        entry.visible = result[0] > 0;
+        entry.pending = false;
+      }
+    }
+
+    if (containsEye(box)) {
+      entry.visible = true;
+      entry.lastTested = frame;
+    }
+    else if (!entry.pending && (!entry.visible || frame-entry.lastTested >= retestInterval)) {
+      if (entry.query == 0) {
+        gl.glGenQueries(1, result, 0);
+        entry.query = result[0];
+      }
+      gl.glBeginQuery(GL2.GL_SAMPLES_PASSED, entry.query);
+      drawBox(gl, box);
+      gl.glEndQuery(GL2.GL_SAMPLES_PASSED);
+      entry.pending = true;
+      entry.lastTested = frame;
+      queriesIssued++;
+    }
+
+    if (!entry.visible) objectsHidden++;
+    return entry.visible;
+  }
+
+  // Tests whether the box, grown by the near clipping distance, contains the eye
+  private boolean containsEye(BoundingBox box) {
+    double[] min = box.getMinimumBounds(), max = box.getMaximumBounds();
+    for (int i=0; i<3; i++)
+      if (eye[i] < min[i]-nearDistance || eye[i] > max[i]+nearDistance) return false;
+    return true;
+  }
+
+  // Draws the faces of a box, depth tested but without writing to the colour or depth buffers
+  private static void drawBox(GL2 gl, BoundingBox box) {
+    double[] a = box.getMinimumBounds(), b = box.getMaximumBounds();
+    gl.glPushAttrib(GL2.GL_ENABLE_BIT | GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
+    gl.glDisable(GL2.GL_LIGHTING);
+    gl.glDisable(GL2.GL_TEXTURE_2D);
+    gl.glDisable(GL2.GL_CULL_FACE);
+    gl.glEnable(GL2.GL_DEPTH_TEST);
+    gl.glColorMask(false, false, false, false);
+    gl.glDepthMask(false);
+    gl.glBegin(GL2.GL_QUADS);
+    gl.glVertex3d(a[0], a[1], a[2]); gl.glVertex3d(a[0], b[1], a[2]); gl.glVertex3d(b[0], b[1], a[2]); gl.glVertex3d(b[0], a[1], a[2]);
+    gl.glVertex3d(a[0], a[1], b[2]); gl.glVertex3d(b[0], a[1], b[2]); gl.glVertex3d(b[0], b[1], b[2]); gl.glVertex3d(a[0], b[1], b[2]);
+    gl.glVertex3d(a[0], a[1], a[2]); gl.glVertex3d(a[0], a[1], b[2]); gl.glVertex3d(a[0], b[1], b[2]); gl.glVertex3d(a[0], b[1], a[2]);
+    gl.glVertex3d(b[0], a[1], a[2]); gl.glVertex3d(b[0], b[1], a[2]); gl.glVertex3d(b[0], b[1], b[2]); gl.glVertex3d(b[0], a[1], b[2]);
+    gl.glVertex3d(a[0], a[1], a[2]); gl.glVertex3d(b[0], a[1], a[2]); gl.glVertex3d(b[0], a[1], b[2]); gl.glVertex3d(a[0], a[1], b[2]);
+    gl.glVertex3d(a[0], b[1], a[2]); gl.glVertex3d(a[0], b[1], b[2]); gl.glVertex3d(b[0], b[1], b[2]); gl.glVertex3d(b[0], b[1], a[2]);
+    gl.glEnd();
+    gl.glPopAttrib();
+  }
+
+  /**
+   * Gets the number of queries issued since the frame began
+   *
+   * @return  the number of queries issued
+   */
+  public int getQueriesIssued() {
+    return queriesIssued;
+  }
+
+  /**
+   * Gets the number of objects found hidden since the frame began
+   *
+   * @return  the number of calls of isVisible that returned false
+   */
+  public int getObjectsHidden() {
+    return objectsHidden;
+  }
+
+  /**
+   * Deletes the queries. Every object is tested afresh if the culler is used afterwards.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    for (Entry entry : entries.values())
+      if (entry.query != 0) gl.glDeleteQueries(1, new int[]{entry.query}, 0);
+    entries.clear();
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the objects hidden and queries issued since the frame began
+   */
+  public String toString() {
+    return objectsHidden+" objects hidden, "+queriesIssued+" queries issued";
+  }
+
+  /**
+   * Test harness. Draws an occluder in front of one box and behind another, and prints whether
+   * each box is visible over several frames, then with the occluder removed. A third box is placed
+   * behind the occluder by a modelling transform, as the scene places the lamp, and tested in world
+   * space with the modelview holding only the view, so it should be hidden with the first. It draws offscreen,
+   * so it can be run without a display on a software OpenGL, e.g. Mesa's llvmpipe:
+   *
+   *   LIBGL_ALWAYS_SOFTWARE=1 xvfb-run java OcclusionCuller
+   */
+  public static void main(String[] args) {
+    GLProfile profile = GLProfile.get(GLProfile.GL2);
+    GLCapabilities caps = new GLCapabilities(profile);
+    caps.setOnscreen(false);
+    caps.setDepthBits(24);
+    GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(profile).createOffscreenAutoDrawable(null, caps, null, 128, 128, null);
+    final BoundingBox behind = new BoundingBox(), inFront = new BoundingBox(), aroundEye = new BoundingBox();
+    behind.setBounds(new double[]{-0.5, -0.5, -6}, new double[]{0.5, 0.5, -5});
+    inFront.setBounds(new double[]{-0.25, -0.25, -1.5}, new double[]{0.25, 0.25, -1});
+    aroundEye.setBounds(new double[]{-1, -1, -1}, new double[]{1, 1, 1});
+    MatrixStack placement = new MatrixStack();
+    placement.translate(0, 0, -5.5);
+    BoundingBox local = new BoundingBox();
+    local.setBounds(new double[]{-0.5, -0.5, -0.5}, new double[]{0.5, 0.5, 0.5});
+    final BoundingBox placed = MatrixStack.transformBox(placement.getMatrix(), local);
+    final double[] projection = MatrixStack.perspective(60, 1, 0.1, 100), view = MatrixStack.identity();
+
+    drawable.addGLEventListener(new GLEventListener() {
+      OcclusionCuller culler;
+      int frame;
+
+      public void init(GLAutoDrawable drawable) {
+        GL2 gl = drawable.getGL().getGL2();
+        System.out.println(gl.glGetString(GL.GL_RENDERER));
+        culler = new OcclusionCuller(gl, 4);
+        System.out.println("Occlusion queries "+(culler.isSupported() ? "supported" : "not supported"));
+      }
+
+      public void display(GLAutoDrawable drawable) {
+        GL2 gl = drawable.getGL().getGL2();
+        boolean occluder = frame < 6;
+        gl.glEnable(GL.GL_DEPTH_TEST);
+        gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
+        gl.glMatrixMode(GL2.GL_PROJECTION);
+        gl.glLoadMatrixd(projection, 0);
+        gl.glMatrixMode(GL2.GL_MODELVIEW);
+        gl.glLoadMatrixd(view, 0);
+        if (occluder) {
+          gl.glBegin(GL2.GL_QUADS);  // fills the view at z = -2
+          gl.glVertex3d(-2, -2, -2);
+          gl.glVertex3d(2, -2, -2);
+          gl.glVertex3d(2, 2, -2);
+          gl.glVertex3d(-2, 2, -2);
+          gl.glEnd();
+        }
+        culler.beginFrame(projection, view);
+        // Expect behind and placed to be hidden from the frame after the first, until a frame after the occluder goes
+        System.out.println("Frame "+frame+(occluder ? " with" : " without")+" occluder - behind "
+                           +culler.isVisible(gl, behind, behind)+", in front "+culler.isVisible(gl, inFront, inFront)
+                           +", around eye "+culler.isVisible(gl, aroundEye, aroundEye)
+                           +", placed "+culler.isVisible(gl, placed, placed)+" - "+culler);
+        frame++;
+      }
+
+      public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+      }
+
+      public void dispose(GLAutoDrawable drawable) {
+        culler.dispose(drawable.getGL().getGL2());
+      }
+    });
+
+    for (int i=0; i<12; i++) drawable.display();
+    drawable.destroy();
+  }
+
+}
@@ -0,0 +1,234 @@
+/**
+ * Per-pixel Phong lighting, replacing the fixed-function lighting of the vertices. The shader reads
+ * the lights and material from the OpenGL state, as set by Light.use and Render.setMaterial, so the
+ * same Light and Material objects drive either pipeline. The normal and eye-space position are
+ * interpolated across each triangle and the lighting is calculated at each pixel, so a spotlight
+ * lights a large plane made of only two triangles, and no GL_NORMALIZE is needed. Spotlights fade
+ * out smoothly over the outer part of their cone, rather than being cut off sharply.
+ * The vertex position is calculated with ftransform, so it matches the fixed-function pipeline
+ * exactly, e.g. for a depth pre-pass.
+ *
+ * Made with ClusteredLights, the shader evaluates the lights binned into each pixel's cluster instead of
+ * the eight OpenGL light sources, so any number of lights can be used.
+ *
+ * Whether the texture is applied is a uniform, which the drawing code sets with setTextured
+ * wherever it enables or disables texturing. If the shaders cannot be compiled, isValid returns
+ * false and the fixed-function pipeline should be used.
+ * The shader must be released with dispose(gl) when it is no longer needed.
+ */
+
+import javax.media.opengl.*;
+
+public class PhongShader {
+
+  public static final int MAX_LIGHTS = 8;
+  public static final float SOFT_EDGE = 0.2f;  // fraction of a spotlight's cut-off angle it fades out over
+
+  private static final String VERTEX_SHADER =
+      "#version 120\n"
+    + "varying vec3 position;\n"
+    + "varying vec3 normal;\n"
+    + "void main() {\n"
+    + "  position = vec3(gl_ModelViewMatrix*gl_Vertex);\n"
+    + "  normal = gl_NormalMatrix*gl_Normal;\n"
+    + "  gl_TexCoord[0] = gl_TextureMatrix[0]*gl_MultiTexCoord0;\n"
+    + "  gl_Position = ftransform();\n"
+    + "}\n";
+
+  /**
+   * A GLSL function giving the lit colour of a point from the lights switched on in the lightOn uniform,
+   * for a material passed in, so that shaders taking the material from elsewhere than gl_FrontMaterial
+   * light the same way. The source must be passed through source() before compiling.
+   */
+  static final String LIGHTING_FUNCTION =
+      "uniform bool lightOn[MAX_LIGHTS];\n"
+    + "vec4 lighting(vec3 position, vec3 n, vec4 emission, vec4 ambient, vec4 diffuse, vec4 specular, float shininess) {\n"
+    + "  vec3 v = normalize(-position);\n"
+    + "  vec4 colour = emission+ambient*gl_LightModel.ambient;\n"
+    + "  for (int i=0; i<MAX_LIGHTS; i++) {\n"
+    + "    if (!lightOn[i]) continue;\n"
+    + "    vec4 p = gl_LightSource[i].position;\n"
+    + "    vec3 l = (p.w == 0.0) ? p.xyz : p.xyz-position;\n"
+    + "    float d = length(l);\n"
+    + "    l = normalize(l);\n"
+    + "    float attenuation = (p.w == 0.0) ? 1.0 : 1.0/(gl_LightSource[i].constantAttenuation\n"
+    + "        +gl_LightSource[i].linearAttenuation*d+gl_LightSource[i].quadraticAttenuation*d*d);\n"
+    + "    if (gl_LightSource[i].spotCutoff != 180.0) {\n"
+    + "      float s = dot(-l, normalize(gl_LightSource[i].spotDirection));\n"
+    + "      float inner = cos(radians(gl_LightSource[i].spotCutoff*(1.0-SOFT_EDGE)));\n"
+    + "      attenuation *= smoothstep(gl_LightSource[i].spotCosCutoff, inner, s)\n"
+    + "                     *pow(max(s, 0.0), gl_LightSource[i].spotExponent);\n"
+    + "    }\n"
+    + "    float nDotL = max(dot(n, l), 0.0);\n"
+    + "    vec4 c = gl_LightSource[i].ambient*ambient+nDotL*gl_LightSource[i].diffuse*diffuse;\n"
+    + "    if (nDotL > 0.0)\n"
+    + "      c += pow(max(dot(n, normalize(l+v)), 0.0), shininess)*gl_LightSource[i].specular*specular;\n"
+    + "    colour += attenuation*c;\n"
+    + "  }\n"
+    + "  return clamp(vec4(colour.rgb, diffuse.a), 0.0, 1.0);\n"
+    + "}\n";
+
+  private static final String FRAGMENT_SHADER =
+      "#version 120\n"
+    + "LIGHTING_FUNCTION"
+    + "uniform bool textured;\n"
+    + "uniform sampler2D textureMap;\n"
+    + "varying vec3 position;\n"
+    + "varying vec3 normal;\n"
+    + "void main() {\n"
+    + "  vec4 colour = lighting(position, normalize(normal), gl_FrontMaterial.emission, gl_FrontMaterial.ambient,\n"
+    + "                         gl_FrontMaterial.diffuse, gl_FrontMaterial.specular, gl_FrontMaterial.shininess);\n"
+    + "  gl_FragColor = textured ? colour*texture2D(textureMap, gl_TexCoord[0].st) : colour;\n"
+    + "}\n";
+
+  private ShaderProgram shader;
+  private ClusteredLights clustered;
+  private int[] lightOn;  // locations of the lightOn uniforms, or null with clustered lights
+  private boolean inUse, textured;
+
+  /**
+   * Constructor. Compiles the shaders.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public PhongShader(GL2 gl) {
+    this(gl, null);
+  }
+
+  /**
+   * Constructor. Compiles the shaders, to light with the lights of a ClusteredLights if one is given.
+   *
+   * @param  gl         the OpenGL context.
+   * @param  clustered  the lights, which must be supported, binned and uploaded before use, or null
+   *                    to use the OpenGL light sources
+   */
+  public PhongShader(GL2 gl, ClusteredLights clustered) {
+    this.clustered = clustered;
+    String lighting = (clustered == null) ? LIGHTING_FUNCTION : ClusteredLights.source(ClusteredLights.LIGHTING_FUNCTION);
+    shader = new ShaderProgram(gl, VERTEX_SHADER, source(FRAGMENT_SHADER.replace("LIGHTING_FUNCTION", lighting)));
+    if (!shader.isValid()) shader = null;
+    else if (clustered == null) lightOn = getLightOnLocations(gl, shader);
+  }
+
+  /**
+   * Fills in the constants of shader source using LIGHTING_FUNCTION
+   *
+   * @param  source  the source
+   * @return  the source with MAX_LIGHTS and SOFT_EDGE replaced by their values
+   */
+  static String source(String source) {
+    return source.replace("MAX_LIGHTS", ""+MAX_LIGHTS).replace("SOFT_EDGE", ""+SOFT_EDGE);
+  }
+
+  /**
+   * Gets the locations of the lightOn uniform of a shader using LIGHTING_FUNCTION, for setLights
+   *
+   * @param  gl      the OpenGL context.
+   * @param  shader  the shader
+   * @return  the location of each element of lightOn
+   */
+  static int[] getLightOnLocations(GL2 gl, ShaderProgram shader) {
+    int[] locations = new int[MAX_LIGHTS];
+    for (int i=0; i<MAX_LIGHTS; i++)
+      locations[i] = shader.getUniformLocation(gl, "lightOn["+i+"]");
+    return locations;
+  }
+
+  /**
+   * Sets the lightOn uniform of a current shader using LIGHTING_FUNCTION, from the lights enabled
+   * as the context's GLStateCache knows them.
+   *
+   * @param  gl       the OpenGL context.
+   * @param  lightOn  the locations of the elements of lightOn, from getLightOnLocations
+   */
+  static void setLights(GL2 gl, int[] lightOn) {
+    int enabled = GLStateCache.get(gl).getEnabledLights();
+    for (int i=0; i<MAX_LIGHTS; i++)
+      gl.glUniform1i(lightOn[i], (enabled & (1<<i)) != 0 ? 1 : 0);
+  }
+
+  /**
+   * Switches a light on or off in the lighting, as its OpenGL light source is enabled or disabled, without
+   * setting the others as use does. Does nothing unless the shader is current and uses the OpenGL lights.
+   *
+   * @param  gl     the OpenGL context.
+   * @param  index  the light, e.g. GL_LIGHT1
+   * @param  on     true if the light is enabled
+   */
+  public void setLightOn(GL2 gl, int index, boolean on) {
+    if (!inUse || clustered != null || index-GL2.GL_LIGHT0 >= MAX_LIGHTS) return;
+    gl.glUniform1i(lightOn[index-GL2.GL_LIGHT0], on ? 1 : 0);
+  }
+
+  /**
+   * Tests whether the shaders compiled and linked
+   *
+   * @return  true if per-pixel lighting can be used
+   */
+  public boolean isValid() {
+    return shader != null;
+  }
+
+  /**
+   * Makes the shader current, untextured. The lights enabled at this point are the ones used,
+   * so it should be called again if a light is switched on or off, or the clustered lights are uploaded.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void use(GL2 gl) {
+    shader.use(gl);
+    inUse = true;
+    if (clustered != null)
+      clustered.bind(gl, shader);
+    else
+      setLights(gl, lightOn);
+    gl.glUniform1i(shader.getUniformLocation(gl, "textureMap"), 0);
+    textured = true;
+    setTextured(gl, false);
+  }
+
+  /**
+   * Sets whether the bound texture is applied. Does nothing unless the shader is current.
+   *
+   * @param  gl        the OpenGL context.
+   * @param  textured  true if texturing is enabled
+   */
+  public void setTextured(GL2 gl, boolean textured) {
+    if (!inUse || textured == this.textured) return;
+    this.textured = textured;
+    gl.glUniform1i(shader.getUniformLocation(gl, "textured"), textured ? 1 : 0);
+  }
+
+  /**
+   * Makes the shader current again, after another program has been used while it was in use, e.g. by
+   * an InstancedRenderer or SkinningShader. The lights and texturing are kept, as they were last set.
+   * Does nothing unless the shader is in use, i.e. use has been called since stop.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void resume(GL2 gl) {
+    if (inUse) shader.use(gl);
+  }
+
+  /**
+   * Returns to the fixed-function pipeline.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void stop(GL2 gl) {
+    shader.stop(gl);
+    inUse = false;
+  }
+
+  /**
+   * Deletes the shader. The object must not be used afterwards.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    if (shader != null) shader.dispose(gl);
+    shader = null;
+    inUse = false;
+  }
+
+}
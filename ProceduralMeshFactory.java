@@ -1,6 +1,7 @@
 /**
  * Methods to create mesh instances
- * Need to add a sphere method too.
+ * Spheres, cones and frustums are created with analytic normals and uv coordinates,
+ * and each can be created as a chain of levels of detail, from most to least detailed.
  *
  * @author    Dr Steve Maddock
  * @version   2.0 (09/09/2011)
@@ -51,47 +52,41 @@ public class ProceduralMeshFactory {
     double txStepZ=tilingN/(n-1);
 
     int numVertices=m*n;
-    Vertex[] vertices=new Vertex[numVertices];
- 
     int numTriangles=2*(m-1)*(n-1);
-    Triangle[] triangles=new Triangle[numTriangles];
+    MeshData data=new MeshData(numVertices, numTriangles);
  
     // negate all z coordinates so that they run from depth/2 to -depth/2
     // and be careful of winding order
 
     for (int i=0; i<n; i++) {
-      vertices[i] = new Vertex(startM, 0.0, -(startN+i*stepN), 0, i*txStepZ);
+      setVertex(data, i, startM, 0.0, -(startN+i*stepN), 0, i*txStepZ);
     }
 
     for (int j=1; j<m; j++) {
       vertoffset+=n;
       texu=j*txStepX;
-      vertices[vertoffset] = new Vertex(startM+j*stepM, 0.0, -startN, texu, 0);
+      setVertex(data, vertoffset, startM+j*stepM, 0.0, -startN, texu, 0);
       for (int i=1; i<n; i++) {
-        vertices[vertoffset+i] = new Vertex(startM+j*stepM, 0.0, -(startN+i*stepN), texu, i*txStepZ);
+        setVertex(data, vertoffset+i, startM+j*stepM, 0.0, -(startN+i*stepN), texu, i*txStepZ);
         int vi1 = vertoffset+i, vi2 = vertoffset+i-n-1,
         vi3 = vertoffset+i-1, vi4 = vertoffset+i-n;
-        triangles[trioffset++] = new Triangle(vi1, vi2, vi3);
-        triangles[trioffset++] = new Triangle(vi2, vi1, vi4);
+        data.setVertexIndices(trioffset++, vi1, vi2, vi3);
+        data.setVertexIndices(trioffset++, vi2, vi1, vi4);
       }
     }
 
-    Mesh mesh = new Mesh();
-    mesh.setVertices(vertices);
-    mesh.setTriangles(triangles);    
-    
     // Set Normals;
     for (int i=0; i<numVertices; ++i) {
-      vertices[i].setNormal(0,1,0);
+      data.setNormal(i,0,1,0);
     }
     for (int i=0; i<numTriangles; ++i) {
-      triangles[i].setTriangleNormal(0,1,0);
+      data.setTriangleNormal(i,0,1,0);
     }
 	
     //Calc Normals; - not required, as all the normals point in the same direction so can just be set
     //mesh.calcSmoothNormals();
 	
-    return mesh;
+    return createMesh(data);
   }
 
 
@@ -118,113 +113,107 @@ public class ProceduralMeshFactory {
   
   private static Mesh createMeshHardCube(double width, double height, double depth,
                                          boolean textured) {
-    Vertex[] vertices=new Vertex[24];
-    Triangle[] triangles=new Triangle[12];
+    MeshData data=new MeshData(24, 12);
 
     // Need 3 different copies of each vertex
     for (int i=0; i<3; i++) {
       int offset=i*8;
-      vertices[offset]=new Vertex(-width/2, -height/2, -depth/2);
-      vertices[offset+1]=new Vertex(-width/2, -height/2, depth/2);
-      vertices[offset+2]=new Vertex(-width/2, height/2, -depth/2);
-      vertices[offset+3]=new Vertex(-width/2, height/2, depth/2);
-      vertices[offset+4]=new Vertex(width/2, -height/2, -depth/2);
-      vertices[offset+5]=new Vertex(width/2, -height/2, depth/2);
-      vertices[offset+6]=new Vertex(width/2, height/2, -depth/2);
-      vertices[offset+7]=new Vertex(width/2, height/2, depth/2);
+      data.setPosition(offset, -width/2, -height/2, -depth/2);
+      data.setPosition(offset+1, -width/2, -height/2, depth/2);
+      data.setPosition(offset+2, -width/2, height/2, -depth/2);
+      data.setPosition(offset+3, -width/2, height/2, depth/2);
+      data.setPosition(offset+4, width/2, -height/2, -depth/2);
+      data.setPosition(offset+5, width/2, -height/2, depth/2);
+      data.setPosition(offset+6, width/2, height/2, -depth/2);
+      data.setPosition(offset+7, width/2, height/2, depth/2);
     }
 
     // Left (x -ve)
-    triangles[0]=new Triangle(0, 1, 3);
-    triangles[1]=new Triangle(3, 2, 0);
-    triangles[0].setTriangleNormal(-1,0,0);
-    triangles[1].setTriangleNormal(-1,0,0);	
+    data.setVertexIndices(0, 0, 1, 3);
+    data.setVertexIndices(1, 3, 2, 0);
+    data.setTriangleNormal(0, -1,0,0);
+    data.setTriangleNormal(1, -1,0,0);	
     for (int i=0; i<4; ++i) {
-      vertices[i].setNormal(-1,0,0);
+      data.setNormal(i, -1,0,0);
     }
-    vertices[0].setTextureCoord(0.0f, 0.0f);
-    vertices[1].setTextureCoord(1.0f, 0.0f);
-    vertices[2].setTextureCoord(0.0f, 1.0f);
-    vertices[3].setTextureCoord(1.0f, 1.0f);
+    data.setTextureCoord(0, 0.0f, 0.0f);
+    data.setTextureCoord(1, 1.0f, 0.0f);
+    data.setTextureCoord(2, 0.0f, 1.0f);
+    data.setTextureCoord(3, 1.0f, 1.0f);
     
     // Right (x +ve)
-    triangles[2]=new Triangle(4, 6, 7);
-    triangles[3]=new Triangle(7, 5, 4);
-    triangles[2].setTriangleNormal(1,0,0);
-    triangles[3].setTriangleNormal(1,0,0);
+    data.setVertexIndices(2, 4, 6, 7);
+    data.setVertexIndices(3, 7, 5, 4);
+    data.setTriangleNormal(2, 1,0,0);
+    data.setTriangleNormal(3, 1,0,0);
     for (int i=4; i<8; ++i) {
-      vertices[i].setNormal(1,0,0);
+      data.setNormal(i, 1,0,0);
     }
-    vertices[4].setTextureCoord(1.0f, 0.0f);
-    vertices[5].setTextureCoord(0.0f, 0.0f);
-    vertices[6].setTextureCoord(1.0f, 1.0f);
-    vertices[7].setTextureCoord(0.0f, 1.0f);
+    data.setTextureCoord(4, 1.0f, 0.0f);
+    data.setTextureCoord(5, 0.0f, 0.0f);
+    data.setTextureCoord(6, 1.0f, 1.0f);
+    data.setTextureCoord(7, 0.0f, 1.0f);
     
     // Front (z +ve)
-    triangles[4]=new Triangle(9, 13, 15);
-    triangles[5]=new Triangle(15, 11, 9);
-    triangles[4].setTriangleNormal(0,0,1);
-    triangles[5].setTriangleNormal(0,0,1);
-    vertices[9].setNormal(0,0,1);
-    vertices[11].setNormal(0,0,1);
-    vertices[13].setNormal(0,0,1);
-    vertices[15].setNormal(0,0,1);
-    vertices[9].setTextureCoord(0.0f, 0.0f);
-    vertices[11].setTextureCoord(0.0f, 1.0f);
-    vertices[13].setTextureCoord(1.0f, 0.0f);
-    vertices[15].setTextureCoord(1.0f, 1.0f);
+    data.setVertexIndices(4, 9, 13, 15);
+    data.setVertexIndices(5, 15, 11, 9);
+    data.setTriangleNormal(4, 0,0,1);
+    data.setTriangleNormal(5, 0,0,1);
+    data.setNormal(9, 0,0,1);
+    data.setNormal(11, 0,0,1);
+    data.setNormal(13, 0,0,1);
+    data.setNormal(15, 0,0,1);
+    data.setTextureCoord(9, 0.0f, 0.0f);
+    data.setTextureCoord(11, 0.0f, 1.0f);
+    data.setTextureCoord(13, 1.0f, 0.0f);
+    data.setTextureCoord(15, 1.0f, 1.0f);
     
     // Back (z -ve)
-    triangles[6]=new Triangle(8, 10, 14);
-    triangles[7]=new Triangle(14, 12, 8);
-    triangles[6].setTriangleNormal(0,0,-1);
-    triangles[7].setTriangleNormal(0,0,-1);
-    vertices[8].setNormal(0,0,-1);
-    vertices[10].setNormal(0,0,-1);
-    vertices[12].setNormal(0,0,-1);
-    vertices[14].setNormal(0,0,-1);
-    vertices[8].setTextureCoord(1.0f, 0.0f);
-    vertices[10].setTextureCoord(1.0f, 1.0f);
-    vertices[12].setTextureCoord(0.0f, 0.0f);
-    vertices[14].setTextureCoord(0.0f, 1.0f);
+    data.setVertexIndices(6, 8, 10, 14);
+    data.setVertexIndices(7, 14, 12, 8);
+    data.setTriangleNormal(6, 0,0,-1);
+    data.setTriangleNormal(7, 0,0,-1);
+    data.setNormal(8, 0,0,-1);
+    data.setNormal(10, 0,0,-1);
+    data.setNormal(12, 0,0,-1);
+    data.setNormal(14, 0,0,-1);
+    data.setTextureCoord(8, 1.0f, 0.0f);
+    data.setTextureCoord(10, 1.0f, 1.0f);
+    data.setTextureCoord(12, 0.0f, 0.0f);
+    data.setTextureCoord(14, 0.0f, 1.0f);
     
     // Bottom (y -ve)
-    triangles[8]=new Triangle(16, 20, 21);
-    triangles[9]=new Triangle(21, 17, 16);
-    triangles[8].setTriangleNormal(0,-1,0);
-    triangles[9].setTriangleNormal(0,-1,0);
-    vertices[16].setNormal(0,-1,0);
-    vertices[17].setNormal(0,-1,0);
-    vertices[20].setNormal(0,-1,0);
-    vertices[21].setNormal(0,-1,0);
-    vertices[16].setTextureCoord(0.0f, 0.0f);
-    vertices[17].setTextureCoord(0.0f, 1.0f);
-    vertices[20].setTextureCoord(1.0f, 0.0f);
-    vertices[21].setTextureCoord(1.0f, 1.0f);
+    data.setVertexIndices(8, 16, 20, 21);
+    data.setVertexIndices(9, 21, 17, 16);
+    data.setTriangleNormal(8, 0,-1,0);
+    data.setTriangleNormal(9, 0,-1,0);
+    data.setNormal(16, 0,-1,0);
+    data.setNormal(17, 0,-1,0);
+    data.setNormal(20, 0,-1,0);
+    data.setNormal(21, 0,-1,0);
+    data.setTextureCoord(16, 0.0f, 0.0f);
+    data.setTextureCoord(17, 0.0f, 1.0f);
+    data.setTextureCoord(20, 1.0f, 0.0f);
+    data.setTextureCoord(21, 1.0f, 1.0f);
     
     // Top (y +ve)
-    triangles[10]=new Triangle(23, 22, 18);
-    triangles[11]=new Triangle(18, 19, 23);
-    triangles[10].setTriangleNormal(0,1,0);
-    triangles[11].setTriangleNormal(0,1,0);
-    vertices[18].setNormal(0,1,0);
-    vertices[19].setNormal(0,1,0);
-    vertices[22].setNormal(0,1,0);
-    vertices[23].setNormal(0,1,0);
-    vertices[18].setTextureCoord(0.0f, 1.0f);
-    vertices[19].setTextureCoord(0.0f, 0.0f);
-    vertices[22].setTextureCoord(1.0f, 1.0f);
-    vertices[23].setTextureCoord(1.0f, 0.0f);
-
-    Mesh mesh = new Mesh();
-    
-    mesh.setVertices(vertices);
-    mesh.setTriangles(triangles);    
+    data.setVertexIndices(10, 23, 22, 18);
+    data.setVertexIndices(11, 18, 19, 23);
+    data.setTriangleNormal(10, 0,1,0);
+    data.setTriangleNormal(11, 0,1,0);
+    data.setNormal(18, 0,1,0);
+    data.setNormal(19, 0,1,0);
+    data.setNormal(22, 0,1,0);
+    data.setNormal(23, 0,1,0);
+    data.setTextureCoord(18, 0.0f, 1.0f);
+    data.setTextureCoord(19, 0.0f, 0.0f);
+    data.setTextureCoord(22, 1.0f, 1.0f);
+    data.setTextureCoord(23, 1.0f, 0.0f);
 
     // Calc Normals; - not necessary as easy to set normals for faces of a cube
     // mesh.calcSmoothNormals();
 	
-    return mesh;
+    return createMesh(data);
   }
   
   /* Cylinder ******************************************************************
@@ -262,27 +251,27 @@ public class ProceduralMeshFactory {
     int stackoffset=0, lowerstack, trioffset=0, trioffset2;
     slices++;
 	
-    Vertex[] vertices=new Vertex[slices*stacks+(caps?2*(1+slices):0)];
-    Triangle[] triangles=new Triangle[2*slices*(stacks-1)+(caps?2*slices:0)];
+    int numVertices=slices*stacks+(caps?2*(1+slices):0);
+    MeshData data=new MeshData(numVertices, 2*slices*(stacks-1)+(caps?2*slices:0));
 
     // Create the cylinder length facets
     for (r=0; r<slices; r++) {
       s = Math.sin(angle=r*stepr)*0.5;
       c = Math.cos(angle)*0.5;
-      vertices[r]=new Vertex(s, c, 0, 1.0-(double)r/(slices-1), 0.0);  // need to run 1.0-0.0 in u 
+      setVertex(data, r, s, c, 0, 1.0-(double)r/(slices-1), 0.0);  // need to run 1.0-0.0 in u 
 	                                                                     // because x and y axes are flipped in the coordinate system
     }
 
     for (z=1; z<stacks; z++) {
-      vertices[stackoffset=z*slices]=new Vertex(vertices[0].getPositionX(), vertices[0].getPositionY(), height=z*stepz, 1.0, texv=(double) z/(stacks-1));
+      setVertex(data, stackoffset=z*slices, data.getPosition(0, 0), data.getPosition(0, 1), height=z*stepz, 1.0, texv=(double) z/(stacks-1));
       lowerstack=stackoffset-slices;
       
-      triangles[trioffset]=new Triangle(stackoffset, lowerstack, lowerstack+slices-1);
-      triangles[trioffset+1]=new Triangle(lowerstack+slices-1, stackoffset+slices-1, stackoffset);
+      data.setVertexIndices(trioffset, stackoffset, lowerstack, lowerstack+slices-1);
+      data.setVertexIndices(trioffset+1, lowerstack+slices-1, stackoffset+slices-1, stackoffset);
       for (r=1; r<slices; r++) {
-        vertices[stackoffset+r]=new Vertex(vertices[r].getPositionX(), vertices[r].getPositionY(), height, vertices[r].getTextureCoord()[0], texv);
-        triangles[trioffset+2*r]=new Triangle(stackoffset+r, lowerstack+r, lowerstack+r-1);
-        triangles[trioffset+2*r+1]=new Triangle(lowerstack+r-1, stackoffset+r-1, stackoffset+r);
+        setVertex(data, stackoffset+r, data.getPosition(r, 0), data.getPosition(r, 1), height, data.getTextureCoord(r, 0), texv);
+        data.setVertexIndices(trioffset+2*r, stackoffset+r, lowerstack+r, lowerstack+r-1);
+        data.setVertexIndices(trioffset+2*r+1, lowerstack+r-1, stackoffset+r-1, stackoffset+r);
       }
 
       trioffset+=2*slices;
@@ -292,29 +281,26 @@ public class ProceduralMeshFactory {
     if (caps) { // when capping the cylinder the upper and lowermost ring of vertices are copied to create a hard edge at the top and bottom of the cylinder
       int ep1, ep2;
 
-      vertices[ep1=vertices.length-2]=new Vertex(0.0, 0.0, 0.0, 0.5, 0.5);
-      vertices[ep2=vertices.length-1]=new Vertex(0.0, 0.0, 1.0, 0.5, 0.5);
-      vertices[lowerstack=stacks*slices]=(Vertex) vertices[0].clone();
-      vertices[lowerstack].setTextureCoord(texu=0.5, texv=0.0);
-      vertices[stackoffset=lowerstack+slices]=(Vertex) vertices[stackoffset-2*slices].clone();
-      vertices[stackoffset].setTextureCoord(texu, texv);
+      setVertex(data, ep1=numVertices-2, 0.0, 0.0, 0.0, 0.5, 0.5);
+      setVertex(data, ep2=numVertices-1, 0.0, 0.0, 1.0, 0.5, 0.5);
+      data.copyVertex(lowerstack=stacks*slices, data, 0);
+      data.setTextureCoord(lowerstack, texu=0.5, texv=0.0);
+      data.copyVertex(stackoffset=lowerstack+slices, data, stackoffset-2*slices);
+      data.setTextureCoord(stackoffset, texu, texv);
       
-      triangles[trioffset]=new Triangle(ep1, lowerstack+slices-1, lowerstack);
-      triangles[trioffset2=trioffset+slices]=new Triangle(stackoffset, stackoffset+slices-1, ep2);
+      data.setVertexIndices(trioffset, ep1, lowerstack+slices-1, lowerstack);
+      data.setVertexIndices(trioffset2=trioffset+slices, stackoffset, stackoffset+slices-1, ep2);
       for (r=1; r<slices; r++) {
-        vertices[lowerstack+r]=(Vertex) vertices[r].clone();
-        vertices[lowerstack+r].setTextureCoord(texu=0.5-Math.sin(angle=r*stepr)*0.5, texv=0.5-Math.cos(angle)*0.5);
-        vertices[stackoffset+r]=(Vertex) vertices[stackoffset-2*slices+r].clone();
-        vertices[stackoffset+r].setTextureCoord(1-texu, texv);
-        triangles[trioffset+r]=new Triangle(lowerstack+r-1, lowerstack+r, ep1);
-        triangles[trioffset2+r]=new Triangle(stackoffset+r, stackoffset+r-1, ep2);
+        data.copyVertex(lowerstack+r, data, r);
+        data.setTextureCoord(lowerstack+r, texu=0.5-Math.sin(angle=r*stepr)*0.5, texv=0.5-Math.cos(angle)*0.5);
+        data.copyVertex(stackoffset+r, data, stackoffset-2*slices+r);
+        data.setTextureCoord(stackoffset+r, 1-texu, texv);
+        data.setVertexIndices(trioffset+r, lowerstack+r-1, lowerstack+r, ep1);
+        data.setVertexIndices(trioffset2+r, stackoffset+r, stackoffset+r-1, ep2);
       }
     }
     
-    Mesh mesh = new Mesh();
-    
-    mesh.setVertices(vertices);
-    mesh.setTriangles(triangles);    
+    Mesh mesh = createMesh(data);
 
     // Calc Normals;
     mesh.calcSmoothNormals();
@@ -325,4 +311,354 @@ public class ProceduralMeshFactory {
     return mesh;
   }
 
+/* Sphere ******************************************************************
+*/
+
+  /**
+   * Creates a default UV sphere of diameter 1, centred at the origin, with 30 slices and 15 stacks.
+   * Automatically creates uv coordinates.
+   */
+  public static Mesh createSphere() {
+    return createSphere(30, 15);
+  }
+
+  /**
+   * Creates a UV sphere of diameter 1, centred at the origin, with its poles on the z axis
+   * (as for glutSolidSphere). Normals are set analytically.
+   * u runs around the z axis and v runs from the -z pole (v=0) to the +z pole (v=1).
+   * @param  slices  number of subdivisions around the z axis
+   * @param  stacks  number of subdivisions along the z axis, from pole to pole
+   */
+  public static Mesh createSphere(int slices, int stacks) {
+    if (slices<3) slices=3;
+    if (stacks<2) stacks=2;
+
+    int ringSize = slices+1;  // the first vertex in each ring is repeated at the end for the texture seam
+    MeshData data = new MeshData(ringSize*(stacks+1), 2*slices*(stacks-1));
+
+    for (int i=0; i<=stacks; i++) {
+      double phi = Math.PI*i/stacks;
+      double z = -Math.cos(phi);
+      double r = Math.sin(phi);
+      for (int j=0; j<=slices; j++) {
+        double angle = 2.0*Math.PI*j/slices;
+        double x = Math.sin(angle)*r;
+        double y = Math.cos(angle)*r;
+        setVertex(data, i*ringSize+j, x*0.5, y*0.5, z*0.5, 1.0-(double)j/slices, (double)i/stacks);
+        data.setNormal(i*ringSize+j, x, y, z);
+      }
+    }
+
+    int trioffset = 0;
+    for (int i=0; i<stacks; i++) {
+      for (int j=0; j<slices; j++) {
+        int a = i*ringSize+j, b = a+1, c = a+ringSize+1, d = a+ringSize;
+        if (i>0) data.setVertexIndices(trioffset++, a, d, b);             // no triangle at the -z pole
+        if (i<stacks-1) data.setVertexIndices(trioffset++, b, d, c);      // no triangle at the +z pole
+      }
+    }
+
+    Mesh mesh = createMesh(data);
+    calcTriangleNormals(mesh);
+    return mesh;
+  }
+
+  /**
+   * Creates a chain of UV spheres, each with half the slices and stacks of the one before.
+   * @param  slices  number of subdivisions around the z axis for the most detailed level
+   * @param  stacks  number of subdivisions along the z axis for the most detailed level
+   * @param  levels  number of levels of detail to create
+   * @return  the levels of detail, most detailed first
+   */
+  public static Mesh[] createSphereLODs(int slices, int stacks, int levels) {
+    Mesh[] lods = new Mesh[levels];
+    for (int i=0; i<levels; i++) {
+      lods[i] = createSphere(slices, stacks);
+      slices = Math.max(3, slices/2);
+      stacks = Math.max(2, stacks/2);
+    }
+    return lods;
+  }
+
+/* Icosphere ******************************************************************
+*/
+
+  /**
+   * Creates an icosphere of diameter 1, centred at the origin, by subdividing an icosahedron.
+   * Each subdivision splits every triangle into four. The triangles are more evenly sized
+   * than those of a UV sphere. Normals are set analytically and uv coordinates are created by
+   * spherical mapping, with vertices duplicated along the texture seam and at the poles.
+   * @param  subdivisions  number of times to subdivide the icosahedron
+   */
+  public static Mesh createIcosphere(int subdivisions) {
+    if (subdivisions<0) subdivisions=0;
+    double t = (1.0+Math.sqrt(5.0))/2.0;
+    double[][] ico = {{-1,t,0}, {1,t,0}, {-1,-t,0}, {1,-t,0},
+                      {0,-1,t}, {0,1,t}, {0,-1,-t}, {0,1,-t},
+                      {t,0,-1}, {t,0,1}, {-t,0,-1}, {-t,0,1}};
+    int[] faces = {0,11,5, 0,5,1, 0,1,7, 0,7,10, 0,10,11,
+                   1,5,9, 5,11,4, 11,10,2, 10,7,6, 7,1,8,
+                   3,9,4, 3,4,2, 3,2,6, 3,6,8, 3,8,9,
+                   4,9,5, 2,4,11, 6,2,10, 8,6,7, 9,8,1};
+
+    java.util.ArrayList<double[]> points = new java.util.ArrayList<double[]>();
+    for (double[] p : ico) points.add(normalise(p));
+    for (int s=0; s<subdivisions; s++) {
+      java.util.HashMap<Long, Integer> midpoints = new java.util.HashMap<Long, Integer>();
+      int[] next = new int[faces.length*4];
+      for (int f=0, k=0; f<faces.length; f+=3) {
+        int a = faces[f], b = faces[f+1], c = faces[f+2];
+        int ab = midpoint(points, midpoints, a, b);
+        int bc = midpoint(points, midpoints, b, c);
+        int ca = midpoint(points, midpoints, c, a);
+        int[] split = {a,ab,ca, b,bc,ab, c,ca,bc, ab,bc,ca};
+        System.arraycopy(split, 0, next, k, 12);
+        k += 12;
+      }
+      faces = next;
+    }
+
+    // Spherical uv mapping, matching createSphere: u runs around the z axis, v from the -z pole to the +z pole
+    java.util.ArrayList<double[]> uvs = new java.util.ArrayList<double[]>();
+    for (double[] p : points) uvs.add(sphericalUV(p));
+
+    // Fix up triangles that straddle the texture seam or touch a pole, by duplicating vertices
+    for (int f=0; f<faces.length; f+=3) {
+      double[] u = {uvs.get(faces[f])[0], uvs.get(faces[f+1])[0], uvs.get(faces[f+2])[0]};
+      boolean straddles = Math.max(u[0], Math.max(u[1], u[2]))-Math.min(u[0], Math.min(u[1], u[2])) > 0.5;
+      for (int i=0; i<3; i++) {
+        int vi = faces[f+i];
+        double[] p = points.get(vi);
+        double uNew = u[i];
+        if (straddles && uNew<0.5) uNew += 1.0;
+        if (Math.abs(p[2])>1.0-1e-9) { // pole: use the average u of the other two vertices
+          double u1 = u[(i+1)%3], u2 = u[(i+2)%3];
+          if (straddles) {
+            if (u1<0.5) u1 += 1.0;
+            if (u2<0.5) u2 += 1.0;
+          }
+          uNew = (u1+u2)*0.5;
+        }
+        if (uNew != uvs.get(vi)[0]) {
+          points.add(p);
+          uvs.add(new double[]{uNew, uvs.get(vi)[1]});
+          faces[f+i] = points.size()-1;
+        }
+      }
+    }
+
+    MeshData data = new MeshData(points.size(), faces.length/3);
+    for (int i=0; i<points.size(); i++) {
+      double[] p = points.get(i);
+      double[] uv = uvs.get(i);
+      setVertex(data, i, p[0]*0.5, p[1]*0.5, p[2]*0.5, uv[0], uv[1]);
+      data.setNormal(i, p[0], p[1], p[2]);
+    }
+    for (int i=0; i<faces.length/3; i++)
+      data.setVertexIndices(i, faces[i*3], faces[i*3+1], faces[i*3+2]);
+
+    Mesh mesh = createMesh(data);
+    calcTriangleNormals(mesh);
+    return mesh;
+  }
+
+  /**
+   * Creates a chain of icospheres, from the given number of subdivisions down to the icosahedron.
+   * @param  subdivisions  number of subdivisions for the most detailed level
+   * @return  the levels of detail, most detailed first
+   */
+  public static Mesh[] createIcosphereLODs(int subdivisions) {
+    Mesh[] lods = new Mesh[subdivisions+1];
+    for (int i=0; i<=subdivisions; i++)
+      lods[i] = createIcosphere(subdivisions-i);
+    return lods;
+  }
+
+  private static double[] normalise(double[] p) {
+    double mag = Math.sqrt(p[0]*p[0]+p[1]*p[1]+p[2]*p[2]);
+    return new double[]{p[0]/mag, p[1]/mag, p[2]/mag};
+  }
+
+  private static int midpoint(java.util.ArrayList<double[]> points, java.util.HashMap<Long, Integer> cache, int a, int b) {
+    long key = ((long)Math.min(a, b)<<32) | Math.max(a, b);
+    Integer index = cache.get(key);
+    if (index == null) {
+      double[] pa = points.get(a), pb = points.get(b);
+      points.add(normalise(new double[]{pa[0]+pb[0], pa[1]+pb[1], pa[2]+pb[2]}));
+      index = points.size()-1;
+      cache.put(key, index);
+    }
+    return index;
+  }
+
+  private static double[] sphericalUV(double[] p) {
+    double u = Math.atan2(p[0], p[1])/(2.0*Math.PI);  // angle measured from the y axis towards the x axis, as in createSphere
+    if (u<0) u += 1.0;
+    u = 1.0-u;
+    if (u>=1.0) u -= 1.0;
+    double v = Math.acos(Math.max(-1.0, Math.min(1.0, -p[2])))/Math.PI;
+    return new double[]{u, v};
+  }
+
+/* Cone and frustum ******************************************************************
+*/
+
+  /**
+   * Creates a default cone with 30 slices and 1 stack, and no base.
+   * Automatically creates uv coordinates.
+   */
+  public static Mesh createCone() {
+    return createFrustum(0, 30, 1, false);
+  }
+
+  /**
+   * Creates a cone along the z axis, with a base of diameter 1 on the z=0 plane and its apex
+   * at (0,0,1), matching glutSolidCone(0.5, 1, slices, stacks). Normals are set analytically.
+   * @param  slices  number of subdivisions around the z axis
+   * @param  stacks  number of subdivisions along the z axis
+   * @param  cap     true if the base of the cone is to be closed, otherwise false
+   */
+  public static Mesh createCone(int slices, int stacks, boolean cap) {
+    return createFrustum(0, slices, stacks, cap);
+  }
+
+  /**
+   * Creates a chain of cones, each with half the slices and stacks of the one before.
+   * @param  slices  number of subdivisions around the z axis for the most detailed level
+   * @param  stacks  number of subdivisions along the z axis for the most detailed level
+   * @param  cap     true if the base of the cone is to be closed, otherwise false
+   * @param  levels  number of levels of detail to create
+   * @return  the levels of detail, most detailed first
+   */
+  public static Mesh[] createConeLODs(int slices, int stacks, boolean cap, int levels) {
+    return createFrustumLODs(0, slices, stacks, cap, levels);
+  }
+
+  /**
+   * Creates a frustum (truncated cone) along the z axis, from a base of diameter 1 on the z=0
+   * plane to a top of diameter topScale on the z=1 plane. A topScale of 0 gives a cone and 
+   * a topScale of 1 gives a cylinder. Normals are set analytically, and uv coordinates are
+   * created as for createCylinder.
+   * @param  topScale  diameter of the top of the frustum, relative to the base
+   * @param  slices    number of subdivisions around the z axis
+   * @param  stacks    number of subdivisions along the z axis
+   * @param  caps      true if the ends are to be closed, otherwise false
+   */
+  public static Mesh createFrustum(double topScale, int slices, int stacks, boolean caps) {
+    if (slices<3) slices=3;
+    if (stacks<1) stacks=1;
+    if (topScale<0) topScale=0;
+
+    boolean topCap = caps && topScale>0;
+    int ringSize = slices+1;  // the first vertex in each ring is repeated at the end for the texture seam
+    int numSide = ringSize*(stacks+1);
+    int numVertices = numSide+(caps?ringSize+1:0)+(topCap?ringSize+1:0);
+    int numTriangles = 2*slices*stacks-(topScale==0?slices:0)+(caps?slices:0)+(topCap?slices:0);
+    MeshData data = new MeshData(numVertices, numTriangles);
+
+    // The side normal leans towards +z by the slope of the side
+    double slope = 1.0-topScale;
+    double nscale = 1.0/Math.sqrt(1.0+0.25*slope*slope);
+
+    for (int i=0; i<=stacks; i++) {
+      double z = (double)i/stacks;
+      double r = 0.5*(1.0-slope*z);
+      for (int j=0; j<=slices; j++) {
+        double angle = 2.0*Math.PI*j/slices;
+        double s = Math.sin(angle), c = Math.cos(angle);
+        setVertex(data, i*ringSize+j, s*r, c*r, z, 1.0-(double)j/slices, z);
+        data.setNormal(i*ringSize+j, s*nscale, c*nscale, 0.5*slope*nscale);
+      }
+    }
+
+    int trioffset = 0;
+    for (int i=0; i<stacks; i++) {
+      for (int j=0; j<slices; j++) {
+        int a = i*ringSize+j, b = a+1, c = a+ringSize+1, d = a+ringSize;
+        data.setVertexIndices(trioffset++, a, d, b);
+        if (!(topScale==0 && i==stacks-1)) data.setVertexIndices(trioffset++, b, d, c);  // no triangle at the apex
+      }
+    }
+
+    int offset = numSide;
+    if (caps) {
+      trioffset = addCap(data, offset, trioffset, slices, 0.5, 0.0, false);
+      offset += ringSize+1;
+    }
+    if (topCap)
+      addCap(data, offset, trioffset, slices, 0.5*topScale, 1.0, true);
+
+    Mesh mesh = createMesh(data);
+    calcTriangleNormals(mesh);
+    return mesh;
+  }
+
+  /**
+   * Creates a chain of frustums, each with half the slices and stacks of the one before.
+   * @param  topScale  diameter of the top of the frustum, relative to the base
+   * @param  slices    number of subdivisions around the z axis for the most detailed level
+   * @param  stacks    number of subdivisions along the z axis for the most detailed level
+   * @param  caps      true if the ends are to be closed, otherwise false
+   * @param  levels    number of levels of detail to create
+   * @return  the levels of detail, most detailed first
+   */
+  public static Mesh[] createFrustumLODs(double topScale, int slices, int stacks, boolean caps, int levels) {
+    Mesh[] lods = new Mesh[levels];
+    for (int i=0; i<levels; i++) {
+      lods[i] = createFrustum(topScale, slices, stacks, caps);
+      slices = Math.max(3, slices/2);
+      stacks = Math.max(1, stacks/2);
+    }
+    return lods;
+  }
+
+  // Adds a flat disc on the plane z, facing -z (bottom) or +z (top), as a ring of vertices around a centre vertex.
+  private static int addCap(MeshData data, int offset, int trioffset,
+                            int slices, double radius, double z, boolean top) {
+    int centre = offset+slices+1;
+    double nz = top ? 1 : -1;
+    for (int j=0; j<=slices; j++) {
+      double angle = 2.0*Math.PI*j/slices;
+      double s = Math.sin(angle), c = Math.cos(angle);
+      setVertex(data, offset+j, s*radius, c*radius, z, top ? 0.5+s*0.5 : 0.5-s*0.5, 0.5-c*0.5);
+      data.setNormal(offset+j, 0, 0, nz);
+    }
+    setVertex(data, centre, 0, 0, z, 0.5, 0.5);
+    data.setNormal(centre, 0, 0, nz);
+    for (int j=0; j<slices; j++) {
+      if (top) data.setVertexIndices(trioffset++, offset+j+1, offset+j, centre);
+      else data.setVertexIndices(trioffset++, offset+j, offset+j+1, centre);
+    }
+    return trioffset;
+  }
+
+  // Sets the position and texture coordinates of a vertex.
+  private static void setVertex(MeshData data, int v, double x, double y, double z, double u, double t) {
+    data.setPosition(v, x, y, z);
+    data.setTextureCoord(v, u, t);
+  }
+
+  // Creates a Mesh holding the arrays filled in by a factory method. The Vertex and Triangle views
+  // onto them are only made if they are asked for.
+  private static Mesh createMesh(MeshData data) {
+    Mesh mesh = new Mesh();
+    mesh.setVertexData(data.getPositions(), data.getNormals(), data.getTextureCoords());
+    mesh.setTriangleData(data.getIndices(), data.getTriangleNormals());
+    return mesh;
+  }
+
+  // Sets the triangle normals from the vertex positions, leaving the (analytic) vertex normals unchanged.
+  private static void calcTriangleNormals(Mesh mesh) {
+    MeshData data = mesh.getData();
+    float[] p = data.getPositions();
+    for (int t=0; t<data.getNumTriangles(); t++) {
+      int i0 = data.getVertexIndex(t, 0)*3, i1 = data.getVertexIndex(t, 1)*3, i2 = data.getVertexIndex(t, 2)*3;
+      double ax = p[i1]-p[i0], ay = p[i1+1]-p[i0+1], az = p[i1+2]-p[i0+2];
+      double bx = p[i2]-p[i0], by = p[i2+1]-p[i0+1], bz = p[i2+2]-p[i0+2];
+      double nx = ay*bz-az*by, ny = az*bx-ax*bz, nz = ax*by-ay*bx;
+      double mag = Math.sqrt(nx*nx+ny*ny+nz*nz);
+      if (mag!=0) data.setTriangleNormal(t, nx/mag, ny/mag, nz/mag);
+    }
+  }
+
 }
\ No newline at end of file
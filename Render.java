@@ -7,8 +7,14 @@
  * in contrast to the more complex Mesh structure. 
  * The use of arrays here is to support efficient rendering, whereas a Mesh structure is typically structured
  * to support ease of editing.
- * If the Mesh structure was to be updated, e.g. a vertex moved, then then relevant data would
- * need to be copied here again, before rendering would produce the correct result.
+ * The arrays are references to the Mesh's own flat storage, so no copy is made when a Render
+ * is created. If the Mesh structure was to be updated so that its arrays were replaced, e.g. by
+ * setting new vertices, or by changing data that is shared copy-on-write with a clone, then
+ * reset would need to be called again, before rendering would produce the correct result.
+ * A Render may be given the Meshlets of its Mesh, so that renderVertexBuffers, given the
+ * modelview and projection matrices, draws only the clusters of triangles that are inside the
+ * view frustum and face the eye. The scene does not use meshlets, as its meshes are either
+ * small or drawn from display lists and the skinned lamp mesh; Benchmark measures the culling.
  *
  * @author    Dr Steve Maddock
  * @version   3.0 (29/07/2013)
@@ -26,17 +32,24 @@ import com.jogamp.opengl.util.texture.*;
  
 public class Render {
   private Mesh mesh;
-  private double[] vertices;
-  private double[] normals;
+  private float[] vertices;
+  private float[] normals;
   private int[] triangles;
-  private double[] textureCoords;
+  private float[] textureCoords;
   private int dlist;
+  private int dlistNT;  // untextured display list, used when textures are switched off
   private Texture tex;
+  private MeshBuffers buffers;
+  private boolean buffersShared;  // true if the buffers belong to a MeshCache
+  private boolean buffersTexit;
+  private int buffersRepeat;
+  private Meshlet[] meshlets;
+  private int meshletsDrawn, meshletsCulled;  // counts for the last call of renderVertexBuffers
 
   /**
-   * Constructor. Copies the vertex, triangle and normal data from the Mesh structure.
-   * If the Mesh structure were to change, e.g. a vertex moved, then the data would
-   * need to be copied again.
+   * Constructor. Takes references to the vertex, triangle and normal data held by the Mesh structure.
+   * If the Mesh structure were to replace its arrays, then the references would
+   * need to be taken again.
    * The use of simple arrays makes the rendering process more efficient.
    * May also takes a Texture parameter which may be used when rendering the object.
    */  
@@ -49,6 +62,14 @@ public class Render {
     reset(m, t);
   }
   
+  /**
+   * Takes a new Mesh and Texture. The display lists and vertex buffers are forgotten, so the Render
+   * must be initialised again before either is used, but they are not released: a Render that has
+   * been initialised should be reset with reset(gl, m, t) instead.
+   * 
+   * @param m The Mesh
+   * @param t The Texture, or null
+   */ 
   public void reset(Mesh m, Texture t) {
     mesh = m;
     vertices = m.getVertexList();
@@ -56,7 +77,102 @@ public class Render {
     triangles = m.getTriangleList();
     textureCoords = m.getTextureCoordsList();
     dlist = 0;
+    dlistNT = 0;
     tex = t;
+    buffers = null;
+    buffersShared = false;
+    buffersTexit = false;
+    buffersRepeat = 0;
+    meshlets = null;
+  }
+
+  /**
+   * As reset(m, t), first releasing the display lists and vertex buffers made for the old Mesh.
+   * Buffers shared through a MeshCache are left for the cache to delete.
+   * 
+   * @param  gl  the OpenGL context.
+   * @param m The Mesh
+   * @param t The Texture, or null
+   */ 
+  public void reset(GL2 gl, Mesh m, Texture t) {
+    dispose(gl);
+    reset(m, t);
+  }
+
+  /**
+   * Sets the meshlets of the Mesh, so that renderVertexBuffers culls them individually.
+   * The meshlets must have been built from this Render's Mesh with Meshlet.build, which
+   * reorders its triangles, so the vertex buffers must be initialised afterwards.
+   * Meshlets are not used when the buffers hold strips.
+   * 
+   * @param m The meshlets, or null to draw the whole Mesh
+   */ 
+  public void setMeshlets(Meshlet[] m) {
+    meshlets = m;
+  }
+
+  /**
+   * Gets the Mesh being rendered
+   * 
+   * @return The Mesh
+   */ 
+  public Mesh getMesh() {
+    return mesh;
+  }
+
+  /**
+   * Gets the Texture used when rendering with textures on
+   * 
+   * @return The Texture, or null if there is none
+   */ 
+  public Texture getTexture() {
+    return tex;
+  }
+
+  /**
+   * Gets the vertex buffers set up by initialiseVertexBuffers or initialiseStripBuffers
+   * 
+   * @return The buffers, or null if they have not been initialised
+   */ 
+  public MeshBuffers getBuffers() {
+    return buffers;
+  }
+
+  /**
+   * Tests whether the vertex buffers were initialised for texturing
+   * 
+   * @return The texit parameter given when the vertex buffers were initialised
+   */ 
+  public boolean getBuffersTextured() {
+    return buffersTexit;
+  }
+
+  /**
+   * Gets the number of times the texture is repeated when rendering the vertex buffers
+   * 
+   * @return The repeat parameter given when the vertex buffers were initialised
+   */ 
+  public int getBuffersRepeat() {
+    return buffersRepeat;
+  }
+
+  /**
+   * Gets the number of meshlets drawn by the last call of renderVertexBuffers
+   * 
+   * @return The number of meshlets drawn
+   */ 
+  public int getMeshletsDrawn() {
+    return meshletsDrawn;
+  }
+
+  /**
+   * Gets the number of meshlets skipped by the last call of renderVertexBuffers, as they
+   * were outside the view frustum or facing away from the eye
+   * 
+   * @return The number of meshlets culled
+   */ 
+  public int getMeshletsCulled() {
+    return meshletsCulled;
   }
 
   /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
@@ -70,18 +186,24 @@ public class Render {
    */ 
   
   private void setMaterial(GL2 gl) {
-    Material material = mesh.getMaterial();
-    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_AMBIENT, material.getAmbient(), 0);    
-    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_DIFFUSE, material.getDiffuse(), 0);    
-    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_SPECULAR, material.getSpecular(), 0);
-    gl.glMaterialfv(GL2.GL_FRONT_AND_BACK, GL2.GL_EMISSION, material.getEmission(), 0);
-    gl.glMaterialf(GL2.GL_FRONT_AND_BACK, GL2.GL_SHININESS, material.getShininess());
+    setMaterial(gl, mesh.getMaterial());
+  }
+
+  /**
+   * Sends the properties of a Material to OpenGL for both front and back faces, through the
+   * context's GLStateCache, so properties that are already set are not sent again.
+   * 
+   * @param  gl  the OpenGL context.
+   * @param material The Material to use
+   */ 
+  public static void setMaterial(GL2 gl, Material material) {
+    GLStateCache.get(gl).setMaterial(gl, material);
   }  
   
   private void sendNVData(GL2 gl, int t, int i) {
     int index = triangles[t*3+i]*3;
-    gl.glNormal3d(normals[index], normals[index+1], normals[index+2]);
-    gl.glVertex3d(vertices[index], vertices[index+1], vertices[index+2]);
+    gl.glNormal3f(normals[index], normals[index+1], normals[index+2]);
+    gl.glVertex3f(vertices[index], vertices[index+1], vertices[index+2]);
   }
   
   private void sendAllNVData(GL2 gl) {
@@ -105,7 +227,7 @@ public class Render {
         for (int t=0; t<triangles.length/3; t++) {
           for (int i=0; i<3; i++) {
             int tindex = triangles[t*3+i]*2;
-            gl.glTexCoord2d(repeat*textureCoords[tindex], repeat*textureCoords[tindex+1]);
+            gl.glTexCoord2f(repeat*textureCoords[tindex], repeat*textureCoords[tindex+1]);
             sendNVData(gl, t,i);
           }
         }
@@ -127,18 +249,38 @@ public class Render {
    * 
    * Modified by Kevin Stanley-Adams 2013 to allow textures to be repeated in a square matrix with in input parameter
    * defining the size of the square.
+   * An untextured display list is always compiled as well, so that switching textures off
+   * does not fall back to immediate mode. If texit is false, the two lists are the same list.
    * @param  gl  the OpenGL context.
    * @param texit Texture enable parameter
    * @param repeat The number of times to repeat the texture on the object
    */ 
    
   public void initialiseDisplayList(GL2 gl, boolean texit, int repeat) {
-    dlist = gl.glGenLists(1);
-    gl.glNewList(dlist, GL2.GL_COMPILE);
-      renderImmediateMode(gl, texit, repeat);
+    deleteDisplayLists(gl);
+    GLStateCache cache = GLStateCache.get(gl);
+    cache.invalidateMaterial();  // so the Material is recorded in the list
+    dlistNT = gl.glGenLists(1);
+    gl.glNewList(dlistNT, GL2.GL_COMPILE);
+      renderImmediateMode(gl, false, repeat);
     gl.glEndList(); 
+    cache.invalidateMaterial();
+    if (texit) {
+      dlist = gl.glGenLists(1);
+      gl.glNewList(dlist, GL2.GL_COMPILE);
+        renderImmediateMode(gl, texit, repeat);
+      gl.glEndList(); 
+      cache.invalidateMaterial();
+    }
+    else dlist = dlistNT;
   }
   
+  private void deleteDisplayLists(GL2 gl) {
+    if (dlist != 0 && dlist != dlistNT) gl.glDeleteLists(dlist, 1);
+    if (dlistNT != 0) gl.glDeleteLists(dlistNT, 1);
+    dlist = dlistNT = 0;
+  }
+
   /**
    * Render a mesh using a display list.
    * 
@@ -150,9 +292,183 @@ public class Render {
   
   public void renderDisplayList(GL2 gl, boolean isTexturesOn) {
         if (isTexturesOn) gl.glCallList(dlist);
-        else renderImmediateMode(gl, false, 1);
+        else gl.glCallList(dlistNT);
+        GLStateCache.get(gl).invalidateMaterial();  // the list sets the Material
   }
   
+  /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
+  /* Vertex buffer objects */
+  /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
+
+  /**
+   * Initialise a mesh using vertex buffer objects. The interleaved vertex data and the 
+   * triangle indices are uploaded once. The texture repeat is applied with the texture 
+   * matrix when drawing, rather than being baked into the uploaded texture coordinates.
+   * 
+   * @param  gl  the OpenGL context.
+   * @param texit Texture enable parameter
+   * @param repeat The number of times to repeat the texture on the object
+   */ 
+  public void initialiseVertexBuffers(GL2 gl, boolean texit, int repeat) {
+    if (buffers != null && !buffersShared) buffers.dispose(gl);
+    buffers = new MeshBuffers(gl, mesh);
+    buffersShared = false;
+    buffersTexit = texit;
+    buffersRepeat = repeat;
+  }
+
+  /**
+   * As initialiseVertexBuffers(gl, texit, repeat), but uploads the triangles as strips joined
+   * with primitive restart indices (see Stripifier), which are then drawn by renderVertexBuffers
+   * as GL_TRIANGLE_STRIP. Strips need fewer indices than a triangle list for grid-like meshes.
+   * The scene does not use this; it is there for applications of the library that want strips.
+   * 
+   * @param  gl  the OpenGL context.
+   * @param texit Texture enable parameter
+   * @param repeat The number of times to repeat the texture on the object
+   */ 
+  public void initialiseStripBuffers(GL2 gl, boolean texit, int repeat) {
+    if (buffers != null && !buffersShared) buffers.dispose(gl);
+    buffers = new MeshBuffers(gl, mesh, true);
+    buffersShared = false;
+    buffersTexit = texit;
+    buffersRepeat = repeat;
+  }
+
+  /**
+   * As initialiseVertexBuffers(gl, texit, repeat), but uses the buffers held by a MeshCache
+   * for a Mesh acquired from that cache, so that Renders of identical meshes share one upload.
+   * Falls back to uploading buffers for this Render if the Mesh did not come from the cache.
+   * 
+   * @param  gl  the OpenGL context.
+   * @param texit Texture enable parameter
+   * @param repeat The number of times to repeat the texture on the object
+   * @param cache The MeshCache the Mesh was acquired from
+   */ 
+  public void initialiseVertexBuffers(GL2 gl, boolean texit, int repeat, MeshCache cache) {
+    MeshBuffers shared = cache.getBuffers(gl, mesh);
+    if (shared == null) {
+      initialiseVertexBuffers(gl, texit, repeat);
+      return;
+    }
+    if (buffers != null && !buffersShared) buffers.dispose(gl);
+    buffers = shared;
+    buffersShared = true;
+    buffersTexit = texit;
+    buffersRepeat = repeat;
+  }
+
+  /**
+   * Render a mesh using vertex buffer objects. Produces the same result as renderDisplayList.
+   * Every triangle is drawn, even if meshlets have been set.
+   * 
+   * @param  gl  the OpenGL context.
+   * @param isTexturesOn Allows for switching between textured and plain rendering
+   */ 
+  public void renderVertexBuffers(GL2 gl, boolean isTexturesOn) {
+    renderVertexBuffers(gl, isTexturesOn, null, null);
+  }
+
+  /**
+   * Render a mesh using vertex buffer objects, as renderVertexBuffers(gl, isTexturesOn).
+   * If meshlets have been set, those outside the view frustum or facing away from the eye are
+   * skipped, which gives the same image when back faces are culled. The matrices are passed in,
+   * rather than read back from OpenGL, which could stall until the graphics card caught up.
+   * 
+   * @param  gl  the OpenGL context.
+   * @param isTexturesOn Allows for switching between textured and plain rendering
+   * @param modelview The current modelview matrix, in column-major order, or null to draw every triangle
+   * @param projection The current projection matrix, in column-major order
+   */ 
+  public void renderVertexBuffers(GL2 gl, boolean isTexturesOn, double[] modelview, double[] projection) {
+    boolean texit = buffersTexit && isTexturesOn;
+    if (texit) {
+      tex.enable(gl);
+      tex.bind(gl);
+    }
+    setMaterial(gl);
+    if (texit) {
+      tex.setTexParameteri(gl, GL2.GL_TEXTURE_ENV_MODE,GL2.GL_MODULATE);
+      gl.glMatrixMode(GL2.GL_TEXTURE);
+      gl.glPushMatrix();
+      gl.glScaled(buffersRepeat, buffersRepeat, 1);
+      gl.glMatrixMode(GL2.GL_MODELVIEW);
+    }
+
+    buffers.bind(gl, texit);
+    if (meshlets == null || buffers.isStrips() || modelview == null)
+      buffers.draw(gl);
+    else
+      drawMeshlets(gl, modelview, projection);
+    buffers.unbind(gl, texit);
+
+    if (texit) {
+      gl.glMatrixMode(GL2.GL_TEXTURE);
+      gl.glPopMatrix();
+      gl.glMatrixMode(GL2.GL_MODELVIEW);
+      tex.disable(gl);
+    }
+  }
+
+  // Draws the meshlets that may be seen, joining neighbouring visible meshlets into one draw call
+  private void drawMeshlets(GL2 gl, double[] modelview, double[] projection) {
+    Frustum frustum = new Frustum(projection, modelview);
+    double[] eye = eyePosition(modelview);
+
+    meshletsDrawn = meshletsCulled = 0;
+    int start = 0, count = 0;
+    for (Meshlet m : meshlets) {
+      if (m.isOutside(frustum) || m.isBackFacing(eye[0], eye[1], eye[2])) {
+        meshletsCulled++;
+        continue;
+      }
+      meshletsDrawn++;
+      if (count>0 && start+count==m.getFirstTriangle())
+        count += m.getNumTriangles();
+      else {
+        if (count>0) buffers.drawTriangles(gl, start, count);
+        start = m.getFirstTriangle();
+        count = m.getNumTriangles();
+      }
+    }
+    if (count>0) buffers.drawTriangles(gl, start, count);
+  }
+
+  /**
+   * Calculates the position of the eye in modelling coordinates, i.e. the point that the
+   * modelview matrix transforms to the origin.
+   * 
+   * @param modelview The modelview matrix, in OpenGL's column-major order, without projection
+   * @return x,y,z of the eye
+   */ 
+  public static double[] eyePosition(double[] modelview) {
+    // Solve M*e + t = 0 for the upper 3x3 M and translation t, by Cramer's rule
+    double a = modelview[0], b = modelview[4], c = modelview[8];
+    double d = modelview[1], e = modelview[5], f = modelview[9];
+    double g = modelview[2], h = modelview[6], k = modelview[10];
+    double tx = -modelview[12], ty = -modelview[13], tz = -modelview[14];
+    double det = a*(e*k-f*h)-b*(d*k-f*g)+c*(d*h-e*g);
+    return new double[]{
+      (tx*(e*k-f*h)-b*(ty*k-f*tz)+c*(ty*h-e*tz))/det,
+      (a*(ty*k-f*tz)-tx*(d*k-f*g)+c*(d*tz-ty*g))/det,
+      (a*(e*tz-ty*h)-b*(d*tz-ty*g)+tx*(d*h-e*g))/det};
+  }
+
+  /**
+   * Releases the display list and vertex buffer objects held on the graphics card.
+   * Buffers shared through a MeshCache are left for the cache to delete.
+   * The Render must be initialised again before either is used afterwards.
+   * 
+   * @param  gl  the OpenGL context.
+   */ 
+  public void dispose(GL2 gl) {
+    deleteDisplayLists(gl);
+    if (buffers != null) {
+      if (!buffersShared) buffers.dispose(gl);
+      buffers = null;
+    }
+  }
+
   /**
    * Wireframe a mesh using immediate mode.
    * 
@@ -170,4 +486,67 @@ public class Render {
     gl.glPolygonMode(GL2.GL_FRONT_AND_BACK, GL2.GL_FILL);
   }
 
+  /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
+  /* Level of detail selection */
+  /* ~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~~ */
+
+  /**
+   * Calculates the size on screen of a bounding box drawn with the given modelview and
+   * projection matrices and viewport size. The matrices are passed in, rather than read back
+   * from OpenGL, which could stall until the graphics card caught up.
+   * 
+   * @param modelview The modelview matrix the box is drawn with, in column-major order
+   * @param projection The projection matrix, in column-major order
+   * @param width The width of the viewport in pixels
+   * @param height The height of the viewport in pixels
+   * @param box The bounding box, in the modelling coordinates of modelview
+   * @return The larger of the width and height in pixels of the box's projection, or the
+   *         viewport height if part of the box is behind the eye
+   */ 
+  public static double projectedSize(double[] modelview, double[] projection, int width, int height, BoundingBox box) {
+    double[] min = box.getMinimumBounds(), max = box.getMaximumBounds();
+    double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+    for (int i=0; i<8; i++) {
+      double x = ((i&1)==0) ? min[0] : max[0];
+      double y = ((i&2)==0) ? min[1] : max[1];
+      double z = ((i&4)==0) ? min[2] : max[2];
+      // eye coordinates, then clip coordinates (matrices are column-major)
+      double ex = modelview[0]*x+modelview[4]*y+modelview[8]*z+modelview[12];
+      double ey = modelview[1]*x+modelview[5]*y+modelview[9]*z+modelview[13];
+      double ez = modelview[2]*x+modelview[6]*y+modelview[10]*z+modelview[14];
+      double cx = projection[0]*ex+projection[4]*ey+projection[8]*ez+projection[12];
+      double cy = projection[1]*ex+projection[5]*ey+projection[9]*ez+projection[13];
+      double cw = projection[3]*ex+projection[7]*ey+projection[11]*ez+projection[15];
+      if (cw<=0) return height;
+      minX = Math.min(minX, cx/cw);
+      maxX = Math.max(maxX, cx/cw);
+      minY = Math.min(minY, cy/cw);
+      maxY = Math.max(maxY, cy/cw);
+    }
+    return Math.max((maxX-minX)*0.5*width, (maxY-minY)*0.5*height);
+  }
+
+  /**
+   * Chooses a level of detail for a bounding box from its size on screen. Each level is assumed
+   * to have about a quarter of the triangles of the one before, i.e. half the detail in each
+   * direction, so one level is dropped each time the size on screen halves.
+   * 
+   * @param modelview The modelview matrix the box is drawn with, in column-major order
+   * @param projection The projection matrix, in column-major order
+   * @param width The width of the viewport in pixels
+   * @param height The height of the viewport in pixels
+   * @param box The bounding box, in the modelling coordinates of modelview
+   * @param numLevels The number of levels of detail
+   * @param fullDetailSize The size in pixels at and above which level 0 is used
+   * @return The level of detail to use, from 0 (most detailed) to numLevels-1
+   */ 
+  public static int selectLevel(double[] modelview, double[] projection, int width, int height, BoundingBox box,
+                                int numLevels, double fullDetailSize) {
+    double size = projectedSize(modelview, projection, width, height, box);
+    if (size>=fullDetailSize) return 0;
+    if (size<=0) return numLevels-1;
+    int level = (int)Math.floor(Math.log(fullDetailSize/size)/Math.log(2));
+    return Math.min(level, numLevels-1);
+  }
+
 }
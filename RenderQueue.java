@@ -0,0 +1,380 @@
+/**
+ * Collects the objects to be drawn in a frame and draws them sorted to reduce OpenGL state changes.
+ * Each item is a Render, drawn from its vertex buffers, with a modelling transform built on the CPU
+ * (see MatrixStack). When the queue is flushed, the items are sorted by texture, then Material,
+ * then vertex buffers, and then front-to-back by the depth of the centre of their bounding box, so
+ * that the texture is bound, the Material sent and the buffers bound only when they change from the
+ * item before, and nearer objects hide farther ones early in the depth test. The depths are found
+ * with the viewing transformation given to setView, rather than reading the modelview matrix back.
+ *
+ * If the queue has a view frustum, items whose world-space bounding box is outside it are skipped.
+ * Items of the same Render end up next to each other in the sorted order. If the queue has an
+ * InstancedRenderer, each run of two or more such items is drawn with instancing, lit per pixel as by
+ * the PhongShader, which is resumed afterwards.
+ *
+ * If the queue has a LightInfluence, each item is drawn with only the lights that may reach its world-space
+ * bounding box enabled. Items of the same Render that are reached by the same lights are sorted together,
+ * so a run is only split where the lights change.
+ *
+ * For a depth pre-pass, drawDepth draws the items without textures or Materials, and keeps them for the
+ * flush, which draws them the same way so that they pass a GL_EQUAL depth test.
+ *
+ * The queue keeps its items, and the array of transforms passed for each instanced run, from frame to
+ * frame, so that submitting and flushing allocate nothing once the queue has grown to the frame's size.
+ * The sort numbers of textures, Materials and buffers are forgotten at each flush, so the queue keeps
+ * no reference to anything after the frame it was submitted for.
+ *
+ * The queue counts the state changes it issues in a frame, and the number saved, compared with
+ * drawing each item on its own, as renderVertexBuffers does: binding its texture, sending its
+ * Material, binding its buffers and setting its texture repeat.
+ */
+
+import java.util.*;
+import javax.media.opengl.*;
+import com.jogamp.opengl.util.texture.*;
+
+public class RenderQueue {
+
+  private final ArrayList<Item> items = new ArrayList<Item>();
+  private final ArrayList<Item> pool = new ArrayList<Item>();  // every Item made, the first numPooled in use
+  private int numPooled;
+  private double[][] runTransforms = new double[0][];  // the transforms of an instanced run
+  private final IdentityHashMap<Object, Integer> ids = new IdentityHashMap<Object, Integer>();  // sort order of textures, Materials and buffers
+  private int stateChanges, stateChangesSaved, drawCalls;
+  private InstancedRenderer instancing;
+  private PhongShader lighting;
+  private Frustum frustum;
+  private double[] view;
+  private LightInfluence influence;
+  private int itemsDrawn, itemsCulled;
+  private boolean prepared;  // the items have been culled and sorted since the last submission
+
+  private static class Item {
+    Render render;
+    double[] transform;
+    int textureId, materialId, buffersId;
+    int lights;  // the mask of the lights reaching the item
+    double depth;
+  }
+
+  private static final Comparator<Item> STATE_ORDER = new Comparator<Item>() {
+    public int compare(Item a, Item b) {
+      if (a.textureId != b.textureId) return Integer.compare(a.textureId, b.textureId);
+      if (a.materialId != b.materialId) return Integer.compare(a.materialId, b.materialId);
+      if (a.buffersId != b.buffersId) return Integer.compare(a.buffersId, b.buffersId);
+      if (a.lights != b.lights) return Integer.compare(a.lights, b.lights);
+      return Double.compare(a.depth, b.depth);
+    }
+  };
+
+  /**
+   * Adds an item to be drawn when the queue is next flushed.
+   * The Render's vertex buffers must have been initialised.
+   *
+   * @param  render     the Render to draw
+   * @param  transform  the modelling transform, relative to the modelview matrix current when the queue
+   *                    is flushed, in column-major order. The array is kept, not copied.
+   */
+  public void submit(Render render, double[] transform) {
+    if (numPooled == pool.size()) pool.add(new Item());
+    Item item = pool.get(numPooled++);
+    item.render = render;
+    item.transform = transform;
+    item.textureId = id(render.getTexture());
+    item.materialId = id(render.getMesh().getMaterial());
+    item.buffersId = id(render.getBuffers());
+    item.lights = 0;
+    items.add(item);
+    prepared = false;
+  }
+
+  // A number for each texture, Material and buffers, in order of first submission since the last
+  // flush, so the sort order is the same from frame to frame if they are submitted in the same order.
+  // null is always 0.
+  private int id(Object o) {
+    if (o == null) return 0;
+    Integer id = ids.get(o);
+    if (id == null) {
+      id = ids.size()+1;
+      ids.put(o, id);
+    }
+    return id;
+  }
+
+  /**
+   * Sets the InstancedRenderer used to draw runs of items of the same Render.
+   *
+   * @param  instancing  the InstancedRenderer, or null to draw every item with its own draw call
+   */
+  public void setInstancedRenderer(InstancedRenderer instancing) {
+    this.instancing = instancing;
+  }
+
+  /**
+   * Sets the per-pixel lighting shader, which is told when texturing is enabled and disabled.
+   *
+   * @param  lighting  the shader, current while the queue is flushed, or null for fixed-function lighting
+   */
+  public void setLightingShader(PhongShader lighting) {
+    this.lighting = lighting;
+  }
+
+  /**
+   * Sets the view frustum used to cull items in the next flush.
+   *
+   * @param  frustum  the frustum, in the coordinates the items' transforms map to, or null to draw every item
+   */
+  public void setFrustum(Frustum frustum) {
+    this.frustum = frustum;
+  }
+
+  /**
+   * Sets the viewing transformation used to sort the items front-to-back in the next flush.
+   * It should be the modelview matrix current when the queue is flushed.
+   *
+   * @param  view  the viewing transformation, in column-major order, or null if the items' transforms
+   *               already map to eye coordinates
+   */
+  public void setView(double[] view) {
+    this.view = view;
+  }
+
+  /**
+   * Sets the lights switched on for each item in the next flush.
+   *
+   * @param  influence  the lights, added and begun for the frame before the flush, or null to draw every
+   *                    item with all the lights enabled
+   */
+  public void setLightInfluence(LightInfluence influence) {
+    this.influence = influence;
+  }
+
+  /**
+   * Gets the number of items waiting to be drawn
+   *
+   * @return  the number of items submitted since the last flush
+   */
+  public int size() {
+    return items.size();
+  }
+
+  /**
+   * Sorts and draws the items, then empties the queue. The modelview matrix should hold the viewing
+   * transformation, which each item's transform is multiplied by. The modelview matrix, material,
+   * texture and vertex arrays are left as they were, apart from the last Material sent.
+   *
+   * @param  gl            the OpenGL context.
+   * @param  isTexturesOn  false to draw every item untextured
+   */
+  public void flush(GL2 gl, boolean isTexturesOn) {
+    draw(gl, isTexturesOn, false);
+    items.clear();
+    for (int i=0; i<numPooled; i++) {
+      Item item = pool.get(i);
+      item.render = null;
+      item.transform = null;
+    }
+    numPooled = 0;
+    ids.clear();
+    prepared = false;
+  }
+
+  /**
+   * Sorts and draws the items for a depth pre-pass, keeping them for the next flush. Only the depth
+   * matters: no textures are bound or Materials sent, and the state changes are not counted.
+   * The caller turns off colour writes and lighting.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void drawDepth(GL2 gl) {
+    draw(gl, false, true);
+  }
+
+  // Culls and sorts the items, once for each set of items submitted
+  private void prepare() {
+    if (prepared) return;
+    prepared = true;
+    itemsCulled = 0;
+    if (frustum != null || influence != null) {
+      for (Iterator<Item> it = items.iterator(); it.hasNext(); ) {
+        Item item = it.next();
+        BoundingBox box = MatrixStack.transformBox(item.transform, item.render.getMesh().getBoundingBox());
+        if (frustum != null && !frustum.intersectsBox(box)) {
+          it.remove();
+          itemsCulled++;
+        }
+        else if (influence != null)
+          item.lights = influence.getLights(box);
+      }
+    }
+
+    itemsDrawn = items.size();
+
+    for (Item item : items) {
+      BoundingBox box = item.render.getMesh().getBoundingBox();
+      double[] modelview = (view == null) ? item.transform : MatrixStack.multiply(view, item.transform);
+      double[] centre = MatrixStack.transformPoint(modelview, box.getCentreX(), box.getCentreY(), box.getCentreZ());
+      item.depth = -centre[2];  // distance in front of the eye
+    }
+    Collections.sort(items, STATE_ORDER);
+  }
+
+  // Draws the items, keeping the counts of state changes and draw calls unless the pass is depth only
+  private void draw(GL2 gl, boolean isTexturesOn, boolean depthOnly) {
+    prepare();
+    int stateChanges = 0, stateChangesSaved = 0, drawCalls = 0;
+    Texture boundTexture = null;
+    Material material = null;
+    MeshBuffers boundBuffers = null;
+    boolean boundTexit = false;
+    int repeat = 1;
+    gl.glMatrixMode(GL2.GL_TEXTURE);
+    gl.glPushMatrix();
+    gl.glMatrixMode(GL2.GL_MODELVIEW);
+
+    for (int i=0; i<items.size(); i++) {
+      Item item = items.get(i);
+      Render r = item.render;
+      Texture tex = r.getTexture();
+      boolean texit = isTexturesOn && r.getBuffersTextured() && tex != null;
+      MeshBuffers buffers = r.getBuffers();
+      int changes = 0, unsorted = 2;  // drawn alone, the Material is sent and the buffers bound
+
+      if (texit) {
+        unsorted += 2;  // and the texture bound and the repeat set
+        if (tex != boundTexture) {
+          if (boundTexture == null) {
+            tex.enable(gl);
+            if (lighting != null) lighting.setTextured(gl, true);
+          }
+          tex.bind(gl);
+          boundTexture = tex;
+          changes++;
+        }
+        if (r.getBuffersRepeat() != repeat) {
+          repeat = r.getBuffersRepeat();
+          gl.glMatrixMode(GL2.GL_TEXTURE);
+          gl.glLoadIdentity();
+          gl.glScaled(repeat, repeat, 1);
+          gl.glMatrixMode(GL2.GL_MODELVIEW);
+          changes++;
+        }
+      }
+      else if (boundTexture != null) {
+        boundTexture.disable(gl);
+        if (lighting != null) lighting.setTextured(gl, false);
+        boundTexture = null;
+        changes++;
+      }
+      if (!depthOnly && r.getMesh().getMaterial() != material) {
+        material = r.getMesh().getMaterial();
+        Render.setMaterial(gl, material);
+        changes++;
+      }
+      if (buffers != boundBuffers || texit != boundTexit) {
+        if (boundBuffers != null) boundBuffers.unbind(gl, boundTexit);
+        buffers.bind(gl, texit);
+        boundBuffers = buffers;
+        boundTexit = texit;
+        changes++;
+      }
+
+      if (!depthOnly && influence != null) influence.apply(gl, item.lights);
+
+      int run = 1;
+      while (i+run < items.size() && items.get(i+run).render == r && items.get(i+run).lights == item.lights) run++;
+      if (instancing != null && run > 1) {
+        if (runTransforms.length < run) runTransforms = new double[Math.max(run, runTransforms.length*2)][];
+        for (int j=0; j<run; j++)
+          runTransforms[j] = items.get(i+j).transform;
+        instancing.resetDrawCalls();
+        instancing.drawInstances(gl, buffers, runTransforms, 0, run, texit);
+        Arrays.fill(runTransforms, 0, run, null);
+        drawCalls += instancing.getDrawCalls();
+        if (lighting != null) lighting.resume(gl);
+      }
+      else {
+        for (int j=0; j<run; j++) {
+          gl.glPushMatrix();
+          gl.glMultMatrixd(items.get(i+j).transform, 0);
+          buffers.draw(gl);
+          gl.glPopMatrix();
+        }
+        drawCalls += run;
+      }
+      stateChanges += changes;
+      stateChangesSaved += unsorted*run-changes;
+      i += run-1;
+    }
+
+    if (boundBuffers != null) boundBuffers.unbind(gl, boundTexit);
+    if (boundTexture != null) {
+      boundTexture.disable(gl);
+      if (lighting != null) lighting.setTextured(gl, false);
+    }
+    gl.glMatrixMode(GL2.GL_TEXTURE);
+    gl.glPopMatrix();
+    gl.glMatrixMode(GL2.GL_MODELVIEW);
+    if (!depthOnly) {
+      this.stateChanges = stateChanges;
+      this.stateChangesSaved = stateChangesSaved;
+      this.drawCalls = drawCalls;
+    }
+  }
+
+  /**
+   * Gets the number of state changes issued by the last flush, i.e. texture binds and disables,
+   * texture repeats, Materials sent and vertex buffers bound
+   *
+   * @return  the number of state changes
+   */
+  public int getStateChanges() {
+    return stateChanges;
+  }
+
+  /**
+   * Gets the number of state changes saved by the last flush, compared with drawing each item on its own
+   *
+   * @return  the number of state changes saved
+   */
+  public int getStateChangesSaved() {
+    return stateChangesSaved;
+  }
+
+  /**
+   * Gets the number of items drawn by the last flush
+   *
+   * @return  the number of items drawn
+   */
+  public int getItemsDrawn() {
+    return itemsDrawn;
+  }
+
+  /**
+   * Gets the number of items skipped by the last flush, as they were outside the frustum
+   *
+   * @return  the number of items culled
+   */
+  public int getItemsCulled() {
+    return itemsCulled;
+  }
+
+  /**
+   * Gets the number of draw calls made by the last flush
+   *
+   * @return  the number of draw calls
+   */
+  public int getDrawCalls() {
+    return drawCalls;
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the state changes issued and saved, and the draw calls made, by the last flush
+   */
+  public String toString() {
+    return stateChanges+" state changes, "+stateChangesSaved+" saved, "+drawCalls+" draw calls";
+  }
+
+}
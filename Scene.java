@@ -20,6 +20,7 @@ import com.jogamp.opengl.util.texture.awt.*;
 import javax.media.opengl.glu.GLU;
 import com.jogamp.opengl.util.gl2.GLUT;
 import java.io.IOException;
+import java.util.ArrayList;
 
 import static java.lang.Math.*;
 
@@ -54,11 +55,31 @@ public class Scene {
     private Light light;
     private Camera camera;
     private Mesh meshPlane, meshCube;   // Define mesh instances for the scene. 
+    private MeshCache meshCache = new MeshCache(); // Shared by the scene and the lamp, so identical meshes are only built once
     private Lamp lamp1;
-    //Creates render objects for each textured object, and also generic non textured obkects
-    private Render planeNT, cubeNT, wallPlane, wallPlaneYT, floorPlane, floorPlaneYT, ceilingPlane, ceilingPlaneYT, doorPlane, doorPlaneYT;
+    //Creates render objects for each textured object. Each draws from the mesh cache's vertex buffers, with or without its texture
+    private Render wallPlane, wallPlaneYT, floorPlane, floorPlaneYT, ceilingPlane, ceilingPlaneYT, doorPlane, doorPlaneYT;
     private Render obstacleCube, obstacleCubeYT, fire1Plane, fire1PlaneYT, fire2Plane, fire2PlaneYT, fire3Plane, fire3PlaneYT, fire4Plane, fire4PlaneYT;   // Define matching render objects for the scene meshes
     private Axes axes;
+    private RenderQueue renderQueue = new RenderQueue(); // Fireplace, and the obstacles when instanced, are submitted each frame, then drawn sorted by state
+    private MatrixStack transform = new MatrixStack();    // Modelling transforms of the submitted objects
+    private InstancedRenderer instancedRenderer;          // Draws runs of the same Render in the queue in one call where instancing is supported
+    private StaticBatch staticBatch = new StaticBatch();  // Room, door and obstacles, pre-transformed into world space
+    private boolean staticBatchChanged = true;            // Set when the room dimensions or globalSize change, so the batch is rebuilt
+    private double[] projection;                          // Projection set up by the GUI, for frustum culling
+    private int objectsDrawn, objectsCulled;              // Counts for the last frame, over the static batch, render queue and lamp parts
+    private OcclusionCuller occlusionCuller;              // Skips the fireplace and lamp while the room or obstacles hide them
+    private SoftwareOcclusionCuller softwareCuller = new SoftwareOcclusionCuller(); // Walls and obstacle bars rasterised on the CPU, to test the door, fireplace and lamp parts
+    private int objectsOccluded;                          // Count for the last frame, over the door, fireplace and lamp parts
+    private boolean depthPrePass = false;                 // Draw the room, obstacles and fireplace to the depth buffer first, then shade each pixel once
+    private boolean instancedObstacles = false;           // Submit the obstacle cubes to the render queue, which draws them with instancing, rather than batching them
+    private ArrayList<double[]> obstacleTransforms = new ArrayList<double[]>(); // World-space transforms of the obstacle cubes, when instanced
+    private PhongShader phongShader;                      // Per-pixel lighting, or null to use fixed-function lighting
+    private SkinningShader skinningShader;                // Draws the whole lamp with one call, lit as by phongShader, or null
+    private ClusteredLights clusteredLights;              // Lights for phongShader beyond the eight OpenGL lights, or null
+    private Light[] deskLights = new Light[0];            // Extra point lights spread over the room, lit by clusteredLights
+    private static final float DESK_LIGHT_RANGE = 8;      // Distance a desk light reaches, before scaling by the global size
+    private LightInfluence lightInfluence;                // Switches on only the OpenGL lights reaching each object, or null with clustered lighting
 
     // Use JOGL Texture class to deal with textures
     private Texture wallTexture, floorTexture, ceilingTexture, obstacleTexture, doorTexture, fire1Texture, fire2Texture, fire3Texture, fire4Texture;
@@ -71,13 +92,61 @@ public class Scene {
      * around a virtual sphere, centred on the origin, under mouse control.
      */
     public Scene(GL2 gl, Camera camera) {
+        this(gl, camera, -1);
+    }
+
+    /**
+     * Constructor, optionally lighting the scene with clustered lighting, which evaluates at each
+     * pixel only the lights that reach it, so any number of lights can be used.
+     *
+     * @param gl OpenGL context
+     * @param camera Instance of the camera class, which uses the idea of moving
+     * around a virtual sphere, centred on the origin, under mouse control.
+     * @param numDeskLights The number of extra point lights to spread over the room, with clustered
+     * lighting, or -1 for the OpenGL lights alone. Ignored if per-pixel lighting or float textures are not supported.
+     */
+    public Scene(GL2 gl, Camera camera, int numDeskLights) {
         reset(); //Initialises all variables and places lamp at starting position
         this.camera = camera;
         axes = new Axes(2.2, 1.8, 1.6);
-        lamp1 = new Lamp(gl, glut); //Creates lamp object
+        lamp1 = new Lamp(gl, glut, meshCache); //Creates lamp object
         createLight(gl); //Creates general ambient light for room
+        if (numDeskLights >= 0) {
+            clusteredLights = new ClusteredLights(gl);
+            phongShader = clusteredLights.isSupported() ? new PhongShader(gl, clusteredLights) : null;
+            if (phongShader != null && phongShader.isValid()) {
+                createDeskLights(numDeskLights);
+            } else {
+                clusteredLights = null; // Fall back to the OpenGL lights
+            }
+        }
+        if (clusteredLights == null) {
+            phongShader = new PhongShader(gl);
+            lightInfluence = new LightInfluence();
+            renderQueue.setLightInfluence(lightInfluence);
+            staticBatch.setLightInfluence(lightInfluence);
+        }
+        if (phongShader.isValid()) {
+            gl.glDisable(GL2.GL_NORMALIZE); // Normals are normalised for each pixel by the shader
+            renderQueue.setLightingShader(phongShader);
+            staticBatch.setLightingShader(phongShader);
+            if (lightInfluence != null) {
+                lightInfluence.setLightingShader(phongShader);
+            }
+            skinningShader = new SkinningShader(gl, Lamp.NUM_JOINTS, clusteredLights);
+            if (skinningShader.isValid()) {
+                lamp1.setSkinningShader(skinningShader);
+            } else {
+                skinningShader = null; // The lamp is drawn from its display lists
+            }
+        } else {
+            phongShader = null; // Fall back to fixed-function lighting
+        }
         createRenderObjects(gl);  // Create/load objects
-
+        instancedRenderer = new InstancedRenderer(gl, clusteredLights);
+        renderQueue.setInstancedRenderer(instancedRenderer);
+        occlusionCuller = new OcclusionCuller(gl);
+        lamp1.setPartOcclusion(softwareCuller);
     }
 
     /**
@@ -97,6 +166,47 @@ public class Scene {
         light = new Light(GL2.GL_LIGHT0, position, ambient, diffuse, specular, true); // Create a default light
     }
 
+    /**
+     * Creates the desk lights, as warm point lights at the origin of their own coordinates,
+     * which placeDeskLights moves to their places in the room each frame.
+     *
+     * @param numDeskLights The number of lights
+     */
+    private void createDeskLights(int numDeskLights) {
+        float[] position = {0, 0, 0, 1};
+        float[] ambient = {0, 0, 0};
+        float[] diffuse = {0.8f, 0.7f, 0.5f};
+        float[] specular = {0.4f, 0.35f, 0.25f};
+        deskLights = new Light[numDeskLights];
+        for (int i = 0; i < numDeskLights; i++) {
+            deskLights[i] = new Light(GL2.GL_LIGHT2, position, ambient, diffuse, specular, true); // Never enabled as an OpenGL light
+            deskLights[i].setRange(DESK_LIGHT_RANGE);
+        }
+    }
+
+    /**
+     * Adds the lights to the clustered lights for this frame: the room light, the lamp's light
+     * where it was last placed, and the desk lights on a grid over the floor, at desk height,
+     * following the size of the room.
+     */
+    private void addClusteredLights() {
+        clusteredLights.clear();
+        clusteredLights.add(light, null);
+        if (lamp1.getLightTransform() != null) {
+            clusteredLights.add(lamp1.getLight(), lamp1.getLightTransform());
+        }
+        int columns = (int) Math.ceil(Math.sqrt(deskLights.length));
+        int rows = (deskLights.length + columns - 1) / Math.max(1, columns);
+        MatrixStack place = new MatrixStack();
+        for (int i = 0; i < deskLights.length; i++) {
+            place.loadIdentity();
+            place.translate((-0.5 + (i % columns + 0.5) / columns) * 4 * roomWidth * globalSize, 1.5 * globalSize,
+                    (-0.5 + (i / columns + 0.5) / rows) * 4 * roomLength * globalSize);
+            place.scale(globalSize, globalSize, globalSize);
+            clusteredLights.add(deskLights[i], place.getMatrix());
+        }
+    }
+
     /**
      * Creates Mesh/Render Objects.
      *
@@ -119,40 +229,39 @@ public class Scene {
         fire3Texture = loadTexture(gl, "resources/fire_3.png");
         fire4Texture = loadTexture(gl, "resources/fire_4.png");
 
-        meshCube = ProceduralMeshFactory.createHardCube();
-        meshPlane = ProceduralMeshFactory.createPlane(5, 5, 10, 10, 1, 1);  // Create the mesh cube structure
-
-        //Creates generic non textured Render objects
-        planeNT = new Render(meshPlane, floorTexture);
-        cubeNT = new Render(meshCube, floorTexture);    // Create a new Render object for the mesh 
+        meshCube = meshCache.acquireHardCube(1, 1, 1);
+        //Lit per vertex, the planes are divided into 10x10 vertices so that the lamp's spotlight shows on them.
+        //Lit per pixel, two triangles will do
+        int planeVertices = (phongShader != null) ? 2 : 10;
+        meshPlane = meshCache.acquirePlane(5, 5, planeVertices, planeVertices, 1, 1);  // Create the mesh cube structure
 
         // Creates textured object for each element of the scene
         floorPlaneYT = new Render(meshPlane, floorTexture);    // Create a new Render object for the mesh
-        floorPlaneYT.initialiseDisplayList(gl, true, 20);
+        floorPlaneYT.initialiseVertexBuffers(gl, true, 20, meshCache);
 
         ceilingPlaneYT = new Render(meshPlane, ceilingTexture);    // Create a new Render object for the mesh
-        ceilingPlaneYT.initialiseDisplayList(gl, true, 10);
+        ceilingPlaneYT.initialiseVertexBuffers(gl, true, 10, meshCache);
 
         wallPlaneYT = new Render(meshPlane, wallTexture);    // Create a new Render object for the mesh
-        wallPlaneYT.initialiseDisplayList(gl, true, 10);
+        wallPlaneYT.initialiseVertexBuffers(gl, true, 10, meshCache);
 
         doorPlaneYT = new Render(meshPlane, doorTexture);    // Create a new Render object for the mesh
-        doorPlaneYT.initialiseDisplayList(gl, true, 1);
+        doorPlaneYT.initialiseVertexBuffers(gl, true, 1, meshCache);
 
         fire1PlaneYT = new Render(meshPlane, fire1Texture);    // Create a new Render object for the mesh
-        fire1PlaneYT.initialiseDisplayList(gl, true, 1);
+        fire1PlaneYT.initialiseVertexBuffers(gl, true, 1, meshCache);
 
         fire2PlaneYT = new Render(meshPlane, fire2Texture);    // Create a new Render object for the mesh
-        fire2PlaneYT.initialiseDisplayList(gl, true, 1);
+        fire2PlaneYT.initialiseVertexBuffers(gl, true, 1, meshCache);
 
         fire3PlaneYT = new Render(meshPlane, fire3Texture);    // Create a new Render object for the mesh
-        fire3PlaneYT.initialiseDisplayList(gl, true, 1);
+        fire3PlaneYT.initialiseVertexBuffers(gl, true, 1, meshCache);
 
         fire4PlaneYT = new Render(meshPlane, fire4Texture);    // Create a new Render object for the mesh
-        fire4PlaneYT.initialiseDisplayList(gl, true, 1);
+        fire4PlaneYT.initialiseVertexBuffers(gl, true, 1, meshCache);
 
         obstacleCubeYT = new Render(meshCube, obstacleTexture);    // Create a new Render object for the mesh
-        obstacleCubeYT.initialiseDisplayList(gl, true, 1);
+        obstacleCubeYT.initialiseVertexBuffers(gl, true, 1, meshCache);
 
         //Sets textured objects to be the used render objects
         floorPlane = floorPlaneYT;
@@ -167,6 +276,45 @@ public class Scene {
 
     }
 
+    /**
+     * Retrieves the render queue, e.g. to report the state changes it saves.
+     *
+     * @return returns the RenderQueue used to draw the room, fireplace and obstacles
+     */
+    public RenderQueue getRenderQueue() {
+        return renderQueue;
+    }
+
+    /**
+     * Releases the display lists and vertex buffers held by the Render objects of
+     * the scene and the lamp, the instancing and lighting shaders, the static batch, the occlusion queries, and the meshes held by the mesh cache.
+     *
+     * @param gl OpenGL context
+     */
+    public void dispose(GL2 gl) {
+        Render[] renders = {floorPlaneYT, ceilingPlaneYT, wallPlaneYT, doorPlaneYT,
+            fire1PlaneYT, fire2PlaneYT, fire3PlaneYT, fire4PlaneYT, obstacleCubeYT};
+        for (Render r : renders) {
+            r.dispose(gl);
+        }
+        lamp1.dispose(gl);
+        instancedRenderer.dispose(gl);
+        if (phongShader != null) {
+            phongShader.dispose(gl);
+        }
+        if (skinningShader != null) {
+            skinningShader.dispose(gl);
+        }
+        if (clusteredLights != null) {
+            clusteredLights.dispose(gl);
+        }
+        staticBatch.dispose(gl);
+        occlusionCuller.dispose(gl);
+        meshCache.release(meshPlane);
+        meshCache.release(meshCube);
+        meshCache.dispose(gl);
+    }
+
     /**
      * Loads texture from image file.
      *
@@ -218,6 +366,84 @@ public class Scene {
     public void setCanvasSize(int w, int h) {
         canvaswidth = w;
         canvasheight = h;
+        if (clusteredLights != null) {
+            clusteredLights.setViewport(w, h); // For finding each pixel's cluster
+        }
+    }
+
+    /**
+     * Sets the projection matrix, so that objects outside the view frustum can be skipped.
+     *
+     * @param projection The projection matrix set up in the GUI, in OpenGL's column-major order
+     *
+     */
+    public void setProjection(double[] projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * Retrieves the number of objects drawn in the last frame: the surfaces of the room,
+     * door and obstacles, the fireplace, and the parts of the lamp.
+     *
+     * @return returns the number of objects drawn
+     */
+    public int getObjectsDrawn() {
+        return objectsDrawn;
+    }
+
+    /**
+     * Retrieves the number of objects skipped in the last frame as they were outside the view frustum.
+     *
+     * @return returns the number of objects culled
+     */
+    public int getObjectsCulled() {
+        return objectsCulled;
+    }
+
+    /**
+     * Retrieves the number of objects skipped in the last frame as they were hidden behind the
+     * room or obstacles, when last tested with an occlusion query.
+     *
+     * @return returns the number of objects occluded
+     */
+    public int getObjectsOccluded() {
+        return objectsOccluded;
+    }
+
+    /**
+     * Retrieves the clustered lights, e.g. to print how many lights reached each cluster in the last frame.
+     *
+     * @return the clustered lights, or null if the scene is lit by the OpenGL lights alone
+     */
+    public ClusteredLights getClusteredLights() {
+        return clusteredLights;
+    }
+
+    /**
+     * Retrieves the light influence, e.g. to print how many lights reached each object in the last frame.
+     *
+     * @return the light influence, or null if the scene uses clustered lighting
+     */
+    public LightInfluence getLightInfluence() {
+        return lightInfluence;
+    }
+
+    /**
+     * Retrieves the software occlusion culler, e.g. to print the time it took to rasterise the occluders in the last frame.
+     *
+     * @return the software occlusion culler
+     */
+    public SoftwareOcclusionCuller getSoftwareOcclusionCuller() {
+        return softwareCuller;
+    }
+
+    /**
+     * Retrieves the occlusion culler, e.g. to print the queries it issued in the last frame.
+     *
+     * @return the occlusion culler
+     */
+    public OcclusionCuller getOcclusionCuller() {
+        return occlusionCuller;
     }
 
     /**
@@ -300,6 +526,7 @@ public class Scene {
         jumpTimer = 361 - jumpAngle;
         coneVertRot = 0;
         segmentCount = 0;
+        staticBatchChanged = true;
         setObjectsDisplay(true);
     }
 
@@ -423,6 +650,7 @@ public class Scene {
             roomHeight = roomHeight * 1.02;
             roomLength = roomLength * 1.02;
         }
+        staticBatchChanged = true;
     }
 
     /**
@@ -440,6 +668,7 @@ public class Scene {
             roomHeight = roomHeight * 0.98;
             roomLength = roomLength * 0.98;
         }
+        staticBatchChanged = true;
     }
 
     /**
@@ -449,6 +678,7 @@ public class Scene {
      */
     public void incSize() {
         globalSize += 0.1;
+        staticBatchChanged = true;
     }
 
     /**
@@ -458,6 +688,7 @@ public class Scene {
      */
     public void decSize() {
         globalSize -= 0.1;
+        staticBatchChanged = true;
     }
 
     /**
@@ -477,170 +708,235 @@ public class Scene {
     }
 
     /**
-     * Constructs fireplace. Fireplace is made from a series of textured places
+     * Constructs fireplace. Fireplace is made from a series of textured places,
+     * submitted to the render queue each frame as its texture is animated, unless
+     * it is inside the view frustum but hidden when last tested with an occlusion query
      *
      * @param gl OpenGL context
+     * @param frustum The view frustum in world space, or null if the fireplace is not to be tested
      */
-    private void drawFireplace(GL2 gl) {
+    private void drawFireplace(GL2 gl, Frustum frustum) {
         double length = roomLength * globalSize;//Size paramaters
         double width = roomWidth * globalSize;
         double height = roomHeight * globalSize;
 
         //Sizes and places plane in the room
-        gl.glPushMatrix();
-        gl.glTranslated(0, 0, -width * 3 * globalSize);
-        gl.glScaled(length * 0.15, height * 0.4, length * 0.15);
-        gl.glTranslated(0, 2.5, 0);
-        gl.glRotated(90, 1, 0, 0);
+        transform.pushMatrix();
+        transform.translate(0, 0, -width * 3 * globalSize);
+        transform.scale(length * 0.15, height * 0.4, length * 0.15);
+        transform.translate(0, 2.5, 0);
+        transform.rotate(90, 1, 0, 0);
+
+        //The planes are all the same size, so the first one identifies the fireplace to the occlusion culler.
+        //The software test is tried first, as it needs no query
+        BoundingBox box = MatrixStack.transformBox(transform.getMatrix(), fire1Plane.getMesh().getBoundingBox());
+        if (frustum != null && frustum.intersectsBox(box)
+                && (!softwareCuller.isVisible(box) || !occlusionCuller.isVisible(gl, fire1Plane, box))) {
+            objectsOccluded++;
+            transform.popMatrix();
+            return;
+        }
 
         if (fireplaceAnimationStage == 0) {
-            fire1Plane.renderDisplayList(gl, isTexturesOn);
+            renderQueue.submit(fire1Plane, transform.getMatrix());
         }
         if (fireplaceAnimationStage == 1) {
-            fire2Plane.renderDisplayList(gl, isTexturesOn);
+            renderQueue.submit(fire2Plane, transform.getMatrix());
         }
         if (fireplaceAnimationStage == 2) {
-            fire3Plane.renderDisplayList(gl, isTexturesOn);
+            renderQueue.submit(fire3Plane, transform.getMatrix());
         }
         if (fireplaceAnimationStage == 3) {
-            fire4Plane.renderDisplayList(gl, isTexturesOn);
+            renderQueue.submit(fire4Plane, transform.getMatrix());
         }
-        gl.glPopMatrix();
+        transform.popMatrix();
     }
     /**
-     * Constructs room. Room is made from a series of textured places
+     * Constructs room. Room is made from a series of textured places, added to the static batch.
+     * The walls are also occluders for the software occlusion culler, and the door is tested against them
      * Written by Kevin Stanley-Adams 2013
-     * @param gl OpenGL context
      * @param roomWidth
      * @param roomLength
      * @param roomHeight
      */
-    private void drawRoom(GL2 gl, double roomWidth, double roomLength, double roomHeight) {
+    private void drawRoom(double roomWidth, double roomLength, double roomHeight) {
 
         double length = roomWidth * globalSize;
         double width = roomLength * globalSize;
         double height = roomHeight * globalSize;
 
         //Ceiling
-        gl.glPushMatrix();
-        gl.glTranslated(0, 5 * height, -width * 2.5);
-        gl.glRotated(90, 1, 0, 0);
-        gl.glScaled(length, width, length);
-        gl.glTranslated(0, 2.5, 0);
-        gl.glRotated(90, 1, 0, 0);
-        ceilingPlane.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
+        transform.pushMatrix();
+        transform.translate(0, 5 * height, -width * 2.5);
+        transform.rotate(90, 1, 0, 0);
+        transform.scale(length, width, length);
+        transform.translate(0, 2.5, 0);
+        transform.rotate(90, 1, 0, 0);
+        staticBatch.add(ceilingPlane, transform.getMatrix());
+        transform.popMatrix();
 
         //Floor
-        gl.glPushMatrix();
-        gl.glTranslated(0, 0, width * 2.5);
-        gl.glRotated(-90, 1, 0, 0);
-        gl.glScaled(length, width, length);
-        gl.glTranslated(0, 2.5, 0);
-        gl.glRotated(90, 1, 0, 0);
-        floorPlane.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
+        transform.pushMatrix();
+        transform.translate(0, 0, width * 2.5);
+        transform.rotate(-90, 1, 0, 0);
+        transform.scale(length, width, length);
+        transform.translate(0, 2.5, 0);
+        transform.rotate(90, 1, 0, 0);
+        staticBatch.add(floorPlane, transform.getMatrix());
+        transform.popMatrix();
 
         //Small Walls
-        gl.glPushMatrix();
-        gl.glTranslated(length * 2.5, 0, 0);
-        gl.glRotated(-90, 0, 1, 0);
-        gl.glScaled(width, height, width);
-        gl.glTranslated(0, 2.5, 0);
-        gl.glRotated(90, 1, 0, 0);
-        wallPlane.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
-
-        gl.glPushMatrix();
-        gl.glTranslated(-length * 2.5, 0, 0);
-        gl.glRotated(90, 0, 1, 0);
-        gl.glScaled(width, height, width);
-        gl.glTranslated(0, 2.5, 0);
-        gl.glRotated(90, 1, 0, 0);
-        wallPlane.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
+        transform.pushMatrix();
+        transform.translate(length * 2.5, 0, 0);
+        transform.rotate(-90, 0, 1, 0);
+        transform.scale(width, height, width);
+        transform.translate(0, 2.5, 0);
+        transform.rotate(90, 1, 0, 0);
+        staticBatch.add(wallPlane, transform.getMatrix());
+        softwareCuller.addOccluder(wallPlane.getMesh(), transform.getMatrix());
+        transform.popMatrix();
+
+        transform.pushMatrix();
+        transform.translate(-length * 2.5, 0, 0);
+        transform.rotate(90, 0, 1, 0);
+        transform.scale(width, height, width);
+        transform.translate(0, 2.5, 0);
+        transform.rotate(90, 1, 0, 0);
+        staticBatch.add(wallPlane, transform.getMatrix());
+        softwareCuller.addOccluder(wallPlane.getMesh(), transform.getMatrix());
+        transform.popMatrix();
 
         //Door
-        gl.glPushMatrix();
-        gl.glTranslated(0, 0, width * 2.49);
-        gl.glRotated(180, 0, 1, 0);
-        gl.glScaled(length * 0.2, height * 0.7, length * 0.2);
-        gl.glTranslated(0, 2.5, 0);
-        gl.glRotated(90, 1, 0, 0);
-        doorPlane.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
+        transform.pushMatrix();
+        transform.translate(0, 0, width * 2.49);
+        transform.rotate(180, 0, 1, 0);
+        transform.scale(length * 0.2, height * 0.7, length * 0.2);
+        transform.translate(0, 2.5, 0);
+        transform.rotate(90, 1, 0, 0);
+        staticBatch.add(doorPlane, transform.getMatrix(), true);
+        transform.popMatrix();
 
         //Long Walls
-        gl.glPushMatrix();
-        gl.glTranslated(0, 0, width * 2.5);
-        gl.glRotated(180, 0, 1, 0);
-        gl.glScaled(length, height, length);
-        gl.glTranslated(0, 2.5, 0);
-        gl.glRotated(90, 1, 0, 0);
-        wallPlane.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
-
-        gl.glPushMatrix();
-        gl.glTranslated(0, 0, -width * 2.5);
-        gl.glScaled(length, height, length);
-        gl.glTranslated(0, 2.5, 0);
-        gl.glRotated(90, 1, 0, 0);
-        wallPlane.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
+        transform.pushMatrix();
+        transform.translate(0, 0, width * 2.5);
+        transform.rotate(180, 0, 1, 0);
+        transform.scale(length, height, length);
+        transform.translate(0, 2.5, 0);
+        transform.rotate(90, 1, 0, 0);
+        staticBatch.add(wallPlane, transform.getMatrix());
+        softwareCuller.addOccluder(wallPlane.getMesh(), transform.getMatrix());
+        transform.popMatrix();
+
+        transform.pushMatrix();
+        transform.translate(0, 0, -width * 2.5);
+        transform.scale(length, height, length);
+        transform.translate(0, 2.5, 0);
+        transform.rotate(90, 1, 0, 0);
+        staticBatch.add(wallPlane, transform.getMatrix());
+        softwareCuller.addOccluder(wallPlane.getMesh(), transform.getMatrix());
+        transform.popMatrix();
 
     }
     /**
-     * Constructs obstacle. Obstacle is made from a series of textured cubes
+     * Constructs obstacle. Obstacle is made from a series of textured cubes, added to the static batch,
+     * or kept to be submitted to the render queue each frame when the obstacles are instanced.
+     * The cubes are also occluders for the software occlusion culler
      * Written by Kevin Stanley-Adams 2013
-     * @param gl OpenGL context
      * @param size
      */
-    private void drawObstacle(GL2 gl, double size) {
+    private void drawObstacle(double size) {
 
-        gl.glPushMatrix();
+        transform.pushMatrix();
 
         //Draw middle bars
-        gl.glPushMatrix();
-        gl.glTranslated(2.5 * size, 1.9 * size, 0);
-        gl.glRotated(90, 0, 0, 1);
-        gl.glScaled(0.3 * size, 5 * size, 0.3 * size);
-        gl.glTranslated(0, 0.5, 0);
-        obstacleCube.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
-
-        gl.glPushMatrix();
-        gl.glTranslated(2.5 * size, 1.3 * size, 0);
-        gl.glRotated(90, 0, 0, 1);
-        gl.glScaled(0.3 * size, 5 * size, 0.3 * size);
-        gl.glTranslated(0, 0.5, 0);
-        obstacleCube.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
-
-        gl.glPushMatrix();
-        gl.glTranslated(2.5 * size, 0.7 * size, 0);
-        gl.glRotated(90, 0, 0, 1);
-        gl.glScaled(0.3 * size, 5 * size, 0.3 * size);
-        gl.glTranslated(0, 0.5, 0);
-        obstacleCube.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
+        transform.pushMatrix();
+        transform.translate(2.5 * size, 1.9 * size, 0);
+        transform.rotate(90, 0, 0, 1);
+        transform.scale(0.3 * size, 5 * size, 0.3 * size);
+        transform.translate(0, 0.5, 0);
+        addObstacleCube(transform.getMatrix());
+        transform.popMatrix();
+
+        transform.pushMatrix();
+        transform.translate(2.5 * size, 1.3 * size, 0);
+        transform.rotate(90, 0, 0, 1);
+        transform.scale(0.3 * size, 5 * size, 0.3 * size);
+        transform.translate(0, 0.5, 0);
+        addObstacleCube(transform.getMatrix());
+        transform.popMatrix();
+
+        transform.pushMatrix();
+        transform.translate(2.5 * size, 0.7 * size, 0);
+        transform.rotate(90, 0, 0, 1);
+        transform.scale(0.3 * size, 5 * size, 0.3 * size);
+        transform.translate(0, 0.5, 0);
+        addObstacleCube(transform.getMatrix());
+        transform.popMatrix();
 
         //Draw side bars
-        gl.glPushMatrix();
-        gl.glTranslated(-2.5 * size, 0, 0);
-        gl.glScaled(0.6 * size, 2.5 * size, 0.6 * size);
-        gl.glTranslated(0, 0.5, 0);
-        obstacleCube.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
-
-        gl.glPushMatrix();
-        gl.glTranslated(2.5 * size, 0, 0);
-        gl.glScaled(0.6 * size, 2.5 * size, 0.6 * size);
-        gl.glTranslated(0, 0.5, 0);
-        obstacleCube.renderDisplayList(gl, isTexturesOn);
-        gl.glPopMatrix();
+        transform.pushMatrix();
+        transform.translate(-2.5 * size, 0, 0);
+        transform.scale(0.6 * size, 2.5 * size, 0.6 * size);
+        transform.translate(0, 0.5, 0);
+        addObstacleCube(transform.getMatrix());
+        transform.popMatrix();
+
+        transform.pushMatrix();
+        transform.translate(2.5 * size, 0, 0);
+        transform.scale(0.6 * size, 2.5 * size, 0.6 * size);
+        transform.translate(0, 0.5, 0);
+        addObstacleCube(transform.getMatrix());
+        transform.popMatrix();
+
+        transform.popMatrix();
+    }
+    /**
+     * Adds an obstacle cube, to the static batch or, when the obstacles are instanced, to the
+     * cubes submitted to the render queue, and as an occluder.
+     *
+     * @param matrix The cube's transform to world space
+     */
+    private void addObstacleCube(double[] matrix) {
+        if (instancedObstacles) {
+            obstacleTransforms.add(matrix);
+        } else {
+            staticBatch.add(obstacleCube, matrix);
+        }
+        softwareCuller.addOccluder(obstacleCube.getMesh(), matrix);
+    }
 
-        gl.glPopMatrix();
+    /**
+     * Rebuilds the static batch. The room and obstacles are added to the batch in
+     * world space, as they only move when the room dimensions or globalSize change.
+     *
+     * @param gl OpenGL context
+     */
+    private void buildStaticBatch(GL2 gl) {
+        staticBatch.clear(gl);
+        softwareCuller.clearOccluders();
+        obstacleTransforms.clear();
+        transform.loadIdentity();
+        drawRoom(roomWidth, roomLength, roomHeight);
+
+        //Obstacle
+        transform.pushMatrix();
+        transform.rotate(180 / jumpSegments, 0, 1, 0);
+        transform.pushMatrix();
+        transform.translate(20 * globalSize, 0, 0);
+        drawObstacle(globalSize);
+        transform.popMatrix();
+
+        //Obstacle
+        transform.pushMatrix();
+        transform.translate(-20 * globalSize, 0, 0);
+        drawObstacle(globalSize);
+        transform.popMatrix();
+        transform.popMatrix();
+
+        staticBatch.build(gl);
+        staticBatchChanged = false;
     }
+
     /**
      * Changes camera mode.
      * 
@@ -651,32 +947,67 @@ public class Scene {
     /**
      * Enables/Disables Textures.
      * 
-     * Swaps render objects depending on textures being on or off
+     * The render queue draws the same vertex buffers in either mode, binding
+     * texture coordinates only when textures are on
      * 
      */
     public void setTextureMode() {
         isTexturesOn = !isTexturesOn;
-        if (!isTexturesOn) {
-            floorPlane = planeNT;
-            ceilingPlane = planeNT;
-            wallPlane = planeNT;
-            doorPlane = planeNT;
-            fire1Plane = planeNT;
-            fire2Plane = planeNT;
-            fire3Plane = planeNT;
-            fire4Plane = planeNT;
-            obstacleCube = cubeNT;
-        } else {
-            floorPlane = floorPlaneYT;
-            ceilingPlane = ceilingPlaneYT;
-            wallPlane = wallPlaneYT;
-            doorPlane = doorPlaneYT;
-            fire1Plane = fire1PlaneYT;
-            fire2Plane = fire2PlaneYT;
-            fire3Plane = fire3PlaneYT;
-            fire4Plane = fire4PlaneYT;
-            obstacleCube = obstacleCubeYT;
-        }
+    }
+
+    /**
+     * Switches the depth pre-pass on or off.
+     *
+     * With the pre-pass, the room, obstacles and fireplace are first drawn with colour writes and
+     * lighting off, to fill the depth buffer, then drawn again with a GL_EQUAL depth test, so that
+     * each pixel is lit and textured once, however many surfaces cover it. The lamp is drawn after,
+     * with the usual depth test.
+     *
+     * @param b true to draw a depth pre-pass
+     */
+    public void setDepthPrePass(boolean b) {
+        depthPrePass = b;
+    }
+
+    /**
+     * Switches instancing of the obstacles on or off.
+     *
+     * Instanced, the ten obstacle cubes are submitted to the render queue each frame rather than
+     * merged into the static batch, so the queue draws them, all of the same Render, with instanced
+     * draw calls where instancing is supported.
+     *
+     * @param b true to draw the obstacles with instancing
+     */
+    public void setInstancedObstacles(boolean b) {
+        instancedObstacles = b;
+        staticBatchChanged = true;
+    }
+
+    /**
+     * Retrieves whether the obstacles are drawn with instancing.
+     *
+     * @return returns true if the obstacles are submitted to the render queue
+     */
+    public boolean getInstancedObstacles() {
+        return instancedObstacles;
+    }
+
+    /**
+     * Retrieves whether the depth pre-pass is switched on.
+     *
+     * @return returns true if a depth pre-pass is drawn
+     */
+    public boolean getDepthPrePass() {
+        return depthPrePass;
+    }
+
+    /**
+     * Retrieves the current texture mode setting.
+     *
+     * @return returns true if textures are switched on
+     */
+    public boolean getTexturesOn() {
+        return isTexturesOn;
     }
 
     /**
@@ -688,14 +1019,41 @@ public class Scene {
         gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
         gl.glLoadIdentity();
         axes.setSwitchedOn(false);
+        double[] view;
         if (lampCamera) { // Camera angle follows lamp
 
             camera.followLamp(glu, rotate, deltaY);
+            view = camera.getLampViewMatrix(rotate, deltaY);
 
         } else {
             camera.view(glu); // Convential camera view
+            view = camera.getViewMatrix();
+        }
+        Frustum frustum = (projection == null) ? null : new Frustum(projection, view); // In world space
+        objectsDrawn = objectsCulled = objectsOccluded = 0;
+        if (objectsOn && staticBatchChanged) {
+            buildStaticBatch(gl); // Adds the occluders, so before they are rasterised
+        }
+        if (objectsOn && frustum != null) {
+            // Rasterises the occluders on another thread while the lights are set up and the room is drawn,
+            // until the door, drawn last of the static batch, is tested
+            softwareCuller.beginFrame(projection, view);
         }
+        GLStateCache.get(gl).resetCounts(); // Counts the light and material uploads of this frame
         doLight(gl);                      // Place the light
+        if (clusteredLights != null && projection != null) {
+            addClusteredLights();
+            clusteredLights.bin(projection, view); // The lamp's light is where it was placed in the last frame, as with the OpenGL light
+            clusteredLights.upload(gl);
+        }
+        if (lightInfluence != null) {
+            lightInfluence.clear();
+            lightInfluence.add(light, null);
+            if (lamp1.getLightTransform() != null) {
+                lightInfluence.add(lamp1.getLight(), lamp1.getLightTransform()); // Where it was placed in the last frame
+            }
+            lightInfluence.beginFrame();
+        }
 
         if (axes.getSwitchedOn()) {
             axes.display(gl, glut);
@@ -703,34 +1061,82 @@ public class Scene {
 
         if (objectsOn) {                  // Render the objects
 
-            drawRoom(gl, roomWidth, roomLength, roomHeight);
-            drawFireplace(gl);
+            SoftwareOcclusionCuller occlusion = (frustum == null) ? null : softwareCuller;
+            if (depthPrePass) {
+                gl.glPushAttrib(GL2.GL_ENABLE_BIT | GL2.GL_COLOR_BUFFER_BIT);
+                gl.glDisable(GL2.GL_LIGHTING);
+                gl.glColorMask(false, false, false, false);
+                staticBatch.drawDepth(gl, frustum, occlusion);
+            } else {
+                if (phongShader != null) {
+                    phongShader.use(gl); // Lights the pixels of everything drawn from here on
+                }
+                staticBatch.draw(gl, isTexturesOn, frustum, occlusion); // Room, door and obstacles, which hide the other objects
+            }
+            if (frustum != null) {
+                occlusionCuller.beginFrame(projection, view);
+            }
 
-            //Obstacle
-            gl.glPushMatrix();
-            gl.glRotated(180 / jumpSegments, 0, 1, 0);
-            gl.glPushMatrix();
-            gl.glTranslated(20 * globalSize, 0, 0);
-            drawObstacle(gl, globalSize);
-            gl.glPopMatrix();
+            transform.loadIdentity();
+            drawFireplace(gl, frustum); // Tested against the room and obstacles alone, before it is in the depth buffer itself
+            for (double[] matrix : obstacleTransforms) {
+                renderQueue.submit(obstacleCube, matrix); // Drawn together, with instancing
+            }
+            renderQueue.setFrustum(frustum);
+            renderQueue.setView(view); // For sorting front-to-back
+            if (depthPrePass) {
+                renderQueue.drawDepth(gl);
+                gl.glPopAttrib();
+                gl.glDepthFunc(GL2.GL_EQUAL); // Shade only the nearest surface at each pixel
+                gl.glDepthMask(false);
+                if (phongShader != null) {
+                    phongShader.use(gl);
+                }
+                staticBatch.draw(gl, isTexturesOn, frustum, occlusion);
+            }
+            renderQueue.flush(gl, isTexturesOn); // Draw the submitted objects, sorted to reduce state changes
+            if (depthPrePass) {
+                gl.glDepthFunc(GL2.GL_LESS);
+                gl.glDepthMask(true);
+            }
 
-            
-            //Obstacle
-            gl.glPushMatrix();
-            gl.glTranslated(-20 * globalSize, 0, 0);
-            drawObstacle(gl, globalSize);
-            gl.glPopMatrix();
-            gl.glPopMatrix();
+            transform.loadIdentity(); // The lamp's placement, for culling the lamp and its parts
+            transform.translate(0, deltaY * globalSize, 0);
+            transform.rotate(rotate, 0, 1, 0);
+            transform.translate(-20 * globalSize, 0, 0);
+            BoundingBox lampBox = MatrixStack.transformBox(transform.getMatrix(), lamp1.getReachBounds());
+            // Queried before the lamp is placed, while the modelview holds only the view, as the box is in world space
+            lamp1.setOccluded(frustum != null && lampBox.getRangeX() > 0 && frustum.intersectsBox(lampBox)
+                    && !occlusionCuller.isVisible(gl, lamp1, lampBox)); // The box is empty until the lamp is first drawn
 
             //Lamp jump transformation
             gl.glTranslated(0, deltaY * globalSize, 0);
 
-            //Lamp being placed
+            //Lamp being placed, by the same transform
             gl.glPushMatrix();
             gl.glRotated(rotate, 0, 1, 0);
             gl.glTranslated(-20 * globalSize, 0, 0);
-            lamp1.draw(globalSize, lowerRot, upperRot, coneVertRot, coneHorRot, baseRot);
+            if (lightInfluence != null && lampBox.getRangeX() > 0) {
+                lightInfluence.apply(gl, lightInfluence.getLights(lampBox));
+            } else if (lightInfluence != null) {
+                lightInfluence.endFrame(gl); // Every light, until the lamp's reach is known
+            }
+            lamp1.setView(projection, view, canvaswidth, canvasheight); // For its level of detail
+            lamp1.draw(globalSize, lowerRot, upperRot, coneVertRot, coneHorRot, baseRot, transform.getMatrix(), frustum);
             gl.glPopMatrix();
+            if (phongShader != null) {
+                phongShader.resume(gl); // The skinning shader leaves no program current
+            }
+            if (lightInfluence != null) {
+                lightInfluence.endFrame(gl); // Every light on again, for whatever is drawn next
+            }
+            if (phongShader != null) {
+                phongShader.stop(gl);
+            }
+
+            objectsDrawn = staticBatch.getPartsDrawn() + renderQueue.getItemsDrawn() + lamp1.getPartsDrawn();
+            objectsCulled = staticBatch.getPartsCulled() + renderQueue.getItemsCulled() + lamp1.getPartsCulled();
+            objectsOccluded += staticBatch.getPartsOccluded() + lamp1.getPartsOccluded();
 
         }
     }
@@ -0,0 +1,144 @@
+/**
+ * A GLSL program made from a vertex shader and a fragment shader given as source strings.
+ * If either shader fails to compile, or the program fails to link, the log is printed and
+ * isValid returns false, so the caller can fall back to the fixed-function pipeline.
+ * Uniform locations are looked up once and cached.
+ * The program must be released with dispose(gl) when it is no longer needed.
+ */
+
+import java.util.*;
+import javax.media.opengl.*;
+
+public class ShaderProgram {
+
+  private int program;
+  private boolean valid;
+  private final Map<String, Integer> uniforms = new HashMap<String, Integer>();
+
+  /**
+   * Constructor. Compiles and links the shaders.
+   *
+   * @param  gl              the OpenGL context.
+   * @param  vertexSource    the source of the vertex shader
+   * @param  fragmentSource  the source of the fragment shader
+   */
+  public ShaderProgram(GL2 gl, String vertexSource, String fragmentSource) {
+    if (!gl.isFunctionAvailable("glCreateShader")) {
+      System.out.println("Shaders are not supported");
+      return;
+    }
+    int vertex = compile(gl, GL2.GL_VERTEX_SHADER, vertexSource);
+    int fragment = compile(gl, GL2.GL_FRAGMENT_SHADER, fragmentSource);
+    if (vertex != 0 && fragment != 0) {
+      program = gl.glCreateProgram();
+      gl.glAttachShader(program, vertex);
+      gl.glAttachShader(program, fragment);
+      gl.glLinkProgram(program);
+      int[] status = new int[1];
+      gl.glGetProgramiv(program, GL2.GL_LINK_STATUS, status, 0);
+      valid = status[0] == GL.GL_TRUE;
+      if (!valid) System.out.println("Error linking shader program\n"+programLog(gl));
+    }
+    // The shaders are deleted when the program is
+    if (vertex != 0) gl.glDeleteShader(vertex);
+    if (fragment != 0) gl.glDeleteShader(fragment);
+    if (!valid && program != 0) {
+      gl.glDeleteProgram(program);
+      program = 0;
+    }
+  }
+
+  // Compiles a shader, returning 0 if it fails
+  private static int compile(GL2 gl, int type, String source) {
+    int shader = gl.glCreateShader(type);
+    gl.glShaderSource(shader, 1, new String[]{source}, new int[]{source.length()}, 0);
+    gl.glCompileShader(shader);
+    int[] status = new int[1];
+    gl.glGetShaderiv(shader, GL2.GL_COMPILE_STATUS, status, 0);
+    if (status[0] == GL.GL_TRUE) return shader;
+
+    int[] length = new int[1];
+    gl.glGetShaderiv(shader, GL2.GL_INFO_LOG_LENGTH, length, 0);
+    byte[] log = new byte[Math.max(length[0], 1)];
+    gl.glGetShaderInfoLog(shader, log.length, length, 0, log, 0);
+    System.out.println("Error compiling "+(type == GL2.GL_VERTEX_SHADER ? "vertex" : "fragment")
+                       +" shader\n"+new String(log, 0, length[0]));
+    gl.glDeleteShader(shader);
+    return 0;
+  }
+
+  private String programLog(GL2 gl) {
+    int[] length = new int[1];
+    gl.glGetProgramiv(program, GL2.GL_INFO_LOG_LENGTH, length, 0);
+    byte[] log = new byte[Math.max(length[0], 1)];
+    gl.glGetProgramInfoLog(program, log.length, length, 0, log, 0);
+    return new String(log, 0, length[0]);
+  }
+
+  /**
+   * Tests whether the program compiled and linked
+   *
+   * @return  true if the program can be used
+   */
+  public boolean isValid() {
+    return valid;
+  }
+
+  /**
+   * Makes the program current, replacing the fixed-function vertex and fragment processing.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void use(GL2 gl) {
+    gl.glUseProgram(program);
+  }
+
+  /**
+   * Returns to the fixed-function pipeline.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void stop(GL2 gl) {
+    gl.glUseProgram(0);
+  }
+
+  /**
+   * Gets the location of a uniform variable
+   *
+   * @param  gl    the OpenGL context.
+   * @param  name  the name of the uniform, e.g. "lightOn" or "lightOn[0]" for an array
+   * @return  the location, or -1 if the program has no such active uniform
+   */
+  public int getUniformLocation(GL2 gl, String name) {
+    Integer location = uniforms.get(name);
+    if (location == null) {
+      location = gl.glGetUniformLocation(program, name);
+      uniforms.put(name, location);
+    }
+    return location;
+  }
+
+  /**
+   * Gets the location of a vertex attribute, as assigned when the program was linked
+   *
+   * @param  gl    the OpenGL context.
+   * @param  name  the name of the attribute
+   * @return  the location, or -1 if the program has no such active attribute
+   */
+  public int getAttribLocation(GL2 gl, String name) {
+    return gl.glGetAttribLocation(program, name);
+  }
+
+  /**
+   * Deletes the program. The object must not be used afterwards.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    if (program != 0) gl.glDeleteProgram(program);
+    program = 0;
+    valid = false;
+    uniforms.clear();
+  }
+
+}
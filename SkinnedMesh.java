@@ -0,0 +1,275 @@
+/**
+ * The parts of an articulated model merged into one mesh on the graphics card, so that it can be drawn
+ * with a single call whatever its pose. Each part is added with its transform from the joint it moves
+ * with, which is baked into its vertices, and each vertex carries the index of its joint and of its
+ * material, stored as x,y,z, nx,ny,nz, joint, material. A vertex shader, e.g. the SkinningShader, then
+ * places each vertex with its joint's matrix from a small uniform array, and colours it with its
+ * material from another, so parts of different materials need no state changes between them.
+ * Parts that are seen from both sides, e.g. an open cone, are added twice, with the second copy's
+ * triangles reversed and normals flipped, so that back-face culling can stay on.
+ *
+ * The parts must be added in order of joint, so that the triangles of each joint are contiguous and
+ * the joints can be drawn on their own, e.g. when the others are culled.
+ * The mesh must be uploaded with upload(gl) before it is drawn, and released with dispose(gl).
+ */
+
+import java.util.*;
+import javax.media.opengl.*;
+import com.jogamp.common.nio.Buffers;
+
+public class SkinnedMesh {
+
+  public static final int FLOATS_PER_VERTEX = 8;  // x,y,z, nx,ny,nz, joint, material
+  public static final int STRIDE = FLOATS_PER_VERTEX*Buffers.SIZEOF_FLOAT;
+  public static final int VECTORS_PER_MATERIAL = 4;  // emission, ambient, diffuse, and specular with the shininess in w
+  private static final long NORMAL_OFFSET = 3*Buffers.SIZEOF_FLOAT;
+  private static final long SKIN_OFFSET = 6*Buffers.SIZEOF_FLOAT;
+
+  private final int numJoints;
+  private float[] vertices = new float[1024];
+  private int[] indices = new int[1024];
+  private int numVertices, numIndices;
+  private final List<float[]> materials = new ArrayList<float[]>();
+  private float[] materialValues;  // the materials one after the other, made when first asked for
+  private final int[] jointStarts, jointCounts;  // the first triangle and number of triangles of each joint
+  private int lastJoint;
+  private int vertexBuffer, indexBuffer;
+
+  /**
+   * Constructor, for an empty mesh.
+   *
+   * @param  numJoints  the number of joints the parts move with
+   */
+  public SkinnedMesh(int numJoints) {
+    this.numJoints = numJoints;
+    jointStarts = new int[numJoints];
+    jointCounts = new int[numJoints];
+  }
+
+  /**
+   * Adds a part, with its Material.
+   *
+   * @param  mesh         the Mesh of the part
+   * @param  transform    the transform from the mesh to the coordinates of its joint, in column-major order
+   * @param  joint        the index of the joint, no less than that of the last part added
+   * @param  doubleSided  true if the inside of the part may be seen
+   */
+  public void addPart(Mesh mesh, double[] transform, int joint, boolean doubleSided) {
+    if (joint < lastJoint || joint >= numJoints)
+      throw new IllegalArgumentException("Joint "+joint+" out of order");
+    if (vertexBuffer != 0)
+      throw new IllegalStateException("SkinnedMesh already uploaded");
+    if (joint != lastJoint) jointStarts[joint] = numIndices/3;
+    lastJoint = joint;
+
+    int material = addMaterial(mesh.getMaterial());
+    float[] p = mesh.getVertexList();
+    float[] n = mesh.getNormalList();
+    int[] t = mesh.getTriangleList();
+    double[] nm = MatrixStack.normalMatrix(transform);
+    int sides = doubleSided ? 2 : 1;
+    for (int side=0; side<sides; side++) {
+      int first = numVertices;
+      float sign = (side == 0) ? 1 : -1;
+      for (int v=0; v<mesh.getNumVertices(); v++) {
+        double[] q = MatrixStack.transformPoint(transform, p[v*3], p[v*3+1], p[v*3+2]);
+        double nx = n[v*3], ny = n[v*3+1], nz = n[v*3+2];
+        double x = nm[0]*nx+nm[3]*ny+nm[6]*nz, y = nm[1]*nx+nm[4]*ny+nm[7]*nz, z = nm[2]*nx+nm[5]*ny+nm[8]*nz;
+        double mag = Math.sqrt(x*x+y*y+z*z);
+        if (mag == 0) mag = 1;
+        addVertex((float)q[0], (float)q[1], (float)q[2], (float)(sign*x/mag), (float)(sign*y/mag), (float)(sign*z/mag),
+                  joint, material);
+      }
+      // A transform that mirrors reverses the winding, as does the inside copy
+      boolean reverse = (MatrixStack.determinant3(transform) < 0) != (side == 1);
+      for (int i=0; i<t.length; i+=3) {
+        addIndex(first+t[i]);
+        addIndex(first+(reverse ? t[i+2] : t[i+1]));
+        addIndex(first+(reverse ? t[i+1] : t[i+2]));
+      }
+    }
+    jointCounts[joint] = numIndices/3-jointStarts[joint];
+  }
+
+  // Returns the index of a material with the same values, adding it if there is none
+  private int addMaterial(Material m) {
+    float[] a = m.getAmbient(), d = m.getDiffuse(), s = m.getSpecular(), e = m.getEmission();
+    float[] values = {e[0], e[1], e[2], e[3], a[0], a[1], a[2], a[3], d[0], d[1], d[2], d[3],
+                      s[0], s[1], s[2], m.getShininess()};
+    for (int i=0; i<materials.size(); i++)
+      if (Arrays.equals(materials.get(i), values)) return i;
+    materials.add(values);
+    materialValues = null;
+    return materials.size()-1;
+  }
+
+  private void addVertex(float x, float y, float z, float nx, float ny, float nz, int joint, int material) {
+    if ((numVertices+1)*FLOATS_PER_VERTEX > vertices.length)
+      vertices = Arrays.copyOf(vertices, vertices.length*2);
+    int i = numVertices*FLOATS_PER_VERTEX;
+    vertices[i++] = x;
+    vertices[i++] = y;
+    vertices[i++] = z;
+    vertices[i++] = nx;
+    vertices[i++] = ny;
+    vertices[i++] = nz;
+    vertices[i++] = joint;
+    vertices[i] = material;
+    numVertices++;
+  }
+
+  private void addIndex(int index) {
+    if (numIndices == indices.length) indices = Arrays.copyOf(indices, indices.length*2);
+    indices[numIndices++] = index;
+  }
+
+  /**
+   * Gets the number of joints
+   *
+   * @return  the number of joints the parts move with
+   */
+  public int getNumJoints() {
+    return numJoints;
+  }
+
+  /**
+   * Gets the number of triangles
+   *
+   * @return  the number of triangles, counting both sides of double-sided parts
+   */
+  public int getNumTriangles() {
+    return numIndices/3;
+  }
+
+  /**
+   * Gets the distinct materials of the parts
+   *
+   * @return  VECTORS_PER_MATERIAL vectors for each material, as indexed by the vertices: the emission,
+   *          ambient, diffuse and specular colours, with the shininess in place of the specular alpha
+   */
+  public float[] getMaterials() {
+    if (materialValues == null) {
+      materialValues = new float[materials.size()*VECTORS_PER_MATERIAL*4];
+      for (int i=0; i<materials.size(); i++)
+        System.arraycopy(materials.get(i), 0, materialValues, i*VECTORS_PER_MATERIAL*4, VECTORS_PER_MATERIAL*4);
+    }
+    return materialValues;
+  }
+
+  /**
+   * Gets the number of distinct materials
+   *
+   * @return  the number of materials
+   */
+  public int getNumMaterials() {
+    return materials.size();
+  }
+
+  /**
+   * Uploads the mesh to the graphics card. No more parts may be added afterwards.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void upload(GL2 gl) {
+    int[] ids = new int[2];
+    gl.glGenBuffers(2, ids, 0);
+    vertexBuffer = ids[0];
+    indexBuffer = ids[1];
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBuffer);
+    gl.glBufferData(GL2.GL_ARRAY_BUFFER, (long)numVertices*STRIDE,
+                    Buffers.newDirectFloatBuffer(vertices, 0, numVertices*FLOATS_PER_VERTEX), GL2.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+    gl.glBufferData(GL2.GL_ELEMENT_ARRAY_BUFFER, (long)numIndices*Buffers.SIZEOF_INT,
+                    Buffers.newDirectIntBuffer(indices, 0, numIndices), GL2.GL_STATIC_DRAW);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+    vertices = null;
+    indices = null;
+  }
+
+  /**
+   * Binds the buffers and sets up the vertex array pointers ready for drawing.
+   *
+   * @param  gl            the OpenGL context.
+   * @param  skinLocation  the location of the shader's vec2 attribute taking the joint and material
+   */
+  public void bind(GL2 gl, int skinLocation) {
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, vertexBuffer);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+    gl.glEnableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glEnableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glVertexPointer(3, GL2.GL_FLOAT, STRIDE, 0);
+    gl.glNormalPointer(GL2.GL_FLOAT, STRIDE, NORMAL_OFFSET);
+    gl.glEnableVertexAttribArray(skinLocation);
+    gl.glVertexAttribPointer(skinLocation, 2, GL2.GL_FLOAT, false, STRIDE, SKIN_OFFSET);
+  }
+
+  /**
+   * Draws the triangles of some of the joints, joining the ranges of neighbouring joints, so that
+   * all the joints are drawn with one call. The buffers must already be bound.
+   *
+   * @param  gl      the OpenGL context.
+   * @param  joints  whether each joint is drawn, or null to draw them all
+   * @return  the number of draw calls made
+   */
+  public int draw(GL2 gl, boolean[] joints) {
+    int calls = 0;
+    for (int j=0; j<numJoints; ) {
+      if (joints != null && !joints[j]) {
+        j++;
+        continue;
+      }
+      int first = jointStarts[j], count = 0;
+      for (; j<numJoints && (joints == null || joints[j]); j++) count += jointCounts[j];
+      if (count == 0) continue;
+      gl.glDrawElements(GL2.GL_TRIANGLES, count*3, GL2.GL_UNSIGNED_INT, (long)first*3*Buffers.SIZEOF_INT);
+      calls++;
+    }
+    return calls;
+  }
+
+  /**
+   * Draws copies of every triangle with one call, each placed by its own set of joint matrices.
+   * The buffers must already be bound.
+   *
+   * @param  gl     the OpenGL context.
+   * @param  count  the number of copies
+   */
+  public void drawInstanced(GL2 gl, int count) {
+    gl.glDrawElementsInstanced(GL2.GL_TRIANGLES, numIndices, GL2.GL_UNSIGNED_INT, 0L, count);
+  }
+
+  /**
+   * Disables the vertex arrays and unbinds the buffers.
+   *
+   * @param  gl            the OpenGL context.
+   * @param  skinLocation  the location passed to bind
+   */
+  public void unbind(GL2 gl, int skinLocation) {
+    gl.glDisableVertexAttribArray(skinLocation);
+    gl.glDisableClientState(GL2.GL_NORMAL_ARRAY);
+    gl.glDisableClientState(GL2.GL_VERTEX_ARRAY);
+    gl.glBindBuffer(GL2.GL_ELEMENT_ARRAY_BUFFER, 0);
+    gl.glBindBuffer(GL2.GL_ARRAY_BUFFER, 0);
+  }
+
+  /**
+   * Deletes the buffers. The object must not be used afterwards.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    if (vertexBuffer != 0) gl.glDeleteBuffers(2, new int[]{vertexBuffer, indexBuffer}, 0);
+    vertexBuffer = indexBuffer = 0;
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the numbers of joints, triangles and materials
+   */
+  public String toString() {
+    return numJoints+" joints, "+getNumTriangles()+" triangles, "+materials.size()+" materials";
+  }
+
+}
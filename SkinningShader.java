@@ -0,0 +1,222 @@
+/**
+ * Draws SkinnedMeshes, placing each vertex with the matrix of its joint from a uniform array, and lighting
+ * each pixel as the PhongShader does with the material of its part, so a whole articulated model is
+ * drawn with one call. The joint matrices are calculated on the CPU each frame; only they change
+ * when the model moves. They must be rigid, i.e. rotations and translations, as they also transform
+ * the normals; any scaling of the parts is baked into the mesh.
+ *
+ * Where glDrawElementsInstanced and the GL_ARB_draw_instanced extension are available, a batch of up to
+ * getBatchSize() copies of a model, each in its own pose, is drawn with one call, using gl_InstanceIDARB
+ * to pick each copy's joint matrices. Otherwise each copy is drawn with its own call.
+ * Made with ClusteredLights, the pixels are lit by the lights of their clusters, as by a PhongShader made with them.
+ * Drawing leaves no program current, so a caller drawing with a PhongShader resumes it afterwards.
+ * If the shaders cannot be compiled, isValid returns false and the model should be drawn another way.
+ * The shader must be released with dispose(gl) when it is no longer needed.
+ */
+
+import javax.media.opengl.*;
+
+public class SkinningShader {
+
+  public static final int MAX_BATCH_SIZE = 16;
+  public static final int MAX_MATERIALS = 4;
+  private static final int RESERVED_UNIFORM_VECTORS = 160;  // for the built-in lighting and matrix uniforms
+
+  private static final String VERTEX_SHADER =
+      "#version 120\n"
+    + "INSTANCING"
+    + "uniform mat4 joints[NUM_JOINTS*BATCH_SIZE];\n"
+    + "uniform vec4 materials[4*MAX_MATERIALS];\n"
+    + "attribute vec2 skin;\n"  // the joint and material indices
+    + "varying vec3 position;\n"
+    + "varying vec3 normal;\n"
+    + "varying vec4 emission, ambient, diffuse, specular;\n"
+    + "void main() {\n"
+    + "  mat4 joint = joints[INSTANCE*NUM_JOINTS+int(skin.x)];\n"
+    + "  vec4 v = gl_ModelViewMatrix*(joint*gl_Vertex);\n"
+    + "  position = v.xyz;\n"
+    + "  normal = gl_NormalMatrix*(mat3(joint)*gl_Normal);\n"
+    + "  int m = int(skin.y)*4;\n"
+    + "  emission = materials[m];\n"
+    + "  ambient = materials[m+1];\n"
+    + "  diffuse = materials[m+2];\n"
+    + "  specular = materials[m+3];\n"
+    + "  gl_Position = gl_ProjectionMatrix*v;\n"
+    + "}\n";
+
+  private static final String FRAGMENT_SHADER =
+      "#version 120\n"
+    + "LIGHTING_FUNCTION"
+    + "varying vec3 position;\n"
+    + "varying vec3 normal;\n"
+    + "varying vec4 emission, ambient, diffuse, specular;\n"
+    + "void main() {\n"
+    + "  gl_FragColor = lighting(position, normalize(normal), emission, ambient, diffuse,\n"
+    + "                          vec4(specular.rgb, 1.0), specular.w);\n"
+    + "}\n";
+
+  private final int numJoints;
+  private final ClusteredLights clustered;
+  private ShaderProgram shader;
+  private int[] lightOn;  // locations of the lightOn uniforms, or null with clustered lights
+  private int batchSize;
+  private boolean instancing;
+  private int skinLocation;
+  private int drawCalls;
+
+  /**
+   * Constructor. Compiles the shaders, for instancing if the context supports it.
+   *
+   * @param  gl         the OpenGL context.
+   * @param  numJoints  the number of joints of the meshes drawn
+   */
+  public SkinningShader(GL2 gl, int numJoints) {
+    this(gl, numJoints, null);
+  }
+
+  /**
+   * Constructor. Compiles the shaders, for instancing if the context supports it, to light with the lights
+   * of a ClusteredLights if one is given.
+   *
+   * @param  gl         the OpenGL context.
+   * @param  numJoints  the number of joints of the meshes drawn
+   * @param  clustered  the lights, which must be supported, binned and uploaded before drawing, or null
+   *                    to use the OpenGL light sources
+   */
+  public SkinningShader(GL2 gl, int numJoints, ClusteredLights clustered) {
+    this.numJoints = numJoints;
+    this.clustered = clustered;
+    batchSize = 1;
+    if (gl.isFunctionAvailable("glDrawElementsInstanced") && gl.isExtensionAvailable("GL_ARB_draw_instanced")) {
+      int[] components = new int[1];
+      gl.glGetIntegerv(GL2.GL_MAX_VERTEX_UNIFORM_COMPONENTS, components, 0);
+      int vectors = components[0]/4-RESERVED_UNIFORM_VECTORS-4*MAX_MATERIALS;
+      batchSize = Math.max(1, Math.min(MAX_BATCH_SIZE, vectors/(4*numJoints)));
+    }
+    instancing = batchSize > 1;
+    String vertexSource = VERTEX_SHADER
+        .replace("INSTANCING", instancing ? "#extension GL_ARB_draw_instanced : require\n#define INSTANCE gl_InstanceIDARB\n"
+                                          : "#define INSTANCE 0\n")
+        .replace("NUM_JOINTS", ""+numJoints).replace("BATCH_SIZE", ""+batchSize).replace("MAX_MATERIALS", ""+MAX_MATERIALS);
+    String lighting = (clustered == null) ? PhongShader.LIGHTING_FUNCTION
+                                          : ClusteredLights.source(ClusteredLights.LIGHTING_FUNCTION);
+    shader = new ShaderProgram(gl, vertexSource, PhongShader.source(FRAGMENT_SHADER.replace("LIGHTING_FUNCTION", lighting)));
+    if (!shader.isValid()) {
+      shader = null;
+      return;
+    }
+    skinLocation = shader.getAttribLocation(gl, "skin");
+    if (clustered == null) lightOn = PhongShader.getLightOnLocations(gl, shader);
+  }
+
+  /**
+   * Tests whether the shaders compiled and linked
+   *
+   * @return  true if skinned meshes can be drawn
+   */
+  public boolean isValid() {
+    return shader != null;
+  }
+
+  /**
+   * Tests whether copies are drawn with instancing
+   *
+   * @return  true if a batch of copies is drawn with one call
+   */
+  public boolean isInstancing() {
+    return instancing;
+  }
+
+  /**
+   * Gets the number of copies drawn by each instanced draw call
+   *
+   * @return  the largest number of copies in a batch, 1 without instancing
+   */
+  public int getBatchSize() {
+    return batchSize;
+  }
+
+  /**
+   * Draws some of the joints of a skinned mesh, relative to the current modelview matrix, lit by the
+   * lights enabled. No program is current afterwards.
+   *
+   * @param  gl            the OpenGL context.
+   * @param  mesh          the uploaded mesh, with no more than MAX_MATERIALS materials
+   * @param  jointMatrices the matrix of each joint, in column-major order, one after the other
+   * @param  joints        whether each joint is drawn, or null to draw them all
+   */
+  public void draw(GL2 gl, SkinnedMesh mesh, float[] jointMatrices, boolean[] joints) {
+    begin(gl, mesh);
+    gl.glUniformMatrix4fv(shader.getUniformLocation(gl, "joints"), numJoints, false, jointMatrices, 0);
+    drawCalls += mesh.draw(gl, joints);
+    end(gl, mesh);
+  }
+
+  /**
+   * Draws copies of a skinned mesh, each in its own pose, relative to the current modelview matrix, lit
+   * by the lights enabled. No program is current afterwards.
+   *
+   * @param  gl             the OpenGL context.
+   * @param  mesh           the uploaded mesh, with no more than MAX_MATERIALS materials
+   * @param  jointMatrices  the matrix of each joint of each copy, in column-major order, one after the
+   *                        other, e.g. as filled in by Lamp.calcJointMatrices
+   * @param  count          the number of copies
+   */
+  public void drawInstances(GL2 gl, SkinnedMesh mesh, float[] jointMatrices, int count) {
+    begin(gl, mesh);
+    int location = shader.getUniformLocation(gl, "joints");
+    for (int start=0; start<count; start+=batchSize) {
+      int n = Math.min(batchSize, count-start);
+      gl.glUniformMatrix4fv(location, n*numJoints, false, jointMatrices, start*numJoints*16);
+      if (instancing)
+        mesh.drawInstanced(gl, n);
+      else
+        mesh.draw(gl, null);
+      drawCalls++;
+    }
+    end(gl, mesh);
+  }
+
+  private void begin(GL2 gl, SkinnedMesh mesh) {
+    shader.use(gl);
+    if (clustered != null)
+      clustered.bind(gl, shader);
+    else
+      PhongShader.setLights(gl, lightOn);
+    gl.glUniform4fv(shader.getUniformLocation(gl, "materials"), Math.min(MAX_MATERIALS, mesh.getNumMaterials())
+                    *SkinnedMesh.VECTORS_PER_MATERIAL, mesh.getMaterials(), 0);
+    mesh.bind(gl, skinLocation);
+  }
+
+  private void end(GL2 gl, SkinnedMesh mesh) {
+    mesh.unbind(gl, skinLocation);
+    shader.stop(gl);
+  }
+
+  /**
+   * Gets the number of draw calls made since the count was last reset
+   *
+   * @return  the number of draw calls
+   */
+  public int getDrawCalls() {
+    return drawCalls;
+  }
+
+  /**
+   * Resets the count of draw calls to 0, e.g. at the start of a frame.
+   */
+  public void resetDrawCalls() {
+    drawCalls = 0;
+  }
+
+  /**
+   * Deletes the shader. The object must not be used afterwards.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    if (shader != null) shader.dispose(gl);
+    shader = null;
+  }
+
+}
@@ -0,0 +1,347 @@
+/**
+ * Skips objects hidden behind large occluders, such as the walls and obstacles, without any help
+ * from the graphics card. The occluders are rasterised on the CPU into a small depth buffer, of
+ * DEPTH_WIDTH x DEPTH_HEIGHT pixels over the whole view, from which a pyramid of coarser levels is
+ * built, each pixel holding the farthest depth of the 2x2 pixels below it. An object's bounding box
+ * is hidden if its nearest point is farther than every pyramid pixel its screen rectangle covers, at
+ * the level where the rectangle covers a few pixels at most.
+ *
+ * The occluders are transformed into world space once, when added. Each frame, beginFrame starts
+ * rasterising them on the common fork-join pool and returns at once, and the first isVisible waits
+ * for it to finish. Only the work the calling thread does in between overlaps the rasterising, so
+ * beginFrame should be called as soon as the view is known, and the first test made as late as
+ * possible, e.g. after the lights are set up and the objects that are never tested are drawn.
+ * The loops over vertices and pixels work on arrays of floats with no dependencies between
+ * iterations, so that the JIT compiler can vectorise them.
+ *
+ * Occluder triangles are drawn to the pixels whose centres they cover, so, as with any low
+ * resolution occlusion culling, an object seen only through a gap narrower than a pixel may be
+ * skipped. The depth buffer holds z/w, which can be interpolated linearly across the screen.
+ */
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class SoftwareOcclusionCuller {
+
+  public static final int DEPTH_WIDTH = 128;
+  public static final int DEPTH_HEIGHT = 64;
+  private static final float DEPTH_BIAS = 1e-6f;  // so occluders are not hidden by themselves
+  private static final int MAX_TEST_SPAN = 4;     // largest rectangle of pyramid pixels a box is tested against
+
+  // World-space occluder vertices, as separate x, y and z arrays, and triangles
+  private float[] px = new float[64], py = new float[64], pz = new float[64];
+  private int[] indices = new int[192];
+  private int numVertices, numTriangles;
+
+  // Clip-space vertices for the current frame
+  private float[] cx = new float[0], cy = new float[0], cz = new float[0], cw = new float[0];
+  private final float[][] pyramid;
+  private final int[] levelWidth, levelHeight;
+  private final double[] viewProjection = new double[16];
+  private ForkJoinTask<?> task;
+  private long rasteriseTime;
+  private int trianglesDrawn, objectsTested, objectsHidden;
+
+  /**
+   * Constructor. There are no occluders to begin with.
+   */
+  public SoftwareOcclusionCuller() {
+    int levels = 1;
+    while ((DEPTH_WIDTH>>(levels-1)) > 1 || (DEPTH_HEIGHT>>(levels-1)) > 1) levels++;
+    pyramid = new float[levels][];
+    levelWidth = new int[levels];
+    levelHeight = new int[levels];
+    for (int i=0; i<levels; i++) {
+      levelWidth[i] = Math.max(1, DEPTH_WIDTH>>i);
+      levelHeight[i] = Math.max(1, DEPTH_HEIGHT>>i);
+      pyramid[i] = new float[levelWidth[i]*levelHeight[i]];
+      Arrays.fill(pyramid[i], 1);
+    }
+  }
+
+  /**
+   * Adds the triangles of a Mesh to the occluders.
+   *
+   * @param  mesh       the Mesh
+   * @param  transform  the modelling transform into world space, in column-major order
+   */
+  public void addOccluder(Mesh mesh, double[] transform) {
+    finish();
+    MeshData data = mesh.getData();
+    int v0 = numVertices;
+    numVertices += data.getNumVertices();
+    if (numVertices > px.length) {
+      int capacity = Math.max(numVertices, px.length*2);
+      px = Arrays.copyOf(px, capacity);
+      py = Arrays.copyOf(py, capacity);
+      pz = Arrays.copyOf(pz, capacity);
+    }
+    for (int v=0; v<data.getNumVertices(); v++) {
+      double[] p = MatrixStack.transformPoint(transform, data.getPosition(v, 0), data.getPosition(v, 1), data.getPosition(v, 2));
+      px[v0+v] = (float)(p[0]/p[3]);
+      py[v0+v] = (float)(p[1]/p[3]);
+      pz[v0+v] = (float)(p[2]/p[3]);
+    }
+    int t0 = numTriangles;
+    numTriangles += data.getNumTriangles();
+    if (numTriangles*3 > indices.length) indices = Arrays.copyOf(indices, Math.max(numTriangles*3, indices.length*2));
+    for (int t=0; t<data.getNumTriangles(); t++)
+      for (int i=0; i<3; i++)
+        indices[(t0+t)*3+i] = v0+data.getVertexIndex(t, i);
+  }
+
+  /**
+   * Removes all the occluders.
+   */
+  public void clearOccluders() {
+    finish();
+    numVertices = numTriangles = 0;
+  }
+
+  /**
+   * Gets the number of occluder triangles
+   *
+   * @return  the number of triangles added since the occluders were last cleared
+   */
+  public int getNumOccluderTriangles() {
+    return numTriangles;
+  }
+
+  /**
+   * Starts rasterising the occluders for a new frame, on the common fork-join pool, and resets the counts.
+   *
+   * @param  projection  the projection matrix, in column-major order
+   * @param  view        the viewing transformation, in column-major order
+   */
+  public void beginFrame(double[] projection, double[] view) {
+    finish();
+    System.arraycopy(MatrixStack.multiply(projection, view), 0, viewProjection, 0, 16);
+    objectsTested = objectsHidden = 0;
+    task = ForkJoinPool.commonPool().submit(new Runnable() {
+      public void run() {
+        long start = System.nanoTime();
+        rasterise();
+        buildPyramid();
+        rasteriseTime = System.nanoTime()-start;
+      }
+    });
+  }
+
+  // Waits for the frame's rasterisation, if any, to finish
+  private void finish() {
+    if (task != null) task.join();
+  }
+
+  /**
+   * Tests whether a box may be visible, waiting for the occluders to be rasterised if need be.
+   * beginFrame must have been called.
+   *
+   * @param  box  the box, in world space
+   * @return  false if the box is hidden behind the occluders
+   */
+  public boolean isVisible(BoundingBox box) {
+    finish();
+    objectsTested++;
+    double[] min = box.getMinimumBounds(), max = box.getMaximumBounds();
+    double[] m = viewProjection;
+    double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE, x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+    double nearest = Double.MAX_VALUE;
+    for (int i=0; i<8; i++) {
+      double x = ((i&1) == 0) ? min[0] : max[0], y = ((i&2) == 0) ? min[1] : max[1], z = ((i&4) == 0) ? min[2] : max[2];
+      double w = m[3]*x+m[7]*y+m[11]*z+m[15];
+      double cz = m[2]*x+m[6]*y+m[10]*z+m[14];
+      if (cz < -w) return true;  // in front of the near plane, so it may cover the eye
+      double sx = ((m[0]*x+m[4]*y+m[8]*z+m[12])/w*0.5+0.5)*DEPTH_WIDTH;
+      double sy = ((m[1]*x+m[5]*y+m[9]*z+m[13])/w*0.5+0.5)*DEPTH_HEIGHT;
+      x0 = Math.min(x0, sx);
+      x1 = Math.max(x1, sx);
+      y0 = Math.min(y0, sy);
+      y1 = Math.max(y1, sy);
+      nearest = Math.min(nearest, cz/w);
+    }
+    // The pixels the rectangle touches, and one more on each side, as an occluder may cover the centre
+    // of a pixel but not all of it, clamped to the screen
+    int left = Math.max(0, (int)Math.floor(x0)-1), right = Math.min(DEPTH_WIDTH-1, (int)Math.floor(x1)+1);
+    int bottom = Math.max(0, (int)Math.floor(y0)-1), top = Math.min(DEPTH_HEIGHT-1, (int)Math.floor(y1)+1);
+    if (left > right || bottom > top) return true;  // off-screen, which is for frustum culling to decide
+
+    int level = 0;
+    while (level < pyramid.length-1
+           && ((right>>level)-(left>>level) >= MAX_TEST_SPAN || (top>>level)-(bottom>>level) >= MAX_TEST_SPAN))
+      level++;
+    float[] depth = pyramid[level];
+    int w = levelWidth[level];
+    for (int y=bottom>>level; y<=top>>level; y++)
+      for (int x=left>>level; x<=right>>level; x++)
+        if (nearest <= depth[y*w+x]+DEPTH_BIAS) return true;
+    objectsHidden++;
+    return false;
+  }
+
+  // Transforms the occluders into clip space and draws them into the depth buffer
+  private void rasterise() {
+    if (cx.length < numVertices) {
+      cx = new float[px.length];
+      cy = new float[px.length];
+      cz = new float[px.length];
+      cw = new float[px.length];
+    }
+    double[] m = viewProjection;
+    float m0 = (float)m[0], m1 = (float)m[1], m2 = (float)m[2], m3 = (float)m[3];
+    float m4 = (float)m[4], m5 = (float)m[5], m6 = (float)m[6], m7 = (float)m[7];
+    float m8 = (float)m[8], m9 = (float)m[9], m10 = (float)m[10], m11 = (float)m[11];
+    float m12 = (float)m[12], m13 = (float)m[13], m14 = (float)m[14], m15 = (float)m[15];
+    for (int v=0; v<numVertices; v++) {
+      float x = px[v], y = py[v], z = pz[v];
+      cx[v] = m0*x+m4*y+m8*z+m12;
+      cy[v] = m1*x+m5*y+m9*z+m13;
+      cz[v] = m2*x+m6*y+m10*z+m14;
+      cw[v] = m3*x+m7*y+m11*z+m15;
+    }
+
+    float[] depth = pyramid[0];
+    Arrays.fill(depth, 1);
+    trianglesDrawn = 0;
+    float[] clipped = new float[4*4];  // up to four x,y,z,w vertices after clipping a triangle
+    for (int t=0; t<numTriangles; t++) {
+      int a = indices[t*3], b = indices[t*3+1], c = indices[t*3+2];
+      // Skip triangles wholly outside one side of the frustum
+      if ((cx[a] > cw[a] && cx[b] > cw[b] && cx[c] > cw[c]) || (cx[a] < -cw[a] && cx[b] < -cw[b] && cx[c] < -cw[c])
+          || (cy[a] > cw[a] && cy[b] > cw[b] && cy[c] > cw[c]) || (cy[a] < -cw[a] && cy[b] < -cw[b] && cy[c] < -cw[c])
+          || (cz[a] > cw[a] && cz[b] > cw[b] && cz[c] > cw[c]))
+        continue;
+      int n = clipNear(a, b, c, clipped);
+      for (int i=1; i+1<n; i++)
+        drawTriangle(depth, clipped, 0, i*4, (i+1)*4);
+      if (n >= 3) trianglesDrawn++;
+    }
+  }
+
+  // Clips a triangle against the near plane, z = -w, storing the vertices of the resulting
+  // polygon in res, and returning how many there are
+  private int clipNear(int a, int b, int c, float[] res) {
+    int n = 0;
+    for (int i=0; i<3; i++) {
+      int p = (i == 0) ? a : (i == 1) ? b : c, q = (i == 0) ? b : (i == 1) ? c : a;
+      float dp = cz[p]+cw[p], dq = cz[q]+cw[q];
+      if (dp >= 0) {
+        res[n*4] = cx[p]; res[n*4+1] = cy[p]; res[n*4+2] = cz[p]; res[n*4+3] = cw[p];
+        n++;
+      }
+      if ((dp >= 0) != (dq >= 0)) {
+        float s = dp/(dp-dq);
+        res[n*4] = cx[p]+s*(cx[q]-cx[p]);
+        res[n*4+1] = cy[p]+s*(cy[q]-cy[p]);
+        res[n*4+2] = cz[p]+s*(cz[q]-cz[p]);
+        res[n*4+3] = cw[p]+s*(cw[q]-cw[p]);
+        n++;
+      }
+    }
+    return n;
+  }
+
+  // Draws a clip-space triangle, whose vertices start at a, b and c in v, into the depth buffer,
+  // keeping the nearest depth at each pixel whose centre it covers. Both sides are drawn.
+  private void drawTriangle(float[] depth, float[] v, int a, int b, int c) {
+    float ax = (v[a]/v[a+3]*0.5f+0.5f)*DEPTH_WIDTH, ay = (v[a+1]/v[a+3]*0.5f+0.5f)*DEPTH_HEIGHT, az = v[a+2]/v[a+3];
+    float bx = (v[b]/v[b+3]*0.5f+0.5f)*DEPTH_WIDTH, by = (v[b+1]/v[b+3]*0.5f+0.5f)*DEPTH_HEIGHT, bz = v[b+2]/v[b+3];
+    float cx = (v[c]/v[c+3]*0.5f+0.5f)*DEPTH_WIDTH, cy = (v[c+1]/v[c+3]*0.5f+0.5f)*DEPTH_HEIGHT, cz = v[c+2]/v[c+3];
+    float area = (bx-ax)*(cy-ay)-(by-ay)*(cx-ax);
+    if (area == 0) return;
+    if (area < 0) {  // make the edge functions positive inside
+      float x = bx, y = by, z = bz;
+      bx = cx; by = cy; bz = cz;
+      cx = x; cy = y; cz = z;
+      area = -area;
+    }
+    int left = Math.max(0, (int)Math.ceil(Math.min(ax, Math.min(bx, cx))-0.5f));
+    int right = Math.min(DEPTH_WIDTH-1, (int)Math.floor(Math.max(ax, Math.max(bx, cx))-0.5f));
+    int bottom = Math.max(0, (int)Math.ceil(Math.min(ay, Math.min(by, cy))-0.5f));
+    int top = Math.min(DEPTH_HEIGHT-1, (int)Math.floor(Math.max(ay, Math.max(by, cy))-0.5f));
+    if (left > right || bottom > top) return;
+
+    // Edge functions e = ex*x + ey*y + e0, and the depth plane, at pixel centres
+    float e1x = ay-by, e1y = bx-ax, e1c = ax*by-ay*bx;  // edge a-b
+    float e2x = by-cy, e2y = cx-bx, e2c = bx*cy-by*cx;  // edge b-c
+    float e3x = cy-ay, e3y = ax-cx, e3c = cx*ay-cy*ax;  // edge c-a
+    float zx = (e2x*az+e3x*bz+e1x*cz)/area, zy = (e2y*az+e3y*bz+e1y*cz)/area;
+    float zc = (e2c*az+e3c*bz+e1c*cz)/area;
+    for (int y=bottom; y<=top; y++) {
+      float fy = y+0.5f;
+      float r1 = e1y*fy+e1c, r2 = e2y*fy+e2c, r3 = e3y*fy+e3c, rz = zy*fy+zc;
+      int row = y*DEPTH_WIDTH;
+      for (int x=left; x<=right; x++) {
+        float fx = x+0.5f;
+        float inside = Math.min(e1x*fx+r1, Math.min(e2x*fx+r2, e3x*fx+r3));
+        float z = zx*fx+rz;
+        depth[row+x] = (inside >= 0) ? Math.min(depth[row+x], z) : depth[row+x];
+      }
+    }
+  }
+
+  // Fills each coarser level of the pyramid with the farthest depth of the 2x2 pixels below it
+  private void buildPyramid() {
+    for (int level=1; level<pyramid.length; level++) {
+      float[] src = pyramid[level-1], dst = pyramid[level];
+      int sw = levelWidth[level-1], sh = levelHeight[level-1], w = levelWidth[level], h = levelHeight[level];
+      for (int y=0; y<h; y++) {
+        int row0 = Math.min(y*2, sh-1)*sw, row1 = Math.min(y*2+1, sh-1)*sw;
+        for (int x=0; x<w; x++) {
+          int x0 = Math.min(x*2, sw-1), x1 = Math.min(x*2+1, sw-1);
+          dst[y*w+x] = Math.max(Math.max(src[row0+x0], src[row0+x1]), Math.max(src[row1+x0], src[row1+x1]));
+        }
+      }
+    }
+  }
+
+  /**
+   * Gets the time taken to rasterise the occluders for the current frame, waiting for it to finish
+   *
+   * @return  the time in milliseconds
+   */
+  public double getRasteriseTime() {
+    finish();
+    return rasteriseTime/1e6;
+  }
+
+  /**
+   * Gets the number of occluder triangles drawn into the depth buffer for the current frame,
+   * i.e. those not wholly outside the view frustum
+   *
+   * @return  the number of triangles drawn
+   */
+  public int getTrianglesDrawn() {
+    finish();
+    return trianglesDrawn;
+  }
+
+  /**
+   * Gets the number of boxes tested since the frame began
+   *
+   * @return  the number of calls of isVisible
+   */
+  public int getObjectsTested() {
+    return objectsTested;
+  }
+
+  /**
+   * Gets the number of boxes found hidden since the frame began
+   *
+   * @return  the number of calls of isVisible that returned false
+   */
+  public int getObjectsHidden() {
+    return objectsHidden;
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the boxes tested and hidden, and the triangles drawn and time taken to rasterise the occluders, in the current frame
+   */
+  public String toString() {
+    return objectsHidden+" of "+objectsTested+" objects hidden, "+getTrianglesDrawn()+" of "+numTriangles
+           +" occluder triangles drawn in "+String.format("%.3f", getRasteriseTime())+" ms";
+  }
+
+}
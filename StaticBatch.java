@@ -0,0 +1,402 @@
+/**
+ * Geometry that does not move, merged into one vertex buffer so that it can be drawn without
+ * any per-object matrix changes. Renders are added with their modelling transforms, and build
+ * transforms their vertices and normals into world space (the coordinates the transforms map to),
+ * bakes each Render's texture repeat into its texture coordinates, and uploads the lot as a single
+ * Mesh. The triangles are grouped by texture and Material, so the batch is drawn with one
+ * glDrawElements call per group, and the texture and Material are only set between groups.
+ * The world-space bounding box of each added Render is kept, so that objects outside a view frustum
+ * can be skipped, joining the triangle ranges of neighbouring visible objects into one draw call.
+ * Objects added as occludees are also skipped while a SoftwareOcclusionCuller finds them hidden.
+ * They are put in groups of their own, drawn after the others, so that the culler's rasterising
+ * of the occluders can overlap drawing everything that is never tested.
+ * If the batch has a PhongShader, it is told when texturing is enabled and disabled between groups.
+ * If it has a LightInfluence, each object is drawn with only the lights that may reach it enabled,
+ * so neighbouring objects are only joined into one draw call if the same lights reach them.
+ * The batch must be rebuilt if anything added to it moves, and released with dispose(gl).
+ */
+
+import java.util.*;
+import javax.media.opengl.*;
+import com.jogamp.opengl.util.texture.*;
+
+public class StaticBatch {
+
+  private final ArrayList<Render> renders = new ArrayList<Render>();
+  private final ArrayList<double[]> transforms = new ArrayList<double[]>();
+  private final ArrayList<Boolean> occludees = new ArrayList<Boolean>();
+  private Group[] groups = new Group[0];
+  private Part[] parts = new Part[0];  // the added Renders, in the order of their triangles
+  private MeshBuffers buffers;
+  private PhongShader lighting;
+  private LightInfluence influence;
+  private int numTriangles;
+  private int partsDrawn, partsCulled, partsOccluded;  // counts for the last call of draw
+
+  private static class Group {
+    Texture texture;  // null if untextured
+    Material material;
+    int firstPart, numParts;
+  }
+
+  private static class Part {
+    int firstTriangle, numTriangles;
+    BoundingBox bounds;  // in world space
+    boolean occludee;    // tested for occlusion
+  }
+
+  /**
+   * Adds a Render to the batch. It takes effect when the batch is next built.
+   *
+   * @param  render     the Render to add. Its vertex buffers need not be initialised, but if
+   *                    they are, their texture repeat is used, otherwise the texture is not repeated.
+   * @param  transform  the modelling transform into world space, in column-major order. The array is kept.
+   */
+  public void add(Render render, double[] transform) {
+    add(render, transform, false);
+  }
+
+  /**
+   * Adds a Render to the batch, which may be tested for occlusion when the batch is drawn.
+   *
+   * @param  render     the Render to add
+   * @param  transform  the modelling transform into world space, in column-major order. The array is kept.
+   * @param  occludee   true if the Render is to be skipped while it is hidden by other objects
+   */
+  public void add(Render render, double[] transform, boolean occludee) {
+    renders.add(render);
+    transforms.add(transform);
+    occludees.add(occludee);
+  }
+
+  /**
+   * Removes everything from the batch, and releases its vertex buffer.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void clear(GL2 gl) {
+    dispose(gl);
+    renders.clear();
+    transforms.clear();
+    occludees.clear();
+  }
+
+  /**
+   * Sets the per-pixel lighting shader, which is told when texturing is enabled and disabled.
+   *
+   * @param  lighting  the shader, current while the batch is drawn, or null for fixed-function lighting
+   */
+  public void setLightingShader(PhongShader lighting) {
+    this.lighting = lighting;
+  }
+
+  /**
+   * Sets the lights switched on for each object while the batch is drawn with lighting enabled.
+   *
+   * @param  influence  the lights, added and begun for the frame before drawing, or null to draw every
+   *                    object with all the lights enabled
+   */
+  public void setLightInfluence(LightInfluence influence) {
+    this.influence = influence;
+  }
+
+  /**
+   * Tests whether the batch has been built since it was last cleared
+   *
+   * @return  true if the batch is ready to draw
+   */
+  public boolean isBuilt() {
+    return buffers != null;
+  }
+
+  /**
+   * Merges the added Renders into one Mesh, in world space, and uploads it.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void build(GL2 gl) {
+    if (buffers != null) buffers.dispose(gl);
+
+    // Order the Renders with the occludees last, then by texture then Material, keeping the order
+    // they were added in otherwise
+    final IdentityHashMap<Object, Integer> ids = new IdentityHashMap<Object, Integer>();
+    Integer[] order = new Integer[renders.size()];
+    int numVertices = 0;
+    numTriangles = 0;
+    for (int i=0; i<order.length; i++) {
+      Render r = renders.get(i);
+      for (Object o : new Object[]{r.getTexture(), r.getMesh().getMaterial()})
+        if (o != null && !ids.containsKey(o)) ids.put(o, ids.size()+1);
+      order[i] = i;
+      numVertices += r.getMesh().getNumVertices();
+      numTriangles += r.getMesh().getNumTriangles();
+    }
+    Arrays.sort(order, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        int c = Boolean.compare(occludees.get(a), occludees.get(b));
+        if (c != 0) return c;
+        c = Integer.compare(id(renders.get(a).getTexture()), id(renders.get(b).getTexture()));
+        if (c != 0) return c;
+        return Integer.compare(id(renders.get(a).getMesh().getMaterial()), id(renders.get(b).getMesh().getMaterial()));
+      }
+      private int id(Object o) {
+        return (o == null) ? 0 : ids.get(o);
+      }
+    });
+
+    parts = new Part[order.length];
+    float[] positions = new float[numVertices*3];
+    float[] normals = new float[numVertices*3];
+    float[] texCoords = new float[numVertices*2];
+    int[] indices = new int[numTriangles*3];
+    ArrayList<Group> res = new ArrayList<Group>();
+    int v0 = 0, t0 = 0;
+    for (int k=0; k<order.length; k++) {
+      int i = order[k];
+      Render r = renders.get(i);
+      double[] m = transforms.get(i);
+      MeshData data = r.getMesh().getData();
+      Group g = res.isEmpty() ? null : res.get(res.size()-1);
+      if (g == null || g.texture != r.getTexture() || g.material != r.getMesh().getMaterial()
+          || parts[g.firstPart].occludee != occludees.get(i)) {
+        g = new Group();
+        g.texture = r.getTexture();
+        g.material = r.getMesh().getMaterial();
+        g.firstPart = k;
+        res.add(g);
+      }
+      Part p = new Part();
+      p.firstTriangle = t0;
+      p.numTriangles = r.getMesh().getNumTriangles();
+      p.bounds = MatrixStack.transformBox(m, r.getMesh().getBoundingBox());
+      p.occludee = occludees.get(i);
+      parts[k] = p;
+      g.numParts++;
+      transformVertices(data, m, (r.getBuffers() != null) ? r.getBuffersRepeat() : 1, positions, normals, texCoords, v0);
+      boolean mirrored = MatrixStack.determinant3(m) < 0;
+      for (int t=0; t<data.getNumTriangles(); t++) {
+        indices[(t0+t)*3] = v0+data.getVertexIndex(t, 0);
+        indices[(t0+t)*3+1] = v0+data.getVertexIndex(t, mirrored ? 2 : 1);  // keep the triangles front-facing
+        indices[(t0+t)*3+2] = v0+data.getVertexIndex(t, mirrored ? 1 : 2);
+      }
+      v0 += data.getNumVertices();
+      t0 += data.getNumTriangles();
+    }
+    groups = res.toArray(new Group[res.size()]);
+
+    Mesh mesh = new Mesh();
+    mesh.setVertexData(positions, normals, texCoords);
+    mesh.setTriangleData(indices);
+    buffers = new MeshBuffers(gl, mesh);
+  }
+
+  // Transforms the positions and normals of a Mesh by a modelling transform, and scales the
+  // texture coordinates by the texture repeat, storing them from vertex v0 onwards
+  private static void transformVertices(MeshData data, double[] m, int repeat,
+                                        float[] positions, float[] normals, float[] texCoords, int v0) {
+    double[] nm = MatrixStack.normalMatrix(m);
+    for (int v=0; v<data.getNumVertices(); v++) {
+      double x = data.getPosition(v, 0), y = data.getPosition(v, 1), z = data.getPosition(v, 2);
+      double[] p = MatrixStack.transformPoint(m, x, y, z);
+      double nx = data.getNormal(v, 0), ny = data.getNormal(v, 1), nz = data.getNormal(v, 2);
+      double tx = nm[0]*nx+nm[3]*ny+nm[6]*nz;
+      double ty = nm[1]*nx+nm[4]*ny+nm[7]*nz;
+      double tz = nm[2]*nx+nm[5]*ny+nm[8]*nz;
+      double mag = Math.sqrt(tx*tx+ty*ty+tz*tz);
+      if (mag == 0) mag = 1;
+      int i = (v0+v)*3;
+      positions[i] = (float)(p[0]/p[3]);
+      positions[i+1] = (float)(p[1]/p[3]);
+      positions[i+2] = (float)(p[2]/p[3]);
+      normals[i] = (float)(tx/mag);
+      normals[i+1] = (float)(ty/mag);
+      normals[i+2] = (float)(tz/mag);
+      texCoords[(v0+v)*2] = (float)(repeat*data.getTextureCoord(v, 0));
+      texCoords[(v0+v)*2+1] = (float)(repeat*data.getTextureCoord(v, 1));
+    }
+  }
+
+  /**
+   * Draws the batch. The modelview matrix should hold the viewing transformation. The batch must
+   * have been built.
+   *
+   * @param  gl            the OpenGL context.
+   * @param  isTexturesOn  false to draw every group untextured
+   */
+  public void draw(GL2 gl, boolean isTexturesOn) {
+    draw(gl, isTexturesOn, null);
+  }
+
+  /**
+   * Draws the objects in the batch that may be inside a view frustum.
+   *
+   * @param  gl            the OpenGL context.
+   * @param  isTexturesOn  false to draw every group untextured
+   * @param  frustum       the view frustum, in world space, or null to draw everything
+   */
+  public void draw(GL2 gl, boolean isTexturesOn, Frustum frustum) {
+    draw(gl, isTexturesOn, frustum, null);
+  }
+
+  /**
+   * Draws the objects in the batch that may be inside a view frustum, skipping occludees that are hidden.
+   *
+   * @param  gl            the OpenGL context.
+   * @param  isTexturesOn  false to draw every group untextured
+   * @param  frustum       the view frustum, in world space, or null to draw everything
+   * @param  occlusion     tests the occludees for the current frame, or null to draw them whenever they are
+   *                       inside the frustum. It is first called once the groups without occludees are drawn,
+   *                       so its rasterising can overlap drawing them.
+   */
+  public void draw(GL2 gl, boolean isTexturesOn, Frustum frustum, SoftwareOcclusionCuller occlusion) {
+    draw(gl, isTexturesOn, frustum, occlusion, false);
+  }
+
+  /**
+   * Draws the objects as draw(gl, false, frustum, occlusion) does, for a depth pre-pass. Only the depth
+   * matters: no textures are bound, Materials sent or lights switched. The caller turns off colour
+   * writes and lighting.
+   *
+   * @param  gl         the OpenGL context.
+   * @param  frustum    the view frustum, in world space, or null to draw everything
+   * @param  occlusion  tests the occludees for the current frame, or null to draw them whenever they are
+   *                    inside the frustum
+   */
+  public void drawDepth(GL2 gl, Frustum frustum, SoftwareOcclusionCuller occlusion) {
+    draw(gl, false, frustum, occlusion, true);
+  }
+
+  private void draw(GL2 gl, boolean isTexturesOn, Frustum frustum, SoftwareOcclusionCuller occlusion, boolean depthOnly) {
+    buffers.bind(gl, isTexturesOn);
+    Texture bound = null;
+    Material material = null;
+    partsDrawn = partsCulled = partsOccluded = 0;
+    boolean[] visibleParts = new boolean[parts.length];
+    LightInfluence influence = depthOnly ? null : this.influence;
+    int[] partLights = (influence == null) ? null : new int[parts.length];
+    for (Group g : groups) {
+      int visible = 0;
+      for (int i=g.firstPart; i<g.firstPart+g.numParts; i++) {
+        Part p = parts[i];
+        if (frustum != null && !frustum.intersectsBox(p.bounds))
+          partsCulled++;
+        else if (occlusion != null && p.occludee && !occlusion.isVisible(p.bounds))
+          partsOccluded++;
+        else {
+          visibleParts[i] = true;
+          visible++;
+          if (influence != null) partLights[i] = influence.getLights(p.bounds);
+        }
+      }
+      partsDrawn += visible;
+      if (visible == 0) continue;
+
+      Texture tex = isTexturesOn ? g.texture : null;
+      if (tex != bound) {
+        if (tex == null) bound.disable(gl);
+        else {
+          if (bound == null) tex.enable(gl);
+          tex.bind(gl);
+        }
+        if (lighting != null) lighting.setTextured(gl, tex != null);
+        bound = tex;
+      }
+      if (!depthOnly && g.material != material) {
+        material = g.material;
+        Render.setMaterial(gl, material);
+      }
+      int start = 0, count = 0, lights = 0;
+      for (int i=g.firstPart; i<g.firstPart+g.numParts; i++) {
+        Part p = parts[i];
+        if (!visibleParts[i]) continue;
+        int l = (influence == null) ? 0 : partLights[i];
+        if (count > 0 && start+count == p.firstTriangle && l == lights)
+          count += p.numTriangles;
+        else {
+          if (count > 0) drawTriangles(gl, influence, start, count, lights);
+          start = p.firstTriangle;
+          count = p.numTriangles;
+          lights = l;
+        }
+      }
+      drawTriangles(gl, influence, start, count, lights);
+    }
+    if (bound != null) {
+      bound.disable(gl);
+      if (lighting != null) lighting.setTextured(gl, false);
+    }
+    buffers.unbind(gl, isTexturesOn);
+  }
+
+  private void drawTriangles(GL2 gl, LightInfluence influence, int start, int count, int lights) {
+    if (influence != null) influence.apply(gl, lights);
+    buffers.drawTriangles(gl, start, count);
+  }
+
+  /**
+   * Gets the number of groups, i.e. the draw calls the batch is drawn with if nothing is culled
+   *
+   * @return  the number of groups, or 0 if the batch has not been built
+   */
+  public int getNumGroups() {
+    return groups.length;
+  }
+
+  /**
+   * Gets the number of objects drawn by the last call of draw
+   *
+   * @return  the number of added Renders drawn
+   */
+  public int getPartsDrawn() {
+    return partsDrawn;
+  }
+
+  /**
+   * Gets the number of objects skipped by the last call of draw, as they were outside the frustum
+   *
+   * @return  the number of added Renders culled
+   */
+  public int getPartsCulled() {
+    return partsCulled;
+  }
+
+  /**
+   * Gets the number of occludees skipped by the last call of draw, as they were hidden
+   *
+   * @return  the number of added Renders occluded
+   */
+  public int getPartsOccluded() {
+    return partsOccluded;
+  }
+
+  /**
+   * Gets the number of triangles in the batch
+   *
+   * @return  the number of triangles, when the batch was last built
+   */
+  public int getNumTriangles() {
+    return numTriangles;
+  }
+
+  /**
+   * Deletes the vertex buffer. The batch must be built again before it is drawn.
+   *
+   * @param  gl  the OpenGL context.
+   */
+  public void dispose(GL2 gl) {
+    if (buffers != null) buffers.dispose(gl);
+    buffers = null;
+    groups = new Group[0];
+    parts = new Part[0];
+  }
+
+  /**
+   * Standard toString method
+   *
+   * @return the number of Renders, triangles and groups in the batch
+   */
+  public String toString() {
+    return renders.size()+" objects, "+numTriangles+" triangles in "+groups.length+" groups";
+  }
+
+}
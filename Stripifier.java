@@ -0,0 +1,118 @@
+/**
+ * Converts the triangle list of a Mesh into triangle strips, joined into a single index list
+ * with primitive restart indices, for drawing with GL_TRIANGLE_STRIP.
+ * A strip of n+2 indices draws n triangles, rather than the 3n indices of a triangle list.
+ * Strips are grown greedily: starting from the first triangle not yet in a strip, each of its
+ * three rotations is tried, and the one whose strip is longest is kept. A strip is extended
+ * by the neighbouring triangle across its last edge that keeps the winding of the strip, so
+ * the strips draw the same triangles, facing the same way, as the triangle list.
+ *
+ * Strips are a library feature: the scene draws its meshes as triangle lists, and only Benchmark
+ * uses Stripifier, to compare the index counts of strips and lists.
+ */
+
+import java.util.*;
+
+public class Stripifier {
+
+  public static final int RESTART_INDEX = 0xFFFFFFFF;  // i.e. -1, and the largest unsigned int index
+
+  /**
+   * Converts the triangles of a Mesh into strips.
+   *
+   * @param  mesh  the Mesh to convert
+   * @return  the strips, each strip separated from the next by RESTART_INDEX
+   */
+  public static int[] stripify(Mesh mesh) {
+    MeshData data = mesh.getData();
+    int numTriangles = data.getNumTriangles();
+    int[] tris = data.getIndices();
+
+    // Triangle on the left of each directed edge, i.e. the triangle that has the edge in its winding order
+    HashMap<Long, Integer> edges = new HashMap<Long, Integer>();
+    for (int t=0; t<numTriangles; t++)
+      for (int j=0; j<3; j++)
+        edges.put(edgeKey(tris[t*3+j], tris[t*3+(j+1)%3]), t);
+
+    int[] used = new int[numTriangles];  // 0 if not in a strip, otherwise the stamp of the strip being tried or kept
+    final int KEPT = Integer.MAX_VALUE;
+    int stamp = 0;
+    int[] strip = new int[numTriangles+2];
+    int[] stripTriangles = new int[numTriangles];
+    int[] best = new int[numTriangles+2];
+    int[] bestTriangles = new int[numTriangles];
+    int[] res = new int[numTriangles*4];  // enough for every triangle in a strip of its own
+    int n = 0;
+
+    for (int t=0; t<numTriangles; t++) {
+      if (used[t]==KEPT) continue;
+      int bestLength = 0;
+      for (int r=0; r<3; r++) {
+        stamp++;
+        strip[0] = tris[t*3+r];
+        strip[1] = tris[t*3+(r+1)%3];
+        strip[2] = tris[t*3+(r+2)%3];
+        stripTriangles[0] = t;
+        used[t] = stamp;
+        int length = 3;
+        while (true) {
+          int x = strip[length-2], y = strip[length-1];
+          // the next triangle has edge x->y if it is at an even position in the strip, otherwise y->x
+          boolean even = (length-2)%2==0;
+          int from = even ? x : y, to = even ? y : x;
+          Integer next = edges.get(edgeKey(from, to));
+          if (next==null || used[next]==KEPT || used[next]==stamp) break;
+          int nt = next;
+          int j = 0;
+          while (j<3 && !(tris[nt*3+j]==from && tris[nt*3+(j+1)%3]==to)) j++;
+          if (j==3) break;
+          used[nt] = stamp;
+          stripTriangles[length-2] = nt;
+          strip[length++] = tris[nt*3+(j+2)%3];
+        }
+        if (length>bestLength) {
+          bestLength = length;
+          System.arraycopy(strip, 0, best, 0, length);
+          System.arraycopy(stripTriangles, 0, bestTriangles, 0, length-2);
+        }
+      }
+      for (int k=0; k<bestLength-2; k++)
+        used[bestTriangles[k]] = KEPT;
+
+      if (n>0) res[n++] = RESTART_INDEX;
+      System.arraycopy(best, 0, res, n, bestLength);
+      n += bestLength;
+    }
+    return Arrays.copyOf(res, n);
+  }
+
+  /**
+   * Converts strips back into a triangle list, e.g. to check them. Degenerate triangles are skipped.
+   *
+   * @param  strips  strips separated by RESTART_INDEX, as returned by stripify
+   * @return  v0,v1,v2 vertex indices of each triangle
+   */
+  public static int[] unstripify(int[] strips) {
+    int[] res = new int[strips.length*3];
+    int n = 0;
+    int start = 0;
+    for (int i=0; i<=strips.length; i++) {
+      if (i<strips.length && strips[i]!=RESTART_INDEX) continue;
+      for (int k=start; k+2<i; k++) {
+        int a = strips[k], b = strips[k+1], c = strips[k+2];
+        if (a==b || b==c || a==c) continue;
+        boolean even = (k-start)%2==0;
+        res[n++] = even ? a : b;
+        res[n++] = even ? b : a;
+        res[n++] = c;
+      }
+      start = i+1;
+    }
+    return Arrays.copyOf(res, n);
+  }
+
+  private static long edgeKey(int a, int b) {
+    return ((long)a<<32)|(b & 0xffffffffL);
+  }
+
+}
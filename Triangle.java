@@ -1,6 +1,8 @@
 /**
  * A class for a triangle, containing the indexes of the vertices (in the Mesh vertex data structure)
  * that make up this triangle, and the triangle normal.
+ * Like Vertex, a Triangle is a view onto a MeshData, holding only a reference to the data
+ * and its index within it.
  *
  * @author    Dr Steve Maddock
  * @version   3.0 (26/07/2013)
@@ -8,17 +10,28 @@
 
 public class Triangle implements Cloneable {
 
-  private int[] vertexIndices = new int[3]; // Indexes of the 3 vertices that make up this triangle.
-                                            // Each index refers to the Mesh data structure for vertices.
-  private double[] normal = new double[3];  // The triangle normal
+  private MeshData data;  // storage holding the vertex indices and the triangle normal.
+                          // Each vertex index refers to the Mesh data structure for vertices.
+  private int index;      // index of this triangle in the storage
 
  
   /**
    * Constructor. Initialises all values to 0.
    */  
   public Triangle() {
-    vertexIndices[0] = vertexIndices[1] = vertexIndices[2] = 0;
-    normal[0] = normal[1] = normal[2] = 0;
+    data = new MeshData(0, 1);
+    index = 0;
+  }
+
+  /**
+   * Constructor. Creates a view of an existing triangle in a MeshData.
+   * 
+   * @param data the storage containing the triangle
+   * @param index index of the triangle in data
+   */
+  public Triangle(MeshData data, int index) {
+    this.data = data;
+    this.index = index;
   }
 
   /**
@@ -29,10 +42,8 @@ public class Triangle implements Cloneable {
    * @param i3 index into main vertex data structure
    */    
   public Triangle(int i1, int i2, int i3) {
-    vertexIndices[0] = i1;
-    vertexIndices[1] = i2;
-    vertexIndices[2] = i3;
-    normal[0] = normal[1] = normal[2] = 0;
+    this();
+    data.setVertexIndices(index, i1, i2, i3);
   }
 
   /**
@@ -43,11 +54,25 @@ public class Triangle implements Cloneable {
    */    
   public Triangle(int[] indices, double[] n) {
     this(indices[0], indices[1], indices[2]);
-    if (n != null) {
-	    normal[0] = n[0];
-	    normal[1] = n[1];
-	    normal[2] = n[2];
-	  }
+    if (n != null) data.setTriangleNormal(index, n[0], n[1], n[2]);
+  }
+
+  /**
+   * Gets the storage this triangle is a view onto.
+   * 
+   * @return the MeshData holding this triangle
+   */
+  MeshData getData() {
+    return data;
+  }
+
+  /**
+   * Gets the index of this triangle in its storage.
+   * 
+   * @return the index of this triangle in its MeshData
+   */
+  int getIndex() {
+    return index;
   }
   
   /**
@@ -58,9 +83,7 @@ public class Triangle implements Cloneable {
    * @param i3 the index of a vertex in the Mesh vertex data structure
    */  
   public void setVertexIndices(int i1, int i2, int i3) {
-    vertexIndices[0] = i1;
-    vertexIndices[1] = i2;
-    vertexIndices[2] = i3;
+    data.setVertexIndices(index, i1, i2, i3);
   }
 
   /**
@@ -69,17 +92,16 @@ public class Triangle implements Cloneable {
    * @param indices the index numbers of three vertices in the Mesh vertex data structure
    */       
   public void setVertexIndices(int[] indicies) {
-    for (int i=0; i<3; i++)
-      vertexIndices[i] = indicies[i];
+    data.setVertexIndices(index, indicies[0], indicies[1], indicies[2]);
   }
 
   /**
-   * Get the list of vertex indexes (as a reference) that make up this triangle.
+   * Get the list of vertex indexes (as a copy) that make up this triangle.
    * 
    * @return a list of vertex indexes into the Mesh vertex data structure
    */   
   public int[] getVertexIndices() {
-    return vertexIndices;
+    return new int[]{getVertexIndex(0), getVertexIndex(1), getVertexIndex(2)};
   }
   
   /**
@@ -89,7 +111,7 @@ public class Triangle implements Cloneable {
    * @return The index of a vertex in the Mesh vertex data structure
    */    
   public int getVertexIndex(int v) {
-    return vertexIndices[v];
+    return data.getVertexIndex(index, v);
   }
 
   /**
@@ -100,9 +122,7 @@ public class Triangle implements Cloneable {
    * @param nz the z component of the triangle normal
    */  
   public void setTriangleNormal(double nx, double ny, double nz) {
-    normal[0] = nx;
-    normal[1] = ny;
-    normal[2] = nz;
+    data.setTriangleNormal(index, nx, ny, nz);
   }
   
   /**
@@ -111,17 +131,16 @@ public class Triangle implements Cloneable {
    * @param normal the xyz components of the triangle normal
    */ 
   public void setTriangleNormal(double[] normal) {
-    for (int i=0; i<3; i++)
-      this.normal[i] = normal[i];
+    data.setTriangleNormal(index, normal[0], normal[1], normal[2]);
   }
   
  /**
-   * Get the triangle normal (reference)
+   * Get the triangle normal (copy)
    * 
    * @return the triangle normal
    */   
   public double[] getTriangleNormal() {
-    return normal;
+    return new double[]{getTriangleNormalX(), getTriangleNormalY(), getTriangleNormalZ()};
   }
 
   /**
@@ -130,7 +149,7 @@ public class Triangle implements Cloneable {
    * @return the x component of the triangle normal
    */    
   public double getTriangleNormalX() {
-    return normal[0];
+    return data.getTriangleNormal(index, 0);
   }
 
   /**
@@ -139,7 +158,7 @@ public class Triangle implements Cloneable {
    * @return the y component of the triangle normal
    */   
   public double getTriangleNormalY() {
-    return normal[1];
+    return data.getTriangleNormal(index, 1);
   }
 
   /**
@@ -148,7 +167,7 @@ public class Triangle implements Cloneable {
    * @return the z component of the triangle normal
    */    
   public double getTriangleNormalZ() {
-    return normal[2];
+    return data.getTriangleNormal(index, 2);
   }
  
   /**
@@ -157,10 +176,7 @@ public class Triangle implements Cloneable {
    */ 
   public Object clone() {
     Triangle res = new Triangle();
-    for (int i=0; i<3; i++) {
-      res.vertexIndices[i] = vertexIndices[i];
-      res.normal[i] = normal[i];
-    }
+    res.data.copyTriangle(0, data, index);
     return res;
   }
   
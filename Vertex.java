@@ -1,5 +1,9 @@
 /**
  * A class for a vertex, containing an xyz position, a normal, and (u,v) texture coordinates.
+ * A Vertex is a view onto a MeshData: it stores only a reference to the data and its index
+ * within it. A newly constructed Vertex owns a MeshData of its own. When an array of vertices
+ * is given to a Mesh, their values are copied; the Mesh's getVertices() returns views onto
+ * its own MeshData, so that changes made through them are made to the Mesh.
  *
  * @author    Dr Steve Maddock
  * @version   3.0 (26/07/2013)
@@ -7,17 +11,26 @@
 
 public class Vertex implements Cloneable {
 
-  private double[] xyz      = new double[3];  // xyz position of a vertex
-  private double[] normal   = new double[3];  // vertex normal
-  private double[] texCoord = new double[2];  // texture coordinates
+  private MeshData data;  // storage holding the position, normal and texture coordinates
+  private int index;      // index of this vertex in the storage
   
   /**
    * Constructor. Initialises all values to 0.
    */
   public Vertex() {
-    xyz[0] = xyz[1] = xyz[2] = 0;
-    normal[0] = normal[1] = normal[2] = 0;
-    texCoord[0] = texCoord[1] = 0;
+    data = new MeshData(1, 0);
+    index = 0;
+  }
+
+  /**
+   * Constructor. Creates a view of an existing vertex in a MeshData.
+   * 
+   * @param data the storage containing the vertex
+   * @param index index of the vertex in data
+   */
+  public Vertex(MeshData data, int index) {
+    this.data = data;
+    this.index = index;
   }
 
   /**
@@ -29,9 +42,7 @@ public class Vertex implements Cloneable {
    */   
   public Vertex(double x, double y, double z) {
     this();
-	  xyz[0] = x;
-    xyz[1] = y;
-    xyz[2] = z;    
+    data.setPosition(index, x, y, z);
   }
   
   /**
@@ -56,11 +67,8 @@ public class Vertex implements Cloneable {
    */   
   public Vertex(double x, double y, double z, double u, double v) {
     this();
-	  xyz[0] = x;
-    xyz[1] = y;
-    xyz[2] = z;    
-	  texCoord[0] = u;
-	  texCoord[1] = v;	
+    data.setPosition(index, x, y, z);
+    data.setTextureCoord(index, u, v);
   }
 
   /**
@@ -71,20 +79,28 @@ public class Vertex implements Cloneable {
    * @param t array containing (u,v) texture coordinates of the new vertex; otherwise, null
    */   
   public Vertex(double[] p, double[] n, double[] t) {
-    xyz[0] = p[0];
-    xyz[1] = p[1];
-    xyz[2] = p[2];    
-    if (n==null) normal[0] = normal[1] = normal[2] = 0;
-	  else {
-	    normal[0] = n[0];
-	    normal[1] = n[1];
-	    normal[2] = n[2];
-	  }
-    if (t==null) texCoord[0]=texCoord[1]=0;
-	  else {
-	    texCoord[0] = t[0];
-	    texCoord[1] = t[1];
-	  }
+    this();
+    data.setPosition(index, p[0], p[1], p[2]);
+    if (n!=null) data.setNormal(index, n[0], n[1], n[2]);
+    if (t!=null) data.setTextureCoord(index, t[0], t[1]);
+  }
+
+  /**
+   * Gets the storage this vertex is a view onto.
+   * 
+   * @return the MeshData holding this vertex
+   */
+  MeshData getData() {
+    return data;
+  }
+
+  /**
+   * Gets the index of this vertex in its storage.
+   * 
+   * @return the index of this vertex in its MeshData
+   */
+  int getIndex() {
+    return index;
   }
 
   /**
@@ -95,9 +111,7 @@ public class Vertex implements Cloneable {
    * @param z the z position of a vertex
    */ 
   public void setPosition(double x, double y, double z) {
-    xyz[0] = x;
-    xyz[1] = y;
-    xyz[2] = z;
+    data.setPosition(index, x, y, z);
   }
 
   /**
@@ -106,18 +120,16 @@ public class Vertex implements Cloneable {
    * @param p array containing (x,y,z) position
    */ 
   public void setPosition(double[] p) {
-    xyz[0] = p[0];
-    xyz[1] = p[1];
-    xyz[2] = p[2];
+    data.setPosition(index, p[0], p[1], p[2]);
   }
   
   /**
-   * Gets the xyz position of a vertex (as a reference) as a double array, where index 0 = x, index 1 = y, and index 2 = z.
+   * Gets the xyz position of a vertex (as a copy) as a double array, where index 0 = x, index 1 = y, and index 2 = z.
    * 
    * @return the xyz position of a vertex
    */ 
   public double[] getPosition() {
-    return xyz;
+    return new double[]{getPositionX(), getPositionY(), getPositionZ()};
   }
 
   /**
@@ -126,7 +138,7 @@ public class Vertex implements Cloneable {
    * @return the x position of a vertex
    */  
   public double getPositionX() {
-    return xyz[0];
+    return data.getPosition(index, 0);
   }
 
   /**
@@ -135,7 +147,7 @@ public class Vertex implements Cloneable {
    * @return the y position of a vertex
    */    
   public double getPositionY() {
-    return xyz[1];
+    return data.getPosition(index, 1);
   }
 
   /**
@@ -144,7 +156,7 @@ public class Vertex implements Cloneable {
    * @return the z position of a vertex
    */    
   public double getPositionZ() {
-    return xyz[2];
+    return data.getPosition(index, 2);
   }
 
     /**
@@ -155,9 +167,7 @@ public class Vertex implements Cloneable {
    * @param nz the z component of the vertex normal
    */  
   public void setNormal(double nx, double ny, double nz) {
-    normal[0] = nx;
-    normal[1] = ny;
-    normal[2] = nz;
+    data.setNormal(index, nx, ny, nz);
   }
 
   /**
@@ -166,17 +176,16 @@ public class Vertex implements Cloneable {
    * @param normal array of values for the vertex normal
    */       
   public void setNormal(double[] normal) {
-    for (int i=0; i<3; i++)
-      this.normal[i] = normal[i];
+    data.setNormal(index, normal[0], normal[1], normal[2]);
   } 
   
   /**
-   * Gets the vertex normal (as a reference)
+   * Gets the vertex normal (as a copy)
    * 
    * @return the vertex normal
    */  
   public double[] getNormal() {
-    return normal;
+    return new double[]{getNormalX(), getNormalY(), getNormalZ()};
   }
 
   /**
@@ -185,7 +194,7 @@ public class Vertex implements Cloneable {
    * @return the x component of the vertex normal
    */   
   public double getNormalX() {
-    return normal[0];
+    return data.getNormal(index, 0);
   }
 
   /**
@@ -194,7 +203,7 @@ public class Vertex implements Cloneable {
    * @return the y component of the vertex normal
    */
   public double getNormalY() {
-    return normal[1];
+    return data.getNormal(index, 1);
   }
 
   /**
@@ -203,7 +212,7 @@ public class Vertex implements Cloneable {
    * @return the z component of the vertex normal
    */    
   public double getNormalZ() {
-    return normal[2];
+    return data.getNormal(index, 2);
   }
 
   /**
@@ -215,19 +224,14 @@ public class Vertex implements Cloneable {
    * @param nz z component of vector to add
    */  
   public void addNormal(double nx, double ny, double nz) {
-    normal[0] += nx;
-    normal[1] += ny;
-    normal[2] += nz;
+    data.addNormal(index, nx, ny, nz);
   }
 
   /**
    * Normalise the vertex normal
    */    
   public void normaliseNormal() {
-    double mag=Math.sqrt(normal[0]*normal[0]+normal[1]*normal[1]+normal[2]*normal[2]);
-    if (mag!=0.0)  // should test within epsilon
-      for (int i=0; i<3; i++)
-        normal[i]/=mag;
+    data.normaliseNormal(index);
   }
 
   /**
@@ -237,8 +241,7 @@ public class Vertex implements Cloneable {
    * @param  v texture coordinate
    */  
   public void setTextureCoord(double u, double v) {
-    texCoord[0] = u;
-    texCoord[1] = v;
+    data.setTextureCoord(index, u, v);
   }
   
   /**
@@ -247,17 +250,16 @@ public class Vertex implements Cloneable {
    * @param  uv  u and v texture coordinates
    */  
   public void setTextureCoord(double[] uv) {
-    texCoord[0] = uv[0];
-    texCoord[1] = uv[1];
+    data.setTextureCoord(index, uv[0], uv[1]);
   }
   
   /**
-   * Get the vertex texture coordinates (as a reference)
+   * Get the vertex texture coordinates (as a copy)
    * 
    * @return  u and v texture coordinates
    */  
   public double[] getTextureCoord() {
-    return texCoord;
+    return new double[]{getTextureCoordU(), getTextureCoordV()};
   }
   
   /**
@@ -266,7 +268,7 @@ public class Vertex implements Cloneable {
    * @return the u component of the vertex texture coords
    */   
   public double getTextureCoordU() {
-    return texCoord[0];
+    return data.getTextureCoord(index, 0);
   }
 
     /**
@@ -275,7 +277,7 @@ public class Vertex implements Cloneable {
    * @return the v component of the vertex texture coords
    */   
   public double getTextureCoordV() {
-    return texCoord[1];
+    return data.getTextureCoord(index, 1);
   }
 
   /**
@@ -284,12 +286,7 @@ public class Vertex implements Cloneable {
    */  
   public Object clone() {
     Vertex res = new Vertex();
-    for (int i=0; i<3; i++) {
-      res.xyz[i] = xyz[i];
-      res.normal[i] = normal[i];
-    }
-    res.texCoord[0] = texCoord[0];
-    res.texCoord[1] = texCoord[1];
+    res.data.copyVertex(0, data, index);
     return res;
   }
   